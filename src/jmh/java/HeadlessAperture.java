@@ -0,0 +1,70 @@
+// HeadlessAperture.java
+
+import ij.*;
+import ij.process.*;
+
+import java.awt.*;
+
+import astroj.*;
+
+/**
+ * Aperture_ without any GUI interaction (ROIs only set in the ImageProcessor, no overlay, no status),
+ * used by the benchmarks.
+ */
+public class HeadlessAperture extends Aperture_ implements bench.Harness
+	{
+	double x0,y0;
+
+	public void setUp (ImageProcessor ip, double[] x, double[] y, double r)
+		{
+		setPrefs (r);
+		img = new ImagePlus ("synthetic",ip);
+		imp = ip;
+		stackSize = 1;
+		slice = 1;
+		filename = "synthetic";
+		g = new GFormat("4.3");
+		x0 = x[0];
+		y0 = y[0];
+		}
+
+	public double run ()
+		{
+		xCenter = x0;
+		yCenter = y0;
+		measureAperture ();
+		return source;
+		}
+
+	/**
+	 * Sets the aperture radii and turns off everything which needs a display.
+	 */
+	static void setPrefs (double r)
+		{
+		Prefs.set (AP_PREFS_RADIUS, r);
+		Prefs.set (AP_PREFS_RBACK1, r+3.0);
+		Prefs.set (AP_PREFS_RBACK2, r+8.0);
+		Prefs.set (AP_PREFS_REPOSITION, true);
+		Prefs.set (AP_PREFS_STAROVERLAY, false);
+		Prefs.set (AP_PREFS_SKYOVERLAY, false);
+		Prefs.set (AP_PREFS_VALUEOVERLAY, false);
+		Prefs.set (AP_PREFS_TEMPOVERLAY, false);
+		}
+
+	protected void adjustRoi ()
+		{
+		Rectangle rect = Aperture_.a2rect (xCenter,yCenter,radius);
+		imp.setRoi (rect.x, rect.y, rect.width, rect.height);
+		}
+
+	protected void centerROI ()
+		{
+		adjustRoi ();
+		}
+
+	protected void drawOverlay () {}
+
+	void showApertureStatus () {}
+
+	protected void shutDown () {}
+	}
@@ -0,0 +1,77 @@
+// HeadlessMultiAperture.java
+
+import ij.*;
+import ij.process.*;
+
+import java.awt.*;
+
+import astroj.*;
+
+/**
+ * MultiAperture_ without any GUI interaction, used by the benchmarks: processImage() measures all
+ * apertures of one image into a measurement table which is never displayed.
+ */
+public class HeadlessMultiAperture extends MultiAperture_ implements bench.Harness
+	{
+	double[] x0,y0;
+
+	/**
+	 * MeasurementTable which is never shown.
+	 */
+	static class QuietTable extends MeasurementTable
+		{
+		public void show () {}
+		public void show (String title) {}
+		}
+
+	public void setUp (ImageProcessor ip, double[] x, double[] y, double r)
+		{
+		HeadlessAperture.setPrefs (r);
+		img = new ImagePlus ("synthetic",ip);
+		imp = ip;
+		stackSize = 1;
+		slice = 1;
+		filename = "synthetic";
+		g = new GFormat("4.3");
+		nApertures = x.length;
+		x0 = x.clone();
+		y0 = y.clone();
+		xPos = new double[nApertures];
+		yPos = new double[nApertures];
+		xOld = new double[nApertures];
+		yOld = new double[nApertures];
+		table = new QuietTable ();
+		wideTable = true;
+		useOffsetSeed = false;
+		useVarSizeAp = false;
+		}
+
+	public double run ()
+		{
+		System.arraycopy (x0,0,xPos,0,nApertures);
+		System.arraycopy (y0,0,yPos,0,nApertures);
+		table.reset ();
+		processImage ();
+		return source;
+		}
+
+	protected void adjustRoi ()
+		{
+		Rectangle rect = Aperture_.a2rect (xCenter,yCenter,radius);
+		imp.setRoi (rect.x, rect.y, rect.width, rect.height);
+		}
+
+	protected void centerROI ()
+		{
+		adjustRoi ();
+		}
+
+	protected void drawOverlay () {}
+
+	void showApertureStatus () {}
+
+	protected void shutDown ()
+		{
+		cancelled = true;
+		}
+	}
@@ -0,0 +1,22 @@
+// Harness.java
+
+package bench;
+
+import ij.process.*;
+
+/**
+ * Headless access to the measurement methods of the (default package) Aperture_ plug-ins, which
+ * cannot be referenced directly from the benchmark package.  Implementations are loaded by name.
+ */
+public interface Harness
+	{
+	/**
+	 * Prepares the measurement of the apertures at (x[i],y[i]) with radius r in the given image.
+	 */
+	public void setUp (ImageProcessor ip, double[] x, double[] y, double r);
+
+	/**
+	 * Performs one measurement and returns something which depends on it (e.g. the source brightness).
+	 */
+	public double run ();
+	}
@@ -0,0 +1,145 @@
+// PhotometryBenchmark.java
+
+package bench;
+
+import ij.process.*;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+import astroj.*;
+
+/**
+ * JMH benchmarks of the photometry hot paths on deterministic synthetic star fields:
+ * Photometer.measure, Centroid.measureXYR, Aperture_.measureAperture and MultiAperture_.processImage
+ * (the latter two in headless form, see HeadlessAperture and HeadlessMultiAperture).
+ *
+ * Build and run with
+ *
+ *	mvn -P benchmark package
+ *	java -jar target/benchmarks.jar [JMH options]
+ *
+ * The GC profiler is always added, so gc.alloc.rate.norm gives the bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PhotometryBenchmark
+	{
+	public static double FWHM = 3.0;
+	public static long SEED = 20261019L;
+
+	/**
+	 * One star measured with different aperture radii.
+	 */
+	@State(Scope.Thread)
+	public static class SingleStar
+		{
+		@Param({"3","6","12","24"})
+		public double radius;
+
+		public ImageProcessor ip;
+		public double x,y;
+		public Photometer photom;
+		public Centroid center;
+		public Harness aperture;
+
+		@Setup
+		public void setUp () throws Exception
+			{
+			SyntheticField field = new SyntheticField (1,FWHM,spacing(radius),SEED);
+			ip = field.ip;
+			double[][] xy = field.guesses (0.7);
+			x = xy[0][0];
+			y = xy[1][0];
+
+			photom = new Photometer ();
+			photom.setSourceApertureRadius (radius);
+			photom.setBackgroundApertureRadii (radius+3.0,radius+8.0);
+
+			center = new Centroid (true);
+			center.setPositioning (true);
+
+			aperture = harness ("HeadlessAperture");
+			aperture.setUp (ip,xy[0],xy[1],radius);
+			}
+		}
+
+	/**
+	 * Fields with different numbers of stars measured by MultiAperture_.
+	 */
+	@State(Scope.Thread)
+	public static class StarField
+		{
+		@Param({"10","100","1000"})
+		public int nStars;
+
+		@Param({"5","10"})
+		public double radius;
+
+		public Harness multi;
+
+		@Setup
+		public void setUp () throws Exception
+			{
+			SyntheticField field = new SyntheticField (nStars,FWHM,spacing(radius),SEED);
+			double[][] xy = field.guesses (0.7);
+			multi = harness ("HeadlessMultiAperture");
+			multi.setUp (field.ip,xy[0],xy[1],radius);
+			}
+		}
+
+	static int spacing (double radius)
+		{
+		return 2*(int)(radius+8.0)+16;
+		}
+
+	static Harness harness (String name) throws Exception
+		{
+		return (Harness)Class.forName(name).newInstance();
+		}
+
+	@Benchmark
+	public double photometerMeasure (SingleStar s)
+		{
+		s.photom.measure (s.ip,s.x,s.y);
+		return s.photom.sourceBrightness();
+		}
+
+	@Benchmark
+	public double centroidMeasureXYR (SingleStar s)
+		{
+		s.center.measureXYR (s.ip,s.x,s.y,s.radius);
+		return s.center.x();
+		}
+
+	@Benchmark
+	public double apertureMeasureAperture (SingleStar s)
+		{
+		return s.aperture.run();
+		}
+
+	@Benchmark
+	public double multiApertureProcessImage (StarField f)
+		{
+		return f.multi.run();
+		}
+
+	/**
+	 * Runs the benchmarks selected on the command line (default: all) with the GC profiler.
+	 */
+	public static void main (String[] args) throws Exception
+		{
+		Options opts = new OptionsBuilder()
+			.parent (new CommandLineOptions (args))
+			.addProfiler (GCProfiler.class)
+			.build();
+		new Runner(opts).run();
+		}
+	}
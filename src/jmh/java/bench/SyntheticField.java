@@ -0,0 +1,74 @@
+// SyntheticField.java
+
+package bench;
+
+import ij.process.*;
+
+import java.util.*;
+
+/**
+ * Deterministic synthetic star fields for the benchmarks: Gaussian stars on a jittered grid
+ * (so that they do not overlap) on a flat sky with Gaussian noise.  The same seed always gives
+ * the same image and star list.
+ */
+public class SyntheticField
+	{
+	public FloatProcessor ip;
+	public double[] x,y;		// TRUE STAR POSITIONS (ImageJ PIXELS, CENTERS AT 0.5)
+	public double[] flux;
+
+	public static double SKY = 100.0;
+	public static double NOISE = 5.0;
+
+	/**
+	 * Creates a field of nStars stars with the given FWHM; the image is large enough to keep
+	 * stars at least spacing pixels apart.
+	 */
+	public SyntheticField (int nStars, double fwhm, int spacing, long seed)
+		{
+		Random r = new Random (seed);
+		int nGrid = (int)Math.ceil(Math.sqrt(nStars));
+		int size = (nGrid+1)*spacing;
+		float[] pixels = new float[size*size];
+		for (int k=0; k < pixels.length; k++)
+			pixels[k] = (float)(SKY+NOISE*r.nextGaussian());
+
+		x = new double[nStars];
+		y = new double[nStars];
+		flux = new double[nStars];
+		double sig = fwhm/2.3548;
+		int box = (int)(4.0*fwhm)+1;
+		for (int s=0; s < nStars; s++)
+			{
+			x[s] = (1+s%nGrid)*spacing+0.5+(r.nextDouble()-0.5)*0.25*spacing;
+			y[s] = (1+s/nGrid)*spacing+0.5+(r.nextDouble()-0.5)*0.25*spacing;
+			flux[s] = 1000.0*Math.pow(10.0,2.0*r.nextDouble());
+			double a = flux[s]/(2.0*Math.PI*sig*sig);
+			for (int j=(int)y[s]-box; j <= (int)y[s]+box; j++)
+				{
+				double dy = j+0.5-y[s];
+				for (int i=(int)x[s]-box; i <= (int)x[s]+box; i++)
+					{
+					double dx = i+0.5-x[s];
+					pixels[i+j*size] += (float)(a*Math.exp(-0.5*(dx*dx+dy*dy)/(sig*sig)));
+					}
+				}
+			}
+		ip = new FloatProcessor (size,size,pixels,null);
+		}
+
+	/**
+	 * Returns starting positions offset from the true positions, so that the centroiding has to iterate.
+	 */
+	public double[][] guesses (double offset)
+		{
+		double[] gx = new double[x.length];
+		double[] gy = new double[y.length];
+		for (int s=0; s < x.length; s++)
+			{
+			gx[s] = x[s]+offset;
+			gy[s] = y[s]-offset;
+			}
+		return new double[][] {gx,gy};
+		}
+	}
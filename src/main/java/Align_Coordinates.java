@@ -21,8 +21,9 @@ import astroj.*;
  * matched with the WCS positions of the reference image to produce a new WCS, which is then placed
  * in the FITS header of the work image.
  *
- * It is assumed that the aperture position measurements were made in the SAME ORDER! This could
- * be changed by adding an intelligent means of cross-identification, but....
+ * It is assumed that the aperture position measurements were made in the SAME ORDER unless the numbers
+ * of apertures differ or the user wants them to be identified: then the pairs are found by matching
+ * the patterns of the apertures' pixel positions (AsterismMatcher), which needs at least three pairs.
  *
  * Based on Align_Image.java.
  *
@@ -31,6 +32,10 @@ import astroj.*;
  * @author F.V. Hessman, Georg-August-Universitaet Goettingen
  * @version 1.0
  * @date 2012-SEP-20
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Apertures can be identified by matching their patterns.
  */
 public class Align_Coordinates implements PlugInFilter
 	{
@@ -39,6 +44,7 @@ public class Align_Coordinates implements PlugInFilter
 	int numImages = 0;
 	int current = 0;
 	Boolean verbose = false;
+	boolean identify = false;
 
 	ImagePlus workImage, refImage;
 
@@ -111,6 +117,7 @@ public class Align_Coordinates implements PlugInFilter
 		int i=0;
 		if (i == current) i++;
 		gd.addChoice ("Reference image:", images, images[i]);
+		gd.addCheckbox ("Identify apertures by their patterns (otherwise same order)", identify);
 		gd.addCheckbox ("Verbose", false);
 
 		// DO DIALOGUE
@@ -141,6 +148,7 @@ public class Align_Coordinates implements PlugInFilter
 			return false;
 			}
 
+		identify = gd.getNextBoolean();
 		verbose = gd.getNextBoolean();
 		return true;
 		}
@@ -206,17 +214,14 @@ public class Align_Coordinates implements PlugInFilter
 			IJ.error ("Reference image does not have any Aperture measurements!");
 			return false;
 			}
-		if (m != n)
-			{
-			IJ.error ("Images have different number of measurements - Align_Image cannot yet find the matches!");
-			return false;
-			}
 		aRef = new double[m];
 		dRef = new double[m];
+		double[] xRef = new double[m];
+		double[] yRef = new double[m];
 		int npts = 0;
 		if (verbose)
 			IJ.log("\nReference WCS positions:");
-		for (int i=0; i < n; i++)
+		for (int i=0; i < m; i++)
 			{
 			Roi roi = rois[i];
 			if (roi instanceof ApertureRoi)
@@ -225,16 +230,59 @@ public class Align_Coordinates implements PlugInFilter
 				double[] xy = aroi.getWCS();
 				aRef[npts] = xy[0];
 				dRef[npts] = xy[1];
+				xy = aroi.getCenter();
+				xRef[npts] = xy[0];
+				yRef[npts] = xy[1];
 				npts++;
 				if (verbose)
-					IJ.log("\t"+npts+"\t"+xy[0]+", "+xy[1]);
+					IJ.log("\t"+npts+"\t"+aRef[npts-1]+", "+dRef[npts-1]);
 				}
 			}
-		if (ntot != npts)
+		if (identify || ntot != npts)
+			return identifyApertures (xRef,yRef,npts,ntot);
+		xWork = Arrays.copyOf (xWork,ntot);
+		yWork = Arrays.copyOf (yWork,ntot);
+		aRef = Arrays.copyOf (aRef,npts);
+		dRef = Arrays.copyOf (dRef,npts);
+		return true;
+		}
+
+	/**
+	 * Identifies the nw work apertures with the nr reference apertures at the pixel positions (xRef,yRef)
+	 * by matching their patterns and keeps only the pairs found.
+	 */
+	protected boolean identifyApertures (double[] xRef, double[] yRef, int nr, int nw)
+		{
+		if (nr < AsterismMatcher.MIN_MATCHES || nw < AsterismMatcher.MIN_MATCHES)
+			{
+			IJ.error ("At least "+AsterismMatcher.MIN_MATCHES+" apertures in each image are needed to identify them!");
+			return false;
+			}
+		AsterismMatcher.Match match = new AsterismMatcher (xRef,yRef,nr).match (xWork,yWork,nw);
+		if (match == null)
 			{
-			IJ.error ("Reference and work image have different number of measurements!");
+			IJ.error ("Unable to identify the apertures of the work image with those of the reference image!");
 			return false;
 			}
+		double[] x = new double[match.n];
+		double[] y = new double[match.n];
+		double[] a = new double[match.n];
+		double[] d = new double[match.n];
+		if (verbose)
+			IJ.log("\nIdentified apertures (work, reference), r.m.s. = "+match.rms+" pixels:");
+		for (int k=0; k < match.n; k++)
+			{
+			x[k] = xWork[match.work[k]];
+			y[k] = yWork[match.work[k]];
+			a[k] = aRef[match.ref[k]];
+			d[k] = dRef[match.ref[k]];
+			if (verbose)
+				IJ.log("\t"+(match.work[k]+1)+"\t"+(match.ref[k]+1));
+			}
+		xWork = x;
+		yWork = y;
+		aRef = a;
+		dRef = d;
 		return true;
 		}
 
@@ -0,0 +1,423 @@
+// Align_Frames.java
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+import ij.process.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import astroj.*;
+
+/**
+ * Aligns many frames -- the slices of a stack or the FITS files in a directory -- to one reference
+ * image.  The full affine transformation of each frame is derived from the stars matched with those
+ * of the reference (see FrameAligner), the frames are resampled with a Resampler, and each aligned
+ * frame is written immediately as a 32-bit FITS file into the output directory.  The frames are
+ * processed in parallel, each thread holding only the frame it is working on, so the memory needed
+ * is a few frames however many there are.  Optionally, the aligned frames are opened as a virtual
+ * stack, which again only reads the frames being displayed.
+ *
+ * Instead of writing the aligned frames, the frames can be co-added ("drizzled", see Drizzle) directly
+ * onto the (optionally finer) grid of the reference image, so that only the co-added image and its
+ * weight map are kept in memory however many frames there are.
+ *
+ * The transformation of each frame (shift, rotation, scale, number of stars matched, r.m.s. residual)
+ * is listed in a table.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Optional drizzle co-addition instead of writing the aligned frames.
+ */
+public class Align_Frames implements PlugIn
+	{
+	String refTitle = "";
+	String source = "";
+	String inputDirectory = "";
+	String outputDirectory = "";
+	String extensions = ".fits,.fit,.fts";
+	String kernel = Resampler.KERNELS[Resampler.BILINEAR];
+	boolean openVirtual = true;
+	boolean coadd = false;
+	double drizzleScale = 1.0;
+	double pixfrac = 1.0;
+
+	ImagePlus refImage = null;
+	ImagePlus stackImage = null;
+	File[] files = null;
+	int nFrames = 0;
+
+	FrameAligner aligner = null;
+	FrameAligner.Transform[] transforms = null;
+	Drizzle drizzle = null;
+	String[] outputNames = null;
+	AtomicInteger done = new AtomicInteger(0);
+	volatile boolean cancelled = false;
+
+	public static String PREFS_REFERENCE  = new String ("alignframes.reference");
+	public static String PREFS_SOURCE     = new String ("alignframes.source");
+	public static String PREFS_INPUTDIR   = new String ("alignframes.inputdir");
+	public static String PREFS_OUTPUTDIR  = new String ("alignframes.outputdir");
+	public static String PREFS_EXTENSIONS = new String ("alignframes.extensions");
+	public static String PREFS_KERNEL     = new String ("alignframes.kernel");
+	public static String PREFS_VIRTUAL    = new String ("alignframes.virtual");
+	public static String PREFS_COADD      = new String ("alignframes.coadd");
+	public static String PREFS_SCALE      = new String ("alignframes.scale");
+	public static String PREFS_PIXFRAC    = new String ("alignframes.pixfrac");
+
+	public static String FILES_SOURCE = "Files in input directory";
+	public static String PREFIX = "aligned_";
+
+	public void run (String arg)
+		{
+		if (!dialog() || !getFrames()) return;
+
+		// REFERENCE STARS
+
+		IJ.showStatus ("Finding the reference stars ...");
+		aligner = new FrameAligner (refImage.getProcessor());
+		if (aligner.numberOfReferenceStars() == 0)
+			{
+			IJ.error ("No stars found in the reference image: please check the \"Find Stars\" settings.");
+			return;
+			}
+		final int w = refImage.getWidth();
+		final int h = refImage.getHeight();
+		final Resampler resampler = new Resampler (Resampler.kernelIndex(kernel));
+		resampler.setFillValue (Double.NaN);
+		if (coadd)
+			drizzle = new Drizzle (w,h,drizzleScale,pixfrac);
+
+		// ALIGN IN PARALLEL: EACH THREAD READS, ALIGNS, RESAMPLES, AND WRITES ONE FRAME AT A TIME
+
+		transforms = new FrameAligner.Transform[nFrames];
+		outputNames = new String[nFrames];
+		final AtomicInteger next = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(),nFrames);
+		long start = System.currentTimeMillis();
+
+		Thread[] threads = new Thread[nThreads];
+		for (int t=0; t < nThreads; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					FrameOffset offset = aligner.newOffset();
+					int n;
+					while (!cancelled && (n = next.getAndIncrement()) < nFrames)
+						{
+						alignFrame (n,offset,resampler,w,h);
+						IJ.showProgress (done.incrementAndGet(),nFrames);
+						if (IJ.escapePressed()) cancelled = true;
+						}
+					}
+				};
+			threads[t].start();
+			}
+		try	{
+			for (int t=0; t < nThreads; t++)
+				threads[t].join();
+			}
+		catch (InterruptedException e)
+			{
+			cancelled = true;
+			}
+		IJ.showProgress (1.0);
+		long elapsed = System.currentTimeMillis()-start;
+
+		showTable ();
+		if (coadd)
+			showCoadded ();
+		else if (openVirtual && !cancelled)
+			openVirtualStack (w,h);
+		IJ.showStatus ((cancelled ? "Cancelled after " : "Aligned ")+done.get()+" frames in "+elapsed+" ms");
+		}
+
+	/**
+	 * Reads frame n, derives its transformation, resamples it, and writes the result.
+	 */
+	protected void alignFrame (int n, FrameOffset offset, Resampler resampler, int w, int h)
+		{
+		ImageProcessor ip;
+		String name;
+		String info;
+		if (files != null)
+			{
+			ImagePlus imp = IJ.openImage (files[n].getPath());
+			if (imp == null)
+				{
+				IJ.log ("Align Frames: unable to open "+files[n].getName());
+				return;
+				}
+			ip = imp.getProcessor();
+			name = imp.getShortTitle();
+			info = (String)imp.getProperty ("Info");
+			}
+		else	{
+			ImageStack stack = stackImage.getStack();
+			synchronized (stack)
+				{
+				ip = stack.getProcessor (n+1);
+				name = stack.getShortSliceLabel (n+1);
+				info = stack.getSliceLabel (n+1);
+				}
+			if (name == null || name.trim().length() == 0)
+				name = stackImage.getShortTitle()+"_"+(n+1);
+			if (info == null || info.indexOf("SIMPLE") < 0)
+				info = (String)stackImage.getProperty ("Info");
+			}
+
+		FrameAligner.Transform tr = aligner.align (ip,offset);
+		if (tr == null)
+			{
+			IJ.log ("Align Frames: no stars matched in "+name);
+			return;
+			}
+		transforms[n] = tr;
+
+		float[] src = (float[])ip.convertToFloat().getPixels();
+		if (drizzle != null)
+			{
+			if (drizzle.add (src,ip.getWidth(),ip.getHeight(),tr.cx,tr.cy,1.0))
+				outputNames[n] = name;
+			return;
+			}
+		float[] dst = resampler.resample (src,ip.getWidth(),ip.getHeight(), w,h, tr.cx,tr.cy, null);
+		ImagePlus out = new ImagePlus (PREFIX+name, new FloatProcessor (w,h,dst,null));
+		if (info != null)
+			{
+			out.setProperty ("Info",info);
+			String[] hdr = FitsJ.getHeader (out);
+			if (hdr != null)
+				{
+				hdr = FitsJ.addHistory ("Aligned to "+refImage.getShortTitle()+" ("+tr.matches+" stars)",hdr);
+				FitsJ.putHeader (out,hdr);
+				}
+			}
+		String fileName = PREFIX+name+".fits";
+		if (!new FileSaver(out).saveAsFits (new File(outputDirectory,fileName).getPath()))
+			{
+			IJ.log ("Align Frames: unable to write "+fileName);
+			return;
+			}
+		outputNames[n] = fileName;
+		}
+
+	/**
+	 * Lists the transformations in a table.
+	 */
+	protected void showTable ()
+		{
+		MeasurementTable table = new MeasurementTable ("Alignment to "+refImage.getShortTitle());
+		for (int n=0; n < nFrames; n++)
+			{
+			FrameAligner.Transform tr = transforms[n];
+			if (tr == null) continue;
+			table.incrementCounter();
+			table.addValue ("Frame", outputNames[n] == null ? "" : outputNames[n]);
+			table.addValue ("dX", tr.cx[0], 6);
+			table.addValue ("dY", tr.cy[0], 6);
+			table.addValue ("Angle[deg]", tr.angle(), 6);
+			table.addValue ("Scale", tr.scale(), 6);
+			table.addValue ("Stars", tr.matches, 0);
+			table.addValue ("RMS[pixels]", tr.rms, 6);
+			}
+		table.show();
+		}
+
+	/**
+	 * Shows the co-added image and its weight map.
+	 */
+	protected void showCoadded ()
+		{
+		int wd = drizzle.getWidth();
+		int hd = drizzle.getHeight();
+		String title = "Drizzled_"+refImage.getShortTitle();
+		ImagePlus result = new ImagePlus (title, new FloatProcessor (wd,hd,drizzle.result(),null));
+		String info = (String)refImage.getProperty ("Info");
+		if (info != null)
+			{
+			result.setProperty ("Info",info);
+			String[] hdr = FitsJ.getHeader (result);
+			if (hdr != null)
+				{
+				hdr = FitsJ.addHistory ("Drizzle of "+drizzle.getNumberOfFrames()+" frames, scale="+drizzleScale+", pixfrac="+pixfrac,hdr);
+				FitsJ.putHeader (result,hdr);
+				}
+			}
+		result.show();
+		new ImagePlus ("Weights_"+title, new FloatProcessor (wd,hd,drizzle.weights(),null)).show();
+		}
+
+	/**
+	 * Opens the aligned frames written as a virtual stack (in the original order).
+	 */
+	protected void openVirtualStack (int w, int h)
+		{
+		String dir = outputDirectory;
+		if (!dir.endsWith(File.separator)) dir += File.separator;
+		VirtualStack stack = new VirtualStack (w,h,null,dir);
+		int n = 0;
+		for (int k=0; k < nFrames; k++)
+			{
+			if (outputNames[k] != null)
+				{
+				stack.addSlice (outputNames[k]);
+				n++;
+				}
+			}
+		if (n > 0)
+			new ImagePlus ("Aligned to "+refImage.getShortTitle(), stack).show();
+		}
+
+	/**
+	 * Gets the frames: either a stack or a list of files.
+	 */
+	protected boolean getFrames ()
+		{
+		if (source.equals(FILES_SOURCE))
+			{
+			File dir = new File (inputDirectory);
+			final String[] exts = extensions.toLowerCase().split(",");
+			files = dir.listFiles (new FilenameFilter ()
+				{
+				public boolean accept (File d, String name)
+					{
+					String s = name.toLowerCase();
+					for (int i=0; i < exts.length; i++)
+						{
+						if (exts[i].trim().length() > 0 && s.endsWith(exts[i].trim())) return true;
+						}
+					return false;
+					}
+				});
+			if (files == null || files.length == 0)
+				{
+				IJ.error ("No files with extensions "+extensions+" in "+inputDirectory);
+				return false;
+				}
+			Arrays.sort (files);
+			nFrames = files.length;
+			}
+		else	{
+			stackImage = WindowManager.getImage (source);
+			if (stackImage == null)
+				{
+				IJ.error ("Unable to access "+source);
+				return false;
+				}
+			nFrames = stackImage.getStackSize();
+			}
+		if (!coadd && new File(outputDirectory).getAbsoluteFile().equals(new File(inputDirectory).getAbsoluteFile())
+				&& source.equals(FILES_SOURCE))
+			{
+			IJ.error ("The output directory must be different from the input directory!");
+			return false;
+			}
+		return true;
+		}
+
+	protected boolean dialog ()
+		{
+		int[] idList = WindowManager.getIDList();
+		if (idList == null)
+			{
+			IJ.error ("Please open the reference image first!");
+			return false;
+			}
+		String[] titles = new String[idList.length];
+		String[] sources = new String[idList.length+1];
+		for (int i=0; i < idList.length; i++)
+			{
+			titles[i] = WindowManager.getImage(idList[i]).getTitle();
+			sources[i] = titles[i];
+			}
+		sources[idList.length] = FILES_SOURCE;
+
+		refTitle        = Prefs.get (PREFS_REFERENCE, refTitle);
+		source          = Prefs.get (PREFS_SOURCE, source);
+		inputDirectory  = Prefs.get (PREFS_INPUTDIR, inputDirectory);
+		outputDirectory = Prefs.get (PREFS_OUTPUTDIR, outputDirectory);
+		extensions      = Prefs.get (PREFS_EXTENSIONS, extensions);
+		kernel          = Prefs.get (PREFS_KERNEL, kernel);
+		openVirtual     = Prefs.get (PREFS_VIRTUAL, openVirtual);
+		coadd           = Prefs.get (PREFS_COADD, coadd);
+		drizzleScale    = Prefs.get (PREFS_SCALE, drizzleScale);
+		pixfrac         = Prefs.get (PREFS_PIXFRAC, pixfrac);
+
+		GenericDialog gd = new GenericDialog ("Align Frames");
+		gd.addChoice ("Reference image :",titles,Arrays.asList(titles).contains(refTitle) ? refTitle : titles[0]);
+		gd.addChoice ("Frames to align :",sources,Arrays.asList(sources).contains(source) ? source : sources[0]);
+		gd.addStringField ("Input directory :",inputDirectory,40);
+		gd.addStringField ("File extensions :",extensions,20);
+		gd.addStringField ("Output directory :",outputDirectory,40);
+		gd.addChoice ("Interpolation :",Resampler.KERNELS,kernel);
+		gd.addCheckbox ("Open aligned frames as virtual stack",openVirtual);
+		gd.addCheckbox ("Co-add (drizzle) instead of writing the aligned frames",coadd);
+		gd.addNumericField ("Drizzle output sampling :",drizzleScale,2,6,"pixels per reference pixel");
+		gd.addNumericField ("Drizzle drop size (pixfrac) :",pixfrac,2,6,"");
+		gd.addMessage ("The stars are found with the \"Find Stars\" settings.");
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		refTitle        = gd.getNextChoice();
+		source          = gd.getNextChoice();
+		inputDirectory  = gd.getNextString().trim();
+		extensions      = gd.getNextString().trim();
+		outputDirectory = gd.getNextString().trim();
+		kernel          = gd.getNextChoice();
+		openVirtual     = gd.getNextBoolean();
+		coadd           = gd.getNextBoolean();
+		drizzleScale    = gd.getNextNumber();
+		pixfrac         = gd.getNextNumber();
+		if (coadd && (gd.invalidNumber() || drizzleScale <= 0.0 || pixfrac <= 0.0 || pixfrac > 1.0))
+			{
+			IJ.error ("The drizzle sampling must be positive and the drop size between 0 and 1!");
+			return false;
+			}
+
+		refImage = WindowManager.getImage (refTitle);
+		if (refImage == null)
+			{
+			IJ.error ("Unable to access reference image "+refTitle);
+			return false;
+			}
+		if (source.equals(FILES_SOURCE) && inputDirectory.equals(""))
+			{
+			DirectoryChooser dc = new DirectoryChooser ("Directory with the frames");
+			inputDirectory = dc.getDirectory();
+			if (inputDirectory == null) return false;
+			}
+		if (!coadd && outputDirectory.equals(""))
+			{
+			DirectoryChooser dc = new DirectoryChooser ("Directory for the aligned frames");
+			outputDirectory = dc.getDirectory();
+			if (outputDirectory == null) return false;
+			}
+		File out = new File (outputDirectory);
+		if (!coadd && !out.isDirectory() && !out.mkdirs())
+			{
+			IJ.error ("Unable to create output directory "+outputDirectory);
+			return false;
+			}
+
+		Prefs.set (PREFS_REFERENCE, refTitle);
+		Prefs.set (PREFS_SOURCE, source);
+		Prefs.set (PREFS_INPUTDIR, inputDirectory);
+		Prefs.set (PREFS_OUTPUTDIR, outputDirectory);
+		Prefs.set (PREFS_EXTENSIONS, extensions);
+		Prefs.set (PREFS_KERNEL, kernel);
+		Prefs.set (PREFS_VIRTUAL, openVirtual);
+		Prefs.set (PREFS_COADD, coadd);
+		Prefs.set (PREFS_SCALE, drizzleScale);
+		Prefs.set (PREFS_PIXFRAC, pixfrac);
+		return true;
+		}
+	}
@@ -18,7 +18,8 @@ import astroj.*;
 /**
  * Aligns two images using one or more fiduciary positions in the OverlayCanvas's of the images, either using
  * an affine transformation (x- and y-shift, rotation, scale) of three or more pairs of point or a simple shift using
- * one or more pairs.  The user has to have created MeasurementTables with the points beforehand, e.g. using Aperture_.
+ * one or more pairs.  The user has to have created MeasurementTables with the points beforehand, e.g. using Aperture_,
+ * or the stars can be found in both images and identified automatically.
  * Based on ancient version which read MeasurementTables.
  *
  * Uses the JAMA matrix package: see http://math.nist.gov/javanumerics/jama/.
@@ -34,6 +35,22 @@ import astroj.*;
  * @version 1.2
  * @date 2012-SEP-25
  * @changes Upgrade deprecated PlotWindow to Plot.
+ *
+ * @version 1.3
+ * @date 2026-Oct-19
+ * @changes Rebinning done by Resampler (multi-threaded, selectable kernel, optional coverage map).
+ *	The ImageJ pixel centers are now taken into account, so an identity transformation no longer
+ *	shifts the image by half a pixel.
+ *
+ * @version 1.4
+ * @date 2026-Oct-19
+ * @changes The pairs of positions can be found automatically: the stars found in both images or
+ *	different numbers of apertures are identified by matching their patterns (AsterismMatcher).
+ *
+ * @version 1.5
+ * @date 2026-Oct-19
+ * @changes Polynomial (SIP-like) transformations of 2nd and 3rd order for distorted wide-field images
+ *	(PolynomialTransform), resampled with a grid interpolated to within PolynomialTransform.MAX_GRID_ERROR.
  */
 public class Align_Image implements PlugInFilter
 	{
@@ -46,6 +63,7 @@ public class Align_Image implements PlugInFilter
 	ImagePlus currentImage, workImage, refImage, resultImage;
 
 	double[] cx, cy;
+	PolynomialTransform poly = null;
 	float[] xr,yr, xw,yw;
 	double[] mr;
 	int npts=0;
@@ -57,15 +75,22 @@ public class Align_Image implements PlugInFilter
 	boolean replace = false;
 	boolean normalize = false;
 	boolean plotResiduals;
+	boolean showCoverage = false;
+	boolean automatic = false;
 	String choice = null;
+	String kernel = Resampler.KERNELS[Resampler.BILINEAR];
 
 	// MINIMUM NUMBER OF CURSOR POINTS NEEDED TO PERFORM ACTION:
 
 	public static int SHIFT_ONLY = 1;
 	public static int SHIFT_ROTATE_SCALE = 3;
+	public static int POLYNOMIAL_2 = 6;
+	public static int POLYNOMIAL_3 = 10;
 
 	public static String SHIFT_ONLY_STRING = "Shift only";
 	public static String SHIFT_ROTATE_SCALE_STRING = "Shift+Rotate+Scale";
+	public static String POLYNOMIAL_2_STRING = "Polynomial distortion (2nd order)";
+	public static String POLYNOMIAL_3_STRING = "Polynomial distortion (3rd order)";
 
 	/** Standard ImageJ setup routine. */
 	public int setup (String arg, ImagePlus imag)
@@ -85,6 +110,9 @@ public class Align_Image implements PlugInFilter
 		normalize     = Prefs.get("align.normalize",normalize);
 		replace       = Prefs.get("align.replace",replace);
 		plotResiduals = Prefs.get("align.plot",plotResiduals);
+		kernel        = Prefs.get("align.kernel",kernel);
+		showCoverage  = Prefs.get("align.coverage",showCoverage);
+		automatic     = Prefs.get("align.automatic",automatic);
 
 		// ARE THERE ENOUGH WINDOWS?
 
@@ -160,6 +188,9 @@ public class Align_Image implements PlugInFilter
 		Prefs.set("align.normalize",normalize);
 		Prefs.set("align.replace",replace);
 		Prefs.set("align.plot",plotResiduals);
+		Prefs.set("align.kernel",kernel);
+		Prefs.set("align.coverage",showCoverage);
+		Prefs.set("align.automatic",automatic);
 		}
 
 	/**
@@ -179,15 +210,20 @@ public class Align_Image implements PlugInFilter
 		String[] choices = new String[]
 			{
 			SHIFT_ONLY_STRING,
-			SHIFT_ROTATE_SCALE_STRING
+			SHIFT_ROTATE_SCALE_STRING,
+			POLYNOMIAL_2_STRING,
+			POLYNOMIAL_3_STRING
 			};
 		gd.addChoice ("Transformation:", choices, choices[0]);
+		gd.addChoice ("Interpolation:", Resampler.KERNELS, kernel);
 
 		gd.addStringField ("Optional fill value :","");
 		gd.addMessage ("(default filler is the mean value at the image edges)");
+		gd.addCheckbox ("Find and match stars automatically (instead of apertures)", automatic);
 		gd.addCheckbox ("Plot residuals (if more than 2 points)", plotResiduals);
 		gd.addCheckbox ("Normalize", normalize);
 		gd.addCheckbox ("Create new image", !replace);
+		gd.addCheckbox ("Show coverage map", showCoverage);
 
 		// DO DIALOGUE
 
@@ -216,8 +252,14 @@ public class Align_Image implements PlugInFilter
 		choice = new String (gd.getNextChoice());
 		if (choice.equals(SHIFT_ONLY_STRING))
 			minimumPoints = SHIFT_ONLY;
+		else if (choice.equals(POLYNOMIAL_2_STRING))
+			minimumPoints = POLYNOMIAL_2;
+		else if (choice.equals(POLYNOMIAL_3_STRING))
+			minimumPoints = POLYNOMIAL_3;
 		else
 			minimumPoints = SHIFT_ROTATE_SCALE;
+		kernel = gd.getNextChoice();
+		automatic = gd.getNextBoolean();
 
 		// IMAGES HAVE TO BE DIFFERENT
 
@@ -227,6 +269,50 @@ public class Align_Image implements PlugInFilter
 			return false;
 			}
 
+		// GET THE PAIRS OF POSITIONS: EITHER FROM THE STARS FOUND IN BOTH IMAGES OR FROM THE APERTURES
+
+		if (automatic)
+			{
+			if (!findStarPairs()) return false;
+			}
+		else if (!getAperturePairs())
+			return false;
+
+		// GET FILL VALUE
+
+		String fillString = gd.getNextString();
+		if (fillString.length() > 0)
+			{
+			try	{
+				fillValue = Double.parseDouble(fillString);
+				findFillValue = false;
+				}
+			catch (NumberFormatException e)
+				{
+				IJ.showMessage ("Whoops: fillString=["+fillString+"], length="+fillString.length());
+				fillValue = Double.NaN;
+				findFillValue = true;
+				}
+			}
+
+		// SHOULD WE NORMALIZE THE IMAGES OR PLOT RESIDUALS?
+
+		plotResiduals = gd.getNextBoolean();
+		normalize     = gd.getNextBoolean();
+		replace       = !gd.getNextBoolean();
+		showCoverage  = gd.getNextBoolean();
+		return true;
+		}
+
+	/**
+	 * Gets the pairs of positions from the apertures of the work and reference images.  If the numbers
+	 * of apertures differ, the pairs are identified by matching their patterns (AsterismMatcher);
+	 * otherwise, the apertures are assumed to have been measured in the same order.
+	 */
+	protected boolean getAperturePairs ()
+		{
+		int i;
+
 		// GET ASSOCIATED POSITION MEASUREMENTS IN WORK IMAGE
 
 		ImageCanvas canvas = workImage.getCanvas();
@@ -268,16 +354,11 @@ public class Align_Image implements PlugInFilter
 		ocanvas = (OverlayCanvas)canvas;
 		rois = ocanvas.getRois();
 		int m = rois.length;
-		if (m != n)
-			{
-			IJ.error ("Images have different number of measurements - Align_Image cannot yet find the matches!");
-			return false;
-			}
 		xr = new float[m];
 		yr = new float[m];
 		mr = new double[m];
 		npts = 0;
-		for (i=0; i < n; i++)
+		for (i=0; i < m; i++)
 			{
 			Roi roi = rois[i];
 			if (roi instanceof ApertureRoi)
@@ -291,37 +372,111 @@ public class Align_Image implements PlugInFilter
 				}
 			}
 
+		// DIFFERENT NUMBERS: IDENTIFY THE PAIRS BY THEIR PATTERNS
+
 		if (ntot != npts)
-			{
-			IJ.error ("Reference and work image have different number of measurements!");
-			return false;
-			}
+			return matchPairs (ntot);
+		return true;
+		}
 
-		// GET FILL VALUE
+	/**
+	 * Finds the stars in the work and reference images (using the "Find Stars" settings) and
+	 * identifies the pairs by matching their patterns.
+	 */
+	protected boolean findStarPairs ()
+		{
+		StarFinder finder = Find_Stars.createFinder ();
+		finder.setMaxStars (FrameAligner.MAX_FRAME_STARS);
+		npts = finder.find (refImage.getProcessor());
+		xr = toFloat (finder.x(),npts);
+		yr = toFloat (finder.y(),npts);
+		mr = new double[npts];
 
-		String fillString = gd.getNextString();
-		if (fillString.length() > 0)
+		int n = finder.find (workImage.getProcessor());
+		xw = toFloat (finder.x(),n);
+		yw = toFloat (finder.y(),n);
+		if (!matchPairs (n)) return false;
+
+		// REFERENCE SIGNALS FOR THE NORMALIZATION
+
+		Photometer phot = new Photometer();
+		ImageProcessor proc = refImage.getProcessor();
+		double rad = Prefs.get(Aperture_.AP_PREFS_RADIUS,8.0);
+		double rb1 = Prefs.get(Aperture_.AP_PREFS_RBACK1,10.0);
+		double rb2 = Prefs.get(Aperture_.AP_PREFS_RBACK2,12.0);
+		for (int k=0; k < npts; k++)
 			{
-			try	{
-				fillValue = Double.parseDouble(fillString);
-				findFillValue = false;
-				}
-			catch (NumberFormatException e)
-				{
-				IJ.showMessage ("Whoops: fillString=["+fillString+"], length="+fillString.length());
-				fillValue = Double.NaN;
-				findFillValue = true;
-				}
+			phot.measure (proc, xr[k],yr[k], rad,rb1,rb2);
+			mr[k] = phot.sourceBrightness();
 			}
+		return true;
+		}
 
-		// SHOULD WE NORMALIZE THE IMAGES OR PLOT RESIDUALS?
+	/**
+	 * Replaces the npts reference and nWork work positions by the pairs identified by an AsterismMatcher.
+	 */
+	protected boolean matchPairs (int nWork)
+		{
+		if (npts < AsterismMatcher.MIN_MATCHES || nWork < AsterismMatcher.MIN_MATCHES)
+			{
+			IJ.error ("At least "+AsterismMatcher.MIN_MATCHES+" positions in each image are needed to identify the pairs!");
+			return false;
+			}
+		double[] xR = new double[npts];
+		double[] yR = new double[npts];
+		for (int k=0; k < npts; k++)
+			{
+			xR[k] = xr[k];
+			yR[k] = yr[k];
+			}
+		double[] xW = new double[nWork];
+		double[] yW = new double[nWork];
+		for (int k=0; k < nWork; k++)
+			{
+			xW[k] = xw[k];
+			yW[k] = yw[k];
+			}
+		AsterismMatcher.Match match = new AsterismMatcher (xR,yR,npts).match (xW,yW,nWork);
+		if (match == null)
+			{
+			IJ.error ("Unable to identify the stars of "+workImage.getShortTitle()+" with those of "+refImage.getShortTitle()+"!");
+			return false;
+			}
 
-		plotResiduals = gd.getNextBoolean();
-		normalize     = gd.getNextBoolean();
-		replace       = !gd.getNextBoolean();
+		float[] x1 = new float[match.n];
+		float[] y1 = new float[match.n];
+		float[] x2 = new float[match.n];
+		float[] y2 = new float[match.n];
+		double[] m1 = new double[match.n];
+		for (int k=0; k < match.n; k++)
+			{
+			x1[k] = xr[match.ref[k]];
+			y1[k] = yr[match.ref[k]];
+			m1[k] = mr[match.ref[k]];
+			x2[k] = xw[match.work[k]];
+			y2[k] = yw[match.work[k]];
+			}
+		xr = x1;
+		yr = y1;
+		mr = m1;
+		xw = x2;
+		yw = y2;
+		npts = match.n;
+		IJ.showStatus ("Identified "+npts+" pairs of stars (r.m.s. "+IJ.d2s(match.rms,2)+" pixels)");
 		return true;
 		}
 
+	/**
+	 * Copies the first n values to a float array.
+	 */
+	protected float[] toFloat (double[] d, int n)
+		{
+		float[] f = new float[n];
+		for (int k=0; k < n; k++)
+			f[k] = (float)d[k];
+		return f;
+		}
+
 	/**
 	 * Performs the actual rebinning for the two selected images using standard ImageJ
 	 * functionality plus the X- and Y-transformations.
@@ -368,24 +523,27 @@ public class Align_Image implements PlugInFilter
 
 		// REBIN
 
-		double z = 0.0;
-		for (int jRef=0; jRef < hRef; jRef++)
-  			{
-			double yr = (double)jRef+Centroid.PIXELCENTER;
-
-			for (int iRef=0; iRef < wRef; iRef++)
+		Resampler resampler = new Resampler (Resampler.kernelIndex(kernel));
+		resampler.setFillValue (fillValue);
+		resampler.setThreads (Prefs.getThreads());
+		float[] coverage = showCoverage ? new float[wRef*hRef] : null;
+		float[] src = (float[])work.convertToFloat().getPixels();
+		float[] dst;
+		if (poly != null)
+			dst = resampler.resample (src,wWork,hWork, wRef,hRef, poly.grid(wRef,hRef,PolynomialTransform.MAX_GRID_ERROR), coverage);
+		else
+			dst = resampler.resample (src,wWork,hWork, wRef,hRef, cx,cy, coverage);
+		if (result instanceof FloatProcessor)
+			result.setPixels (dst);
+		else	{
+			for (int jRef=0, k=0; jRef < hRef; jRef++)
 				{
-				double xr = (double)iRef+Centroid.PIXELCENTER;
-
-				double xw = cx[0]+cx[1]*xr+cx[2]*yr;
-				double yw = cy[0]+cy[1]*xr+cy[2]*yr;
-				if (withinPixelBounds(xw,yw, wWork,hWork))
-					z = work.getInterpolatedValue(xw,yw);
-				else
-					z = fillValue;
-				result.putPixelValue(iRef, jRef,z);
+				for (int iRef=0; iRef < wRef; iRef++, k++)
+					result.putPixelValue (iRef,jRef,dst[k]);
 				}
 			}
+		if (coverage != null)
+			new ImagePlus ("Coverage_"+workImage.getShortTitle(), new FloatProcessor (wRef,hRef,coverage,null)).show();
 
 		// COPY IMAGE INFO (E.G. FITS HEADER)
 
@@ -437,13 +595,14 @@ public class Align_Image implements PlugInFilter
 	 * Calculates transformation coefficients for the ImageJ pixel position (x,y)
 	 *	x' = cx[0] + cx[1]*x + cx[2]*y
 	 *	y' = cy[0] + cy[1]*x + cy[2]F*y
-	 * using a standard least-squares solution.
+	 * using a standard least-squares solution and, for the polynomial transformations, the PolynomialTransform.
 	 */
 	protected boolean calculateTransformation ()
 		{
 		if (npts < minimumPoints)
 			{
 			IJ.error ("At least "+minimumPoints+" reference points are needed!");
+			return false;
 			}
 
 		// GET ALL SUMS
@@ -476,9 +635,9 @@ public class Align_Image implements PlugInFilter
 			sumyY += yr[i]*yw[i];
 			}
 
-		// GENERAL AFFINE TRANSFORMATION
+		// GENERAL AFFINE TRANSFORMATION (ALSO THE LOWEST ORDER OF THE POLYNOMIALS)
 
-		if (minimumPoints == SHIFT_ROTATE_SCALE)
+		if (minimumPoints != SHIFT_ONLY)
 			{
 			// SOLVE FOR X-TRANSFORMATION x,yRef->xWork
 
@@ -535,6 +694,20 @@ public class Align_Image implements PlugInFilter
 			cy = new double[] {(sumY-sumy)/sum,0.0,1.0};
 			}
 
+		// POLYNOMIAL TRANSFORMATION
+
+		poly = null;
+		if (minimumPoints == POLYNOMIAL_2 || minimumPoints == POLYNOMIAL_3)
+			{
+			poly = PolynomialTransform.fit (xr,yr,xw,yw,npts, minimumPoints == POLYNOMIAL_2 ? 2 : 3);
+			if (poly == null)
+				{
+				IJ.error ("Unable to fit the polynomial transformation: the points may not cover the image!");
+				return false;
+				}
+			IJ.showStatus ("Polynomial transformation: r.m.s. "+IJ.d2s(poly.getRMS(),3)+" pixels");
+			}
+
 		// SHOW RESIDUALS
 
 		if (npts > 2 && plotResiduals)
@@ -542,8 +715,15 @@ public class Align_Image implements PlugInFilter
 			float mx=0;
 			for (int i=0; i < npts; i++)
 				{
-				xw[i] -= cx[0]+cx[1]*xr[i]+cx[2]*yr[i];
-				yw[i] -= cy[0]+cy[1]*xr[i]+cy[2]*yr[i];
+				if (poly != null)
+					{
+					xw[i] -= poly.x(xr[i],yr[i]);
+					yw[i] -= poly.y(xr[i],yr[i]);
+					}
+				else	{
+					xw[i] -= cx[0]+cx[1]*xr[i]+cx[2]*yr[i];
+					yw[i] -= cy[0]+cy[1]*xr[i]+cy[2]*yr[i];
+					}
 				float absol = Math.abs(xw[i]);
 				if (mx < absol) mx=absol;
 				absol = Math.abs(yw[i]);
@@ -2,12 +2,14 @@
 
 import ij.*;
 import ij.gui.*;
+import ij.io.*;
 import ij.measure.*;
 import ij.plugin.filter.*;
 import ij.process.*;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
 import java.util.*;
 
 import astroj.*;
@@ -85,6 +87,26 @@ import astroj.*;
  * @version 1.14
  * @date 2012-09-20
  * @changes Finished WCS support for modified ApertureRoi (FVH).
+ *
+ * @version 1.15
+ * @date 2026-Oct-19
+ * @changes Split measureAperture() into adjustAperture() and measurePhotometry() so that sub-classes
+ *	can re-use a previously measured centroid.
+ *
+ * @version 1.16
+ * @date 2026-Oct-19
+ * @changes If a StarGrid of known star positions is given (see MultiAperture_), the sky is measured
+ *	without the pixels near neighbouring stars and the number of neighbours overlapping the source
+ *	aperture is noted in the "Neighbours" column.
+ *
+ * @version 1.17
+ * @date 2026-Oct-19
+ * @changes Optionally appends each result to a crash-safe binary PhotometryLog next to the image (logResults()).
+ *
+ * @version 1.18
+ * @date 2026-Oct-19
+ * @changes The WCS is only re-created if the FITS header has changed and converts the position with a
+ *	WCSTransform.
  */
 public class Aperture_ implements PlugInFilter
 	{
@@ -153,6 +175,8 @@ public class Aperture_ implements PlugInFilter
 	MeasurementTable table = null;
 	Photometer photom;
 	WCS wcs = null;
+	WCSTransform wcsTransform = null;
+	String[] wcsHeader = null;	// HEADER FROM WHICH wcs WAS CREATED
 	Color apertureColor = Color.red;
 
 	double ccdGain = 1.0;	// e-/count
@@ -162,6 +186,14 @@ public class Aperture_ implements PlugInFilter
 
 	boolean temporary = false;
 	boolean isFITS = false;
+
+	StarGrid neighbourGrid = null;		// KNOWN STARS, E.G. ALL APERTURES (SET BY SUB-CLASSES)
+	double neighbourRadius = 0.0;		// RADIUS OF THE PIXELS MASKED AROUND EACH NEIGHBOUR
+	int nNeighbours = 0;			// NEIGHBOURS OVERLAPPING THE SOURCE APERTURE
+	int neighbourSelf = -1;			// INDEX OF THE MEASURED STAR IN neighbourGrid (-1 IF NOT INDEXED)
+
+	boolean usePhotLog = false;		// ALSO APPEND RESULTS TO A CRASH-SAFE PhotometryLog
+
 	boolean externalWCS = false;
 	boolean debug = false;
 
@@ -193,6 +225,7 @@ public class Aperture_ implements PlugInFilter
 	public static String AP_DEC = new String("Dec.[deg]");
 	public static String AP_PEAK = new String ("Peak");
 	public static String AP_WARNING = new String ("Saturated");
+	public static String AP_NEIGHBOURS = new String ("Neighbours");
 
 	public static String AP_PREFS_RADIUS = new String ("aperture.radius");
 	public static String AP_PREFS_RBACK1 = new String ("aperture.rback1");
@@ -221,6 +254,7 @@ public class Aperture_ implements PlugInFilter
 	public static String AP_PREFS_FORGIVING = new String ("aperture.forgiving");
 	public static String AP_PREFS_FITSKEYWORDS = new String ("aperture.fitskeywords");
 	public static String AP_PREFS_RETRY = new String ("aperture.retry");
+	public static String AP_PREFS_PHOTLOG = new String ("aperture.photlog");
 	public static String AP_PREFS_REMOVEBACKSTARS = new String ("aperture.removebackstars");
 
 	public static String AP_PREFS_SHOWPOSITION = new String ("aperture.showposition");
@@ -392,14 +426,26 @@ public class Aperture_ implements PlugInFilter
 	protected boolean measureAperture ()
 		{
 		if (!adjustAperture()) return false;
+		return measurePhotometry ();
+		}
 
+	/**
+	 * Performs the aperture photometry at the current position and radii without re-centroiding.
+	 */
+	protected boolean measurePhotometry ()
+		{
 		// GET FITS HEADER AND WCS
 
 		String[] hdr = FitsJ.getHeader (img);
 		if (!externalWCS && hdr != null)
 			{
 			isFITS = true;
-			wcs = new WCS(hdr);
+			if (wcsTransform == null || wcsTransform.getWCS() != wcs || !Arrays.equals (hdr,wcsHeader))
+				{
+				wcs = new WCS(hdr);
+				wcsTransform = new WCSTransform (wcs);
+				wcsHeader = hdr;
+				}
 			if (!darkKeyword.trim().equals(""))
 				{
 				double dark = ccdDark;
@@ -428,6 +474,11 @@ public class Aperture_ implements PlugInFilter
 		source = photom.sourceBrightness();
 		serror = photom.sourceError();
 
+		// REMEASURE SKY WITHOUT KNOWN NEIGHBOURS
+
+		if (neighbourGrid != null)
+			maskNeighbours ();
+
 		// GET MJD
 
 		if (isFITS && showTimes)
@@ -460,8 +511,11 @@ public class Aperture_ implements PlugInFilter
 
 		if (!(externalWCS && raDec != null) && isFITS && wcs.hasRaDec())
 			{
-			raDec = new double[] { xCenter,yCenter };
-			raDec = wcs.pixels2wcs(raDec);
+			raDec = new double[2];		// KEPT BY THE ApertureRoi
+			if (wcsTransform != null && wcsTransform.getWCS() == wcs)
+				wcsTransform.toSky (xCenter,yCenter,raDec);
+			else
+				raDec = wcs.pixels2wcs (new double[] { xCenter,yCenter });
 			wcsUnits = wcs.getWCSUnits();
 			}
 
@@ -614,6 +668,114 @@ public class Aperture_ implements PlugInFilter
 						+g.format(photom.sourceBrightness()));
 		}
 
+	/**
+	 * Uses the StarGrid of known stars to count the neighbours overlapping the source aperture and,
+	 * if any neighbours reach into the sky annulus, to remeasure the sky without the pixels within
+	 * neighbourRadius of them.  The source brightness and its error are corrected accordingly
+	 * (same error formula as Photometer).  Only the few stars near the aperture are looked at; the star
+	 * being measured is recognised by its index neighbourSelf, not by its distance.
+	 */
+	protected void maskNeighbours ()
+		{
+		double r  = photom.getApertureRadius(0);
+		double r1 = photom.getApertureRadius(1);
+		double r2 = photom.getApertureRadius(2);
+		int[] near = neighbourGrid.near (xCenter,yCenter,r2+neighbourRadius);
+
+		nNeighbours = 0;
+		int m = 0;
+		double[] xn = new double[near.length];
+		double[] yn = new double[near.length];
+		for (int k=0; k < near.length; k++)
+			{
+			if (near[k] == neighbourSelf) continue;
+			double dx = neighbourGrid.x(near[k])-xCenter;
+			double dy = neighbourGrid.y(near[k])-yCenter;
+			double d = Math.sqrt(dx*dx+dy*dy);
+			if (d < r+neighbourRadius) nNeighbours++;
+			if (d > r1-neighbourRadius)
+				{
+				xn[m] = xCenter+dx;
+				yn[m] = yCenter+dy;
+				m++;
+				}
+			}
+		if (m == 0) return;
+
+		// SKY PIXELS NOT NEAR A NEIGHBOUR
+
+		int i1 = Math.max(0,(int)(xCenter-r2));
+		int i2 = Math.min(imp.getWidth()-1,(int)(xCenter+r2)+1);
+		int j1 = Math.max(0,(int)(yCenter-r2));
+		int j2 = Math.min(imp.getHeight()-1,(int)(yCenter+r2)+1);
+		double r1sq = r1*r1;
+		double r2sq = r2*r2;
+		double rnsq = neighbourRadius*neighbourRadius;
+		double[] sky = new double[(i2-i1+1)*(j2-j1+1)];
+		int nsky = 0;
+		for (int j=j1; j <= j2; j++)
+			{
+			double yp = (double)j+Centroid.PIXELCENTER;
+			for (int i=i1; i <= i2; i++)
+				{
+				double xp = (double)i+Centroid.PIXELCENTER;
+				double rr = (xp-xCenter)*(xp-xCenter)+(yp-yCenter)*(yp-yCenter);
+				if (rr <= r1sq || rr > r2sq) continue;
+				boolean masked = false;
+				for (int k=0; k < m && !masked; k++)
+					masked = (xp-xn[k])*(xp-xn[k])+(yp-yn[k])*(yp-yn[k]) < rnsq;
+				if (!masked)
+					sky[nsky++] = imp.getPixelValue(i,j);
+				}
+			}
+		if (nsky < 3) return;
+
+		// MEAN SKY, OPTIONALLY WITHOUT OTHER STARS (2-SIGMA CLIPPING AS IN Photometer)
+
+		double mean = 0.0;
+		double mean2 = 0.0;
+		for (int k=0; k < nsky; k++)
+			{
+			mean += sky[k];
+			mean2 += sky[k]*sky[k];
+			}
+		mean /= nsky;
+		mean2 /= nsky;
+		int count = nsky;
+		if (removeBackStars)
+			{
+			for (int iter=0; iter < 10; iter++)
+				{
+				double sig = Math.sqrt(Math.max(0.0,mean2-mean*mean));
+				double s = 0.0;
+				double s2 = 0.0;
+				int c = 0;
+				for (int k=0; k < nsky; k++)
+					{
+					if (sky[k] < mean+2.0*sig && sky[k] > mean-2.0*sig)
+						{
+						s += sky[k];
+						s2 += sky[k]*sky[k];
+						c++;
+						}
+					}
+				if (c == 0) break;
+				double prev = mean;
+				mean = s/c;
+				mean2 = s2/c;
+				count = c;
+				if (Math.abs(prev-mean) < 0.1) break;
+				}
+			}
+
+		double nsrc = (double)photom.numberOfSourceAperturePixels();
+		source += (back-mean)*nsrc;
+		back = mean;
+		double gain = ccdGain;
+		serror = Math.sqrt((Math.abs(source*gain)+nsrc*(1.0+nsrc/(double)count)
+				*(back*gain+ccdDark+ccdNoise*ccdNoise+gain*gain*0.289))/gain);
+		}
+
 	/**
 	 * Sets a ROI with the correct radius at the aperture position.
 	 */
@@ -716,9 +878,47 @@ public class Aperture_ implements PlugInFilter
 				}
 			}
 
+		if (neighbourGrid != null)
+			table.addValue (AP_NEIGHBOURS, nNeighbours, 0);
+
 		// SHOW NEW ROW
 
 		table.show("Measurements");
+		logResults ();
+		}
+
+	/**
+	 * Appends the last row of the table to the PhotometryLog of the image.  Aperture_ is a one-shot
+	 * measurement, so the log is closed again immediately (MultiAperture_ keeps it open); each measurement
+	 * is thus a run of its own (see PhotometryLog.run()), and options adding columns to the table start a
+	 * new segment of the log.
+	 */
+	protected void logResults ()
+		{
+		if (!usePhotLog) return;
+		PhotometryLog log = null;
+		try	{
+			log = new PhotometryLog (logFile(), img.getTitle());
+			log.append (table, table.getCounter()-1, slice);
+			log.checkpoint (slice);
+			}
+		catch (IOException e)
+			{
+			IJ.log ("Unable to write photometry log: "+e.getMessage());
+			}
+		if (log != null) log.close();
+		}
+
+	/**
+	 * Returns the PhotometryLog file of the image: next to the image file, or in the temporary directory.
+	 */
+	protected File logFile ()
+		{
+		String dir = System.getProperty ("java.io.tmpdir");
+		FileInfo info = img.getOriginalFileInfo();
+		if (info != null && info.directory != null && info.directory.length() > 0)
+			dir = info.directory;
+		return new File (dir, img.getShortTitle()+PhotometryLog.SUFFIX);
 		}
 
 	/**
@@ -845,6 +1045,7 @@ public class Aperture_ implements PlugInFilter
 		reposition = Prefs.get (AP_PREFS_REPOSITION, true);
 		forgiving = Prefs.get (AP_PREFS_FORGIVING, false);
 		retry = Prefs.get (AP_PREFS_RETRY, false);
+		usePhotLog = Prefs.get (AP_PREFS_PHOTLOG, false);
 		removeBackStars = Prefs.get(AP_PREFS_REMOVEBACKSTARS, true);
 		
 		showFits = Prefs.get (AP_PREFS_SHOWFITS, showFits);
@@ -0,0 +1,319 @@
+// AsterismMatcher.java
+
+import java.util.*;
+
+import Jama.*;
+
+/**
+ * Identifies the stars of a "work" list with those of a "reference" list without any prior knowledge
+ * of the transformation between them, e.g. the apertures or the stars found in two images.
+ *
+ * Each star forms triangles with pairs of its NEIGHBOURS nearest neighbours among the MAX_STARS first
+ * (i.e. brightest, if the lists are sorted) stars, so the number of triangles grows only linearly with
+ * the number of stars.  A triangle with the sides a >= b >= c is described by the ratios (b/a,c/a),
+ * which do not change with shifts, rotations, scale, or mirroring; its vertices are labelled by the
+ * opposite sides, so a matched pair of triangles also gives three matched pairs of stars.  The
+ * descriptors of the reference triangles are indexed once in a StarGrid, so each work triangle only
+ * looks at the reference triangles with similar shapes.
+ *
+ * Each matched pair of triangles defines an affine transformation from the reference to the work
+ * positions, which is tested by counting the stars brought to within TOLERANCE pixels of a work star
+ * (RANSAC: wrong hypotheses only find a few chance coincidences).  The transformation with the most
+ * such pairs is refined by a least-squares fit to all of them.  The transformation has the form used
+ * by Align_Image:
+ *	xWork = cx[0] + cx[1]*xRef + cx[2]*yRef
+ *	yWork = cy[0] + cy[1]*xRef + cy[2]*yRef
+ *
+ * The index is not changed by match(), so one AsterismMatcher can be used by several threads.
+ *
+ * Uses the JAMA matrix package: see http://math.nist.gov/javanumerics/jama/.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class AsterismMatcher
+	{
+	public static int MAX_STARS = 50;			// STARS USED FOR THE TRIANGLES
+	public static int NEIGHBOURS = 6;			// NEAREST NEIGHBOURS FORMING TRIANGLES WITH EACH STAR
+	public static double SHAPE_TOLERANCE = 0.02;		// TOLERANCE OF THE SIDE RATIOS
+	public static double MIN_SIDE = 3.0;			// [pixels] SMALLEST LONGEST SIDE
+	public static double MIN_AREA = 0.05;			// SMALLEST AREA IN UNITS OF THE LONGEST SIDE SQUARED
+	public static double TOLERANCE = 3.0;			// [pixels] MAXIMUM DISTANCE OF MATCHED STARS
+	public static int MAX_TRIALS = 5000;			// MAXIMUM NUMBER OF TRANSFORMATIONS TESTED
+	public static double GOOD_ENOUGH = 0.8;			// FRACTION OF STARS MATCHED WHICH ENDS THE SEARCH
+	public static int MIN_MATCHES = 3;
+
+	protected static double SCALE = 100.0;			// DESCRIPTOR UNITS PER SIDE RATIO (StarGrid CELLS >= 1)
+
+	protected double[] xr,yr;
+	protected int nr;
+	protected Triangles refTriangles;
+	protected StarGrid index;
+
+	/**
+	 * The result of match(): the transformation and the n matched pairs ref[k] <-> work[k].
+	 */
+	public static class Match
+		{
+		public double[] cx,cy;
+		public int[] ref,work;
+		public int n;
+		public double rms;
+		}
+
+	/**
+	 * Triangles formed by a list of stars: the vertex numbers (ordered by the length of the
+	 * opposite side) and the scaled shape descriptors.
+	 */
+	protected static class Triangles
+		{
+		int[] v;
+		double[] u,w;
+		int n = 0;
+
+		Triangles (int size)
+			{
+			v = new int[3*size];
+			u = new double[size];
+			w = new double[size];
+			}
+		}
+
+	/**
+	 * Indexes the triangles of the first n reference positions.
+	 */
+	public AsterismMatcher (double[] x, double[] y, int n)
+		{
+		nr = n;
+		xr = Arrays.copyOf (x,n);
+		yr = Arrays.copyOf (y,n);
+		refTriangles = triangles (xr,yr,nr);
+		index = new StarGrid (refTriangles.u,refTriangles.w,refTriangles.n,SCALE*SHAPE_TOLERANCE);
+		}
+
+	public int numberOfStars ()		{ return nr; }
+	public int numberOfTriangles ()		{ return refTriangles.n; }
+
+	/**
+	 * Matches the first n work positions with the reference positions.  Returns null if fewer than
+	 * MIN_MATCHES pairs are found.
+	 */
+	public Match match (double[] x, double[] y, int n)
+		{
+		if (nr < MIN_MATCHES || n < MIN_MATCHES || refTriangles.n == 0) return null;
+		Triangles wt = triangles (x,y,n);
+		StarGrid grid = new StarGrid (x,y,n,2.0*TOLERANCE);
+		int goal = Math.max(MIN_MATCHES,(int)(GOOD_ENOUGH*Math.min(nr,n)));
+		double tol = SCALE*SHAPE_TOLERANCE;
+		int[] rv = refTriangles.v;
+		int[] wv = wt.v;
+
+		// TEST THE TRANSFORMATIONS GIVEN BY THE TRIANGLES OF SIMILAR SHAPE
+
+		Match best = null;
+		int trials = 0;
+		for (int t=0; t < wt.n && trials < MAX_TRIALS; t++)
+			{
+			int[] similar = index.near (wt.u[t],wt.w[t],tol);
+			for (int s=0; s < similar.length && trials < MAX_TRIALS; s++, trials++)
+				{
+				int r = 3*similar[s];
+				int k = 3*t;
+				double[][] c = exactAffine (
+						xr[rv[r]],yr[rv[r]], xr[rv[r+1]],yr[rv[r+1]], xr[rv[r+2]],yr[rv[r+2]],
+						x[wv[k]],y[wv[k]], x[wv[k+1]],y[wv[k+1]], x[wv[k+2]],y[wv[k+2]]);
+				if (c == null) continue;
+				Match m = pairs (c[0],c[1],x,y,n,grid);
+				if (best == null || m.n > best.n)
+					best = m;
+				}
+			if (best != null && best.n >= goal) break;
+			}
+		if (best == null || best.n < MIN_MATCHES) return null;
+
+		// REFINE USING ALL PAIRS
+
+		for (int iter=0; iter < 3; iter++)
+			{
+			double[][] c = fitAffine (xr,yr,x,y,best.ref,best.work,best.n);
+			if (c == null) break;
+			Match m = pairs (c[0],c[1],x,y,n,grid);
+			if (m.n < best.n) break;
+			best = m;
+			}
+		return best;
+		}
+
+	/**
+	 * Finds the pairs given by the transformation: each reference star is paired with the nearest
+	 * unpaired work star within TOLERANCE of its predicted position.
+	 */
+	protected Match pairs (double[] cx, double[] cy, double[] x, double[] y, int n, StarGrid grid)
+		{
+		Match m = new Match ();
+		m.cx = cx;
+		m.cy = cy;
+		m.ref = new int[Math.min(nr,n)];
+		m.work = new int[m.ref.length];
+		boolean[] used = new boolean[n];
+		double sum = 0.0;
+		for (int k=0; k < nr && m.n < m.ref.length; k++)
+			{
+			double px = cx[0]+cx[1]*xr[k]+cx[2]*yr[k];
+			double py = cy[0]+cy[1]*xr[k]+cy[2]*yr[k];
+			int[] near = grid.near (px,py,TOLERANCE);
+			int l = -1;
+			double dl = Double.MAX_VALUE;
+			for (int i=0; i < near.length; i++)
+				{
+				int j = near[i];
+				double d = (x[j]-px)*(x[j]-px)+(y[j]-py)*(y[j]-py);
+				if (!used[j] && d < dl)
+					{
+					dl = d;
+					l = j;
+					}
+				}
+			if (l < 0) continue;
+			used[l] = true;
+			m.ref[m.n] = k;
+			m.work[m.n] = l;
+			m.n++;
+			sum += dl;
+			}
+		m.rms = (m.n > 0) ? Math.sqrt(sum/m.n) : 0.0;
+		return m;
+		}
+
+	/**
+	 * Forms the triangles of the first MAX_STARS positions with their nearest neighbours.
+	 */
+	protected static Triangles triangles (double[] x, double[] y, int n)
+		{
+		int ns = Math.min(n,MAX_STARS);
+		int nn = Math.min(NEIGHBOURS,ns-1);
+		Triangles t = new Triangles (Math.max(0,ns*nn*(nn-1)/2));
+		if (nn < 2) return t;
+		HashSet<Long> seen = new HashSet<Long>();
+		int[] nb = new int[ns];
+		double[] d = new double[ns];
+		for (int i=0; i < ns; i++)
+			{
+			// NEAREST NEIGHBOURS BY PARTIAL SELECTION SORT
+
+			for (int j=0; j < ns; j++)
+				{
+				nb[j] = j;
+				d[j] = (x[j]-x[i])*(x[j]-x[i])+(y[j]-y[i])*(y[j]-y[i]);
+				}
+			d[i] = Double.MAX_VALUE;
+			for (int a=0; a < nn; a++)
+				{
+				int b = a;
+				for (int j=a+1; j < ns; j++)
+					if (d[nb[j]] < d[nb[b]]) b = j;
+				int tmp = nb[a];
+				nb[a] = nb[b];
+				nb[b] = tmp;
+				}
+
+			// TRIANGLES WITH PAIRS OF NEIGHBOURS, EACH ONLY ONCE
+
+			for (int a=0; a < nn; a++)
+				{
+				for (int b=a+1; b < nn; b++)
+					{
+					int p = Math.min(i,Math.min(nb[a],nb[b]));
+					int r = Math.max(i,Math.max(nb[a],nb[b]));
+					int q = i+nb[a]+nb[b]-p-r;
+					if (seen.add ((long)p*ns*ns+(long)q*ns+r))
+						addTriangle (t,x,y,p,q,r);
+					}
+				}
+			}
+		return t;
+		}
+
+	/**
+	 * Adds the triangle (p,q,r) unless it is too small or too flat.
+	 */
+	protected static void addTriangle (Triangles t, double[] x, double[] y, int p, int q, int r)
+		{
+		int[] v = new int[] { p,q,r };
+		double[] s = new double[] {	// SIDES OPPOSITE THE VERTICES
+				Math.hypot (x[q]-x[r],y[q]-y[r]),
+				Math.hypot (x[p]-x[r],y[p]-y[r]),
+				Math.hypot (x[p]-x[q],y[p]-y[q]) };
+		for (int a=0; a < 2; a++)		// SORT BY DECREASING SIDE
+			{
+			for (int b=a+1; b < 3; b++)
+				{
+				if (s[b] > s[a])
+					{
+					double ds = s[a]; s[a] = s[b]; s[b] = ds;
+					int dv = v[a]; v[a] = v[b]; v[b] = dv;
+					}
+				}
+			}
+		double area = 0.5*Math.abs((x[q]-x[p])*(y[r]-y[p])-(x[r]-x[p])*(y[q]-y[p]));
+		if (s[0] < MIN_SIDE || area < MIN_AREA*s[0]*s[0]) return;
+		int k = t.n;
+		t.v[3*k]   = v[0];
+		t.v[3*k+1] = v[1];
+		t.v[3*k+2] = v[2];
+		t.u[k] = SCALE*s[1]/s[0];
+		t.w[k] = SCALE*s[2]/s[0];
+		t.n++;
+		}
+
+	/**
+	 * Returns the affine transformation {cx,cy} taking the three reference positions exactly to the
+	 * three work positions, or null if the reference positions are (nearly) collinear.
+	 */
+	protected static double[][] exactAffine (double x0, double y0, double x1, double y1, double x2, double y2,
+						double u0, double v0, double u1, double v1, double u2, double v2)
+		{
+		double dx1 = x1-x0;
+		double dy1 = y1-y0;
+		double dx2 = x2-x0;
+		double dy2 = y2-y0;
+		double det = dx1*dy2-dx2*dy1;
+		if (Math.abs(det) < 1.e-6*(dx1*dx1+dy1*dy1+dx2*dx2+dy2*dy2)) return null;
+		double[] cx = new double[3];
+		double[] cy = new double[3];
+		cx[1] = ((u1-u0)*dy2-(u2-u0)*dy1)/det;
+		cx[2] = ((u2-u0)*dx1-(u1-u0)*dx2)/det;
+		cx[0] = u0-cx[1]*x0-cx[2]*y0;
+		cy[1] = ((v1-v0)*dy2-(v2-v0)*dy1)/det;
+		cy[2] = ((v2-v0)*dx1-(v1-v0)*dx2)/det;
+		cy[0] = v0-cy[1]*x0-cy[2]*y0;
+		return new double[][] { cx,cy };
+		}
+
+	/**
+	 * Least-squares affine transformation {cx,cy} of the n pairs (xr[ref[k]],yr[ref[k]]) -> (x[work[k]],y[work[k]]),
+	 * or null if the matrix is singular.
+	 */
+	public static double[][] fitAffine (double[] xr, double[] yr, double[] x, double[] y, int[] ref, int[] work, int n)
+		{
+		double[][] a = new double[3][3];
+		double[][] bx = new double[3][1];
+		double[][] by = new double[3][1];
+		for (int k=0; k < n; k++)
+			{
+			double[] f = new double[] { 1.0, xr[ref[k]], yr[ref[k]] };
+			for (int i=0; i < 3; i++)
+				{
+				for (int j=0; j < 3; j++)
+					a[i][j] += f[i]*f[j];
+				bx[i][0] += f[i]*x[work[k]];
+				by[i][0] += f[i]*y[work[k]];
+				}
+			}
+		LUDecomposition lu = new LUDecomposition (new Matrix(a));
+		if (!lu.isNonsingular()) return null;
+		return new double[][] {
+				lu.solve(new Matrix(bx)).getColumnPackedCopy(),
+				lu.solve(new Matrix(by)).getColumnPackedCopy() };
+		}
+	}
@@ -0,0 +1,92 @@
+// Build_Astrometry_Index.java
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+
+import java.io.*;
+
+/**
+ * Builds the quad index of a local star catalogue (see StarCatalogue and Import_Catalogue) which
+ * Solve_Astrometry uses to find the WCS of images without any prior knowledge (see PlateSolver).  The
+ * range of quad sizes should correspond to the fields of the images to be solved: the largest quads
+ * should fit into the image, the smallest ones be a few times larger than the typical distance of the
+ * brightest stars.  The index only has to be built once.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class Build_Astrometry_Index implements PlugIn
+	{
+	String catalogueFile = "";
+	double minSize = 5.0;		// ARCMIN
+	double maxSize = 15.0;
+	int starsPerCell = PlateSolver.STARS_PER_CELL;
+	int quadsPerCell = PlateSolver.QUADS_PER_CELL;
+
+	public void run (String arg)
+		{
+		catalogueFile = Prefs.get (new String("usno.catalogue"),catalogueFile);
+		minSize       = Prefs.get (new String("astrometry.minsize"),minSize);
+		maxSize       = Prefs.get (new String("astrometry.maxsize"),maxSize);
+		starsPerCell  = (int)Prefs.get (new String("astrometry.starspercell"),starsPerCell);
+		quadsPerCell  = (int)Prefs.get (new String("astrometry.quadspercell"),quadsPerCell);
+
+		GenericDialog gd = new GenericDialog ("Build Astrometric Index");
+		gd.addStringField ("Local catalogue file",catalogueFile,40);
+		gd.addNumericField ("Smallest quad [arcmin]",minSize,1);
+		gd.addNumericField ("Largest quad [arcmin]",maxSize,1);
+		gd.addNumericField ("Index stars per cell",starsPerCell,0);
+		gd.addNumericField ("Quads per cell",quadsPerCell,0);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		catalogueFile = gd.getNextString().trim();
+		minSize       = gd.getNextNumber();
+		maxSize       = gd.getNextNumber();
+		starsPerCell  = (int)gd.getNextNumber();
+		quadsPerCell  = (int)gd.getNextNumber();
+		if (minSize <= 0.0 || maxSize <= minSize || starsPerCell < 4 || quadsPerCell < 1)
+			{
+			IJ.error ("Invalid quad sizes or numbers per cell!");
+			return;
+			}
+		if (catalogueFile.length() == 0)
+			{
+			OpenDialog od = new OpenDialog ("Select local star catalogue",null);
+			if (od.getFileName() == null) return;
+			catalogueFile = new File(od.getDirectory(),od.getFileName()).getPath();
+			}
+
+		Prefs.set (new String("astrometry.minsize"),minSize);
+		Prefs.set (new String("astrometry.maxsize"),maxSize);
+		Prefs.set (new String("astrometry.starspercell"),starsPerCell);
+		Prefs.set (new String("astrometry.quadspercell"),quadsPerCell);
+
+		File in = new File (catalogueFile);
+		String name = in.getName();
+		if (name.indexOf('.') > 0)
+			name = name.substring(0,name.lastIndexOf('.'));
+		SaveDialog sd = new SaveDialog ("Save astrometric index as",name+"_index",".qdx");
+		if (sd.getFileName() == null) return;
+		File out = new File (sd.getDirectory(),sd.getFileName());
+
+		StarCatalogue cat = null;
+		try	{
+			long start = System.currentTimeMillis();
+			IJ.showStatus ("Building astrometric index ...");
+			cat = StarCatalogue.open (in);
+			int n = PlateSolver.build (cat,out,minSize/60.0,maxSize/60.0,starsPerCell,quadsPerCell);
+			IJ.log ("Built "+n+" quads from "+in.getName()+" into "+out.getPath()+" in "
+					+(System.currentTimeMillis()-start)+" ms");
+			Prefs.set (Solve_Astrometry.PREFS_INDEX,out.getPath());
+			}
+		catch (IOException e)
+			{
+			IJ.error ("Unable to build the astrometric index : "+e.getMessage());
+			}
+		finally	{
+			if (cat != null) cat.release();
+			}
+		}
+	}
@@ -0,0 +1,354 @@
+// CatalogueCache.java
+
+import ij.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A disk cache of catalogue queries (e.g. of USNO_Stars), so that frames of the same field do not fetch the
+ * same stars again and again.
+ *
+ * Each query is stored in its own file "<hash>.qry" in the cache directory with its normalized parameters
+ * (source, R.A., Decl., radius [deg], bright and faint limits) and the stars as binary records (R.A., Decl.,
+ * two magnitudes, name).  A query is answered by an entry of the same source whose cone contains the
+ * requested cone and whose magnitude limits include the requested ones; if the entry is larger, the stars
+ * are filtered by distance and first magnitude.
+ *
+ * The last-modified time of a file is its last use: when the files exceed the size limit, the least
+ * recently used ones are deleted.  Entries are written to a temporary file and moved into place, so that
+ * other instances (threads or ImageJ processes) never see incomplete entries; storing and eviction are
+ * serialized by a lock on the file "cache.lock".
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class CatalogueCache
+	{
+	public static String MAGIC = "CATQUERY";
+	public static int VERSION = 1;
+	public static String SUFFIX = ".qry";
+	public static long MAX_BYTES = 64L*1024L*1024L;	// DEFAULT SIZE LIMIT
+
+	protected File dir;
+	protected long maxBytes = MAX_BYTES;
+
+	protected static Map<String,Entry> headers = new HashMap<String,Entry>();	// HEADERS OF KNOWN FILES
+	protected static Object storing = new Object();		// FILE LOCKS ONLY EXCLUDE OTHER PROCESSES
+
+	/**
+	 * The parameters of a cached query and, once read, its stars.
+	 */
+	public static class Entry
+		{
+		public String source;
+		public double ra,dec,radius,bright,faint;
+		public int n = 0;
+		public double[] ras,decs;
+		public float[] mag1,mag2;
+		public String[] names;
+
+		public Entry (String source, double ra, double dec, double radius, double bright, double faint)
+			{
+			this.source = source;
+			this.ra = round (((ra%360.0)+360.0)%360.0,1.e-6);
+			this.dec = round (dec,1.e-6);
+			this.radius = round (radius,1.e-6);
+			this.bright = round (bright,1.e-3);
+			this.faint = round (faint,1.e-3);
+			}
+
+		/**
+		 * The normalized parameters as a string.
+		 */
+		public String key ()
+			{
+			return source+"|"+ra+"|"+dec+"|"+radius+"|"+bright+"|"+faint;
+			}
+
+		/**
+		 * Is the cone and magnitude range of the query q contained in that of this entry?
+		 */
+		public boolean covers (Entry q)
+			{
+			if (!source.equals(q.source) || bright > q.bright || faint < q.faint)
+				return false;
+			return distance (ra,dec,q.ra,q.dec)+q.radius <= radius+1.e-9;
+			}
+
+		/**
+		 * Sets the stars, e.g. from the result of a query.
+		 */
+		public void setStars (int n, double[] ras, double[] decs, float[] mag1, float[] mag2, String[] names)
+			{
+			this.n = n;
+			this.ras = ras;
+			this.decs = decs;
+			this.mag1 = mag1;
+			this.mag2 = mag2;
+			this.names = names;
+			}
+		}
+
+	/**
+	 * Uses the cache directory dir (created if needed) with a size limit of maxBytes.
+	 */
+	public CatalogueCache (File dir, long maxBytes)
+		{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		dir.mkdirs();
+		}
+
+	/**
+	 * Uses the directory "catalogue_cache" in the ImageJ preferences directory.
+	 */
+	public CatalogueCache (long maxBytes)
+		{
+		this (new File(Prefs.getPrefsDir(),"catalogue_cache"),maxBytes);
+		}
+
+	/**
+	 * Returns the cached stars for the query q or null if no entry covers it.
+	 */
+	public Entry lookup (Entry q)
+		{
+		Entry best = null;
+		File bestFile = null;
+		synchronized (headers)
+			{
+			File[] files = dir.listFiles();
+			if (files == null) return null;
+			for (File f : files)
+				{
+				if (!f.getName().endsWith(SUFFIX)) continue;
+				Entry e = headers.get (f.getPath());
+				if (e == null)
+					{
+					try	{
+						e = read (f,false);
+						}
+					catch (IOException ex)
+						{
+						continue;
+						}
+					headers.put (f.getPath(),e);
+					}
+				if (e.covers(q) && (best == null || e.radius < best.radius))
+					{
+					best = e;
+					bestFile = f;
+					}
+				}
+			}
+		if (best == null) return null;
+
+		Entry e;
+		try	{
+			e = read (bestFile,true);
+			}
+		catch (IOException ex)		// E.G. EVICTED BY ANOTHER INSTANCE
+			{
+			synchronized (headers)
+				{
+				headers.remove (bestFile.getPath());
+				}
+			return null;
+			}
+		if (!e.covers(q))		// FILE REPLACED BY ANOTHER QUERY WITH THE SAME HASH
+			{
+			synchronized (headers)
+				{
+				headers.remove (bestFile.getPath());
+				}
+			return null;
+			}
+		bestFile.setLastModified (System.currentTimeMillis());
+		if (e.key().equals(q.key()))
+			return e;
+		return filter (e,q);
+		}
+
+	/**
+	 * Stores the query q including its stars and evicts the least recently used entries if the cache
+	 * becomes too large.
+	 */
+	public void store (Entry q) throws IOException
+		{
+		File target = new File (dir,Integer.toHexString(q.key().hashCode())+SUFFIX);
+		File tmp = File.createTempFile ("query",".tmp",dir);
+		try	{
+			write (tmp,q);
+			}
+		catch (IOException e)
+			{
+			tmp.delete();
+			throw e;
+			}
+		synchronized (storing)
+			{
+			RandomAccessFile lockFile = new RandomAccessFile (new File(dir,"cache.lock"),"rw");
+			FileLock lock = null;
+			try	{
+				lock = lockFile.getChannel().lock();
+				Files.move (tmp.toPath(),target.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+				synchronized (headers)
+					{
+					headers.remove (target.getPath());
+					}
+				evict ();
+				}
+			finally	{
+				if (lock != null) lock.release();
+				lockFile.close();
+				tmp.delete();
+				}
+			}
+		}
+
+	/**
+	 * Deletes the least recently used entries until the cache is not larger than the limit.
+	 */
+	protected void evict ()
+		{
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		long total = 0L;
+		List<File> entries = new ArrayList<File>();
+		final Map<File,Long> used = new HashMap<File,Long>();
+		for (File f : files)
+			{
+			if (!f.getName().endsWith(SUFFIX)) continue;
+			entries.add (f);
+			used.put (f,f.lastModified());
+			total += f.length();
+			}
+		if (total <= maxBytes) return;
+		Collections.sort (entries,new Comparator<File>()
+			{
+			public int compare (File a, File b)
+				{
+				return used.get(a).compareTo(used.get(b));
+				}
+			});
+		for (File f : entries)
+			{
+			if (total <= maxBytes) break;
+			long len = f.length();
+			if (f.delete())
+				{
+				total -= len;
+				synchronized (headers)
+					{
+					headers.remove (f.getPath());
+					}
+				}
+			}
+		}
+
+	/**
+	 * Returns the stars of the entry e within the cone and magnitude range of the query q (stars without a
+	 * first magnitude are kept).
+	 */
+	protected static Entry filter (Entry e, Entry q)
+		{
+		Entry r = new Entry (q.source,q.ra,q.dec,q.radius,q.bright,q.faint);
+		int m = 0;
+		int[] keep = new int[e.n];
+		for (int k=0; k < e.n; k++)
+			{
+			float mag = e.mag1[k];
+			if (mag < q.bright || mag > q.faint) continue;
+			if (distance (q.ra,q.dec,e.ras[k],e.decs[k]) > q.radius) continue;
+			keep[m++] = k;
+			}
+		r.setStars (m,new double[m],new double[m],new float[m],new float[m],new String[m]);
+		for (int i=0; i < m; i++)
+			{
+			int k = keep[i];
+			r.ras[i] = e.ras[k];
+			r.decs[i] = e.decs[k];
+			r.mag1[i] = e.mag1[k];
+			r.mag2[i] = e.mag2[k];
+			r.names[i] = e.names[k];
+			}
+		return r;
+		}
+
+	/**
+	 * Reads an entry file, with its stars only if stars is true.
+	 */
+	protected static Entry read (File f, boolean stars) throws IOException
+		{
+		DataInputStream in = new DataInputStream (new BufferedInputStream (new FileInputStream(f)));
+		try	{
+			byte[] magic = new byte[MAGIC.length()];
+			in.readFully (magic);
+			if (!MAGIC.equals(new String(magic,"US-ASCII")) || in.readInt() != VERSION)
+				throw new IOException ("Not a catalogue query: "+f.getName());
+			String source = in.readUTF();
+			Entry e = new Entry (source,in.readDouble(),in.readDouble(),in.readDouble(),in.readDouble(),in.readDouble());
+			int n = in.readInt();
+			if (!stars) return e;
+			e.setStars (n,new double[n],new double[n],new float[n],new float[n],new String[n]);
+			for (int k=0; k < n; k++)
+				{
+				e.ras[k] = in.readDouble();
+				e.decs[k] = in.readDouble();
+				e.mag1[k] = in.readFloat();
+				e.mag2[k] = in.readFloat();
+				e.names[k] = in.readUTF();
+				}
+			return e;
+			}
+		finally	{
+			in.close();
+			}
+		}
+
+	protected static void write (File f, Entry e) throws IOException
+		{
+		DataOutputStream out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream(f)));
+		try	{
+			out.write (MAGIC.getBytes("US-ASCII"));
+			out.writeInt (VERSION);
+			out.writeUTF (e.source);
+			out.writeDouble (e.ra);
+			out.writeDouble (e.dec);
+			out.writeDouble (e.radius);
+			out.writeDouble (e.bright);
+			out.writeDouble (e.faint);
+			out.writeInt (e.n);
+			for (int k=0; k < e.n; k++)
+				{
+				out.writeDouble (e.ras[k]);
+				out.writeDouble (e.decs[k]);
+				out.writeFloat (e.mag1[k]);
+				out.writeFloat (e.mag2[k]);
+				out.writeUTF (e.names[k]);
+				}
+			}
+		finally	{
+			out.close();
+			}
+		}
+
+	/**
+	 * Angular distance [deg] between two positions [deg].
+	 */
+	protected static double distance (double ra1, double dec1, double ra2, double dec2)
+		{
+		double d2r = Math.PI/180.0;
+		double sd = Math.sin(0.5*(dec2-dec1)*d2r);
+		double sa = Math.sin(0.5*(ra2-ra1)*d2r);
+		double h = sd*sd+Math.cos(dec1*d2r)*Math.cos(dec2*d2r)*sa*sa;
+		return 2.0*Math.asin(Math.min(1.0,Math.sqrt(h)))/d2r;
+		}
+
+	protected static double round (double x, double eps)
+		{
+		return Math.rint(x/eps)*eps;
+		}
+	}
@@ -0,0 +1,180 @@
+// CatalogueRows.java
+
+import java.util.Arrays;
+
+import astroj.*;
+
+/**
+ * The stars of a catalogue query as growable primitive columns (R.A. and Decl. [deg], R and B magnitudes)
+ * plus the identifiers, which are kept in one character buffer with the offsets of each star's identifier.
+ *
+ * Rows of the form "number identifier R.A. Decl. R B ..." (e.g. of the ESO USNO server) are parsed
+ * directly from the line by parseRow(), without splitting it into strings; numbers with no more than
+ * MAX_DIGITS digits and without an exponent are converted directly (exactly, since both the digits and
+ * the power of 10 are exact doubles), everything else by Double.parseDouble().
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes project() converts all stars at once with a WCSTransform.
+ */
+public class CatalogueRows
+	{
+	public static int MAX_DIGITS = 15;
+
+	public int n = 0;
+	public double[] ra = new double[256];
+	public double[] dec = new double[256];
+	public double[] rmag = new double[256];
+	public double[] bmag = new double[256];
+
+	protected char[] ids = new char[4096];
+	protected int[] idStart = new int[257];	// IDENTIFIER k IS ids[idStart[k]],...,ids[idStart[k+1]-1]
+	protected int[] start = new int[6];	// FIELDS OF THE ROW BEING PARSED
+	protected int[] end = new int[6];
+
+	protected static double[] POWERS = new double[23];
+	static	{
+		POWERS[0] = 1.0;
+		for (int k=1; k < POWERS.length; k++)
+			POWERS[k] = 10.0*POWERS[k-1];
+		}
+
+	/**
+	 * Adds a star with the identifier s.substring(from,to).
+	 */
+	public void add (double a, double d, double r, double b, CharSequence s, int from, int to)
+		{
+		if (n == ra.length)
+			{
+			int len = 2*n;
+			ra = Arrays.copyOf (ra,len);
+			dec = Arrays.copyOf (dec,len);
+			rmag = Arrays.copyOf (rmag,len);
+			bmag = Arrays.copyOf (bmag,len);
+			idStart = Arrays.copyOf (idStart,len+1);
+			}
+		int pos = idStart[n];
+		if (pos+to-from > ids.length)
+			ids = Arrays.copyOf (ids,Math.max(2*ids.length,pos+to-from));
+		for (int i=from; i < to; i++)
+			ids[pos++] = s.charAt(i);
+		ra[n] = a;
+		dec[n] = d;
+		rmag[n] = r;
+		bmag[n] = b;
+		idStart[++n] = pos;
+		}
+
+	public void add (double a, double d, double r, double b, String id)
+		{
+		add (a,d,r,b,id,0,id.length());
+		}
+
+	/**
+	 * Returns the identifier of star k.
+	 */
+	public String id (int k)
+		{
+		return new String (ids,idStart[k],idStart[k+1]-idStart[k]);
+		}
+
+	/**
+	 * Returns the identifiers of all stars.
+	 */
+	public String[] ids ()
+		{
+		String[] s = new String[n];
+		for (int k=0; k < n; k++)
+			s[k] = id(k);
+		return s;
+		}
+
+	/**
+	 * Returns star k in the form of a catalogue row.
+	 */
+	public String row (int k)
+		{
+		return ""+(k+1)+" "+id(k)+" "+ra[k]+" "+dec[k]+" "+rmag[k]+" "+bmag[k];
+		}
+
+	/**
+	 * Parses the row of the line starting at position "from".  Returns false (and adds nothing) if the row
+	 * does not have at least 6 fields or they cannot be parsed.
+	 */
+	public boolean parseRow (String line, int from)
+		{
+		int len = line.length();
+		int f = 0;
+		int i = from;
+		while (f < 6)
+			{
+			while (i < len && isSpace(line.charAt(i))) i++;
+			if (i == len) return false;
+			start[f] = i;
+			while (i < len && !isSpace(line.charAt(i))) i++;
+			end[f++] = i;
+			}
+		try	{
+			double a = parseNumber (line,start[2],end[2]);
+			double d = parseNumber (line,start[3],end[3]);
+			double r = parseNumber (line,start[4],end[4]);
+			double b = parseNumber (line,start[5],end[5]);
+			add (a,d,r,b,line,start[1],end[1]);
+			return true;
+			}
+		catch (NumberFormatException e)
+			{
+			return false;
+			}
+		}
+
+	protected static boolean isSpace (char c)
+		{
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+		}
+
+	/**
+	 * Parses the number s.substring(from,to).
+	 */
+	public static double parseNumber (String s, int from, int to)
+		{
+		int i = from;
+		boolean negative = false;
+		if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+			negative = s.charAt(i++) == '-';
+		long m = 0L;
+		int digits = 0;
+		int decimals = -1;
+		for (; i < to; i++)
+			{
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9')
+				{
+				m = 10L*m+(c-'0');
+				digits++;
+				if (decimals >= 0) decimals++;
+				}
+			else if (c == '.' && decimals < 0)
+				decimals = 0;
+			else
+				break;
+			}
+		if (i < to || digits == 0 || digits > MAX_DIGITS || decimals >= POWERS.length)
+			return Double.parseDouble (s.substring(from,to));
+		double x = (double)m;
+		if (decimals > 0)
+			x /= POWERS[decimals];
+		return negative ? -x : x;
+		}
+
+	/**
+	 * Computes the (ImageJ) pixel positions of all stars.
+	 */
+	public void project (WCS wcs, double[] x, double[] y)
+		{
+		new WCSTransform(wcs).wcs2pixels (ra,dec,x,y,n);
+		}
+	}
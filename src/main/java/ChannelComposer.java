@@ -0,0 +1,270 @@
+// ChannelComposer.java
+
+import ij.*;
+import ij.process.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Composes a packed RGB image from three grayscale channels, each scaled between a lower and an upper
+ * value and shifted by whole pixels.
+ *
+ * The scaled byte plane of each channel is kept, so when one channel changes (new limits, shift, or
+ * image) only that channel is recomputed and the packed pixels are rebuilt from the three planes in the
+ * same pass.  The scaling uses a look-up table: for 8- and 16-bit images the table is indexed directly
+ * by the raw pixel values; for 32-bit images the scaled value (x-lower)/(upper-lower) is looked up in a
+ * table of LUT_SIZE entries.  The stretch is either linear or
+ * asinh(x/ASINH_SOFTENING)/asinh(1/ASINH_SOFTENING), which shows faint features without saturating the
+ * bright ones.  Rows are processed by several threads.
+ *
+ * Pixels whose shifted source lies outside of the image are black.
+ *
+ * For interactive previews, a channel can also be computed from a level of an ImagePyramid which is
+ * smaller by a factor: each level pixel is looked up once and replicated into factor x factor pixels,
+ * so that the look-up work is factor^2 times smaller.  The next update() at full resolution replaces it.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class ChannelComposer
+	{
+	public static int LUT_SIZE = 4096;
+	public static double ASINH_SOFTENING = 0.1;
+
+	public static int LINEAR = 0;
+	public static int ASINH = 1;
+
+	protected int width,height;
+	protected byte[][] planes;
+	protected Object[] sources;		// PIXEL ARRAYS AND PARAMETERS OF THE PRESENT PLANES
+	protected double[][] params;
+	protected int nThreads = 1;
+
+	public ChannelComposer (int width, int height)
+		{
+		this.width = width;
+		this.height = height;
+		planes = new byte[3][width*height];
+		sources = new Object[3];
+		params = new double[3][];
+		}
+
+	public int getWidth ()		{ return width; }
+	public int getHeight ()		{ return height; }
+	public void setThreads (int n)	{ nThreads = Math.max(1,n); }
+
+	/**
+	 * Forgets the plane of channel c, e.g. when its image may have been modified, so that it is recomputed.
+	 */
+	public void invalidate (int c)
+		{
+		sources[c] = null;
+		}
+
+	/**
+	 * Scales the image ip into channel c (0=red, 1=green, 2=blue), the value lower becoming 0 and upper
+	 * 255, with the source pixel (i+dx,j+dy) going to the pixel (i,j), and writes the packed RGB pixels.
+	 * Nothing is computed if the channel has not changed since the last call.
+	 */
+	public void update (int c, ImageProcessor ip, double lower, double upper, int dx, int dy, int stretch, int[] rgb)
+		{
+		update (c,ip,1,lower,upper,dx,dy,stretch,rgb);
+		}
+
+	/**
+	 * Like update() but with an image which is smaller by the factor (e.g. a level of an ImagePyramid):
+	 * the level pixel (i/factor,j/factor) goes to the pixel (i-dx,j-dy).
+	 */
+	public void update (int c, ImageProcessor ip, final int factor, double lower, double upper, int dx, int dy,
+						int stretch, final int[] rgb)
+		{
+		if (ip.getWidth() != width/factor || ip.getHeight() != height/factor)
+			throw new IllegalArgumentException ("ChannelComposer: image has the wrong size!");
+		final Object pixels = ip.getPixels();
+		double[] p = new double[] { lower,upper,dx,dy,stretch,factor };
+		if (pixels == sources[c] && Arrays.equals(p,params[c]))
+			return;
+
+		final byte[] lut = lookUpTable (pixels,ip.getCalibrationTable(),lower,upper,stretch);
+		final byte[] plane = planes[c];
+		final double lo = lower;
+		final double scale = (upper != lower) ? LUT_SIZE/(upper-lower) : 1.0;
+		final int ddx = dx;
+		final int ddy = dy;
+		final int lw = ip.getWidth();
+		final int lh = ip.getHeight();
+		final int r0 = floorDiv (dy,factor);			// LEVEL ROWS NEEDED (POSSIBLY OUTSIDE)
+		final int nRows = floorDiv (height-1+dy,factor)-r0+1;
+		final AtomicInteger next = new AtomicInteger(0);
+		int nt = Math.min(nThreads,nRows);
+
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					int r;
+					while ((r = next.getAndIncrement()) < nRows)
+						{
+						if (factor == 1)
+							{
+							scaleRow (pixels,lut,lo,scale,r,ddx,ddy,plane);
+							packRow (r,rgb);
+							continue;
+							}
+						int ja = Math.max(0,(r0+r)*factor-ddy);
+						int jb = Math.min(height,(r0+r+1)*factor-ddy);
+						scaleLevelRow (pixels,lw,lh,factor,lut,lo,scale,r0+r,ja,ddx,plane);
+						for (int j=ja; j < jb; j++)
+							{
+							if (j > ja)
+								System.arraycopy (plane,ja*width,plane,j*width,width);
+							packRow (j,rgb);
+							}
+						}
+					}
+				};
+			}
+		if (nt == 1)
+			threads[0].run();
+		else	{
+			for (int t=0; t < nt; t++)
+				threads[t].start();
+			try	{
+				for (int t=0; t < nt; t++)
+					threads[t].join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		sources[c] = pixels;
+		params[c] = p;
+		}
+
+	/**
+	 * Returns the look-up table: indexed by the raw values for byte and short pixels (whose calibrated
+	 * values are given by the calibration table, if any), otherwise by LUT_SIZE*(x-lower)/(upper-lower).
+	 */
+	protected byte[] lookUpTable (Object pixels, float[] ctable, double lower, double upper, int stretch)
+		{
+		double range = (upper != lower) ? upper-lower : 1.0;
+		boolean raw = !(pixels instanceof float[]);
+		int n = (pixels instanceof byte[]) ? 256 : ((pixels instanceof short[]) ? 65536 : LUT_SIZE+1);
+		byte[] lut = new byte[n];
+		double norm = 1.0/asinh(1.0/ASINH_SOFTENING);
+		for (int k=0; k < n; k++)
+			{
+			double x = (double)k/LUT_SIZE;
+			if (raw)
+				x = (((ctable != null && k < ctable.length) ? ctable[k] : k)-lower)/range;
+			if (stretch == ASINH)
+				x = (x > 0.0) ? asinh(x/ASINH_SOFTENING)*norm : 0.0;
+			int b = (int)(255.0*x);
+			lut[k] = (byte)Math.max(0,Math.min(255,b));
+			}
+		return lut;
+		}
+
+	protected static double asinh (double x)
+		{
+		return Math.log(x+Math.sqrt(x*x+1.0));
+		}
+
+	/**
+	 * Scales the source row j+dy into row j of the plane.
+	 */
+	protected void scaleRow (Object pixels, byte[] lut, double lower, double scale, int j, int dx, int dy, byte[] plane)
+		{
+		int off = j*width;
+		int jj = j+dy;
+		if (jj < 0 || jj >= height)
+			{
+			Arrays.fill (plane,off,off+width,(byte)0);
+			return;
+			}
+		int i0 = Math.max(0,-dx);			// FIRST i WITH i+dx >= 0
+		int i1 = Math.max(i0,Math.min(width,width-dx));	// FIRST i WITH i+dx >= width
+		Arrays.fill (plane,off,off+Math.min(i0,width),(byte)0);
+		Arrays.fill (plane,off+i1,off+width,(byte)0);
+		int src = jj*width+dx;
+
+		if (pixels instanceof byte[])
+			{
+			byte[] pix = (byte[])pixels;
+			for (int i=i0; i < i1; i++)
+				plane[off+i] = lut[pix[src+i]&0xff];
+			}
+		else if (pixels instanceof short[])
+			{
+			short[] pix = (short[])pixels;
+			for (int i=i0; i < i1; i++)
+				plane[off+i] = lut[pix[src+i]&0xffff];
+			}
+		else	{
+			float[] pix = (float[])pixels;
+			int last = lut.length-1;
+			for (int i=i0; i < i1; i++)
+				{
+				double x = (pix[src+i]-lower)*scale;
+				int k = (x > 0.0) ? (x < last ? (int)x : last) : 0;		// NaN -> 0
+				plane[off+i] = lut[k];
+				}
+			}
+		}
+
+	/**
+	 * Scales the row r of a level which is smaller by the factor into row j of the plane, replicating each
+	 * level pixel factor times.
+	 */
+	protected void scaleLevelRow (Object pixels, int lw, int lh, int factor, byte[] lut, double lower, double scale,
+						int r, int j, int dx, byte[] plane)
+		{
+		int off = j*width;
+		Arrays.fill (plane,off,off+width,(byte)0);
+		if (r < 0 || r >= lh) return;
+		int p0 = Math.max(0,floorDiv(dx,factor));
+		int p1 = Math.min(lw-1,floorDiv(width-1+dx,factor));
+		int last = lut.length-1;
+		for (int p=p0; p <= p1; p++)
+			{
+			int k = r*lw+p;
+			byte v;
+			if (pixels instanceof float[])
+				{
+				double x = (((float[])pixels)[k]-lower)*scale;
+				v = lut[(x > 0.0) ? (x < last ? (int)x : last) : 0];
+				}
+			else if (pixels instanceof short[])
+				v = lut[((short[])pixels)[k]&0xffff];
+			else
+				v = lut[((byte[])pixels)[k]&0xff];
+			int ia = Math.max(0,p*factor-dx);
+			int ib = Math.min(width,(p+1)*factor-dx);
+			for (int i=ia; i < ib; i++)
+				plane[off+i] = v;
+			}
+		}
+
+	protected static int floorDiv (int a, int b)
+		{
+		return (a >= 0) ? a/b : -((-a+b-1)/b);
+		}
+
+	/**
+	 * Packs row j of the three planes into the RGB pixels.
+	 */
+	protected void packRow (int j, int[] rgb)
+		{
+		byte[] r = planes[0];
+		byte[] g = planes[1];
+		byte[] b = planes[2];
+		int k1 = (j+1)*width;
+		for (int k=j*width; k < k1; k++)
+			rgb[k] = 0xff000000 | ((r[k]&0xff) << 16) | ((g[k]&0xff) << 8) | (b[k]&0xff);
+		}
+	}
@@ -0,0 +1,217 @@
+// Drizzle.java
+
+/**
+ * Co-adds ("drizzles") frames onto a common output grid without storing aligned copies of the frames.
+ *
+ * The output grid is that of the reference image, optionally sampled more finely by the factor scale.
+ * Each pixel of a frame is shrunk to a "drop" of pixfrac times its size, mapped onto the output grid
+ * with the inverse of the frame's affine transformation (in the form used by Align_Image, Resampler,
+ * and FrameAligner: the position in the frame of a reference position), and added to the output
+ * pixels it overlaps, weighted by the overlap area.  As in the "turbo" kernel of the original drizzle,
+ * the mapped drop is approximated by a square of the same area aligned with the output pixels.
+ * NaN pixels are left out.  The result is the weighted mean of the drops, i.e. it has the units of the
+ * frames' pixels, and the weight map shows how much data went into each output pixel.
+ *
+ * Only the sums and the weights are stored, so the memory needed does not depend on the number of
+ * frames.  The output rows are divided into stripes of STRIPE_ROWS rows, each with its own lock, so
+ * several threads can add different frames at the same time; each frame is added stripe by stripe,
+ * starting at a different stripe for each call to avoid waiting for the same locks.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class Drizzle
+	{
+	public static int STRIPE_ROWS = 64;
+
+	protected int wRef,hRef;		// REFERENCE SIZE
+	protected int width,height;		// OUTPUT SIZE
+	protected double scale;			// OUTPUT PIXELS PER REFERENCE PIXEL
+	protected double pixfrac;		// DROP SIZE IN UNITS OF THE FRAME PIXELS
+	protected float[] sum,weight;
+	protected Object[] locks;
+	protected int nStripes;
+	protected int nFrames = 0;
+
+	/**
+	 * Prepares an output grid for a wRef x hRef reference image.
+	 */
+	public Drizzle (int wRef, int hRef, double scale, double pixfrac)
+		{
+		if (scale <= 0.0 || pixfrac <= 0.0)
+			throw new IllegalArgumentException ("Drizzle: scale and pixfrac must be positive!");
+		this.wRef = wRef;
+		this.hRef = hRef;
+		this.scale = scale;
+		this.pixfrac = pixfrac;
+		width = (int)Math.ceil(wRef*scale);
+		height = (int)Math.ceil(hRef*scale);
+		sum = new float[width*height];
+		weight = new float[width*height];
+		nStripes = (height+STRIPE_ROWS-1)/STRIPE_ROWS;
+		locks = new Object[nStripes];
+		for (int s=0; s < nStripes; s++)
+			locks[s] = new Object();
+		}
+
+	public int getWidth ()		{ return width; }
+	public int getHeight ()		{ return height; }
+	public synchronized int getNumberOfFrames ()	{ return nFrames; }
+
+	/**
+	 * Adds the w x h frame pix with the transformation cx,cy and the given weight.  May be called by
+	 * several threads at once.  Returns false if the transformation cannot be inverted.
+	 */
+	public boolean add (float[] pix, int w, int h, double[] cx, double[] cy, double frameWeight)
+		{
+		// INVERSE TRANSFORMATION FROM THE FRAME PIXEL (i,j) TO THE OUTPUT GRID
+
+		double det = cx[1]*cy[2]-cx[2]*cy[1];
+		if (Math.abs(det) < 1.e-12) return false;
+		double pc = astroj.Centroid.PIXELCENTER;
+		double a = cy[2]/det;
+		double b = -cx[2]/det;
+		double c = -cy[1]/det;
+		double d = cx[1]/det;
+		double ox1 = scale*a;			// X = ox0+ox1*i+ox2*j, Y = oy0+oy1*i+oy2*j
+		double ox2 = scale*b;
+		double oy1 = scale*c;
+		double oy2 = scale*d;
+		double ox0 = scale*(a*(pc-cx[0])+b*(pc-cy[0])+0.5-pc);
+		double oy0 = scale*(c*(pc-cx[0])+d*(pc-cy[0])+0.5-pc);
+		double half = 0.5*pixfrac*scale/Math.sqrt(Math.abs(det));	// HALF SIZE OF A DROP IN OUTPUT PIXELS
+		double norm = frameWeight/(4.0*half*half);			// WEIGHT PER UNIT OVERLAP AREA
+
+		int first;
+		synchronized (this)
+			{
+			first = nFrames%nStripes;
+			nFrames++;
+			}
+		for (int k=0; k < nStripes; k++)
+			{
+			int s = (first+k)%nStripes;
+			int j0 = s*STRIPE_ROWS;
+			int j1 = Math.min(height,j0+STRIPE_ROWS);
+			int[] box = frameBox (j0,j1,half,cx,cy,w,h);
+			if (box == null) continue;
+			synchronized (locks[s])
+				{
+				addStripe (pix,w,box,j0,j1,ox0,ox1,ox2,oy0,oy1,oy2,half,norm);
+				}
+			}
+		return true;
+		}
+
+	/**
+	 * Returns the frame pixels {i0,i1,j0,j1} whose drops may fall onto the output rows j0,...,j1-1,
+	 * or null if there are none.
+	 */
+	protected int[] frameBox (int j0, int j1, double half, double[] cx, double[] cy, int w, int h)
+		{
+		double pc = astroj.Centroid.PIXELCENTER;
+		double[] xo = new double[] { -half, width+half, -half, width+half };
+		double[] yo = new double[] { j0-half, j0-half, j1+half, j1+half };
+		double xmin = Double.MAX_VALUE;
+		double xmax = -Double.MAX_VALUE;
+		double ymin = Double.MAX_VALUE;
+		double ymax = -Double.MAX_VALUE;
+		for (int k=0; k < 4; k++)
+			{
+			double xr = xo[k]/scale-0.5+pc;		// REFERENCE POSITION
+			double yr = yo[k]/scale-0.5+pc;
+			double xf = cx[0]+cx[1]*xr+cx[2]*yr-pc;	// FRAME PIXEL
+			double yf = cy[0]+cy[1]*xr+cy[2]*yr-pc;
+			xmin = Math.min(xmin,xf);
+			xmax = Math.max(xmax,xf);
+			ymin = Math.min(ymin,yf);
+			ymax = Math.max(ymax,yf);
+			}
+		int i0 = Math.max(0,(int)Math.floor(xmin)-1);
+		int i1 = Math.min(w-1,(int)Math.ceil(xmax)+1);
+		int k0 = Math.max(0,(int)Math.floor(ymin)-1);
+		int k1 = Math.min(h-1,(int)Math.ceil(ymax)+1);
+		if (i0 > i1 || k0 > k1) return null;
+		return new int[] { i0,i1,k0,k1 };
+		}
+
+	/**
+	 * Drops the frame pixels in the box onto the output rows j0,...,j1-1.
+	 */
+	protected void addStripe (float[] pix, int w, int[] box, int j0, int j1,
+				double ox0, double ox1, double ox2, double oy0, double oy1, double oy2,
+				double half, double norm)
+		{
+		for (int jf=box[2]; jf <= box[3]; jf++)
+			{
+			double xc = ox0+ox1*box[0]+ox2*jf;
+			double yc = oy0+oy1*box[0]+oy2*jf;
+			for (int i=box[0]; i <= box[1]; i++, xc += ox1, yc += oy1)
+				{
+				double ylo = yc-half;
+				double yhi = yc+half;
+				if (yhi <= j0 || ylo >= j1) continue;
+				double xlo = xc-half;
+				double xhi = xc+half;
+				if (xhi <= 0.0 || xlo >= width) continue;
+				float v = pix[i+jf*w];
+				if (v != v) continue;
+
+				int ia = Math.max(0,(int)Math.floor(xlo));
+				int ib = Math.min(width-1,(int)Math.floor(xhi));
+				int ja = Math.max(j0,(int)Math.floor(ylo));
+				int jb = Math.min(j1-1,(int)Math.floor(yhi));
+				for (int jo=ja; jo <= jb; jo++)
+					{
+					double dy = Math.min(yhi,jo+1.0)-Math.max(ylo,jo);
+					if (dy <= 0.0) continue;
+					int off = jo*width;
+					for (int io=ia; io <= ib; io++)
+						{
+						double dx = Math.min(xhi,io+1.0)-Math.max(xlo,io);
+						if (dx <= 0.0) continue;
+						double wt = norm*dx*dy;
+						sum[off+io] += (float)(wt*v);
+						weight[off+io] += (float)wt;
+						}
+					}
+				}
+			}
+		}
+
+	/**
+	 * Returns the co-added image (NaN where no data fell).
+	 */
+	public float[] result ()
+		{
+		float[] res = new float[width*height];
+		for (int s=0; s < nStripes; s++)
+			{
+			synchronized (locks[s])
+				{
+				int k1 = Math.min(height,(s+1)*STRIPE_ROWS)*width;
+				for (int k=s*STRIPE_ROWS*width; k < k1; k++)
+					res[k] = (weight[k] > 0.0f) ? sum[k]/weight[k] : Float.NaN;
+				}
+			}
+		return res;
+		}
+
+	/**
+	 * Returns the weight map: the number of frame pixels (times the frame weights) per output pixel.
+	 */
+	public float[] weights ()
+		{
+		float[] wts = new float[width*height];
+		for (int s=0; s < nStripes; s++)
+			{
+			synchronized (locks[s])
+				{
+				int k1 = Math.min(height,(s+1)*STRIPE_ROWS)*width;
+				for (int k=s*STRIPE_ROWS*width; k < k1; k++)
+					wts[k] = weight[k];
+				}
+			}
+		return wts;
+		}
+	}
@@ -0,0 +1,481 @@
+// EnsemblePhotometry.java
+
+/**
+ * Ensemble differential photometry of all stars in all frames at once.
+ *
+ * The instrumental magnitudes m[f,s] = -2.5 log10(flux) of star s in frame f are modelled as
+ *
+ *	m[f,s] = M[s] + Z[f]
+ *
+ * where M[s] is the mean magnitude of the star and Z[f] is the zero-point (transparency, airmass,
+ * exposure) of the frame.  The zero-points and mean magnitudes are found by alternating weighted
+ * means with weights 1/(err[f,s]^2+var[s]), where var[s] is the excess variance of the star
+ * (i.e. the scatter not explained by its photometric errors), so that variable or noisy stars
+ * contribute little to the zero-points.  After each iteration, points deviating by more than
+ * "clip" sigma are rejected.
+ *
+ * The result is a differential light curve m[f,s]-Z[f] with errors for every star.  If "excludeSelf"
+ * is set, the contribution of the star itself is removed from the zero-point of its own light curve,
+ * so every star is measured relative to the ensemble of all the others.
+ *
+ * The data are stored frame-by-frame in float arrays (10k stars x 10k frames = 400 MB per array)
+ * and the magnitude and error arrays are overwritten by the differential magnitudes and errors.
+ * The frame and star passes are split over several threads.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class EnsemblePhotometry
+	{
+	protected int nFrames, nStars;
+
+	protected float[] mag;		// INSTRUMENTAL, LATER DIFFERENTIAL MAGNITUDES [f*nStars+s]
+	protected float[] err;		// MAGNITUDE ERRORS
+	protected byte[] rejected;	// 0=USED, 1=CLIPPED, 2=NO DATA
+
+	protected double[] zero;	// FRAME ZERO-POINTS
+	protected double[] zeroErr;
+	protected double[] sumW;	// SUMS OF WEIGHTS AND WEIGHTED RESIDUALS OF EACH FRAME
+	protected double[] sumWR;
+
+	protected double[] starMag;	// MEAN STAR MAGNITUDES
+	protected double[] starVar;	// EXCESS VARIANCE OF EACH STAR
+	protected double[] starRMS;	// R.M.S. OF THE FINAL DIFFERENTIAL LIGHT CURVE
+
+	protected double clip = 4.0;
+	protected int maxIterations = 10;
+	protected double tolerance = 1.0e-5;
+	protected boolean excludeSelf = true;
+	protected int nThreads = Runtime.getRuntime().availableProcessors();
+
+	protected int iterations = 0;
+	protected boolean solved = false;
+
+	public static double MAG_PER_LN = 2.5/Math.log(10.0);
+
+	/**
+	 * Creates an ensemble for nFrames frames of nStars stars each.
+	 */
+	public EnsemblePhotometry (int nFrames, int nStars)
+		{
+		this.nFrames = nFrames;
+		this.nStars = nStars;
+		long n = (long)nFrames*(long)nStars;
+		if (n > Integer.MAX_VALUE)
+			throw new IllegalArgumentException ("EnsemblePhotometry: too many measurements ("+n+")");
+		mag = new float[(int)n];
+		err = new float[(int)n];
+		rejected = new byte[(int)n];
+		java.util.Arrays.fill (mag, Float.NaN);
+		java.util.Arrays.fill (rejected, (byte)2);
+
+		zero = new double[nFrames];
+		zeroErr = new double[nFrames];
+		sumW = new double[nFrames];
+		sumWR = new double[nFrames];
+		starMag = new double[nStars];
+		starVar = new double[nStars];
+		starRMS = new double[nStars];
+		}
+
+	public void setClip (double sigma)		{ clip = sigma; }
+	public void setMaxIterations (int n)		{ maxIterations = n; }
+	public void setExcludeSelf (boolean flag)	{ excludeSelf = flag; }
+	public void setThreads (int n)			{ nThreads = Math.max(1,n); }
+
+	public int numberOfFrames()	{ return nFrames; }
+	public int numberOfStars()	{ return nStars; }
+	public int iterations()		{ return iterations; }
+
+	/**
+	 * Enters the flux and flux error of star s in frame f.  Non-positive or missing fluxes are ignored.
+	 */
+	public void setFlux (int f, int s, double flux, double error)
+		{
+		int k = f*nStars+s;
+		if (flux > 0.0 && !Double.isInfinite(flux))
+			{
+			mag[k] = (float)(-MAG_PER_LN*Math.log(flux));
+			if (error > 0.0 && !Double.isNaN(error))
+				err[k] = (float)(MAG_PER_LN*error/flux);
+			else
+				err[k] = 0.0f;
+			rejected[k] = 0;
+			}
+		else	{
+			mag[k] = Float.NaN;
+			err[k] = Float.NaN;
+			rejected[k] = 2;
+			}
+		solved = false;
+		}
+
+	/**
+	 * Enters all fluxes and errors of one frame.
+	 */
+	public void setFrame (int f, double[] flux, double[] error)
+		{
+		for (int s=0; s < nStars; s++)
+			setFlux (f,s,flux[s],(error == null) ? 0.0 : error[s]);
+		}
+
+	/**
+	 * Enters instrumental magnitudes and errors directly (frame-major arrays of size nFrames*nStars).
+	 * The arrays are used, not copied, and will contain the differential magnitudes after solve().
+	 */
+	public void setMagnitudes (float[] m, float[] e)
+		{
+		if (m.length != mag.length || e.length != err.length)
+			throw new IllegalArgumentException ("EnsemblePhotometry: arrays must have "+mag.length+" entries");
+		mag = m;
+		err = e;
+		for (int k=0; k < mag.length; k++)
+			rejected[k] = (Float.isNaN(mag[k]) || Float.isInfinite(mag[k])) ? (byte)2 : (byte)0;
+		solved = false;
+		}
+
+	/**
+	 * Solves for the zero-points and mean magnitudes and converts the magnitudes into differential magnitudes.
+	 */
+	public boolean solve ()
+		{
+		if (solved) return true;
+		if (nFrames < 1 || nStars < 1) return false;
+
+		initialStarMagnitudes ();
+		java.util.Arrays.fill (zero,0.0);
+		java.util.Arrays.fill (starVar,0.0);
+
+		iterations = 0;
+		boolean done = false;
+		while (!done && iterations < maxIterations)
+			{
+			iterations++;
+			double change = zeroPointPass ();
+			normalizeZeroPoints ();
+			change = Math.max(change, starPass ());
+			int nClipped = (clip > 0.0) ? clipPass () : 0;
+			done = (change < tolerance && nClipped == 0);
+			}
+		zeroPointPass ();
+		differentialPass ();
+		solved = true;
+		return true;
+		}
+
+	/**
+	 * Unweighted mean magnitude of each star as a starting point.
+	 */
+	protected void initialStarMagnitudes ()
+		{
+		parallel (nStars, new Task()
+			{
+			public void run (int s1, int s2)
+				{
+				for (int s=s1; s < s2; s++)
+					{
+					double sum = 0.0;
+					int n = 0;
+					for (int f=0, k=s; f < nFrames; f++, k+=nStars)
+						{
+						if (rejected[k] == 0)
+							{
+							sum += mag[k];
+							n++;
+							}
+						}
+					starMag[s] = (n > 0) ? sum/n : Double.NaN;
+					}
+				}
+			});
+		}
+
+	/**
+	 * Weighted mean residual of each frame = zero-point; returns the largest change.
+	 */
+	protected double zeroPointPass ()
+		{
+		final double[] change = new double[nFrames];
+		parallel (nFrames, new Task()
+			{
+			public void run (int f1, int f2)
+				{
+				for (int f=f1; f < f2; f++)
+					{
+					double sw = 0.0;
+					double swr = 0.0;
+					for (int s=0, k=f*nStars; s < nStars; s++, k++)
+						{
+						if (rejected[k] != 0 || Double.isNaN(starMag[s])) continue;
+						double w = weight (k,s);
+						sw += w;
+						swr += w*(mag[k]-starMag[s]);
+						}
+					double z = (sw > 0.0) ? swr/sw : Double.NaN;
+					change[f] = Math.abs(z-zero[f]);
+					zero[f] = z;
+					zeroErr[f] = (sw > 0.0) ? 1.0/Math.sqrt(sw) : Double.NaN;
+					sumW[f] = sw;
+					sumWR[f] = swr;
+					}
+				}
+			});
+		return maxOf (change);
+		}
+
+	/**
+	 * The zero-points are only defined up to a constant: make their weighted mean zero.
+	 */
+	protected void normalizeZeroPoints ()
+		{
+		double sw = 0.0;
+		double swz = 0.0;
+		for (int f=0; f < nFrames; f++)
+			{
+			if (Double.isNaN(zero[f])) continue;
+			double w = 1.0/(zeroErr[f]*zeroErr[f]);
+			sw += w;
+			swz += w*zero[f];
+			}
+		if (sw <= 0.0) return;
+		double z0 = swz/sw;
+		for (int f=0; f < nFrames; f++)
+			{
+			zero[f] -= z0;
+			sumWR[f] -= z0*sumW[f];
+			}
+		for (int s=0; s < nStars; s++)
+			starMag[s] += z0;
+		}
+
+	/**
+	 * Weighted mean magnitude and excess variance of each star; returns the largest change of a mean.
+	 */
+	protected double starPass ()
+		{
+		final double[] change = new double[nStars];
+		parallel (nStars, new Task()
+			{
+			public void run (int s1, int s2)
+				{
+				for (int s=s1; s < s2; s++)
+					{
+					// WEIGHTED MEAN
+					double sw = 0.0;
+					double swm = 0.0;
+					for (int f=0, k=s; f < nFrames; f++, k+=nStars)
+						{
+						if (rejected[k] != 0 || Double.isNaN(zero[f])) continue;
+						double w = weight (k,s);
+						sw += w;
+						swm += w*(mag[k]-zero[f]);
+						}
+					if (sw <= 0.0)
+						{
+						starMag[s] = Double.NaN;
+						continue;
+						}
+					double m = swm/sw;
+					change[s] = Math.abs(m-starMag[s]);
+					starMag[s] = m;
+
+					// EXCESS VARIANCE = MEAN SQUARED RESIDUAL - MEAN SQUARED ERROR
+					double sr2 = 0.0;
+					double se2 = 0.0;
+					int n = 0;
+					for (int f=0, k=s; f < nFrames; f++, k+=nStars)
+						{
+						if (rejected[k] != 0 || Double.isNaN(zero[f])) continue;
+						double r = mag[k]-zero[f]-m;
+						sr2 += r*r;
+						se2 += err[k]*err[k];
+						n++;
+						}
+					starVar[s] = (n > 1) ? Math.max(0.0,(sr2-se2)/(n-1)) : 0.0;
+					}
+				}
+			});
+		return maxOf (change);
+		}
+
+	/**
+	 * Rejects (or re-accepts) points by their deviation from the model; returns the number of changes.
+	 */
+	protected int clipPass ()
+		{
+		final int[] changes = new int[nFrames];
+		parallel (nFrames, new Task()
+			{
+			public void run (int f1, int f2)
+				{
+				for (int f=f1; f < f2; f++)
+					{
+					if (Double.isNaN(zero[f])) continue;
+					for (int s=0, k=f*nStars; s < nStars; s++, k++)
+						{
+						if (rejected[k] == 2 || Double.isNaN(starMag[s])) continue;
+						double r = mag[k]-zero[f]-starMag[s];
+						double sig = Math.sqrt(err[k]*err[k]+starVar[s]);
+						byte flag = (sig > 0.0 && Math.abs(r) > clip*sig) ? (byte)1 : (byte)0;
+						if (flag != rejected[k])
+							{
+							rejected[k] = flag;
+							changes[f]++;
+							}
+						}
+					}
+				}
+			});
+		int n = 0;
+		for (int f=0; f < nFrames; f++)
+			n += changes[f];
+		return n;
+		}
+
+	/**
+	 * Replaces the instrumental magnitudes and errors by the differential magnitudes and errors.
+	 */
+	protected void differentialPass ()
+		{
+		final double[] sr2 = new double[nStars];
+		final int[] nr = new int[nStars];
+		parallel (nFrames, new Task()
+			{
+			public void run (int f1, int f2)
+				{
+				for (int f=f1; f < f2; f++)
+					{
+					for (int s=0, k=f*nStars; s < nStars; s++, k++)
+						{
+						if (rejected[k] == 2 || Double.isNaN(zero[f]))
+							{
+							mag[k] = Float.NaN;
+							err[k] = Float.NaN;
+							continue;
+							}
+						double z = zero[f];
+						double ze2 = zeroErr[f]*zeroErr[f];
+						if (excludeSelf && rejected[k] == 0 && !Double.isNaN(starMag[s]))
+							{
+							double w = weight (k,s);
+							double sw = sumW[f]-w;
+							if (sw > 0.0)
+								{
+								z = (sumWR[f]-w*(mag[k]-starMag[s]))/sw;
+								ze2 = 1.0/sw;
+								}
+							}
+						mag[k] = (float)(mag[k]-z);
+						err[k] = (float)Math.sqrt(err[k]*err[k]+ze2);
+						}
+					}
+				}
+			});
+
+		// R.M.S. OF EACH LIGHT CURVE ABOUT ITS MEAN
+		parallel (nStars, new Task()
+			{
+			public void run (int s1, int s2)
+				{
+				for (int s=s1; s < s2; s++)
+					{
+					double sum = 0.0;
+					int n = 0;
+					for (int f=0, k=s; f < nFrames; f++, k+=nStars)
+						{
+						if (rejected[k] != 0) continue;
+						double r = mag[k]-starMag[s];
+						sum += r*r;
+						n++;
+						}
+					starRMS[s] = (n > 1) ? Math.sqrt(sum/(n-1)) : Double.NaN;
+					}
+				}
+			});
+		}
+
+	/**
+	 * Weight of measurement k of star s.
+	 */
+	protected double weight (int k, int s)
+		{
+		double v = err[k]*err[k]+starVar[s];
+		return (v > 0.0) ? 1.0/v : 1.0e12;
+		}
+
+	protected static double maxOf (double[] arr)
+		{
+		double m = 0.0;
+		for (int i=0; i < arr.length; i++)
+			if (arr[i] > m) m = arr[i];
+		return m;
+		}
+
+	/** Differential magnitude of star s in frame f. */
+	public double magnitude (int f, int s)	{ return mag[f*nStars+s]; }
+
+	/** Error of the differential magnitude of star s in frame f. */
+	public double error (int f, int s)	{ return err[f*nStars+s]; }
+
+	/** True if the measurement of star s in frame f was not used for the ensemble. */
+	public boolean isRejected (int f, int s) { return rejected[f*nStars+s] != 0; }
+
+	/** Frame-major array of all differential magnitudes. */
+	public float[] getMagnitudes()		{ return mag; }
+
+	/** Frame-major array of all differential magnitude errors. */
+	public float[] getErrors()		{ return err; }
+
+	public double[] getZeroPoints()		{ return zero; }
+	public double[] getZeroPointErrors()	{ return zeroErr; }
+	public double[] getStarMagnitudes()	{ return starMag; }
+	public double[] getStarRMS()		{ return starRMS; }
+
+	/** Excess variance (mag^2) of each star not explained by its photometric errors. */
+	public double[] getStarVariances()	{ return starVar; }
+
+	//
+	// SIMPLE THREADING OF INDEPENDENT RANGES
+	//
+
+	protected abstract class Task
+		{
+		public abstract void run (int i1, int i2);
+		}
+
+	/**
+	 * Splits the range 0..n-1 into contiguous blocks processed by separate threads.
+	 */
+	protected void parallel (int n, final Task task)
+		{
+		int nt = Math.min(nThreads, Math.max(1,n/64));
+		if (nt <= 1)
+			{
+			task.run (0,n);
+			return;
+			}
+		Thread[] threads = new Thread[nt];
+		int chunk = (n+nt-1)/nt;
+		for (int t=0; t < nt; t++)
+			{
+			final int i1 = t*chunk;
+			final int i2 = Math.min(n,i1+chunk);
+			threads[t] = new Thread()
+				{
+				public void run ()
+					{
+					task.run (i1,i2);
+					}
+				};
+			threads[t].start();
+			}
+		try	{
+			for (int t=0; t < nt; t++)
+				threads[t].join();
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			}
+		}
+	}
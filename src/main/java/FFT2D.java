@@ -0,0 +1,309 @@
+// FFT2D.java
+
+import java.util.*;
+
+/**
+ * Simple in-place radix-2 complex Fast Fourier Transform of two-dimensional data whose
+ * dimensions are powers of 2.  The real and imaginary parts are stored row-by-row in separate
+ * double arrays, i.e. the value at (i,j) is at re[i+j*nx], im[i+j*nx].
+ *
+ * The twiddle factors and bit-reversal tables ("plans") of each transform length are cached
+ * so that the transforms of many images of the same size (e.g. the slices of a stack) do not
+ * have to recompute them.  The plans are shared, but an FFT2D object has its own column buffers
+ * and so should only be used by one thread at a time.
+ *
+ * Real data can be transformed into the non-redundant half of the spectrum (forwardReal(),
+ * inverseReal()), which takes about half the time of the complex transform: pairs of rows are
+ * transformed as the real and imaginary parts of one complex row, and only nx/2+1 columns are
+ * transformed.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Added real-to-complex transforms.
+ */
+public class FFT2D
+	{
+	protected int nx,ny;
+
+	protected double[] cosx,sinx,cosy,siny;
+	protected int[] revx,revy;
+
+	protected double[] colre,colim;
+	protected double[] rowre,rowim;
+
+	static Hashtable<Integer,Object[]> plans = new Hashtable<Integer,Object[]>();
+
+	/**
+	 * Creates a transform for images of size nx,ny (both must be powers of 2).
+	 */
+	public FFT2D (int nx, int ny)
+		{
+		if (!isPowerOf2(nx) || !isPowerOf2(ny))
+			throw new IllegalArgumentException ("FFT2D: dimensions "+nx+"x"+ny+" are not powers of 2!");
+		this.nx = nx;
+		this.ny = ny;
+
+		Object[] plan = getPlan (nx);
+		cosx = (double[])plan[0];
+		sinx = (double[])plan[1];
+		revx = (int[])plan[2];
+
+		plan = getPlan (ny);
+		cosy = (double[])plan[0];
+		siny = (double[])plan[1];
+		revy = (int[])plan[2];
+
+		colre = new double[ny];
+		colim = new double[ny];
+		}
+
+	public int width()  { return nx; }
+	public int height() { return ny; }
+
+	/**
+	 * Returns the width nx/2+1 of the half spectrum of real data.
+	 */
+	public int halfWidth() { return nx/2+1; }
+
+	/**
+	 * Returns the smallest power of 2 which is >= n.
+	 */
+	public static int nextPowerOf2 (int n)
+		{
+		int m = 1;
+		while (m < n) m <<= 1;
+		return m;
+		}
+
+	public static boolean isPowerOf2 (int n)
+		{
+		return n > 0 && (n & (n-1)) == 0;
+		}
+
+	/**
+	 * Returns the cached twiddle factors and bit-reversal table for transforms of length n.
+	 */
+	protected static Object[] getPlan (int n)
+		{
+		Object[] plan = plans.get(n);
+		if (plan != null) return plan;
+
+		double[] c = new double[n/2+1];
+		double[] s = new double[n/2+1];
+		for (int k=0; k < c.length; k++)
+			{
+			double phi = -2.0*Math.PI*(double)k/(double)n;
+			c[k] = Math.cos(phi);
+			s[k] = Math.sin(phi);
+			}
+		int[] rev = new int[n];
+		int bits = Integer.numberOfTrailingZeros(n);
+		for (int k=0; k < n; k++)
+			rev[k] = (bits == 0) ? 0 : Integer.reverse(k) >>> (32-bits);
+
+		plan = new Object[] {c,s,rev};
+		plans.put (n,plan);
+		return plan;
+		}
+
+	/**
+	 * Forward transform (exp(-2 pi i k x/n) convention, no normalization).
+	 */
+	public void forward (double[] re, double[] im)
+		{
+		transform (re,im,false);
+		}
+
+	/**
+	 * Inverse transform, normalized by 1/(nx*ny) so that inverse(forward(f)) = f.
+	 */
+	public void inverse (double[] re, double[] im)
+		{
+		transform (re,im,true);
+		double norm = 1.0/((double)nx*(double)ny);
+		for (int k=0; k < re.length; k++)
+			{
+			re[k] *= norm;
+			im[k] *= norm;
+			}
+		}
+
+	/**
+	 * Forward transform of the real nx*ny data into the half spectrum re,im, each of size
+	 * halfWidth()*ny with the frequency (u,v) at u+v*halfWidth().
+	 */
+	public void forwardReal (double[] data, double[] re, double[] im)
+		{
+		int nh = nx/2+1;
+		if (data.length != nx*ny || re.length != nh*ny || im.length != nh*ny)
+			throw new IllegalArgumentException ("FFT2D: real data arrays do not match the size "+nx+"x"+ny);
+		if (rowre == null)
+			{
+			rowre = new double[nx];
+			rowim = new double[nx];
+			}
+
+		// PAIRS OF ROWS AS ONE COMPLEX ROW z = x+iy, THEN X(u) = (Z(u)+Z*(-u))/2, Y(u) = (Z(u)-Z*(-u))/2i
+
+		for (int j=0; j < ny; j += 2)
+			{
+			System.arraycopy (data,j*nx,rowre,0,nx);
+			if (j+1 < ny)
+				System.arraycopy (data,(j+1)*nx,rowim,0,nx);
+			else
+				Arrays.fill (rowim,0.0);
+			fft1d (rowre,rowim,0,nx,cosx,sinx,revx,false);
+			for (int u=0; u < nh; u++)
+				{
+				int m = (nx-u)%nx;
+				double a = rowre[u];
+				double b = rowim[u];
+				double c = rowre[m];
+				double d = rowim[m];
+				re[j*nh+u] = 0.5*(a+c);
+				im[j*nh+u] = 0.5*(b-d);
+				if (j+1 < ny)
+					{
+					re[(j+1)*nh+u] = 0.5*(b+d);
+					im[(j+1)*nh+u] = 0.5*(c-a);
+					}
+				}
+			}
+		columns (re,im,nh,false);
+		}
+
+	/**
+	 * Inverse of forwardReal(), normalized by 1/(nx*ny).  The half spectrum re,im is overwritten.
+	 */
+	public void inverseReal (double[] re, double[] im, double[] data)
+		{
+		int nh = nx/2+1;
+		if (data.length != nx*ny || re.length != nh*ny || im.length != nh*ny)
+			throw new IllegalArgumentException ("FFT2D: real data arrays do not match the size "+nx+"x"+ny);
+		if (rowre == null)
+			{
+			rowre = new double[nx];
+			rowim = new double[nx];
+			}
+		columns (re,im,nh,true);
+
+		// PAIRS OF ROWS FROM ONE COMPLEX ROW Z = X+iY, USING X(-u) = X*(u)
+
+		double norm = 1.0/((double)nx*(double)ny);
+		for (int j=0; j < ny; j += 2)
+			{
+			for (int u=0; u < nx; u++)
+				{
+				int k = (u < nh) ? u : nx-u;
+				double sign = (u < nh) ? 1.0 : -1.0;
+				double xr = re[j*nh+k];
+				double xi = sign*im[j*nh+k];
+				double yr = 0.0;
+				double yi = 0.0;
+				if (j+1 < ny)
+					{
+					yr = re[(j+1)*nh+k];
+					yi = sign*im[(j+1)*nh+k];
+					}
+				rowre[u] = xr-yi;
+				rowim[u] = xi+yr;
+				}
+			fft1d (rowre,rowim,0,nx,cosx,sinx,revx,true);
+			for (int i=0; i < nx; i++)
+				{
+				data[j*nx+i] = norm*rowre[i];
+				if (j+1 < ny)
+					data[(j+1)*nx+i] = norm*rowim[i];
+				}
+			}
+		}
+
+	/**
+	 * Transforms the first n columns of data with rows of length n.
+	 */
+	protected void columns (double[] re, double[] im, int n, boolean inverse)
+		{
+		if (ny == 1) return;
+		for (int i=0; i < n; i++)
+			{
+			for (int j=0,k=i; j < ny; j++,k+=n)
+				{
+				colre[j] = re[k];
+				colim[j] = im[k];
+				}
+			fft1d (colre,colim,0,ny,cosy,siny,revy,inverse);
+			for (int j=0,k=i; j < ny; j++,k+=n)
+				{
+				re[k] = colre[j];
+				im[k] = colim[j];
+				}
+			}
+		}
+
+	/**
+	 * Row-column 2-D transform.
+	 */
+	protected void transform (double[] re, double[] im, boolean inverse)
+		{
+		if (re.length != nx*ny || im.length != nx*ny)
+			throw new IllegalArgumentException ("FFT2D: data arrays do not have size "+nx+"x"+ny);
+
+		// TRANSFORM ROWS IN PLACE
+
+		for (int j=0; j < ny; j++)
+			fft1d (re,im,j*nx,nx,cosx,sinx,revx,inverse);
+
+		// TRANSFORM COLUMNS USING THE COLUMN BUFFERS
+
+		columns (re,im,nx,inverse);
+		}
+
+	/**
+	 * In-place iterative Cooley-Tukey transform of n contiguous values starting at off.
+	 */
+	protected static void fft1d (double[] re, double[] im, int off, int n,
+					double[] c, double[] s, int[] rev, boolean inverse)
+		{
+		if (n < 2) return;
+
+		// BIT-REVERSAL PERMUTATION
+
+		for (int k=0; k < n; k++)
+			{
+			int r = rev[k];
+			if (r > k)
+				{
+				double t = re[off+k]; re[off+k] = re[off+r]; re[off+r] = t;
+				t = im[off+k]; im[off+k] = im[off+r]; im[off+r] = t;
+				}
+			}
+
+		// BUTTERFLIES
+
+		double sign = inverse ? -1.0 : 1.0;
+		for (int len=2; len <= n; len <<= 1)
+			{
+			int half = len >> 1;
+			int step = n/len;
+			for (int start=0; start < n; start += len)
+				{
+				for (int k=0; k < half; k++)
+					{
+					double wr = c[k*step];
+					double wi = sign*s[k*step];
+					int a = off+start+k;
+					int b = a+half;
+					double tr = re[b]*wr-im[b]*wi;
+					double ti = re[b]*wi+im[b]*wr;
+					re[b] = re[a]-tr;
+					im[b] = im[a]-ti;
+					re[a] += tr;
+					im[a] += ti;
+					}
+				}
+			}
+		}
+	}
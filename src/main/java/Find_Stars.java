@@ -0,0 +1,278 @@
+// Find_Stars.java
+
+import ij.*;
+import ij.gui.*;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.*;
+
+import java.awt.*;
+
+import astroj.*;
+
+/**
+ * Finds the stars in an image automatically (see StarFinder, which works like DAOFIND) and
+ * stores them as the apertures of MultiAperture_ (multiaperture.xapertures/yapertures), so that
+ * thousands of stars can be measured without clicking on each one.
+ *
+ * The brightest star becomes aperture #1 (the target) unless there is a ROI, in which case the
+ * star nearest to the center of the ROI is used.  Optionally, MultiAperture_ is started
+ * immediately in automatic mode.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class Find_Stars implements PlugInFilter
+	{
+	ImagePlus img;
+
+	double fwhm = 3.5;
+	double threshold = 5.0;
+	double sharpLow = 0.2;
+	double sharpHigh = 1.0;
+	double roundLow = -1.0;
+	double roundHigh = 1.0;
+	int maxStars = 0;
+	boolean showTable = true;
+	boolean showOverlay = true;
+	boolean saveApertures = true;
+	boolean runMultiAperture = false;
+
+	public static String PREFS_FWHM         = new String ("findstars.fwhm");
+	public static String PREFS_THRESHOLD    = new String ("findstars.threshold");
+	public static String PREFS_SHARPLOW     = new String ("findstars.sharplow");
+	public static String PREFS_SHARPHIGH    = new String ("findstars.sharphigh");
+	public static String PREFS_ROUNDLOW     = new String ("findstars.roundlow");
+	public static String PREFS_ROUNDHIGH    = new String ("findstars.roundhigh");
+	public static String PREFS_MAXSTARS     = new String ("findstars.maxstars");
+	public static String PREFS_SHOWTABLE    = new String ("findstars.showtable");
+	public static String PREFS_SHOWOVERLAY  = new String ("findstars.showoverlay");
+	public static String PREFS_SAVEAPERTURES= new String ("findstars.saveapertures");
+	public static String PREFS_RUNMULTI     = new String ("findstars.runmultiaperture");
+
+	public int setup (String arg, ImagePlus img)
+		{
+		this.img = img;
+		return DOES_ALL+NO_CHANGES+NO_UNDO;
+		}
+
+	public void run (ImageProcessor ip)
+		{
+		if (!dialog()) return;
+
+		StarFinder finder = new StarFinder ();
+		finder.setFWHM (fwhm);
+		finder.setThreshold (threshold);
+		finder.setSharpnessLimits (sharpLow,sharpHigh);
+		finder.setRoundnessLimits (roundLow,roundHigh);
+		finder.setMaxStars (maxStars);
+
+		long start = System.currentTimeMillis();
+		int n = finder.find (ip);
+		long elapsed = System.currentTimeMillis()-start;
+		if (n == 0)
+			{
+			IJ.showMessage ("Find Stars","No stars found: try a lower threshold or other limits.");
+			return;
+			}
+
+		double[] x = finder.x();
+		double[] y = finder.y();
+		int[] order = targetFirst (x,y,n);
+
+		if (showTable)
+			showTable (finder,order);
+		if (showOverlay)
+			showOverlay (x,y,order);
+		if (saveApertures || runMultiAperture)
+			saveApertures (x,y,order);
+		IJ.showStatus ("Found "+n+" stars in "+elapsed+" ms");
+
+		// MEASURE THEM ALL
+
+		if (runMultiAperture)
+			{
+			boolean autoMode = Prefs.get (MultiAperture_.PREFS_AUTOMODE, false);
+			Prefs.set (MultiAperture_.PREFS_AUTOMODE, true);
+			IJ.runPlugIn (img, "MultiAperture_", "");
+			Prefs.set (MultiAperture_.PREFS_AUTOMODE, autoMode);
+			}
+		}
+
+	/**
+	 * Returns a StarFinder with the settings last used by Find_Stars (without a limit on the number of stars).
+	 */
+	public static StarFinder createFinder ()
+		{
+		StarFinder finder = new StarFinder ();
+		finder.setFWHM (Prefs.get (PREFS_FWHM, 3.5));
+		finder.setThreshold (Prefs.get (PREFS_THRESHOLD, 5.0));
+		finder.setSharpnessLimits (Prefs.get (PREFS_SHARPLOW, 0.2), Prefs.get (PREFS_SHARPHIGH, 1.0));
+		finder.setRoundnessLimits (Prefs.get (PREFS_ROUNDLOW, -1.0), Prefs.get (PREFS_ROUNDHIGH, 1.0));
+		return finder;
+		}
+
+	/**
+	 * Returns the order of the stars: the one nearest to the center of the ROI (if any) first, then
+	 * the rest by decreasing amplitude.
+	 */
+	protected int[] targetFirst (double[] x, double[] y, int n)
+		{
+		int first = 0;
+		Roi roi = img.getRoi();
+		if (roi != null)
+			{
+			Rectangle r = roi.getBounds();
+			double xc = r.x+0.5*r.width;
+			double yc = r.y+0.5*r.height;
+			double dmin = Double.MAX_VALUE;
+			for (int i=0; i < n; i++)
+				{
+				double d = (x[i]-xc)*(x[i]-xc)+(y[i]-yc)*(y[i]-yc);
+				if (d < dmin)
+					{
+					dmin = d;
+					first = i;
+					}
+				}
+			}
+		int[] order = new int[n];
+		order[0] = first;
+		for (int i=0,k=1; i < n; i++)
+			{
+			if (i != first) order[k++] = i;
+			}
+		return order;
+		}
+
+	protected void showTable (StarFinder finder, int[] order)
+		{
+		MeasurementTable table = new MeasurementTable ("Stars in "+img.getShortTitle());
+		double[] x = finder.x();
+		double[] y = finder.y();
+		double[] peak = finder.peak();
+		double[] sharp = finder.sharpness();
+		double[] round = finder.roundness();
+		double[] mag = finder.mag();
+		double[] sky = finder.sky();
+		for (int k=0; k < order.length; k++)
+			{
+			int i = order[k];
+			table.incrementCounter();
+			table.addValue (Aperture_.AP_XCENTER, x[i], 6);
+			table.addValue (Aperture_.AP_YCENTER, y[i], 6);
+			table.addValue ("Peak", peak[i], 6);
+			table.addValue ("Sharpness", sharp[i], 6);
+			table.addValue ("Roundness", round[i], 6);
+			table.addValue ("Mag", mag[i], 6);
+			table.addValue (Aperture_.AP_BACK, sky[i], 6);
+			}
+		table.show();
+		}
+
+	/**
+	 * Shows the stars as apertures with the radii of Set_Aperture, numbered as in MultiAperture_.
+	 */
+	protected void showOverlay (double[] x, double[] y, int[] order)
+		{
+		double radius = Prefs.get (Aperture_.AP_PREFS_RADIUS, 10.0);
+		double rBack1 = Prefs.get (Aperture_.AP_PREFS_RBACK1, 15.0);
+		double rBack2 = Prefs.get (Aperture_.AP_PREFS_RBACK2, 20.0);
+
+		OverlayCanvas ocanvas = OverlayCanvas.getOverlayCanvas (img);
+		ocanvas.clearRois();
+		for (int k=0; k < order.length; k++)
+			{
+			int i = order[k];
+			ApertureRoi roi = new ApertureRoi (x[i],y[i],radius,rBack1,rBack2,Double.NaN,
+								k == 0 ? Color.green : Color.red);
+			roi.setAppearance (true,false,true,""+(k+1));
+			roi.setImage (img);
+			ocanvas.add (roi);
+			}
+		ocanvas.repaint();
+		}
+
+	/**
+	 * Stores the stars as the apertures of MultiAperture_ so that they are used as "previous" apertures.
+	 */
+	protected void saveApertures (double[] x, double[] y, int[] order)
+		{
+		StringBuffer xpos = new StringBuffer();
+		StringBuffer ypos = new StringBuffer();
+		for (int k=0; k < order.length; k++)
+			{
+			if (k > 0)
+				{
+				xpos.append (",");
+				ypos.append (",");
+				}
+			xpos.append ((float)x[order[k]]);
+			ypos.append ((float)y[order[k]]);
+			}
+		Prefs.set (MultiAperture_.PREFS_XAPERTURES, xpos.toString());
+		Prefs.set (MultiAperture_.PREFS_YAPERTURES, ypos.toString());
+		Prefs.set (MultiAperture_.PREFS_NAPERTURESMAX, order.length);
+		Prefs.set (MultiAperture_.PREFS_PREVIOUS, true);
+		}
+
+	protected boolean dialog ()
+		{
+		fwhm             = Prefs.get (PREFS_FWHM, fwhm);
+		threshold        = Prefs.get (PREFS_THRESHOLD, threshold);
+		sharpLow         = Prefs.get (PREFS_SHARPLOW, sharpLow);
+		sharpHigh        = Prefs.get (PREFS_SHARPHIGH, sharpHigh);
+		roundLow         = Prefs.get (PREFS_ROUNDLOW, roundLow);
+		roundHigh        = Prefs.get (PREFS_ROUNDHIGH, roundHigh);
+		maxStars         = (int)Prefs.get (PREFS_MAXSTARS, maxStars);
+		showTable        = Prefs.get (PREFS_SHOWTABLE, showTable);
+		showOverlay      = Prefs.get (PREFS_SHOWOVERLAY, showOverlay);
+		saveApertures    = Prefs.get (PREFS_SAVEAPERTURES, saveApertures);
+		runMultiAperture = Prefs.get (PREFS_RUNMULTI, runMultiAperture);
+
+		GenericDialog gd = new GenericDialog ("Find Stars");
+		gd.addNumericField ("FWHM of the stars :",fwhm,2,6,"pixels");
+		gd.addNumericField ("Detection threshold :",threshold,2,6,"sigma");
+		gd.addNumericField ("Minimum sharpness :",sharpLow,2);
+		gd.addNumericField ("Maximum sharpness :",sharpHigh,2);
+		gd.addNumericField ("Minimum roundness :",roundLow,2);
+		gd.addNumericField ("Maximum roundness :",roundHigh,2);
+		gd.addNumericField ("Maximum number of stars (0=all) :",maxStars,0);
+		gd.addCheckbox ("List stars in table",showTable);
+		gd.addCheckbox ("Show stars in overlay",showOverlay);
+		gd.addCheckbox ("Use stars as MultiAperture apertures",saveApertures);
+		gd.addCheckbox ("Measure all stars with MultiAperture now",runMultiAperture);
+		gd.addMessage ("The star nearest to the ROI (if any) or the brightest star becomes aperture #1.");
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		fwhm             = gd.getNextNumber();
+		threshold        = gd.getNextNumber();
+		sharpLow         = gd.getNextNumber();
+		sharpHigh        = gd.getNextNumber();
+		roundLow         = gd.getNextNumber();
+		roundHigh        = gd.getNextNumber();
+		maxStars         = (int)gd.getNextNumber();
+		showTable        = gd.getNextBoolean();
+		showOverlay      = gd.getNextBoolean();
+		saveApertures    = gd.getNextBoolean();
+		runMultiAperture = gd.getNextBoolean();
+		if (!(fwhm > 0.0) || !(threshold > 0.0))
+			{
+			IJ.error ("The FWHM and the threshold must be positive!");
+			return false;
+			}
+
+		Prefs.set (PREFS_FWHM, fwhm);
+		Prefs.set (PREFS_THRESHOLD, threshold);
+		Prefs.set (PREFS_SHARPLOW, sharpLow);
+		Prefs.set (PREFS_SHARPHIGH, sharpHigh);
+		Prefs.set (PREFS_ROUNDLOW, roundLow);
+		Prefs.set (PREFS_ROUNDHIGH, roundHigh);
+		Prefs.set (PREFS_MAXSTARS, maxStars);
+		Prefs.set (PREFS_SHOWTABLE, showTable);
+		Prefs.set (PREFS_SHOWOVERLAY, showOverlay);
+		Prefs.set (PREFS_SAVEAPERTURES, saveApertures);
+		Prefs.set (PREFS_RUNMULTI, runMultiAperture);
+		return true;
+		}
+	}
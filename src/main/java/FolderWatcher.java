@@ -0,0 +1,323 @@
+// FolderWatcher.java
+
+import ij.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches a directory for new files (e.g. FITS images written by a camera during the night) and
+ * passes each file, once it has stopped growing, to a Listener.
+ *
+ * The java.nio.file.WatchService thread only notes the new files and puts them into a queue, so
+ * that a burst of new images never blocks it; a separate worker thread waits until each file is
+ * complete and calls the listener.  If the WatchService overflows, the directory is rescanned.
+ *
+ * The files are processed in order by a single worker, since e.g. the apertures follow the drift from
+ * image to image.  To bound the latency when the images arrive faster than they can be measured, the
+ * queue can be limited to maxBacklog files (by default it is unlimited): if a new file arrives when the queue is full, the oldest waiting
+ * file is skipped (and noted in the log window, so that it can be measured afterwards).  The files
+ * already in the directory when watching starts (if they are to be processed) are not limited; they
+ * are processed first.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Optionally bounded queue dropping the oldest files, thread-safe counters, errors reported by
+ *	IJ.log(); stop() waits for the worker thread.
+ */
+public class FolderWatcher
+	{
+	/**
+	 * Client interface: called from the worker thread for each new, complete file.
+	 */
+	public interface Listener
+		{
+		/**
+		 * @param file		the new file
+		 * @param detected	System.currentTimeMillis() when the file was first noticed
+		 */
+		public void newFile (File file, long detected);
+		}
+
+	protected File directory;
+	protected String[] extensions;
+	protected Listener listener;
+
+	protected long settleTime = 250;	// [ms] FILE MUST NOT CHANGE FOR THIS LONG
+	protected long maxWait = 30000;		// [ms] MAXIMUM WAIT FOR A GROWING FILE
+	protected boolean processExisting = false;
+	protected int maxBacklog = 0;		// 0 = UNLIMITED
+
+	protected WatchService watcher = null;
+	protected Thread watchThread = null;
+	protected Thread workThread = null;
+	protected volatile boolean running = false;
+
+	protected LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+	protected ConcurrentLinkedQueue<Object[]> existing = new ConcurrentLinkedQueue<Object[]>();
+	protected Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+
+	protected AtomicInteger processed = new AtomicInteger(0);
+	protected AtomicInteger dropped = new AtomicInteger(0);
+
+	/**
+	 * Creates a watcher for files in dir ending in one of the given extensions (null = all files).
+	 */
+	public FolderWatcher (File dir, String[] extensions, Listener listener)
+		{
+		this.directory = dir;
+		this.extensions = extensions;
+		this.listener = listener;
+		}
+
+	public void setSettleTime (long ms)		{ settleTime = ms; }
+	public void setMaxWait (long ms)		{ maxWait = ms; }
+	public void setProcessExisting (boolean flag)	{ processExisting = flag; }
+
+	/** Maximum number of files waiting (0 = unlimited); if exceeded, the oldest ones are skipped. */
+	public void setMaxBacklog (int n)		{ maxBacklog = Math.max(0,n); }
+
+	/** Number of files waiting to be processed. */
+	public int backlog ()				{ return queue.size()+existing.size(); }
+
+	/** Number of files passed to the listener. */
+	public int processed ()				{ return processed.get(); }
+
+	/** Number of files skipped because the backlog was full. */
+	public int dropped ()				{ return dropped.get(); }
+
+	public boolean isRunning ()			{ return running; }
+
+	/**
+	 * Starts the watching and worker threads.
+	 */
+	public void start () throws IOException
+		{
+		if (running) return;
+		if (!directory.isDirectory())
+			throw new IOException ("Not a directory: "+directory);
+
+		watcher = FileSystems.getDefault().newWatchService();
+		directory.toPath().register (watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+
+		// FILES ALREADY THERE ARE EITHER PROCESSED OR IGNORED
+
+		File[] files = directory.listFiles();
+		if (files != null)
+			{
+			Arrays.sort (files);
+			long now = System.currentTimeMillis();
+			for (int i=0; i < files.length; i++)
+				{
+				String name = files[i].getName();
+				if (!seen.add (name)) continue;
+				if (processExisting && accept (name))
+					existing.offer (new Object[] { files[i], Long.valueOf(now) });
+				}
+			}
+
+		running = true;
+		watchThread = new Thread ("FolderWatcher-watch")
+			{
+			public void run ()
+				{
+				watchLoop ();
+				}
+			};
+		workThread = new Thread ("FolderWatcher-work")
+			{
+			public void run ()
+				{
+				workLoop ();
+				}
+			};
+		watchThread.setDaemon (true);
+		workThread.setDaemon (true);
+		watchThread.start ();
+		workThread.start ();
+		}
+
+	/**
+	 * Stops watching; files still in the queue are not processed.  Unless called from the listener,
+	 * returns only after the worker thread has finished, so that the listener is not called afterwards.
+	 */
+	public void stop ()
+		{
+		running = false;
+		try	{
+			if (watcher != null) watcher.close();
+			}
+		catch (IOException e) {}
+		if (watchThread != null) watchThread.interrupt();
+		if (workThread != null) workThread.interrupt();
+		queue.clear();
+		existing.clear();
+		if (workThread != null && workThread != Thread.currentThread())
+			{
+			try	{
+				workThread.join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	/**
+	 * Notes new files; never does anything slow.
+	 */
+	protected void watchLoop ()
+		{
+		while (running)
+			{
+			WatchKey key;
+			try	{
+				key = watcher.take();
+				}
+			catch (InterruptedException e)
+				{
+				return;
+				}
+			catch (ClosedWatchServiceException e)
+				{
+				return;
+				}
+			for (WatchEvent<?> event : key.pollEvents())
+				{
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					rescan ();
+				else	{
+					Path name = (Path)event.context();
+					enqueue (new File(directory,name.toString()));
+					}
+				}
+			if (!key.reset())
+				{
+				running = false;
+				return;
+				}
+			}
+		}
+
+	/**
+	 * Looks for files which have been missed, e.g. after the WatchService overflowed.
+	 */
+	protected void rescan ()
+		{
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		Arrays.sort (files);
+		for (int i=0; i < files.length; i++)
+			enqueue (files[i]);
+		}
+
+	/**
+	 * Puts a new file with the correct extension into the queue (only once), skipping the oldest
+	 * waiting file if the queue is full.
+	 */
+	protected void enqueue (File file)
+		{
+		String name = file.getName();
+		if (!accept (name) || !seen.add (name)) return;
+		if (maxBacklog > 0)
+			{
+			Object[] oldest;
+			while (queue.size() >= maxBacklog && (oldest = queue.poll()) != null)
+				{
+				dropped.incrementAndGet();
+				IJ.log ("FolderWatcher: skipped "+((File)oldest[0]).getName()+" (more than "+maxBacklog+" files waiting)");
+				}
+			}
+		queue.offer (new Object[] { file, Long.valueOf(System.currentTimeMillis()) });
+		}
+
+	protected boolean accept (String name)
+		{
+		if (name.startsWith(".")) return false;
+		if (extensions == null) return true;
+		String lower = name.toLowerCase();
+		for (int i=0; i < extensions.length; i++)
+			{
+			if (lower.endsWith (extensions[i].toLowerCase()))
+				return true;
+			}
+		return false;
+		}
+
+	/**
+	 * Waits for each queued file to be complete and passes it to the listener.
+	 */
+	protected void workLoop ()
+		{
+		while (running)
+			{
+			Object[] entry = existing.poll();
+			try	{
+				if (entry == null)
+					entry = queue.take();
+				}
+			catch (InterruptedException e)
+				{
+				return;
+				}
+			File file = (File)entry[0];
+			long detected = ((Long)entry[1]).longValue();
+			if (!waitUntilComplete (file) || !running) continue;
+			try	{
+				listener.newFile (file,detected);
+				}
+			catch (Exception e)
+				{
+				IJ.log ("FolderWatcher: unable to process "+file.getName()+" : "+e);
+				}
+			processed.incrementAndGet();
+			}
+		}
+
+	/**
+	 * Returns true once the file's size and modification time have been constant for settleTime ms.
+	 * Files which were last modified more than settleTime ago (e.g. the rest of a burst) are accepted at once.
+	 */
+	protected boolean waitUntilComplete (File file)
+		{
+		long start = System.currentTimeMillis();
+		long size = -1;
+		long modified = -1;
+		long stableSince = start;
+		while (running)
+			{
+			if (!file.exists()) return false;
+			long s = file.length();
+			long m = file.lastModified();
+			long now = System.currentTimeMillis();
+			if (s > 0 && now-m >= settleTime)
+				return true;
+			if (s != size || m != modified)
+				{
+				size = s;
+				modified = m;
+				stableSince = now;
+				}
+			else if (s > 0 && now-stableSince >= settleTime)
+				return true;
+			if (now-start > maxWait) return s > 0;
+			try	{
+				Thread.sleep (Math.max(10,settleTime/5));
+				}
+			catch (InterruptedException e)
+				{
+				return false;
+				}
+			}
+		return false;
+		}
+	}
@@ -0,0 +1,236 @@
+// FrameAligner.java
+
+import ij.process.*;
+
+import Jama.*;
+
+/**
+ * Derives the affine transformation of an image ("frame") relative to a reference image from the
+ * stars in both images, in the form used by Align_Image and Resampler:
+ *	xFrame = cx[0] + cx[1]*xRef + cx[2]*yRef
+ *	yFrame = cy[0] + cy[1]*xRef + cy[2]*yRef
+ *
+ * The brightest stars of the reference are found once by a StarFinder with the Find_Stars settings.
+ * For each frame, the stars are found again, the global offset (FrameOffset) gives a first guess,
+ * and the reference stars are matched to their nearest neighbours (StarGrid) within a tolerance that
+ * shrinks with the residuals of the least-squares fits.  With fewer than MIN_MATCHES pairs, only a
+ * shift is derived.  If the global offset matches less than half of the reference stars (e.g. because
+ * the frame is rotated), the asterisms are matched (AsterismMatcher) as well and the better result kept.
+ *
+ * The reference stars are not changed by align(), so one FrameAligner can be used by several threads,
+ * each with its own FrameOffset (see newOffset()).
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class FrameAligner
+	{
+	public static int MAX_STARS = 100;		// BRIGHTEST REFERENCE STARS USED
+	public static int MAX_FRAME_STARS = 400;	// BRIGHTEST FRAME STARS USED
+	public static double MATCH_RADIUS = 5.0;	// [pixels] INITIAL TOLERANCE AFTER THE GLOBAL OFFSET
+	public static double MIN_RADIUS = 1.0;		// [pixels] SMALLEST TOLERANCE
+	public static double CLIP = 3.0;		// TOLERANCE IN UNITS OF THE R.M.S. RESIDUAL
+	public static int MIN_MATCHES = 3;
+	public static int ITERATIONS = 4;
+
+	protected ImageProcessor ref;
+	protected double[] xRef,yRef;
+	protected int nRef;
+	protected AsterismMatcher matcher = null;
+
+	/**
+	 * The result of align().
+	 */
+	public static class Transform
+		{
+		public double[] cx,cy;
+		public int matches;
+		public double rms;
+
+		/** Rotation angle in degrees. */
+		public double angle ()	{ return Math.toDegrees(Math.atan2(cy[1]-cx[2],cx[1]+cy[2])); }
+
+		/** Mean scale factor (square root of the determinant). */
+		public double scale ()	{ return Math.sqrt(Math.abs(cx[1]*cy[2]-cx[2]*cy[1])); }
+		}
+
+	/**
+	 * Finds the reference stars.
+	 */
+	public FrameAligner (ImageProcessor ref)
+		{
+		this.ref = ref;
+		StarFinder finder = Find_Stars.createFinder ();
+		finder.setMaxStars (MAX_STARS);
+		nRef = finder.find (ref);
+		xRef = finder.x();
+		yRef = finder.y();
+		}
+
+	/**
+	 * Returns the asterism matcher of the reference stars, created when first needed.
+	 */
+	protected synchronized AsterismMatcher getMatcher ()
+		{
+		if (matcher == null)
+			matcher = new AsterismMatcher (xRef,yRef,nRef);
+		return matcher;
+		}
+
+	public int numberOfReferenceStars ()	{ return nRef; }
+
+	/**
+	 * Returns a new global offset estimator for the reference (not thread-safe, so one per thread).
+	 */
+	public FrameOffset newOffset ()
+		{
+		return new FrameOffset (ref);
+		}
+
+	/**
+	 * Derives the transformation of the frame ip relative to the reference, or returns null if no stars
+	 * could be matched.  The offset estimator is optional.
+	 */
+	public Transform align (ImageProcessor ip, FrameOffset offset)
+		{
+		if (nRef == 0) return null;
+		StarFinder finder = Find_Stars.createFinder ();
+		finder.setMaxStars (MAX_FRAME_STARS);
+		int n = finder.find (ip);
+		if (n == 0) return null;
+		double[] xs = finder.x();
+		double[] ys = finder.y();
+		StarGrid grid = new StarGrid (xs,ys,n,2.0*MATCH_RADIUS);
+
+		// FIRST GUESS: THE GLOBAL OFFSET
+
+		double[] d = (offset != null) ? offset.measure(ip) : null;
+		Transform t = new Transform ();
+		t.cx = new double[] { d == null ? 0.0 : d[0], 1.0, 0.0 };
+		t.cy = new double[] { d == null ? 0.0 : d[1], 0.0, 1.0 };
+		Transform result = refine (t,xs,ys,grid);
+		if (result != null && result.matches >= Math.max(MIN_MATCHES,nRef/2))
+			return result;
+
+		// SECOND GUESS: THE ASTERISM MATCH
+
+		AsterismMatcher.Match m = getMatcher().match (xs,ys,n);
+		if (m == null) return result;
+		t = new Transform ();
+		t.cx = m.cx;
+		t.cy = m.cy;
+		Transform second = refine (t,xs,ys,grid);
+		if (second == null || (result != null && second.matches < result.matches))
+			return result;
+		return second;
+		}
+
+	/**
+	 * Improves the transformation t by matching the reference stars with the frame stars, or returns null
+	 * if no stars can be matched.
+	 */
+	protected Transform refine (Transform t, double[] xs, double[] ys, StarGrid grid)
+		{
+		double tol = MATCH_RADIUS;
+		double[] xm = new double[nRef];
+		double[] ym = new double[nRef];
+		double[] xr = new double[nRef];
+		double[] yr = new double[nRef];
+		for (int iter=0; iter < ITERATIONS; iter++)
+			{
+			// MATCH PREDICTED POSITIONS WITH THE NEAREST FRAME STARS
+
+			int m = 0;
+			for (int k=0; k < nRef; k++)
+				{
+				double px = t.cx[0]+t.cx[1]*xRef[k]+t.cx[2]*yRef[k];
+				double py = t.cy[0]+t.cy[1]*xRef[k]+t.cy[2]*yRef[k];
+				int[] near = grid.near (px,py,tol);
+				int best = -1;
+				double dbest = Double.MAX_VALUE;
+				for (int l=0; l < near.length; l++)
+					{
+					double dd = (xs[near[l]]-px)*(xs[near[l]]-px)+(ys[near[l]]-py)*(ys[near[l]]-py);
+					if (dd < dbest)
+						{
+						dbest = dd;
+						best = near[l];
+						}
+					}
+				if (best < 0) continue;
+				xr[m] = xRef[k];
+				yr[m] = yRef[k];
+				xm[m] = xs[best];
+				ym[m] = ys[best];
+				m++;
+				}
+			if (m == 0) return null;
+
+			// NEW TRANSFORMATION AND TOLERANCE
+
+			if (m < MIN_MATCHES || !fitAffine (xr,yr,xm,ym,m,t))
+				fitShift (xr,yr,xm,ym,m,t);
+			t.matches = m;
+			t.rms = residual (xr,yr,xm,ym,m,t);
+			tol = Math.max(MIN_RADIUS,Math.min(tol,CLIP*t.rms));
+			}
+		return t;
+		}
+
+	/**
+	 * Least-squares affine transformation of the m pairs (cf. Align_Image.calculateTransformation()).
+	 */
+	protected boolean fitAffine (double[] xr, double[] yr, double[] xm, double[] ym, int m, Transform t)
+		{
+		double[][] a = new double[3][3];
+		double[][] bx = new double[3][1];
+		double[][] by = new double[3][1];
+		for (int k=0; k < m; k++)
+			{
+			double[] f = new double[] { 1.0, xr[k], yr[k] };
+			for (int i=0; i < 3; i++)
+				{
+				for (int j=0; j < 3; j++)
+					a[i][j] += f[i]*f[j];
+				bx[i][0] += f[i]*xm[k];
+				by[i][0] += f[i]*ym[k];
+				}
+			}
+		LUDecomposition lu = new LUDecomposition (new Matrix(a));
+		if (!lu.isNonsingular()) return false;
+		t.cx = lu.solve(new Matrix(bx)).getColumnPackedCopy();
+		t.cy = lu.solve(new Matrix(by)).getColumnPackedCopy();
+		return true;
+		}
+
+	/**
+	 * Mean shift of the m pairs.
+	 */
+	protected void fitShift (double[] xr, double[] yr, double[] xm, double[] ym, int m, Transform t)
+		{
+		double dx = 0.0;
+		double dy = 0.0;
+		for (int k=0; k < m; k++)
+			{
+			dx += xm[k]-xr[k];
+			dy += ym[k]-yr[k];
+			}
+		t.cx = new double[] { dx/m, 1.0, 0.0 };
+		t.cy = new double[] { dy/m, 0.0, 1.0 };
+		}
+
+	/**
+	 * R.m.s. distance between the transformed reference positions and the matched positions.
+	 */
+	protected double residual (double[] xr, double[] yr, double[] xm, double[] ym, int m, Transform t)
+		{
+		double sum = 0.0;
+		for (int k=0; k < m; k++)
+			{
+			double ex = t.cx[0]+t.cx[1]*xr[k]+t.cx[2]*yr[k]-xm[k];
+			double ey = t.cy[0]+t.cy[1]*xr[k]+t.cy[2]*yr[k]-ym[k];
+			sum += ex*ex+ey*ey;
+			}
+		return Math.sqrt(sum/m);
+		}
+	}
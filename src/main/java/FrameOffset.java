@@ -0,0 +1,221 @@
+// FrameOffset.java
+
+import ij.process.*;
+
+/**
+ * Estimates the global shift of an image relative to a reference image by FFT cross-correlation
+ * of block-averaged ("binned") copies of both images.  The spectrum of the reference is computed
+ * once, so each new image costs one forward and one inverse transform of a small array.
+ *
+ * The resulting shift (dx,dy) is such that an object at (x,y) in the reference image is found
+ * near (x+dx,y+dy) in the measured image.  The precision is a fraction of the binning factor,
+ * which is good enough to seed the centroiding of MultiAperture_ even when the tracking jumps
+ * by more than an aperture radius between frames.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class FrameOffset
+	{
+	/** Maximum size of the binned images in either direction. */
+	public static int MAX_SIZE = 256;
+
+	/** Minimum ratio of the correlation peak to the r.m.s. of the correlation image. */
+	public static double MIN_CONTRAST = 5.0;
+
+	protected int width,height;	// ORIGINAL IMAGE SIZE
+	protected int bin;		// BINNING FACTOR
+	protected int bw,bh;		// BINNED IMAGE SIZE
+	protected int nx,ny;		// PADDED (POWER OF 2) SIZE
+
+	protected FFT2D fft;
+	protected double[] refRe,refIm;
+	protected double[] re,im;
+
+	protected double contrast = 0.0;
+
+	/**
+	 * Creates an offset estimator using the given image as the reference.
+	 */
+	public FrameOffset (ImageProcessor ref)
+		{
+		setReference (ref);
+		}
+
+	/**
+	 * Sets (or resets) the reference image.
+	 */
+	public void setReference (ImageProcessor ref)
+		{
+		width = ref.getWidth();
+		height = ref.getHeight();
+		bin = Math.max(1, (Math.max(width,height)+MAX_SIZE-1)/MAX_SIZE);
+		bw = Math.max(1,width/bin);
+		bh = Math.max(1,height/bin);
+		nx = FFT2D.nextPowerOf2 (bw);
+		ny = FFT2D.nextPowerOf2 (bh);
+		fft = new FFT2D (nx,ny);
+
+		refRe = new double[nx*ny];
+		refIm = new double[nx*ny];
+		re = new double[nx*ny];
+		im = new double[nx*ny];
+
+		binImage (ref,refRe);
+		fft.forward (refRe,refIm);
+		}
+
+	/**
+	 * Returns the binning factor used.
+	 */
+	public int getBinning ()
+		{
+		return bin;
+		}
+
+	/**
+	 * Returns the contrast of the last correlation peak (peak/r.m.s.).
+	 */
+	public double getContrast ()
+		{
+		return contrast;
+		}
+
+	/**
+	 * Measures the shift {dx,dy} of the image in pixels relative to the reference image.
+	 * Returns null if the image has a different size or if the correlation peak is not significant.
+	 */
+	public double[] measure (ImageProcessor ip)
+		{
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			return null;
+
+		// CROSS-POWER SPECTRUM conj(R)*F
+
+		binImage (ip,re);
+		java.util.Arrays.fill (im,0.0);
+		fft.forward (re,im);
+		for (int k=0; k < re.length; k++)
+			{
+			double r = refRe[k]*re[k]+refIm[k]*im[k];
+			double i = refRe[k]*im[k]-refIm[k]*re[k];
+			re[k] = r;
+			im[k] = i;
+			}
+		fft.inverse (re,im);
+
+		// FIND CORRELATION PEAK AND ITS SIGNIFICANCE
+
+		int kmax = 0;
+		double sum = 0.0;
+		double sum2 = 0.0;
+		for (int k=0; k < re.length; k++)
+			{
+			double c = re[k];
+			sum += c;
+			sum2 += c*c;
+			if (c > re[kmax]) kmax = k;
+			}
+		int n = re.length;
+		double mean = sum/n;
+		double rms = Math.sqrt(Math.max(0.0,sum2/n-mean*mean));
+		contrast = (rms > 0.0) ? (re[kmax]-mean)/rms : 0.0;
+		if (contrast < MIN_CONTRAST) return null;
+
+		// SUB-PIXEL POSITION FROM PARABOLAE THROUGH THE PEAK (DATA ARE PERIODIC)
+
+		int ix = kmax%nx;
+		int iy = kmax/nx;
+		double px = ix+parabolicPeak (re[iy*nx+(ix+nx-1)%nx], re[kmax], re[iy*nx+(ix+1)%nx]);
+		double py = iy+parabolicPeak (re[((iy+ny-1)%ny)*nx+ix], re[kmax], re[((iy+1)%ny)*nx+ix]);
+
+		// WRAP TO SIGNED SHIFTS AND UNDO BINNING
+
+		if (px > nx/2) px -= nx;
+		if (py > ny/2) py -= ny;
+		return new double[] { px*bin, py*bin };
+		}
+
+	/**
+	 * Offset of the maximum of a parabola through three equidistant points from the middle point.
+	 */
+	protected static double parabolicPeak (double cm, double c0, double cp)
+		{
+		double denom = cm-2.0*c0+cp;
+		if (denom >= 0.0) return 0.0;
+		double d = 0.5*(cm-cp)/denom;
+		if (d < -0.5) return -0.5;
+		if (d > 0.5) return 0.5;
+		return d;
+		}
+
+	/**
+	 * Block-averages the image into the zero-padded array, subtracts a clipped mean background
+	 * and sets everything below the background to zero so that only the stars contribute.
+	 */
+	protected void binImage (ImageProcessor ip, double[] arr)
+		{
+		java.util.Arrays.fill (arr,0.0);
+		double norm = 1.0/(bin*bin);
+		for (int j=0; j < bh; j++)
+			{
+			int off = j*nx;
+			for (int jj=j*bin; jj < (j+1)*bin; jj++)
+				{
+				for (int i=0; i < bw; i++)
+					{
+					double s = 0.0;
+					for (int ii=i*bin; ii < (i+1)*bin; ii++)
+						s += ip.getf(ii,jj);
+					arr[off+i] += s;
+					}
+				}
+			for (int i=0; i < bw; i++)
+				arr[off+i] *= norm;
+			}
+
+		// MEAN AND SIGMA, THEN ONE 3-SIGMA CLIPPED MEAN AS THE BACKGROUND
+
+		double sum = 0.0;
+		double sum2 = 0.0;
+		int n = bw*bh;
+		for (int j=0; j < bh; j++)
+			{
+			for (int i=0; i < bw; i++)
+				{
+				double v = arr[j*nx+i];
+				sum += v;
+				sum2 += v*v;
+				}
+			}
+		double mean = sum/n;
+		double sig = Math.sqrt(Math.max(0.0,sum2/n-mean*mean));
+		double back = mean;
+		if (sig > 0.0)
+			{
+			double s = 0.0;
+			int m = 0;
+			for (int j=0; j < bh; j++)
+				{
+				for (int i=0; i < bw; i++)
+					{
+					double v = arr[j*nx+i];
+					if (Math.abs(v-mean) < 3.0*sig)
+						{
+						s += v;
+						m++;
+						}
+					}
+				}
+			if (m > 0) back = s/m;
+			}
+		for (int j=0; j < bh; j++)
+			{
+			for (int i=0; i < bw; i++)
+				{
+				int k = j*nx+i;
+				arr[k] = (arr[k] > back) ? arr[k]-back : 0.0;
+				}
+			}
+		}
+	}
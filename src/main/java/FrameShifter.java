@@ -0,0 +1,317 @@
+// FrameShifter.java
+
+import ij.*;
+import ij.process.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shifts images in place by a (sub-pixel) amount (dx,dy), i.e.
+ *	new(x,y) = (old(x+dx,y+dy) - back) * scale
+ * using the kernels of Resampler.
+ *
+ * Since the fractional shift is the same for the whole image, the interpolation is separable and
+ * needs only the getTaps() weights in x and y, which are computed once per image.  The rows are
+ * shifted in x into a ring of getTaps() float rows as the y pass reaches them, and then in y from the
+ * ring back into the pixels; the background, scaling, rounding, and clipping are only applied in this
+ * final write, so that integer images are quantised once and off-edge (NaN) samples of the first pass
+ * are still known in the second one.  Pixels whose interpolation kernel lies partly outside the image
+ * or on NaN pixels are interpolated from the remaining pixels, unless these have less than
+ * Resampler.MIN_COVERAGE of the weight, when they are set to the fill value (for integer images, NaN
+ * becomes 0).  RGB images are shifted channel by channel.
+ *
+ * The slices of a stack are shifted in parallel by shiftStack().
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes The result of the x pass is kept in a ring of float rows instead of being written back into
+ *	the pixels; the row buffers are allocated once per thread.
+ */
+public class FrameShifter
+	{
+	protected Resampler kernel;
+	protected double fillValue = Double.NaN;
+	protected int nThreads = 1;
+
+	/**
+	 * Prepares a shifter with one of the Resampler kernels (e.g. Resampler.NEAREST for whole pixel shifts).
+	 */
+	public FrameShifter (int kernel)
+		{
+		this.kernel = new Resampler (kernel);
+		}
+
+	public void setFillValue (double value)		{ fillValue = value; }
+	public void setThreads (int n)			{ nThreads = Math.max(1,n); }
+
+	/**
+	 * Shifts the image in place.
+	 */
+	public void shift (ImageProcessor ip, double dx, double dy, double back, double scale)
+		{
+		shift (ip.getPixels(),ip.getWidth(),ip.getHeight(),dx,dy,back,scale);
+		}
+
+	/**
+	 * Shifts the slices first,first+1,... of the stack in place in parallel.  Element k of the arrays
+	 * belongs to slice first+k; slices with a null shift are not changed.  The back and scale arrays
+	 * may be null (no background, unit scale).
+	 */
+	public void shiftStack (final ImageStack stack, final int first, final double[][] shifts,
+					final double[] back, final double[] scale)
+		{
+		final int n = shifts.length;
+		final int w = stack.getWidth();
+		final int h = stack.getHeight();
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		int nt = Math.min(nThreads,n);
+		if (nt < 1) return;
+
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					Buffers buf = new Buffers (kernel.getTaps(),w);
+					int k;
+					while ((k = next.getAndIncrement()) < n)
+						{
+						if (shifts[k] != null)
+							{
+							Object pixels;
+							synchronized (stack)
+								{
+								pixels = stack.getPixels (first+k);
+								}
+							shift (pixels,w,h,shifts[k][0],shifts[k][1],
+								back == null ? 0.0 : back[k], scale == null ? 1.0 : scale[k], buf);
+							}
+						IJ.showProgress (done.incrementAndGet(),n);
+						}
+					}
+				};
+			}
+		if (nt == 1)
+			threads[0].run();
+		else	{
+			for (int t=0; t < nt; t++)
+				threads[t].start();
+			try	{
+				for (int t=0; t < nt; t++)
+					threads[t].join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	/**
+	 * Shifts the w x h pixel array (byte, short, float, or RGB int) in place.
+	 */
+	protected void shift (Object pixels, int w, int h, double dx, double dy, double back, double scale)
+		{
+		shift (pixels,w,h,dx,dy,back,scale,new Buffers(kernel.getTaps(),w));
+		}
+
+	/**
+	 * Shifts the pixel array in place using the row buffers buf (for images of width w).  The rows
+	 * shifted in x are computed when the y pass first needs them and kept in a ring of getTaps() rows;
+	 * the y pass runs in the direction in which each source row is read before it is overwritten.
+	 */
+	protected void shift (Object pixels, int w, int h, double dx, double dy, double back, double scale,
+				Buffers buf)
+		{
+		int n = kernel.getTaps();
+		int ix0 = kernel.firstTap (dx);
+		int iy0 = kernel.firstTap (dy);
+		double[] wx = kernel.weights (dx);
+		double[] wy = kernel.weights (dy);
+		double[] row = buf.row;
+		double[] wsum = buf.wsum;
+		float[][] ring = buf.ring;		// X PASS OF SOURCE ROW r IN ring[r%n], NOT YET ROUNDED OR CLIPPED
+		int[] ringRow = buf.ringRow;
+		boolean down = (iy0+n-1 >= 0);
+
+		int channels = (pixels instanceof int[]) ? 3 : 1;
+		for (int c=0; c < channels; c++)
+			{
+			for (int t=0; t < n; t++)
+				ringRow[t] = -1;
+
+			// NEW ROW j IS MADE OF THE ROWS j+iy0,...,j+iy0+n-1 SHIFTED IN X (NaN WHERE THE ROW DOES NOT COVER THE KERNEL)
+
+			for (int jj=0; jj < h; jj++)
+				{
+				int j = down ? jj : h-1-jj;
+				for (int t=0; t < n; t++)
+					{
+					int r = j+iy0+t;
+					if (r >= 0 && r < h && ringRow[r%n] != r)
+						{
+						readRow (pixels,r*w,w,c,row);
+						float[] z = ring[r%n];
+						for (int i=0; i < w; i++)
+							z[i] = (float)interpolate (row,w,i+ix0,wx);
+						ringRow[r%n] = r;
+						}
+					}
+				for (int i=0; i < w; i++)
+					{
+					row[i] = 0.0;
+					wsum[i] = 0.0;
+					}
+				for (int t=0; t < n; t++)
+					{
+					int r = j+iy0+t;
+					if (r < 0 || r >= h) continue;
+					float[] z = ring[r%n];
+					double wt = wy[t];
+					for (int i=0; i < w; i++)
+						{
+						float v = z[i];
+						if (v != v) continue;
+						row[i] += wt*v;
+						wsum[i] += wt;
+						}
+					}
+				for (int i=0; i < w; i++)
+					row[i] = (wsum[i] >= Resampler.MIN_COVERAGE) ? row[i]/wsum[i] : Double.NaN;
+				writeRow (pixels,j*w,w,c,row,back,scale);
+				}
+			}
+		}
+
+	/**
+	 * Interpolates the row at the pixels i0,...,i0+taps-1 using only the valid pixels.
+	 */
+	protected double interpolate (double[] row, int w, int i0, double[] wt)
+		{
+		int n = wt.length;
+		if (i0 >= 0 && i0+n <= w)
+			{
+			double sum = 0.0;
+			for (int t=0; t < n; t++)
+				sum += wt[t]*row[i0+t];
+			if (sum == sum) return sum;
+			}
+		double sum = 0.0;
+		double wsum = 0.0;
+		for (int t=0; t < n; t++)
+			{
+			int i = i0+t;
+			if (i < 0 || i >= w) continue;
+			double z = row[i];
+			if (z != z) continue;
+			sum += wt[t]*z;
+			wsum += wt[t];
+			}
+		return (wsum >= Resampler.MIN_COVERAGE) ? sum/wsum : Double.NaN;
+		}
+
+	/**
+	 * Reads w pixels starting at off (channel c of RGB pixels) into the buffer.
+	 */
+	protected void readRow (Object pixels, int off, int w, int c, double[] buf)
+		{
+		if (pixels instanceof float[])
+			{
+			float[] p = (float[])pixels;
+			for (int i=0; i < w; i++)
+				buf[i] = p[off+i];
+			}
+		else if (pixels instanceof short[])
+			{
+			short[] p = (short[])pixels;
+			for (int i=0; i < w; i++)
+				buf[i] = p[off+i] & 0xffff;
+			}
+		else if (pixels instanceof byte[])
+			{
+			byte[] p = (byte[])pixels;
+			for (int i=0; i < w; i++)
+				buf[i] = p[off+i] & 0xff;
+			}
+		else	{
+			int[] p = (int[])pixels;
+			int bits = 16-8*c;
+			for (int i=0; i < w; i++)
+				buf[i] = (p[off+i] >> bits) & 0xff;
+			}
+		}
+
+	/**
+	 * Writes (buf-back)*scale into w pixels starting at off (channel c of RGB pixels), clipping integer
+	 * values.  NaN values are replaced by the fill value.
+	 */
+	protected void writeRow (Object pixels, int off, int w, int c, double[] buf, double back, double scale)
+		{
+		if (pixels instanceof float[])
+			{
+			float[] p = (float[])pixels;
+			float fill = (float)fillValue;
+			for (int i=0; i < w; i++)
+				{
+				double z = buf[i];
+				p[off+i] = (z == z) ? (float)((z-back)*scale) : fill;
+				}
+			return;
+			}
+		double fill = (fillValue == fillValue) ? fillValue : 0.0;
+		if (pixels instanceof short[])
+			{
+			short[] p = (short[])pixels;
+			for (int i=0; i < w; i++)
+				p[off+i] = (short)clip (buf[i],back,scale,fill,65535);
+			}
+		else if (pixels instanceof byte[])
+			{
+			byte[] p = (byte[])pixels;
+			for (int i=0; i < w; i++)
+				p[off+i] = (byte)clip (buf[i],back,scale,fill,255);
+			}
+		else	{
+			int[] p = (int[])pixels;
+			int bits = 16-8*c;
+			int mask = ~(0xff << bits);
+			for (int i=0; i < w; i++)
+				p[off+i] = (p[off+i] & mask) | (clip (buf[i],back,scale,fill,255) << bits);
+			}
+		}
+
+	/**
+	 * Rounds (z-back)*scale (or the fill value if z is NaN) to an integer within 0,...,max.
+	 */
+	protected static int clip (double z, double back, double scale, double fill, int max)
+		{
+		double v = (z == z) ? (z-back)*scale : fill;
+		int k = (int)Math.floor(v+0.5);
+		return Math.max(0,Math.min(max,k));
+		}
+
+	/**
+	 * Row buffers of one thread, reused for all images of the same width.
+	 */
+	protected static class Buffers
+		{
+		double[] row;
+		double[] wsum;
+		float[][] ring;
+		int[] ringRow;
+
+		Buffers (int taps, int w)
+			{
+			row = new double[w];
+			wsum = new double[w];
+			ring = new float[taps][w];
+			ringRow = new int[taps];
+			}
+		}
+	}
@@ -0,0 +1,630 @@
+// ImageExpression.java
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Arithmetic expressions over several images and numbers, e.g. "(a-b)/c*EXPTIME", which are parsed
+ * and compiled once and then evaluated for all pixels.
+ *
+ * The syntax is the usual one: numbers, names, the operators + - * / ^ (power), parentheses, and the
+ * functions sqrt, exp, log (natural), log10, abs, sin, cos, tan, asin, acos, atan, floor, ceil, and
+ * round of one argument and min, max, atan2, and pow of two.  As in Fortran, "^" is right-associative
+ * and binds more tightly than a sign, i.e. -a^2 is -(a^2).  A name is either one of the image names
+ * given to the constructor or is resolved to a number by a Resolver (e.g. the FITS keywords of the
+ * images).  Names consist of letters, digits, "_" and "." (e.g. "b.EXPTIME").
+ *
+ * Compiling turns the expression into a tree of operations; the parts which do not depend on the images
+ * are computed at once.  The tree is evaluated for a band of BAND_ROWS rows at a time, each operation
+ * working on the whole band (operations with a number do not need a buffer), so that the per-pixel work
+ * is a few tight loops instead of the interpretation of the expression.  The bands are evaluated by
+ * several threads.
+ *
+ * Each image can be shifted by whole pixels; pixels outside of an image are NaN.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class ImageExpression
+	{
+	public static int BAND_ROWS = 16;
+
+	/**
+	 * Returns the value of a name which is not an image, or NaN if the name is unknown.
+	 */
+	public interface Resolver
+		{
+		public double value (String name);
+		}
+
+	protected String text;
+	protected String[] names;
+	protected Resolver resolver;
+	protected Node root;
+	protected int nSlots = 0;
+	protected boolean[] used;
+
+	protected float[][] pixels;
+	protected int[] widths,heights,xShifts,yShifts;
+	protected int nThreads = 1;
+
+	// TOKENIZER STATE
+
+	protected int pos;
+	protected String token;
+	protected int type;
+	protected double number;
+
+	protected static int END = 0;
+	protected static int NUMBER = 1;
+	protected static int NAME = 2;
+	protected static int SYMBOL = 3;
+
+	protected static String[] FUNCTIONS = new String[] {
+		"sqrt","exp","log","log10","abs","sin","cos","tan","asin","acos","atan","floor","ceil","round",
+		"min","max","atan2","pow" };
+	protected static int FIRST_BINARY = 14;		// FUNCTIONS WITH TWO ARGUMENTS FROM HERE ON
+
+	/**
+	 * Parses and compiles the expression.  Throws an IllegalArgumentException describing the first error.
+	 */
+	public ImageExpression (String expression, String[] imageNames, Resolver resolver)
+		{
+		text = expression;
+		names = imageNames;
+		this.resolver = resolver;
+		int n = imageNames.length;
+		used = new boolean[n];
+		pixels = new float[n][];
+		widths = new int[n];
+		heights = new int[n];
+		xShifts = new int[n];
+		yShifts = new int[n];
+
+		pos = 0;
+		next ();
+		root = parseSum ();
+		if (type != END)
+			throw new IllegalArgumentException ("Unexpected \""+token+"\" at position "+pos+" of \""+text+"\"");
+		root.assignSlots (this);
+		}
+
+	public void setThreads (int n)		{ nThreads = Math.max(1,n); }
+
+	/**
+	 * Returns true if the image k appears in the expression.
+	 */
+	public boolean usesImage (int k)
+		{
+		return used[k];
+		}
+
+	/**
+	 * Returns true if the expression does not depend on any image.
+	 */
+	public boolean isConstant ()
+		{
+		return root instanceof Constant;
+		}
+
+	/**
+	 * Sets the pixels of image k, shifted by (dx,dy) whole pixels, i.e. the value used at (i,j)
+	 * is that of pixel (i-dx,j-dy).
+	 */
+	public void setImage (int k, float[] pix, int w, int h, int dx, int dy)
+		{
+		pixels[k] = pix;
+		widths[k] = w;
+		heights[k] = h;
+		xShifts[k] = dx;
+		yShifts[k] = dy;
+		}
+
+	/**
+	 * Evaluates the expression for all pixels of a width x height image.
+	 */
+	public float[] evaluate (final int width, final int height)
+		{
+		for (int k=0; k < names.length; k++)
+			{
+			if (used[k] && pixels[k] == null)
+				throw new IllegalArgumentException ("No pixels for image "+names[k]);
+			}
+		final float[] result = new float[width*height];
+		final int nBands = (height+BAND_ROWS-1)/BAND_ROWS;
+		final AtomicInteger next = new AtomicInteger(0);
+		int nt = Math.min(nThreads,nBands);
+
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					Band band = new Band (width,nSlots);
+					int b;
+					while ((b = next.getAndIncrement()) < nBands)
+						{
+						band.j0 = b*BAND_ROWS;
+						band.rows = Math.min(height,band.j0+BAND_ROWS)-band.j0;
+						band.n = band.rows*width;
+						root.eval (band,band.out);
+						int off = band.j0*width;
+						for (int k=0; k < band.n; k++)
+							result[off+k] = (float)band.out[k];
+						}
+					}
+				};
+			}
+		if (nt == 1)
+			threads[0].run();
+		else	{
+			for (int t=0; t < nt; t++)
+				threads[t].start();
+			try	{
+				for (int t=0; t < nt; t++)
+					threads[t].join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		return result;
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// PARSER
+
+	/**
+	 * Reads the next token.
+	 */
+	protected void next ()
+		{
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		if (pos >= text.length())
+			{
+			type = END;
+			token = "";
+			return;
+			}
+		char c = text.charAt(pos);
+		int start = pos;
+		if (Character.isDigit(c) || (c == '.' && pos+1 < text.length() && Character.isDigit(text.charAt(pos+1))))
+			{
+			while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'))
+				pos++;
+			if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E'))
+				{
+				int p = pos+1;
+				if (p < text.length() && (text.charAt(p) == '+' || text.charAt(p) == '-')) p++;
+				if (p < text.length() && Character.isDigit(text.charAt(p)))
+					{
+					pos = p;
+					while (pos < text.length() && Character.isDigit(text.charAt(pos)))
+						pos++;
+					}
+				}
+			token = text.substring(start,pos);
+			type = NUMBER;
+			try	{
+				number = Double.parseDouble (token);
+				}
+			catch (NumberFormatException e)
+				{
+				throw new IllegalArgumentException ("Invalid number \""+token+"\" in \""+text+"\"");
+				}
+			}
+		else if (Character.isLetter(c) || c == '_')
+			{
+			while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos))
+					|| text.charAt(pos) == '_' || text.charAt(pos) == '.'))
+				pos++;
+			token = text.substring(start,pos);
+			type = NAME;
+			}
+		else	{
+			pos++;
+			token = ""+c;
+			type = SYMBOL;
+			}
+		}
+
+	protected boolean isSymbol (String s)
+		{
+		return type == SYMBOL && token.equals(s);
+		}
+
+	protected void expect (String s)
+		{
+		if (!isSymbol(s))
+			throw new IllegalArgumentException ("Expected \""+s+"\" at position "+pos+" of \""+text+"\"");
+		next ();
+		}
+
+	/** sum := product (('+'|'-') product)* */
+	protected Node parseSum ()
+		{
+		Node left = parseProduct ();
+		while (isSymbol("+") || isSymbol("-"))
+			{
+			char op = token.charAt(0);
+			next ();
+			left = binary (op,left,parseProduct());
+			}
+		return left;
+		}
+
+	/** product := unary (('*'|'/') unary)* */
+	protected Node parseProduct ()
+		{
+		Node left = parseUnary ();
+		while (isSymbol("*") || isSymbol("/"))
+			{
+			char op = token.charAt(0);
+			next ();
+			left = binary (op,left,parseUnary());
+			}
+		return left;
+		}
+
+	/** unary := ('-'|'+') unary | power, so that -a^2 is -(a^2) */
+	protected Node parseUnary ()
+		{
+		if (isSymbol("-"))
+			{
+			next ();
+			Node arg = parseUnary ();
+			if (arg instanceof Constant)
+				return new Constant (-((Constant)arg).value);
+			return new Negate (arg);
+			}
+		if (isSymbol("+"))
+			{
+			next ();
+			return parseUnary ();
+			}
+		return parsePower ();
+		}
+
+	/** power := primary ('^' unary)?, i.e. right-associative and allowing a^-2 */
+	protected Node parsePower ()
+		{
+		Node left = parsePrimary ();
+		if (isSymbol("^"))
+			{
+			next ();
+			return binary ('^',left,parseUnary());
+			}
+		return left;
+		}
+
+	/** primary := number | name | function '(' sum (',' sum)? ')' | '(' sum ')' */
+	protected Node parsePrimary ()
+		{
+		if (type == NUMBER)
+			{
+			double v = number;
+			next ();
+			return new Constant (v);
+			}
+		if (isSymbol("("))
+			{
+			next ();
+			Node n = parseSum ();
+			expect (")");
+			return n;
+			}
+		if (type != NAME)
+			throw new IllegalArgumentException ("Unexpected \""+token+"\" at position "+pos+" of \""+text+"\"");
+
+		String name = token;
+		next ();
+
+		// FUNCTION?
+
+		if (isSymbol("("))
+			{
+			int f = Arrays.asList(FUNCTIONS).indexOf(name);
+			if (f < 0)
+				throw new IllegalArgumentException ("Unknown function \""+name+"\" in \""+text+"\"");
+			next ();
+			Node a = parseSum ();
+			Node b = null;
+			if (f >= FIRST_BINARY)
+				{
+				expect (",");
+				b = parseSum ();
+				}
+			expect (")");
+			if (a instanceof Constant && (b == null || b instanceof Constant))
+				return new Constant (function (f,((Constant)a).value, b == null ? 0.0 : ((Constant)b).value));
+			return new Function (f,a,b);
+			}
+
+		// IMAGE?
+
+		for (int k=0; k < names.length; k++)
+			{
+			if (names[k].equals(name))
+				{
+				used[k] = true;
+				return new Image (k);
+				}
+			}
+
+		// NUMBER FROM THE RESOLVER (E.G. FITS KEYWORD) OR CONSTANT
+
+		double v = (resolver != null) ? resolver.value(name) : Double.NaN;
+		if (Double.isNaN(v) && name.equals("pi"))
+			v = Math.PI;
+		if (Double.isNaN(v))
+			throw new IllegalArgumentException ("Unknown image or keyword \""+name+"\" in \""+text+"\"");
+		return new Constant (v);
+		}
+
+	/**
+	 * Creates a binary operation, computing it at once if both sides are numbers.
+	 */
+	protected Node binary (char op, Node a, Node b)
+		{
+		if (a instanceof Constant && b instanceof Constant)
+			return new Constant (operate (op,((Constant)a).value,((Constant)b).value));
+		return new Binary (op,a,b);
+		}
+
+	protected static double operate (char op, double x, double y)
+		{
+		switch (op)
+			{
+			case '+':	return x+y;
+			case '-':	return x-y;
+			case '*':	return x*y;
+			case '/':	return x/y;
+			default:	return Math.pow(x,y);
+			}
+		}
+
+	protected static double function (int f, double x, double y)
+		{
+		switch (f)
+			{
+			case 0:		return Math.sqrt(x);
+			case 1:		return Math.exp(x);
+			case 2:		return Math.log(x);
+			case 3:		return Math.log10(x);
+			case 4:		return Math.abs(x);
+			case 5:		return Math.sin(x);
+			case 6:		return Math.cos(x);
+			case 7:		return Math.tan(x);
+			case 8:		return Math.asin(x);
+			case 9:		return Math.acos(x);
+			case 10:	return Math.atan(x);
+			case 11:	return Math.floor(x);
+			case 12:	return Math.ceil(x);
+			case 13:	return Math.rint(x);
+			case 14:	return Math.min(x,y);
+			case 15:	return Math.max(x,y);
+			case 16:	return Math.atan2(x,y);
+			default:	return Math.pow(x,y);
+			}
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// COMPILED OPERATIONS
+
+	/**
+	 * The rows evaluated by one thread and its buffers.
+	 */
+	protected static class Band
+		{
+		int width,j0,rows,n;
+		double[] out;
+		double[][] scratch;
+
+		Band (int width, int nSlots)
+			{
+			this.width = width;
+			out = new double[BAND_ROWS*width];
+			scratch = new double[nSlots][BAND_ROWS*width];
+			}
+		}
+
+	protected static abstract class Node
+		{
+		/** Writes the values of the band into out. */
+		abstract void eval (Band band, double[] out);
+
+		/** Assigns the scratch buffers needed. */
+		void assignSlots (ImageExpression ex)	{ }
+		}
+
+	protected static class Constant extends Node
+		{
+		double value;
+
+		Constant (double v)	{ value = v; }
+
+		void eval (Band band, double[] out)
+			{
+			Arrays.fill (out,0,band.n,value);
+			}
+		}
+
+	protected class Image extends Node
+		{
+		int k;
+
+		Image (int k)	{ this.k = k; }
+
+		void eval (Band band, double[] out)
+			{
+			float[] pix = pixels[k];
+			int w = widths[k];
+			int h = heights[k];
+			int dx = xShifts[k];
+			int dy = yShifts[k];
+			int width = band.width;
+			for (int r=0, o=0; r < band.rows; r++, o += width)
+				{
+				int jj = band.j0+r-dy;
+				if (jj < 0 || jj >= h)
+					{
+					Arrays.fill (out,o,o+width,Double.NaN);
+					continue;
+					}
+				int i0 = Math.max(0,dx);			// FIRST i WITH i-dx >= 0
+				int i1 = Math.min(width,w+dx);			// FIRST i WITH i-dx >= w
+				if (i0 > 0) Arrays.fill (out,o,o+Math.min(i0,width),Double.NaN);
+				int src = jj*w-dx;
+				for (int i=i0; i < i1; i++)
+					out[o+i] = pix[src+i];
+				if (i1 < width) Arrays.fill (out,o+Math.max(i1,0),o+width,Double.NaN);
+				}
+			}
+		}
+
+	protected static class Negate extends Node
+		{
+		Node a;
+
+		Negate (Node a)		{ this.a = a; }
+
+		void eval (Band band, double[] out)
+			{
+			a.eval (band,out);
+			for (int k=0; k < band.n; k++)
+				out[k] = -out[k];
+			}
+
+		void assignSlots (ImageExpression ex)	{ a.assignSlots (ex); }
+		}
+
+	protected static class Binary extends Node
+		{
+		char op;
+		Node a,b;
+		int slot = -1;
+
+		Binary (char op, Node a, Node b)
+			{
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			}
+
+		void assignSlots (ImageExpression ex)
+			{
+			a.assignSlots (ex);
+			b.assignSlots (ex);
+			if (!(a instanceof Constant) && !(b instanceof Constant))
+				slot = ex.nSlots++;
+			}
+
+		void eval (Band band, double[] out)
+			{
+			int n = band.n;
+
+			// IMAGE OP NUMBER
+
+			if (b instanceof Constant)
+				{
+				a.eval (band,out);
+				double c = ((Constant)b).value;
+				switch (op)
+					{
+					case '+':	for (int k=0; k < n; k++) out[k] += c; break;
+					case '-':	for (int k=0; k < n; k++) out[k] -= c; break;
+					case '*':	for (int k=0; k < n; k++) out[k] *= c; break;
+					case '/':	double r = 1.0/c;
+							for (int k=0; k < n; k++) out[k] *= r; break;
+					default:	if (c == 2.0)
+								for (int k=0; k < n; k++) out[k] *= out[k];
+							else
+								for (int k=0; k < n; k++) out[k] = Math.pow(out[k],c);
+					}
+				return;
+				}
+
+			// NUMBER OP IMAGE
+
+			if (a instanceof Constant)
+				{
+				b.eval (band,out);
+				double c = ((Constant)a).value;
+				switch (op)
+					{
+					case '+':	for (int k=0; k < n; k++) out[k] = c+out[k]; break;
+					case '-':	for (int k=0; k < n; k++) out[k] = c-out[k]; break;
+					case '*':	for (int k=0; k < n; k++) out[k] = c*out[k]; break;
+					case '/':	for (int k=0; k < n; k++) out[k] = c/out[k]; break;
+					default:	for (int k=0; k < n; k++) out[k] = Math.pow(c,out[k]);
+					}
+				return;
+				}
+
+			// IMAGE OP IMAGE
+
+			a.eval (band,out);
+			double[] s = band.scratch[slot];
+			b.eval (band,s);
+			switch (op)
+				{
+				case '+':	for (int k=0; k < n; k++) out[k] += s[k]; break;
+				case '-':	for (int k=0; k < n; k++) out[k] -= s[k]; break;
+				case '*':	for (int k=0; k < n; k++) out[k] *= s[k]; break;
+				case '/':	for (int k=0; k < n; k++) out[k] /= s[k]; break;
+				default:	for (int k=0; k < n; k++) out[k] = Math.pow(out[k],s[k]);
+				}
+			}
+		}
+
+	protected static class Function extends Node
+		{
+		int f;
+		Node a,b;
+		int slot = -1;
+
+		Function (int f, Node a, Node b)
+			{
+			this.f = f;
+			this.a = a;
+			this.b = b;
+			}
+
+		void assignSlots (ImageExpression ex)
+			{
+			a.assignSlots (ex);
+			if (b != null)
+				{
+				b.assignSlots (ex);
+				slot = ex.nSlots++;
+				}
+			}
+
+		void eval (Band band, double[] out)
+			{
+			int n = band.n;
+			a.eval (band,out);
+			if (b == null)
+				{
+				switch (f)
+					{
+					case 0:		for (int k=0; k < n; k++) out[k] = Math.sqrt(out[k]); break;
+					case 1:		for (int k=0; k < n; k++) out[k] = Math.exp(out[k]); break;
+					case 2:		for (int k=0; k < n; k++) out[k] = Math.log(out[k]); break;
+					case 3:		for (int k=0; k < n; k++) out[k] = Math.log10(out[k]); break;
+					case 4:		for (int k=0; k < n; k++) out[k] = Math.abs(out[k]); break;
+					default:	for (int k=0; k < n; k++) out[k] = function(f,out[k],0.0);
+					}
+				return;
+				}
+			double[] s = band.scratch[slot];
+			b.eval (band,s);
+			for (int k=0; k < n; k++)
+				out[k] = function (f,out[k],s[k]);
+			}
+		}
+	}
@@ -0,0 +1,209 @@
+// ImagePyramid.java
+
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+ * A multi-resolution pyramid of a grayscale image for interactive display: level 0 is the image itself,
+ * and each further level is the previous one downsampled by 2 (mean of 2x2 pixels, ignoring NaN) down to
+ * MIN_SIZE pixels.  Interactive operations can work on the level which matches the zoom of the window,
+ * where they cost 4^level times less and look the same, and recompute at full resolution only when the
+ * result is accepted.
+ *
+ * The pyramid is attached to the ImagePlus as the property "ImagePyramid" by attach(), which returns the
+ * existing pyramid if the pixels have not changed.  The levels are built by a background thread, so
+ * while a level is not yet available getLevel() returns the coarsest finer level which is.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class ImagePyramid
+	{
+	public static String PROPERTY = "ImagePyramid";
+	public static int MIN_SIZE = 64;
+
+	protected Object pixels;		// PIXELS OF THE IMAGE WHEN THE PYRAMID WAS BUILT
+	protected ImageProcessor[] levels;
+	protected int nBuilt = 1;
+	protected volatile Thread builder = null;
+
+	/**
+	 * Creates the pyramid of the image processor and starts building the levels in the background.
+	 */
+	public ImagePyramid (ImageProcessor ip)
+		{
+		pixels = ip.getPixels();
+		int n = 1;
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		while (w/2 >= MIN_SIZE && h/2 >= MIN_SIZE)
+			{
+			w /= 2;
+			h /= 2;
+			n++;
+			}
+		levels = new ImageProcessor[n];
+		levels[0] = ip;
+		if (n > 1)
+			{
+			builder = new Thread ()
+				{
+				public void run ()
+					{
+					build ();
+					}
+				};
+			builder.setPriority (Thread.MIN_PRIORITY);
+			builder.start();
+			}
+		}
+
+	/**
+	 * Returns the pyramid of the image, creating and attaching it if needed.  Returns null for RGB images
+	 * and stacks.
+	 */
+	public static ImagePyramid attach (ImagePlus imp)
+		{
+		if (imp == null || imp.getBitDepth() == 24 || imp.getStackSize() > 1)
+			return null;
+		ImageProcessor ip = imp.getProcessor();
+		Object obj = imp.getProperty (PROPERTY);
+		if (obj instanceof ImagePyramid)
+			{
+			ImagePyramid pyr = (ImagePyramid)obj;
+			if (pyr.pixels == ip.getPixels() && pyr.levels[0].getWidth() == ip.getWidth()
+						&& pyr.levels[0].getHeight() == ip.getHeight())
+				return pyr;
+			}
+		ImagePyramid pyr = new ImagePyramid (ip);
+		imp.setProperty (PROPERTY,pyr);
+		return pyr;
+		}
+
+	/**
+	 * Forgets the pyramid of the image, e.g. after its pixels have been changed in place.
+	 */
+	public static void detach (ImagePlus imp)
+		{
+		if (imp != null && imp.getProperty(PROPERTY) != null)
+			imp.setProperty (PROPERTY,null);
+		}
+
+	/**
+	 * Returns the level matching the magnification of the image's window: the coarsest level whose
+	 * pixels are not larger than the displayed pixels.
+	 */
+	public static int levelForZoom (ImagePlus imp)
+		{
+		ImageCanvas canvas = (imp == null) ? null : imp.getCanvas();
+		if (canvas == null) return 0;
+		return levelForZoom (canvas.getMagnification());
+		}
+
+	public static int levelForZoom (double magnification)
+		{
+		int level = 0;
+		while (magnification > 0.0 && magnification*(1 << (level+1)) <= 1.0)
+			level++;
+		return level;
+		}
+
+	public int getNumberOfLevels ()		{ return levels.length; }
+
+	/**
+	 * Returns the requested level or, while it is still being built, the coarsest finer level available.
+	 */
+	public ImageProcessor getLevel (int level)
+		{
+		synchronized (this)
+			{
+			level = Math.max(0,Math.min(level,nBuilt-1));
+			return levels[level];
+			}
+		}
+
+	/**
+	 * Returns the index of the level returned by getLevel().
+	 */
+	public synchronized int availableLevel (int level)
+		{
+		return Math.max(0,Math.min(level,nBuilt-1));
+		}
+
+	/**
+	 * Waits until all levels have been built.
+	 */
+	public void waitForLevels ()
+		{
+		Thread t = builder;
+		if (t == null) return;
+		try	{
+			t.join();
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			}
+		}
+
+	/**
+	 * Builds the levels 1,2,...
+	 */
+	protected void build ()
+		{
+		float[] pix = (float[])levels[0].convertToFloat().getPixels();
+		int w = levels[0].getWidth();
+		int h = levels[0].getHeight();
+		for (int l=1; l < levels.length; l++)
+			{
+			int w2 = w/2;
+			int h2 = h/2;
+			float[] half = downsample (pix,w,w2,h2);
+			FloatProcessor fp = new FloatProcessor (w2,h2,half,null);
+			fp.setMinAndMax (levels[0].getMin(),levels[0].getMax());
+			synchronized (this)
+				{
+				levels[l] = fp;
+				nBuilt = l+1;
+				}
+			pix = half;
+			w = w2;
+			h = h2;
+			}
+		builder = null;
+		}
+
+	/**
+	 * Returns the w2 x h2 image of the means of 2x2 pixels of the image of width w, ignoring NaN pixels.
+	 */
+	protected static float[] downsample (float[] pix, int w, int w2, int h2)
+		{
+		float[] half = new float[w2*h2];
+		for (int j=0; j < h2; j++)
+			{
+			int k1 = 2*j*w;
+			int k2 = k1+w;
+			for (int i=0; i < w2; i++, k1 += 2, k2 += 2)
+				{
+				float a = pix[k1];
+				float b = pix[k1+1];
+				float c = pix[k2];
+				float d = pix[k2+1];
+				float s = a+b+c+d;
+				if (s == s)
+					half[i+j*w2] = 0.25f*s;
+				else	{
+					s = 0.0f;
+					int n = 0;
+					if (a == a) { s += a; n++; }
+					if (b == b) { s += b; n++; }
+					if (c == c) { s += c; n++; }
+					if (d == d) { s += d; n++; }
+					half[i+j*w2] = (n > 0) ? s/n : Float.NaN;
+					}
+				}
+			}
+		return half;
+		}
+	}
@@ -11,9 +11,17 @@ import java.awt.event.*;
 import java.io.*;
 import java.util.*;
 
+import astroj.*;
+
 /**
  * Works like the standard ImageJ Image Calculator, but the images can be of different sizes,
  * and the secondary image can be multiplied by a factor and/or shifted in pixel position.
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Optional arithmetic expression over all open images (named a, b, c, ...), numbers, and FITS
+ *	keywords (e.g. "(a-b)/c*EXPTIME" or "a/b.EXPTIME"), compiled once by ImageExpression and evaluated
+ *	by several threads.  The simple image #1/image #2 operation is evaluated the same way.
  */
 public class Image_Calculator_Plus implements PlugIn
 	{
@@ -24,6 +32,9 @@ public class Image_Calculator_Plus implements PlugIn
 	String name;
 	double scale = 1.0;
 	double xShift,yShift;
+	String expression = "";
+	ImagePlus[] images;
+	String[] names;
 
 	/**
 	 * Gets a list of images, sets up the dialog, instantiates the images, lets the operations
@@ -41,10 +52,18 @@ public class Image_Calculator_Plus implements PlugIn
 			return;
 			}
 		String[] imageList = new String[n];
+		images = new ImagePlus[n];
+		names = new String[n];
+		String legend = "";
 		for (int i=0; i < n; i++)
 			{
-			ImagePlus im = WindowManager.getImage(idList[i]);
-			imageList[i] = im.getShortTitle();
+			images[i] = WindowManager.getImage(idList[i]);
+			imageList[i] = images[i].getShortTitle();
+			names[i] = imageName (i);
+			if (i < 8)
+				legend += (i > 0 ? ", " : "")+names[i]+"="+imageList[i];
+			else if (i == 8)
+				legend += ", ...";
 			}
 
 		// RUN DIALOGUE
@@ -63,6 +82,9 @@ public class Image_Calculator_Plus implements PlugIn
 		gd.addStringField("Y-shift of image #2 [pixels]","0.0",20);
 		gd.addMessage ("You can use simple arithmetic expressions for the scaling and shifts");
 		gd.addMessage ("(e.g. dx=x1-x2, scale=sum1/sum2) but avoid the use of unnecessary +/- signs!");
+		gd.addStringField("or expression (optional)","",30);
+		gd.addMessage ("Images: "+legend);
+		gd.addMessage ("e.g. (a-b)/c*EXPTIME or a/b.EXPTIME (FITS keywords of image a or b)");
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
 
@@ -83,7 +105,13 @@ public class Image_Calculator_Plus implements PlugIn
 			IJ.error("Could not parse strings with arithmetic.");
 			return;
 			}
- 
+		expression = gd.getNextString().trim();	// NOT SAVED, OTHERWISE IT WOULD REPLACE ALL LATER OPERATIONS
+
+		if (!expression.equals(""))
+			{
+			evaluate (title);
+			return;
+			}
 
 		img1 = WindowManager.getImage(idList[choice1]);
 		img2 = WindowManager.getImage(idList[choice2]);
@@ -114,49 +142,170 @@ public class Image_Calculator_Plus implements PlugIn
 		}
 
 	/**
-	 * Performs the actual image arithmetic, including the scaling of the secondary image and the pixel shifts.
+	 * Performs the actual image arithmetic, including the scaling of the secondary image and the pixel shifts
+	 * (rounded to whole pixels).  Pixels where image #2 is not defined (outside of it or NaN) are left at zero;
+	 * all other results, including NaNs, are kept.
 	 */
 	protected void arithmetic ()
 		{
+		String[] ab = new String[] {"a","b"};
+		ImageExpression ex;
+		if (func.equals("/"))
+			ex = new ImageExpression ("a/(s*b)",ab,scaleResolver());
+		else
+			ex = new ImageExpression ("a"+func+"s*b",ab,scaleResolver());
+		int dx = (int)-Math.floor(0.5-xShift);
+		int dy = (int)-Math.floor(0.5-yShift);
+		setImage (ex,0,img1,0,0);
+		float[] pix2 = setImage (ex,1,img2,dx,dy);
 		int w1 = img1.getWidth();
 		int h1 = img1.getHeight();
 		int w2 = img2.getWidth();
 		int h2 = img2.getHeight();
+		float[] result = calculate (ex,w1,h1);
+		for (int j=0; j < h1; j++)
+			{
+			int j2 = j-dy;
+			for (int i=0; i < w1; i++)
+				{
+				int i2 = i-dx;
+				if (i2 < 0 || i2 >= w2 || j2 < 0 || j2 >= h2 || Float.isNaN(pix2[i2+j2*w2]))
+					result[i+j*w1] = 0.0f;
+				}
+			}
+		imp3.setPixels (result);
+		}
 
-		double x1,x2,y1,y2,val1,val2;
-		double val3=0.0;
-		int oops=0;
-		int i2,j2;
-		for (int j1=0; j1 < h1; j1++)
+	/**
+	 * Evaluates the expression over the open images and displays the result, which has the size of the
+	 * first image used.
+	 */
+	protected void evaluate (String title)
+		{
+		ImageExpression ex;
+		try	{
+			ex = new ImageExpression (expression,names,keywordResolver());
+			}
+		catch (IllegalArgumentException e)
 			{
-			y1 = (double)j1;
-			y2 = y1-yShift;
-			for (int i1=0; i1 < w1; i1++)
+			IJ.error ("Image Calculator Plus", e.getMessage());
+			return;
+			}
+		ImagePlus first = null;
+		for (int k=0; k < images.length; k++)
+			{
+			if (!ex.usesImage(k)) continue;
+			if (images[k].getImageStackSize() != 1)
 				{
-				x1 = (double)i1;
-				x2 = x1-xShift;
-				i2 = (int)(x2+0.5);
-				j2 = (int)(y2+0.5);
-				val1 = imp1.getPixelValue(i1,j1);
-				val2 = imp2.getPixelValue(i2,j2);	// Interpolated(x2,y2);
-				if (! Double.isNaN(val2))
+				IJ.error("Sorry - this only works for non-stacks!");
+				return;
+				}
+			if (first == null) first = images[k];
+			setImage (ex,k,images[k],0,0);
+			}
+		if (first == null)
+			first = images[0];
+
+		int w = first.getWidth();
+		int h = first.getHeight();
+		img3 = first.createImagePlus ();
+		img3.setProcessor (title, new FloatProcessor(w,h,calculate(ex,w,h),null));
+		img3.show();
+		}
+
+	/**
+	 * Evaluates the compiled expression with all available threads.
+	 */
+	protected float[] calculate (ImageExpression ex, int w, int h)
+		{
+		IJ.showStatus ("Calculating "+ex.text+" ...");
+		ex.setThreads (Prefs.getThreads());
+		float[] result = ex.evaluate (w,h);
+		IJ.showStatus ("");
+		return result;
+		}
+
+	/**
+	 * Gives the expression the float pixels of an image and returns them.
+	 */
+	protected float[] setImage (ImageExpression ex, int k, ImagePlus im, int dx, int dy)
+		{
+		ImageProcessor ip = im.getProcessor();
+		float[] pix;
+		if (ip instanceof FloatProcessor)
+			pix = (float[])ip.getPixels();
+		else
+			pix = (float[])ip.convertToFloat().getPixels();
+		ex.setImage (k,pix,im.getWidth(),im.getHeight(),dx,dy);
+		return pix;
+		}
+
+	/**
+	 * Name of the k-th image in expressions: a,...,z,aa,ab,...
+	 */
+	protected static String imageName (int k)
+		{
+		String s = ""+(char)('a'+k%26);
+		if (k >= 26)
+			s = imageName(k/26-1)+s;
+		return s;
+		}
+
+	/**
+	 * The scale factor of image #2 as the name "s".
+	 */
+	protected ImageExpression.Resolver scaleResolver ()
+		{
+		return new ImageExpression.Resolver ()
+			{
+			public double value (String key)
+				{
+				return key.equals("s") ? scale : Double.NaN;
+				}
+			};
+		}
+
+	/**
+	 * Resolves "KEY" to the numerical FITS keyword of the first image containing it and "b.KEY" to
+	 * that of image b.
+	 */
+	protected ImageExpression.Resolver keywordResolver ()
+		{
+		return new ImageExpression.Resolver ()
+			{
+			public double value (String key)
+				{
+				int dot = key.indexOf('.');
+				if (dot > 0)
+					{
+					int k = Arrays.asList(names).indexOf(key.substring(0,dot));
+					return (k < 0) ? Double.NaN : keyword (images[k],key.substring(dot+1));
+					}
+				for (int k=0; k < images.length; k++)
 					{
-					if (func.equals("+"))
-						val3 = val1+scale*val2;
-					else if (func.equals("-"))
-						val3 = val1-scale*val2;
-					else if (func.equals("*"))
-						val3 = val1*scale*val2;
-					else if (func.equals("/"))
-						val3 = val1/(scale*val2);
-					if (oops < 100 && (Math.abs(val3) < 1.e-12 || Math.abs(val3) > 1.e12))
-						{
-						oops++;
-						IJ.log("i1,j1="+i1+","+j1+" too big/small! vals="+val1+","+val2+","+val3);
-						}
-					imp3.putPixelValue(i1,j1,val3);
+					double v = keyword (images[k],key);
+					if (!Double.isNaN(v)) return v;
 					}
+				return Double.NaN;
 				}
+			};
+		}
+
+	/**
+	 * Returns the numerical value of a FITS keyword of the image or NaN.
+	 */
+	protected static double keyword (ImagePlus im, String key)
+		{
+		String[] hdr = FitsJ.getHeader (im);
+		if (hdr == null) return Double.NaN;
+		int icard = FitsJ.findCardWithKey (key.toUpperCase(),hdr);
+		if (icard < 0) return Double.NaN;
+		try	{
+			return Double.parseDouble (FitsJ.getCardValue(hdr[icard]).trim());
+			}
+		catch (Exception e)
+			{
+			return Double.NaN;
 			}
 		}
 
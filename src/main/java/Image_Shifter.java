@@ -26,6 +26,10 @@ import astroj.*;
  * @name F. Hessman
  * @date 2008-Aug-18
  * @changes Optional new image and support for stacks.
+ *
+ * @version 1.3
+ * @date 2026-Oct-19
+ * @changes The shift can be measured relative to another image by phase correlation (PhaseCorrelator).
  */
 public class Image_Shifter implements PlugInFilter
 	{
@@ -44,6 +48,8 @@ public class Image_Shifter implements PlugInFilter
 	boolean createNew = false;
 	int nslices = 0;
 
+	public static String ENTERED_SHIFTS = "(use the shifts entered above)";
+
 	/** Standard ImageJ setup routine. */
 	public int setup (String arg, ImagePlus imag)
 		{
@@ -93,6 +99,17 @@ public class Image_Shifter implements PlugInFilter
 
 		gd.addStringField ("X-shift (> 0 moves image to the right)  : ","0.0",10);
 		gd.addStringField ("Y-shift (> 0 moves image down)           : ","0.0",10);
+
+		int[] idList = WindowManager.getIDList();
+		Vector<String> titles = new Vector<String>();
+		titles.add (ENTERED_SHIFTS);
+		for (int i=0; idList != null && i < idList.length; i++)
+			{
+			ImagePlus im = WindowManager.getImage (idList[i]);
+			if (im != null && im != refImage)
+				titles.add (im.getTitle());
+			}
+		gd.addChoice ("or align with image :", titles.toArray(new String[0]), ENTERED_SHIFTS);
 		gd.addStringField ("Optional fill value :"," ",10);
 		if (nslices == 1)
 			gd.addCheckbox("Create new image",createNew);
@@ -139,6 +156,30 @@ public class Image_Shifter implements PlugInFilter
 				}
 			}
 
+		// ... OR MEASURE THEM BY PHASE CORRELATION WITH ANOTHER IMAGE
+
+		String alignTo = gd.getNextChoice();
+		if (!alignTo.equals(ENTERED_SHIFTS))
+			{
+			ImagePlus other = WindowManager.getImage (alignTo);
+			if (other == null)
+				{
+				IJ.error ("Unable to access image "+alignTo);
+				return false;
+				}
+			PhaseCorrelator correlator = new PhaseCorrelator (other.getProcessor());
+			double[] d = correlator.measure (refProc);
+			if (d == null)
+				{
+				IJ.error ("Unable to measure the shift relative to "+alignTo+" (different size or no significant correlation)");
+				return false;
+				}
+			xShift = -d[0];
+			yShift = -d[1];
+			fractional = true;
+			IJ.showStatus ("Measured shift: ("+IJ.d2s(xShift,3)+","+IJ.d2s(yShift,3)+") pixels");
+			}
+
 		// GET FILL VALUE
 
 		String fillString = gd.getNextString().trim();
@@ -0,0 +1,85 @@
+// Import_Catalogue.java
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+
+import java.io.*;
+
+/**
+ * Converts a text dump of a star catalogue (CSV, tab- or space-separated) into a local StarCatalogue file,
+ * which USNO_Stars can then use instead of querying the ESO server.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class Import_Catalogue implements PlugIn
+	{
+	int raCol = 2;
+	int decCol = 3;
+	int mag1Col = 4;
+	int mag2Col = 5;
+	int idCol = 1;
+	double zoneHeight = StarCatalogue.ZONE_HEIGHT;
+
+	public void run (String arg)
+		{
+		OpenDialog od = new OpenDialog ("Select catalogue text file to be imported",null);
+		if (od.getFileName() == null) return;
+		File in = new File (od.getDirectory(),od.getFileName());
+
+		raCol      = (int)Prefs.get (new String("catalogue.racol"),raCol);
+		decCol     = (int)Prefs.get (new String("catalogue.deccol"),decCol);
+		mag1Col    = (int)Prefs.get (new String("catalogue.mag1col"),mag1Col);
+		mag2Col    = (int)Prefs.get (new String("catalogue.mag2col"),mag2Col);
+		idCol      = (int)Prefs.get (new String("catalogue.idcol"),idCol);
+		zoneHeight = Prefs.get (new String("catalogue.zone"),zoneHeight);
+
+		GenericDialog gd = new GenericDialog ("Import Star Catalogue");
+		gd.addMessage ("Columns of "+in.getName()+" (first = 1, 0 = not present):");
+		gd.addNumericField ("Identifier",idCol,0);
+		gd.addNumericField ("R.A. (deg or hh:mm:ss)",raCol,0);
+		gd.addNumericField ("Decl. (deg or dd:mm:ss)",decCol,0);
+		gd.addNumericField ("Magnitude 1 (e.g. R)",mag1Col,0);
+		gd.addNumericField ("Magnitude 2 (e.g. B)",mag2Col,0);
+		gd.addNumericField ("Declination zone height [deg]",zoneHeight,2);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		idCol      = (int)gd.getNextNumber();
+		raCol      = (int)gd.getNextNumber();
+		decCol     = (int)gd.getNextNumber();
+		mag1Col    = (int)gd.getNextNumber();
+		mag2Col    = (int)gd.getNextNumber();
+		zoneHeight = gd.getNextNumber();
+		if (raCol < 1 || decCol < 1 || zoneHeight <= 0.0 || zoneHeight > 90.0)
+			{
+			IJ.error ("The R.A. and Decl. columns and a positive zone height are needed!");
+			return;
+			}
+
+		Prefs.set (new String("catalogue.racol"),raCol);
+		Prefs.set (new String("catalogue.deccol"),decCol);
+		Prefs.set (new String("catalogue.mag1col"),mag1Col);
+		Prefs.set (new String("catalogue.mag2col"),mag2Col);
+		Prefs.set (new String("catalogue.idcol"),idCol);
+		Prefs.set (new String("catalogue.zone"),zoneHeight);
+
+		String name = in.getName();
+		if (name.indexOf('.') > 0)
+			name = name.substring(0,name.lastIndexOf('.'));
+		SaveDialog sd = new SaveDialog ("Save star catalogue as",name,".cat");
+		if (sd.getFileName() == null) return;
+		File out = new File (sd.getDirectory(),sd.getFileName());
+
+		try	{
+			long n = StarCatalogue.importText (in,out,raCol,decCol,mag1Col,mag2Col,idCol,zoneHeight);
+			IJ.log ("Imported "+n+" stars from "+in.getName()+" into "+out.getPath());
+			Prefs.set (new String("usno.catalogue"),out.getPath());
+			}
+		catch (IOException e)
+			{
+			IJ.error ("Unable to import "+in.getName()+" : "+e.getMessage());
+			}
+		}
+	}
@@ -10,6 +10,7 @@ import ij.gui.Toolbar.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.Canvas.*;
+import java.io.*;
 import java.util.*;
 
 import astroj.*;
@@ -84,6 +85,30 @@ import astroj.*;
  * @date 2013-Oct-20
  * @author F. Hessman
  * @changes Added edit aperture option.
+ *
+ * @version 1.11
+ * @date 2026-Oct-19
+ * @changes Added option to seed the aperture positions with the global image offset relative to the
+ *	first image (FFT cross-correlation using FrameOffset), so that large tracking jumps can be followed.
+ *
+ * @version 1.12
+ * @date 2026-Oct-19
+ * @changes Variable-aperture photometry now measures all centroids and moments once (measureShapes())
+ *	and re-uses them for the aperture sums (restoreShape()); added per-star FWHM-scaled apertures.
+ *
+ * @version 1.13
+ * @date 2026-Oct-19
+ * @changes Added ensemble differential magnitudes of all apertures (EnsemblePhotometry) after processing a stack.
+ *
+ * @version 1.14
+ * @date 2026-Oct-19
+ * @changes Optional neighbour-aware sky: the apertures (and optionally all stars found by StarFinder)
+ *	are indexed in a StarGrid so that pixels near other stars are left out of each sky annulus.
+ *
+ * @version 1.15
+ * @date 2026-Oct-19
+ * @changes Complete table rows are appended to a crash-safe PhotometryLog (if selected with Set_Aperture);
+ *	an interrupted stack can be resumed from the last completed slice.
  */
 public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListener
 	{
@@ -103,6 +128,12 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	double[] xOld;
 	double[] yOld;
 
+	FrameOffset frameOffset = null;	// GLOBAL OFFSET ESTIMATOR USING THE REFERENCE IMAGE
+	double[] xRefPos = null;	// APERTURE POSITIONS IN THE REFERENCE IMAGE
+	double[] yRefPos = null;
+
+	PhotometryLog photLog = null;	// OPEN FOR THE WHOLE RUN, SEE openLog()
+
 	String infoMessage = new String("");
 
 	protected int ngot=0;
@@ -127,6 +158,10 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	double apFWHMFactor = 2.0;
 	double meanFWHM = 0.0;
 
+	// CENTROIDS AND MOMENTS FROM THE SHAPE-MEASUREMENT PASS OF VARIABLE-APERTURE PHOTOMETRY
+	double[] xShape,yShape,xWidthShape,yWidthShape,angleShape,roundShape,varianceShape;
+	double baseRadius,baseRBack1,baseRBack2;
+
 	double ratio = 0.0;		// FIRST APERTURE
 	double ratioError = 0.0;
 	double ratioSNR = 0.0;
@@ -135,6 +170,12 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	public static String RATIOERROR = new String ("ratio1_error");
 	public static String RATIOSNR = new String ("ratio1_SNR");
 
+	public static String ENSEMBLE_MAG = new String ("ens_mag");
+	public static String ENSEMBLE_ERR = new String ("ens_mag_error");
+	public static String ENSEMBLE_ZP  = new String ("ens_zeropoint");
+
+	Vector<double[]> ensembleRows = null;	// TABLE ROW, FLUXES AND ERRORS OF EACH IMAGE
+
 	protected boolean autoMode = false;
 	protected boolean singleStep = false;
 	protected boolean simulatedLeftClick = false;
@@ -143,12 +184,17 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	protected boolean multiApertureRunning = false;
 
 	protected boolean useVarSizeAp= false;
+	protected boolean useOffsetSeed = false;
+	protected boolean maskNeighbours = false;
+	protected boolean findNeighbours = false;
+	protected boolean useStarFWHMAp = false;
 	protected boolean wideTable=true;
 
 	protected boolean showRatio=false;
 	protected boolean showCompTot=true;
 	protected boolean showRatioError=false;
 	protected boolean showRatioSNR=false;
+	protected boolean showEnsemble=false;
 	protected boolean useMacroImage=false;
 
 	protected String macroImageName=null;
@@ -178,11 +224,16 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	protected static String PREFS_SINGLESTEP      = new String ("multiaperture.singlestep");
 	protected static String PREFS_USEVARSIZEAP    = new String ("multiaperture.usevarsizeap");
 	protected static String PREFS_APFWHMFACTOR    = new String ("multiaperture.apfwhmfactor");
+	protected static String PREFS_OFFSETSEED      = new String ("multiaperture.offsetseed");
+	protected static String PREFS_MASKNEIGHBOURS  = new String ("multiaperture.maskneighbours");
+	protected static String PREFS_FINDNEIGHBOURS  = new String ("multiaperture.findneighbours");
+	protected static String PREFS_USESTARFWHMAP   = new String ("multiaperture.usestarfwhmap");
 	protected static String PREFS_WIDETABLE       = new String ("multiaperture.widetable");
 	protected static String PREFS_SHOWRATIO       = new String ("multiaperture.showratio");
 	protected static String PREFS_SHOWCOMPTOT     = new String ("multiaperture.showcomptot");
 	protected static String PREFS_SHOWRATIO_ERROR = new String ("multiaperture.showratioerror");
 	protected static String PREFS_SHOWRATIO_SNR   = new String ("multiaperture.showratiosnr");
+	protected static String PREFS_SHOWENSEMBLE    = new String ("multiaperture.showensemble");
 	protected static String PREFS_NAPERTURESMAX   = new String ("multiaperture.naperturesmax");
 	protected static String PREFS_XAPERTURES      = new String ("multiaperture.xapertures");
 	protected static String PREFS_YAPERTURES      = new String ("multiaperture.yapertures");
@@ -192,6 +243,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	protected static String PREFS_MULTIAPERTURERUNNING  = new String ("multiaperture.multiApertureRunning");
 
 	public static double RETRY_RADIUS = 3.0;
+	public static double FOUND_SELF = 2.0;		// [pixels] FOUND STARS CLOSER TO AN APERTURE ARE ITS STAR
 
 
 	protected boolean editApertures = false;
@@ -305,8 +357,13 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		showCompTot    = Prefs.get (MultiAperture_.PREFS_SHOWCOMPTOT, showCompTot);
 		showRatioError = Prefs.get (MultiAperture_.PREFS_SHOWRATIO_ERROR, showRatioError);
 		showRatioSNR   = Prefs.get (MultiAperture_.PREFS_SHOWRATIO_SNR, showRatioSNR);
+		showEnsemble   = Prefs.get (MultiAperture_.PREFS_SHOWENSEMBLE, showEnsemble);
 		useVarSizeAp   = Prefs.get (MultiAperture_.PREFS_USEVARSIZEAP, useVarSizeAp);
 		apFWHMFactor   = Prefs.get (MultiAperture_.PREFS_APFWHMFACTOR, apFWHMFactor);
+		useOffsetSeed  = Prefs.get (MultiAperture_.PREFS_OFFSETSEED, useOffsetSeed);
+		maskNeighbours = Prefs.get (MultiAperture_.PREFS_MASKNEIGHBOURS, maskNeighbours);
+		findNeighbours = Prefs.get (MultiAperture_.PREFS_FINDNEIGHBOURS, findNeighbours);
+		useStarFWHMAp  = Prefs.get (MultiAperture_.PREFS_USESTARFWHMAP, useStarFWHMAp);
 		nAperturesMax  = (int) Prefs.get (MultiAperture_.PREFS_NAPERTURESMAX, nAperturesMax);
 		xOldApertures  = Prefs.get (MultiAperture_.PREFS_XAPERTURES,"");
 		yOldApertures  = Prefs.get (MultiAperture_.PREFS_YAPERTURES,"");
@@ -348,6 +405,11 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 			return false;
 			}
 
+		frameOffset = null;
+		xRefPos = null;
+		yRefPos = null;
+		ensembleRows = null;
+
 		img.setSlice(firstSlice);
 		imp = img.getProcessor();
 		img.killRoi();
@@ -387,6 +449,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		{
 		noMoreInput();
 		super.shutDown();
+		closeLog();
 		cancelled=true;
 		processingStack=false;
 		stackTask = null;
@@ -398,11 +461,16 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		Prefs.set (MultiAperture_.PREFS_SINGLESTEP, singleStep);
 		Prefs.set (MultiAperture_.PREFS_USEVARSIZEAP, useVarSizeAp);
 		Prefs.set (MultiAperture_.PREFS_APFWHMFACTOR, apFWHMFactor);
+		Prefs.set (MultiAperture_.PREFS_USESTARFWHMAP, useStarFWHMAp);
+		Prefs.set (MultiAperture_.PREFS_OFFSETSEED, useOffsetSeed);
+		Prefs.set (MultiAperture_.PREFS_MASKNEIGHBOURS, maskNeighbours);
+		Prefs.set (MultiAperture_.PREFS_FINDNEIGHBOURS, findNeighbours);
 		Prefs.set (MultiAperture_.PREFS_WIDETABLE, wideTable);
 		Prefs.set (MultiAperture_.PREFS_SHOWRATIO, showRatio);
 		Prefs.set (MultiAperture_.PREFS_SHOWCOMPTOT, showCompTot);
 		Prefs.set (MultiAperture_.PREFS_SHOWRATIO_ERROR, showRatioError);
 		Prefs.set (MultiAperture_.PREFS_SHOWRATIO_SNR, showRatioSNR);
+		Prefs.set (MultiAperture_.PREFS_SHOWENSEMBLE, showEnsemble);
 		Prefs.set (MultiAperture_.PREFS_ENABLEDOUBLECLICKS, enableDoubleClicks);
 		Prefs.set (MultiAperture_.PREFS_MULTIAPERTURERUNNING, false);
 		Prefs.set (MultiAperture_.PREFS_FINISHED, "true");
@@ -813,7 +881,12 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		canvas = img.getCanvas();
 		ocanvas = null;
 
-		for (int i=firstSlice; i <= lastSlice; i++)
+		// CONTINUE AN INTERRUPTED RUN?
+		int first = firstSlice;
+		if (usePhotLog && photLog == null)
+			first = openLog ();
+
+		for (int i=first; i <= lastSlice; i++)
 			{
 			slice=i;
 			img.setSlice(i);
@@ -833,6 +906,8 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 				return;
 				}
 			}
+		if (showEnsemble)
+			computeEnsemble ();
 		if (processingStack)
 			{
 			IJ.beep();
@@ -852,6 +927,8 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		double src = 0.0;		// MEAN SOURCE BRIGHTNESSES AND BACKGROUNDS
 		double bck = 0.0;
 
+		double[] fluxes = new double[1+2*nApertures];	// TABLE ROW, FLUXES, AND ERRORS FOR THE ENSEMBLE
+
 		ratio = 0.0;
 		ratioError = 0.0;
 		ratioSNR = 0.0;
@@ -861,31 +938,29 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		othersVariance = 0.0;
 		meanFWHM = 0.0;
 
-        	if (useVarSizeAp)
+		// MOVE ALL APERTURES BY THE GLOBAL OFFSET RELATIVE TO THE REFERENCE IMAGE
+
+		if (useOffsetSeed)
+			seedApertures ();
+
+		// VARIABLE APERTURES OR NEIGHBOUR MASKING: FIRST MEASURE ALL CENTROIDS AND WIDTHS
+
+        	if (useVarSizeAp || maskNeighbours)
 			{
-			for (int ap=0;  ap < nApertures; ap++)
+			if (!measureShapes())
 				{
-				aperture = ap;
-				// GET POSITION ESTIMATE
-				if (ap == 0) setApertureColor(Color.green);
-				else setApertureColor(Color.red);
-				xCenter = xPos[ap];
-				yCenter = yPos[ap];
-
-				// MEASURE NEW POSITION
-				centerROI();
-				if (!adjustAperture())
-					{
-					IJ.beep();
-					shutDown();
-		    			return;
-					}
-				meanFWHM += 0.5*(xWidth+yWidth);
+				IJ.beep();
+				shutDown();
+	    			return;
 				}
-			meanFWHM /= (double)nApertures;
-			setVariableAperture(true, meanFWHM*apFWHMFactor);
 			OverlayCanvas.getOverlayCanvas(img).clearRois();
 			}
+
+		// INDEX THE KNOWN STARS SO THAT THEY CAN BE LEFT OUT OF THE SKY ANNULI
+
+		neighbourGrid = null;
+		if (maskNeighbours)
+			buildNeighbourGrid ();
         
 		for (int ap=0;  ap < nApertures; ap++)
 			{
@@ -895,13 +970,30 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 			else
 				setApertureColor(Color.red);
 
-			// GET POSITION ESTIMATE
-			xCenter = xPos[ap];
-			yCenter = yPos[ap];
+			boolean ok;
+			neighbourSelf = ap;
+			if (useVarSizeAp)
+				{
+				// RE-USE CENTROID AND MOMENTS, ONLY DO THE APERTURE SUMS
+				restoreShape (ap);
+				ok = measurePhotometry();
+				}
+			else if (maskNeighbours)
+				{
+				// RE-USE CENTROID AND MOMENTS WITH THE STANDARD RADII
+				restoreCentroid (ap);
+				ok = measurePhotometry();
+				}
+			else	{
+				// GET POSITION ESTIMATE
+				xCenter = xPos[ap];
+				yCenter = yPos[ap];
 
-			// MEASURE NEW POSITION
-			centerROI();
-			if (!measureAperture())
+				// MEASURE NEW POSITION
+				centerROI();
+				ok = measureAperture();
+				}
+			if (!ok)
 				{
 				setVariableAperture(false);
 				shutDown();
@@ -924,6 +1016,8 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 
 			src += source;
 			bck += back;
+			fluxes[1+ap] = source;
+			fluxes[1+nApertures+ap] = serror;
 
 			if (ap == 0)
 				{
@@ -941,6 +1035,17 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 			}
 
 		setVariableAperture(false);
+		neighbourGrid = null;
+		neighbourSelf = -1;
+
+		// THE FIRST IMAGE MEASURED BECOMES THE REFERENCE FOR THE GLOBAL OFFSETS
+
+		if (useOffsetSeed && frameOffset == null)
+			{
+			frameOffset = new FrameOffset (imp);
+			xRefPos = xPos.clone();
+			yRefPos = yPos.clone();
+			}
 
 		// COMPUTE APERTURE RATIO AND ERRORS AND UPDATE TABLE
 		if (showRatio && nApertures > 1)
@@ -955,6 +1060,19 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		if (showCompTot && nApertures > 1)
 			table.addValue (OTHERS, others, 6);
 
+		// SAVE ALL FLUXES FOR THE ENSEMBLE PHOTOMETRY
+		if (showEnsemble && wideTable && nApertures > 1)
+			{
+			if (ensembleRows == null) ensembleRows = new Vector<double[]>();
+			fluxes[0] = table.getCounter()-1;
+			ensembleRows.addElement (fluxes);
+			}
+
+		// LOG THE COMPLETED IMAGE
+		if (wideTable)
+			appendLog ();
+		checkpointLog ();
+
 		// CALCULATE MEAN SHIFT, BRIGHTNESS, AND BACKGROUND
 		xCenter = dx/nApertures;
 		yCenter = dy/nApertures;
@@ -965,6 +1083,349 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		table.show();
 		}
 
+	/**
+	 * First stage of variable-aperture photometry: measures the centroids and moments of all
+	 * apertures with the standard radii, stores them, and computes the mean FWHM.
+	 */
+	protected boolean measureShapes ()
+		{
+		if (xShape == null || xShape.length != nApertures)
+			{
+			xShape = new double[nApertures];
+			yShape = new double[nApertures];
+			xWidthShape = new double[nApertures];
+			yWidthShape = new double[nApertures];
+			angleShape = new double[nApertures];
+			roundShape = new double[nApertures];
+			varianceShape = new double[nApertures];
+			}
+		setVariableAperture(false);
+
+		for (int ap=0;  ap < nApertures; ap++)
+			{
+			aperture = ap;
+			if (ap == 0) setApertureColor(Color.green);
+			else setApertureColor(Color.red);
+
+			// GET POSITION ESTIMATE AND MEASURE NEW POSITION
+			xCenter = xPos[ap];
+			yCenter = yPos[ap];
+			centerROI();
+			if (!adjustAperture()) return false;
+
+			xShape[ap] = xCenter;
+			yShape[ap] = yCenter;
+			xWidthShape[ap] = xWidth;
+			yWidthShape[ap] = yWidth;
+			angleShape[ap] = angle;
+			roundShape[ap] = round;
+			varianceShape[ap] = variance;
+			meanFWHM += 0.5*(xWidth+yWidth);
+			}
+		meanFWHM /= (double)nApertures;
+
+		// THE STANDARD RADII FROM WHICH THE VARIABLE RADII ARE DERIVED
+		baseRadius = radius;
+		baseRBack1 = rBack1;
+		baseRBack2 = rBack2;
+		return true;
+		}
+
+	/**
+	 * Second stage of variable-aperture photometry: restores the centroid and moments of aperture ap
+	 * and sets the aperture radii to apFWHMFactor times the mean FWHM (or the star's own FWHM).
+	 */
+	protected void restoreShape (int ap)
+		{
+		restoreCentroid (ap);
+
+		double fwhm = meanFWHM;
+		if (useStarFWHMAp)
+			{
+			fwhm = 0.5*(xWidth+yWidth);
+			if (Double.isNaN(fwhm) || fwhm <= 0.0) fwhm = meanFWHM;
+			}
+		radius = baseRadius;
+		rBack1 = baseRBack1;
+		rBack2 = baseRBack2;
+		setVariableAperture (true, fwhm*apFWHMFactor);
+		radius = vradius;
+		rBack1 = vrBack1;
+		rBack2 = vrBack2;
+		}
+
+	/**
+	 * Restores the centroid and moments of aperture ap measured by measureShapes().
+	 */
+	protected void restoreCentroid (int ap)
+		{
+		xCenter = xShape[ap];
+		yCenter = yShape[ap];
+		xWidth = xWidthShape[ap];
+		yWidth = yWidthShape[ap];
+		angle = angleShape[ap];
+		round = roundShape[ap];
+		variance = varianceShape[ap];
+		}
+
+	/**
+	 * Sets the initial aperture positions to the reference positions plus the global offset
+	 * of the current image.  If no reliable offset can be found, the previous positions are kept.
+	 */
+	protected void seedApertures ()
+		{
+		if (frameOffset == null || xRefPos == null || xRefPos.length != nApertures) return;
+
+		double[] d = frameOffset.measure (imp);
+		if (d == null)
+			{
+			if (debug) IJ.log("MultiAperture_.seedApertures: no significant offset found for slice "+slice);
+			return;
+			}
+		if (debug) IJ.log("MultiAperture_.seedApertures: slice "+slice+" offset="+d[0]+","+d[1]
+						+" (contrast "+frameOffset.getContrast()+")");
+		for (int ap=0; ap < nApertures; ap++)
+			{
+			xPos[ap] = xRefPos[ap]+d[0];
+			yPos[ap] = yRefPos[ap]+d[1];
+			}
+		}
+
+	/**
+	 * Puts the centroids of all apertures in the current slice (measured by measureShapes()) and, if
+	 * desired, all other stars found by StarFinder with the settings of Find_Stars into a StarGrid: aperture
+	 * ap is entry ap of the grid, so that Aperture_.maskNeighbours() can leave it out by its index.  Found
+	 * stars closer than FOUND_SELF to an aperture are that aperture's star.  The pixels within the source
+	 * radius of the other stars are then not used for the sky.
+	 */
+	protected void buildNeighbourGrid ()
+		{
+		double[] xs = xShape;
+		double[] ys = yShape;
+		int n = nApertures;
+		if (findNeighbours)
+			{
+			StarFinder finder = Find_Stars.createFinder ();
+			int nf = finder.find (imp);
+			StarGrid apertures = new StarGrid (xs,ys,n,rBack2+radius);
+			double[] xa = new double[n+nf];
+			double[] ya = new double[n+nf];
+			System.arraycopy (xs,0,xa,0,n);
+			System.arraycopy (ys,0,ya,0,n);
+			double[] xf = finder.x();
+			double[] yf = finder.y();
+			for (int k=0; k < nf; k++)
+				{
+				if (apertures.near (xf[k],yf[k],FOUND_SELF).length > 0) continue;
+				xa[n] = xf[k];
+				ya[n] = yf[k];
+				n++;
+				}
+			xs = xa;
+			ys = ya;
+			}
+		neighbourRadius = radius;
+		neighbourGrid = new StarGrid (xs,ys,n,rBack2+radius);
+		if (debug) IJ.log("MultiAperture_.buildNeighbourGrid: "+n+" stars indexed for slice "+slice);
+		}
+
+	/**
+	 * Computes the ensemble differential magnitudes of all apertures in all images measured so far,
+	 * i.e. every star relative to the zero-point derived from all the others, and adds them to the table.
+	 */
+	protected void computeEnsemble ()
+		{
+		if (ensembleRows == null || ensembleRows.size() < 2 || nApertures < 2) return;
+
+		int nFrames = ensembleRows.size();
+		EnsemblePhotometry ens = new EnsemblePhotometry (nFrames,nApertures);
+		ens.setThreads (Prefs.getThreads());
+		double[] flux = new double[nApertures];
+		double[] err = new double[nApertures];
+		for (int f=0; f < nFrames; f++)
+			{
+			double[] row = ensembleRows.elementAt(f);
+			System.arraycopy (row,1,flux,0,nApertures);
+			System.arraycopy (row,1+nApertures,err,0,nApertures);
+			ens.setFrame (f,flux,err);
+			}
+		IJ.showStatus ("Computing ensemble photometry of "+nApertures+" stars in "+nFrames+" images...");
+		if (!ens.solve()) return;
+
+		double[] zp = ens.getZeroPoints();
+		for (int f=0; f < nFrames; f++)
+			{
+			int row = (int)ensembleRows.elementAt(f)[0];
+			table.setValue (ENSEMBLE_ZP, row, zp[f]);
+			for (int ap=0; ap < nApertures; ap++)
+				{
+				String header = (ap == 0) ? "" : "_#"+(ap+1);
+				table.setValue (ENSEMBLE_MAG+header, row, ens.magnitude(f,ap));
+				table.setValue (ENSEMBLE_ERR+header, row, ens.error(f,ap));
+				}
+			}
+		table.show();
+		if (debug) IJ.log("MultiAperture_.computeEnsemble: "+ens.iterations()+" iterations");
+		}
+
+	/**
+	 * The rows of a wide table are only complete after the last aperture, so they are logged by processImage().
+	 */
+	protected void logResults ()
+		{
+		if (!wideTable)
+			appendLog ();
+		}
+
+	/**
+	 * Appends the last row of the table to the PhotometryLog, opening it if necessary.
+	 */
+	protected void appendLog ()
+		{
+		if (!usePhotLog) return;
+		try	{
+			if (photLog == null)
+				photLog = new PhotometryLog (logFile(), img.getTitle());
+			photLog.append (table, table.getCounter()-1, slice);
+			}
+		catch (IOException e)
+			{
+			IJ.log ("Unable to write photometry log: "+e.getMessage());
+			closeLog ();
+			usePhotLog = false;
+			}
+		}
+
+	/**
+	 * Marks the current slice as completed in the PhotometryLog.
+	 */
+	protected void checkpointLog ()
+		{
+		if (photLog == null) return;
+		try	{
+			photLog.checkpoint (slice);
+			}
+		catch (IOException e)
+			{
+			IJ.log ("Unable to write photometry log: "+e.getMessage());
+			closeLog ();
+			usePhotLog = false;
+			}
+		}
+
+	protected void closeLog ()
+		{
+		if (photLog != null)
+			photLog.close();
+		photLog = null;
+		}
+
+	/**
+	 * MultiAperture_ uses its own log so that it is not mixed up with single Aperture_ measurements.
+	 */
+	protected File logFile ()
+		{
+		File f = super.logFile();
+		return new File (f.getParent(), img.getShortTitle()+"-multi"+PhotometryLog.SUFFIX);
+		}
+
+	/**
+	 * Opens the PhotometryLog of the stack.  If it contains the completed slices of an interrupted run
+	 * with the same apertures, these are put back into the table and the first slice still to be
+	 * measured is returned; otherwise the log is started afresh.
+	 */
+	protected int openLog ()
+		{
+		closeLog ();
+		try	{
+			photLog = new PhotometryLog (logFile(), img.getTitle());
+			int done = photLog.lastSlice();
+			if (photLog.records() > 0 && done >= firstSlice && done < lastSlice && logMatches()
+				&& (autoMode || IJ.showMessageWithCancel ("MultiAperture",
+						"The photometry log "+photLog.getFile().getName()
+						+" contains the measurements up to slice "+done+".\n"
+						+"Continue with slice "+(done+1)+"?")))
+				{
+				restoreFromLog ();
+				return done+1;
+				}
+			photLog.reset ();
+			}
+		catch (IOException e)
+			{
+			IJ.log ("Unable to use photometry log: "+e.getMessage());
+			closeLog ();
+			}
+		return firstSlice;
+		}
+
+	/**
+	 * Checks whether the log was written with the same number of apertures and contains the positions
+	 * needed to continue following the stars.
+	 */
+	protected boolean logMatches ()
+		{
+		if (photLog.columnIndex(AP_XCENTER) < 0 || photLog.columnIndex(AP_YCENTER) < 0)
+			return false;
+		if (!wideTable)
+			return photLog.records()%nApertures == 0;
+		if (nApertures > 1 && photLog.columnIndex(AP_XCENTER+"_#"+nApertures) < 0)
+			return false;
+		return photLog.columnIndex(AP_XCENTER+"_#"+(nApertures+1)) < 0;
+		}
+
+	/**
+	 * Copies the logged rows into the table (and the ensemble photometry) and takes the last logged
+	 * positions of the apertures as the starting point for the next slice.
+	 */
+	protected void restoreFromLog () throws IOException
+		{
+		if (!checkResultsTable()) return;
+		String[] cols = photLog.columns();
+		long n = photLog.records();
+		for (long k=0; k < n; k++)
+			{
+			double[] v = photLog.values(k);
+			table.incrementCounter();
+			String label = photLog.label(k);
+			if (label.length() > 0)
+				table.setLabel (label, table.getCounter()-1);
+			for (int c=0; c < cols.length; c++)
+				table.addValue (cols[c],v[c]);
+			if (showEnsemble && wideTable && nApertures > 1)
+				restoreEnsembleRow (v);
+			}
+		for (int ap=0; ap < nApertures; ap++)
+			{
+			String header = (wideTable && ap > 0) ? "_#"+(ap+1) : "";
+			double[] v = photLog.values (wideTable ? n-1 : n-nApertures+ap);
+			xPos[ap] = v[photLog.columnIndex(AP_XCENTER+header)];
+			yPos[ap] = v[photLog.columnIndex(AP_YCENTER+header)];
+			}
+		table.show();
+		IJ.log ("MultiAperture: "+n+" rows restored from "+photLog.getFile().getName());
+		}
+
+	/**
+	 * Adds the fluxes and errors of a logged row to the ensemble photometry (only possible if the errors were listed).
+	 */
+	protected void restoreEnsembleRow (double[] v)
+		{
+		double[] fluxes = new double[1+2*nApertures];
+		fluxes[0] = table.getCounter()-1;
+		for (int ap=0; ap < nApertures; ap++)
+			{
+			String header = (ap == 0) ? "" : "_#"+(ap+1);
+			int s = photLog.columnIndex (AP_SOURCE+header);
+			int e = photLog.columnIndex (AP_SOURCE_ERROR+header);
+			if (s < 0 || e < 0) return;
+			fluxes[1+ap] = v[s];
+			fluxes[1+nApertures+ap] = v[e];
+			}
+		if (ensembleRows == null) ensembleRows = new Vector<double[]>();
+		ensembleRows.addElement (fluxes);
+		}
+
 	/**
 	 * Notes anything else which might be interesting about an aperture measurement.
 	 */
@@ -1003,6 +1464,15 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 				if (table.getColumnIndex(OTHERS) == MeasurementTable.COLUMN_NOT_FOUND)
 					i=table.getFreeColumn (OTHERS);
 				}
+			if (showEnsemble)
+				{
+				if (table.getColumnIndex(ENSEMBLE_ZP) == MeasurementTable.COLUMN_NOT_FOUND)
+					i=table.getFreeColumn (ENSEMBLE_ZP);
+				if (table.getColumnIndex(ENSEMBLE_MAG) == MeasurementTable.COLUMN_NOT_FOUND)
+					i=table.getFreeColumn (ENSEMBLE_MAG);
+				if (table.getColumnIndex(ENSEMBLE_ERR) == MeasurementTable.COLUMN_NOT_FOUND)
+					i=table.getFreeColumn (ENSEMBLE_ERR);
+				}
 			for (int ap=1; ap < nApertures; ap++)
 				{
 				String header = "_#"+(ap+1);
@@ -1025,6 +1495,8 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 						i=table.getFreeColumn ( AP_SOURCE_SNR+header);
 					if (table.getColumnIndex(      AP_BACK+header) == MeasurementTable.COLUMN_NOT_FOUND)
 						i=table.getFreeColumn ( AP_BACK+header);
+					if (maskNeighbours && table.getColumnIndex(AP_NEIGHBOURS+header) == MeasurementTable.COLUMN_NOT_FOUND)
+						i=table.getFreeColumn ( AP_NEIGHBOURS+header);
 					}
 				if (showWidths)
 					{
@@ -1035,6 +1507,13 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 					}
 				if (showMeanWidth && table.getColumnIndex ( AP_MEANWIDTH) == MeasurementTable.COLUMN_NOT_FOUND)
 					i=table.getFreeColumn (AP_MEANWIDTH+header);
+				if (showEnsemble)
+					{
+					if (table.getColumnIndex(      ENSEMBLE_MAG+header) == MeasurementTable.COLUMN_NOT_FOUND)
+						i=table.getFreeColumn ( ENSEMBLE_MAG+header);
+					if (table.getColumnIndex(      ENSEMBLE_ERR+header) == MeasurementTable.COLUMN_NOT_FOUND)
+						i=table.getFreeColumn ( ENSEMBLE_ERR+header);
+					}
 				}
 			}
 		table.show();
@@ -1056,12 +1535,14 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 			}
 		if (showPhotometry)
 			{
-			table.addValue (AP_SOURCE+header,   photom.sourceBrightness(), 6);
+			table.addValue (AP_SOURCE+header,   source, 6);
 			if (showErrors)
-				table.addValue (AP_SOURCE_ERROR+header,   photom.sourceError(), 6);
+				table.addValue (AP_SOURCE_ERROR+header,   serror, 6);
 			if (showSNR)
-				table.addValue (AP_SOURCE_SNR+header,   photom.sourceBrightness()/photom.sourceError(), 6);
-			table.addValue (AP_BACK+header, photom.backgroundBrightness());
+				table.addValue (AP_SOURCE_SNR+header,   source/serror, 6);
+			table.addValue (AP_BACK+header, back);
+			if (neighbourGrid != null)
+				table.addValue (AP_NEIGHBOURS+header, nNeighbours, 0);
 		  	if (showPeak)
 				table.addValue (AP_PEAK+header, photom.peakBrightness(), 6);
 			if (showSaturationWarning && (photom.peakBrightness() > saturationWarningLevel))
@@ -1096,7 +1577,8 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		// REQUIRED DIALOG FIELDS:
 		//	nApertures,firstSlice,lastSlice,previous,singleStep,oneTable,wideTable
 		// NON-REQUIRED DIALOGUE FIELDS:
-		//	showRatio,showRatioError,showRatioSNR,useVarSizeAp,apFWHMFactor
+		//	showRatio,showRatioError,showRatioSNR,showEnsemble,useVarSizeAp,apFWHMFactor,useStarFWHMAp,useOffsetSeed,
+		//	maskNeighbours,findNeighbours
 
 		gd.addNumericField ("   Maximum number of apertures per image :",
 					nAperturesMax,0,6,"  (right click to finalize)");
@@ -1126,14 +1608,20 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	protected void addFancyDialog (GenericDialog gd)
 		{
 		// GET NON-REQUIRED DIALOGUE FIELDS:
-		//	showRatio,showRatioError,showRatioSNR,useVarSizeAp,apFWHMFactor
+		//	showRatio,showRatioError,showRatioSNR,showEnsemble,useVarSizeAp,apFWHMFactor,useStarFWHMAp,useOffsetSeed,
+		//	maskNeighbours,findNeighbours
 
 		gd.addCheckbox ("Compute ratio of 1st aperture to others (only if on same line).",showRatio);
 		gd.addCheckbox ("Show total comparison star counts (from apertures 2 to n).",showCompTot);
 		gd.addCheckbox ("Show error of the ratio (only if you check \"Compute ratio\" above).",showRatioError);
 		gd.addCheckbox ("Show signal-to-noise of ratio (only if you check \"Compute ratio\" above).",showRatioSNR);
+		gd.addCheckbox ("Compute ensemble differential magnitudes of all stars (only if on same line).",showEnsemble);
 		gd.addCheckbox ("Vary photometer aperture radii based on FWHM.",useVarSizeAp);
 		gd.addNumericField ("FWHM multiplication factor :", apFWHMFactor,4);
+		gd.addCheckbox ("Scale each aperture with the star's own FWHM (otherwise the mean FWHM).",useStarFWHMAp);
+		gd.addCheckbox ("Seed aperture positions with global image offset (for large tracking jumps).",useOffsetSeed);
+		gd.addCheckbox ("Leave other apertures out of the sky annuli (crowded fields).",maskNeighbours);
+		gd.addCheckbox ("Also leave out all stars found with the \"Find Stars\" settings.",findNeighbours);
 		gd.addMessage (" ");
 		gd.addCheckbox ("Allow left/right double click fast zoom-in/out (adds slight delay to aperture placement).", enableDoubleClicks);
 		gd.addCheckbox ("Edit apertures as they are input.", editApertures);
@@ -1146,12 +1634,14 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 	protected boolean finishFancyDialog (GenericDialog gd)
 		{
 		// GET NON-REQUIRED DIALOGUE FIELDS:
-		//	showRatio,showRatioError,showRatioSNR,useVarSizeAp,apFWHMFactor
+		//	showRatio,showRatioError,showRatioSNR,showEnsemble,useVarSizeAp,apFWHMFactor,useStarFWHMAp,useOffsetSeed,
+		//	maskNeighbours,findNeighbours
 
 		showRatio      = gd.getNextBoolean();
 		showCompTot    = gd.getNextBoolean();
 		showRatioError = gd.getNextBoolean();
 		showRatioSNR   = gd.getNextBoolean();
+		showEnsemble   = gd.getNextBoolean();
 		useVarSizeAp   = gd.getNextBoolean();
 		apFWHMFactor   = gd.getNextNumber();
 		if (gd.invalidNumber())
@@ -1161,6 +1651,10 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 			shutDown();
 			return false;
 			}
+		useStarFWHMAp  = gd.getNextBoolean();
+		useOffsetSeed  = gd.getNextBoolean();
+		maskNeighbours = gd.getNextBoolean();
+		findNeighbours = gd.getNextBoolean();
 		enableDoubleClicks = gd.getNextBoolean();
 		editApertures = gd.getNextBoolean();
 
@@ -1168,8 +1662,13 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, KeyListe
 		Prefs.set (MultiAperture_.PREFS_SHOWCOMPTOT, showCompTot);
 		Prefs.set (MultiAperture_.PREFS_SHOWRATIO_ERROR, showRatioError);
 		Prefs.set (MultiAperture_.PREFS_SHOWRATIO_SNR, showRatioSNR);
+		Prefs.set (MultiAperture_.PREFS_SHOWENSEMBLE, showEnsemble);
 		Prefs.set (MultiAperture_.PREFS_USEVARSIZEAP, useVarSizeAp);
 		Prefs.set (MultiAperture_.PREFS_APFWHMFACTOR, apFWHMFactor);
+		Prefs.set (MultiAperture_.PREFS_USESTARFWHMAP, useStarFWHMAp);
+		Prefs.set (MultiAperture_.PREFS_OFFSETSEED, useOffsetSeed);
+		Prefs.set (MultiAperture_.PREFS_MASKNEIGHBOURS, maskNeighbours);
+		Prefs.set (MultiAperture_.PREFS_FINDNEIGHBOURS, findNeighbours);
 		Prefs.set (MultiAperture_.PREFS_ENABLEDOUBLECLICKS, enableDoubleClicks);
 		return true;
 		}
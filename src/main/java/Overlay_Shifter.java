@@ -16,6 +16,10 @@ import astroj.*;
  * @revision FVH
  * @date 2012-DEC-26
  * @changes Added scaling of radii.
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Only the overlay is repainted instead of the whole image being converted for display again.
  */
 public class Overlay_Shifter implements PlugInFilter
 	{
@@ -85,6 +89,6 @@ public class Overlay_Shifter implements PlugInFilter
 				}
 			}
 
-		imp.updateAndDraw();
+		ocanvas.repaint();
 		}
 	}
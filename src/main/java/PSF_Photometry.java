@@ -0,0 +1,251 @@
+// PSF_Photometry.java
+
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+
+import java.awt.*;
+
+import astroj.*;
+
+/**
+ * PSF-fitting photometry of many stars in crowded fields, using a PSF image made with
+ * Create_Mean_PSF as the model (see PsfPhotometer).  The stars are either the apertures last
+ * used by MultiAperture_ (multiaperture.xapertures/yapertures) or those found by StarFinder with
+ * the settings of Find_Stars.
+ *
+ * The results go into the measurement table with the same columns as Aperture_ (and with the
+ * same preferences determining which columns are shown), plus the reduced chi-square and the
+ * group number of each fit.  The widths, angles and raw values have no meaning for the fit
+ * and are left empty; the source radius is the fitting radius.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class PSF_Photometry extends Aperture_
+	{
+	String psfTitle = "PSF";
+	boolean useFinder = false;
+	double fitRadius = 4.0;
+
+	ImagePlus psfImage = null;
+	PsfPhotometer fitter = null;
+	int star = 0;
+
+	public static String PREFS_PSFTITLE  = new String ("psfphotometry.psftitle");
+	public static String PREFS_USEFINDER = new String ("psfphotometry.usefinder");
+	public static String PREFS_FITRADIUS = new String ("psfphotometry.fitradius");
+
+	public static String PSF_CHI2  = new String ("PSF_Chi2");
+	public static String PSF_GROUP = new String ("PSF_Group");
+
+	public static String[] SOURCES = new String[] { "MultiAperture apertures", "Find Stars" };
+
+	/**
+	 * Fits all stars of the current image and lists them in the measurement table.
+	 */
+	public void run (ImageProcessor ip)
+		{
+		imp = ip;
+		if (!dialog()) return;
+
+		// STAR POSITIONS
+
+		double[] x0 = null;
+		double[] y0 = null;
+		if (useFinder)
+			{
+			StarFinder finder = Find_Stars.createFinder ();
+			finder.setMaxStars ((int)Prefs.get (Find_Stars.PREFS_MAXSTARS, 0));
+			if (finder.find (ip) == 0)
+				{
+				IJ.error ("No stars found!");
+				return;
+				}
+			x0 = finder.x();
+			y0 = finder.y();
+			}
+		else	{
+			String[] sx = Prefs.get (MultiAperture_.PREFS_XAPERTURES,"").split(",");
+			String[] sy = Prefs.get (MultiAperture_.PREFS_YAPERTURES,"").split(",");
+			if (sx.length != sy.length || sx[0].trim().equals(""))
+				{
+				IJ.error ("No consistent MultiAperture apertures stored!");
+				return;
+				}
+			x0 = new double[sx.length];
+			y0 = new double[sy.length];
+			try	{
+				for (int i=0; i < sx.length; i++)
+					{
+					x0[i] = Double.parseDouble(sx[i]);
+					y0[i] = Double.parseDouble(sy[i]);
+					}
+				}
+			catch (NumberFormatException e)
+				{
+				IJ.error ("Unable to parse the stored apertures!");
+				return;
+				}
+			}
+
+		// FIT
+
+		try	{
+			fitter = new PsfPhotometer (psfImage.getProcessor());
+			}
+		catch (IllegalArgumentException e)
+			{
+			IJ.error (e.getMessage());
+			return;
+			}
+		fitter.setFitRadius (fitRadius);
+		fitter.setCCD (ccdGain, ccdNoise);
+		IJ.showStatus ("Fitting "+x0.length+" stars ...");
+		long start = System.currentTimeMillis();
+		int nGroups = fitter.measure (ip,x0,y0);
+		long elapsed = System.currentTimeMillis()-start;
+
+		// FITS HEADER, WCS AND MJD AS IN Aperture_
+
+		String[] hdr = FitsJ.getHeader (img);
+		if (hdr != null)
+			{
+			isFITS = true;
+			wcs = new WCS(hdr);
+			if (showTimes)
+				{
+				mjd = FitsJ.getMeanMJD (hdr);
+				if (Double.isNaN(mjd))
+					mjd = FitsJ.getMJD (hdr);
+				}
+			}
+
+		// STORE RESULTS, SHOW TABLE ONCE
+
+		radius = fitRadius;
+		if (starOverlay && ocanvas != null && clearOverlay)
+			ocanvas.clearRois();
+		for (star=0; star < fitter.numberOfStars(); star++)
+			{
+			xCenter = fitter.x()[star];
+			yCenter = fitter.y()[star];
+			source = fitter.flux()[star];
+			serror = fitter.fluxError()[star];
+			back = fitter.sky()[star];
+			raDec = null;
+			if (isFITS && wcs.hasRaDec())
+				{
+				raDec = wcs.pixels2wcs (new double[] { xCenter,yCenter });
+				wcsUnits = wcs.getWCSUnits();
+				}
+			storeResults ();
+			if (starOverlay && ocanvas != null)
+				{
+				ApertureRoi roi = new ApertureRoi (xCenter,yCenter,fitRadius,fitRadius,fitRadius,source,
+								star == 0 ? Color.green : Color.red);
+				roi.setAppearance (true,false,valueOverlay,valueOverlay ? g.format(source) : ""+(star+1));
+				roi.setImage (img);
+				ocanvas.add (roi);
+				}
+			}
+		if (table != null)
+			table.show ("Measurements");
+		if (starOverlay && canvas != null)
+			canvas.repaint();
+		IJ.showStatus ("Fitted "+fitter.numberOfStars()+" stars in "+nGroups+" groups in "+elapsed+" ms");
+		}
+
+	/**
+	 * Adds one row for the current star with the columns of Aperture_; the table is shown once at the end.
+	 */
+	protected void storeResults ()
+		{
+		if (! checkResultsTable()) return;
+
+		table.incrementCounter();
+		if (showFileName)
+			table.setLabel (filename, table.getCounter()-1);
+		if (showSliceNumber)
+			table.addValue (AP_SLICE, stackSize == 1 ? 0 : slice, 0);
+		if (showPosition)
+			{
+			table.addValue (AP_XCENTER, xCenter, 6);
+			table.addValue (AP_YCENTER, yCenter, 6);
+			}
+		if (showPhotometry)
+			table.addValue (AP_SOURCE, source, 6);
+		double peak = fitter.peak()[star];
+		if (showPeak)
+			table.addValue (AP_PEAK, peak, 6);
+		if (showSaturationWarning && peak > saturationWarningLevel)
+			table.addValue (AP_WARNING, peak, 6);
+		if (showErrors)
+			table.addValue (AP_SOURCE_ERROR, serror, 6);
+		if (showSNR)
+			table.addValue (AP_SOURCE_SNR, source/serror, 6);
+		if (showBack)
+			table.addValue (AP_BACK, back, 6);
+		if (showRadii)
+			table.addValue (AP_RSOURCE, fitRadius, 6);
+		if (showTimes && !Double.isNaN(mjd))
+			table.addValue (AP_MJD, mjd, 6);
+		if (showRADEC && raDec != null)
+			{
+			table.addValue (AP_RA, raDec[0], 6);
+			table.addValue (AP_DEC, raDec[1], 6);
+			}
+		table.addValue (PSF_CHI2, fitter.chi2()[star], 6);
+		table.addValue (PSF_GROUP, fitter.group()[star], 0);
+		}
+
+	protected boolean dialog ()
+		{
+		int[] idList = WindowManager.getIDList();
+		if (idList == null || idList.length < 2)
+			{
+			IJ.error ("Please create a PSF image with \"Create Mean PSF\" first!");
+			return false;
+			}
+		String[] imageList = new String[idList.length];
+		for (int i=0; i < idList.length; i++)
+			imageList[i] = WindowManager.getImage(idList[i]).getTitle();
+
+		psfTitle  = Prefs.get (PREFS_PSFTITLE, psfTitle);
+		useFinder = Prefs.get (PREFS_USEFINDER, useFinder);
+		fitRadius = Prefs.get (PREFS_FITRADIUS, fitRadius);
+		String defaultPSF = imageList[0];
+		for (int i=0; i < imageList.length; i++)
+			{
+			if (imageList[i].equals(psfTitle)) defaultPSF = psfTitle;
+			}
+
+		GenericDialog gd = new GenericDialog ("PSF Photometry");
+		gd.addChoice ("PSF image :",imageList,defaultPSF);
+		gd.addChoice ("Stars :",SOURCES,SOURCES[useFinder ? 1 : 0]);
+		gd.addNumericField ("Fitting radius :",fitRadius,1,6,"pixels");
+		gd.addMessage ("Stars closer than the fitting radius + PSF radius are fitted together.");
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		psfTitle  = gd.getNextChoice();
+		useFinder = gd.getNextChoiceIndex() == 1;
+		fitRadius = gd.getNextNumber();
+		psfImage = WindowManager.getImage (psfTitle);
+		if (psfImage == null || psfImage == img)
+			{
+			IJ.error ("Please select a PSF image different from the image to be measured!");
+			return false;
+			}
+		if (!(fitRadius > 1.0))
+			{
+			IJ.error ("The fitting radius must be larger than 1 pixel!");
+			return false;
+			}
+
+		Prefs.set (PREFS_PSFTITLE, psfTitle);
+		Prefs.set (PREFS_USEFINDER, useFinder);
+		Prefs.set (PREFS_FITRADIUS, fitRadius);
+		return true;
+		}
+	}
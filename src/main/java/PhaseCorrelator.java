@@ -0,0 +1,288 @@
+// PhaseCorrelator.java
+
+import ij.*;
+import ij.process.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the shifts of images relative to a reference image to a small fraction of a pixel by
+ * FFT phase correlation, i.e. without any stars having to be selected.
+ *
+ * The central region of at most MAX_SIZE x MAX_SIZE pixels of each image is freed of its mean,
+ * tapered to zero at the edges (TAPER), and transformed with the real-to-complex FFT2D transform of the
+ * padded (power of 2) size; the spectrum of the reference is computed once.  The cross-power spectrum
+ * is normalized to unit amplitude (only the phases, i.e. the shift, remain) and multiplied by a
+ * Gaussian, so that its inverse transform is a Gaussian peak of width SIGMA at the shift; the position
+ * of the peak is then derived from parabolae through the logarithms of the three highest values in x
+ * and y, which is exact for a Gaussian.
+ *
+ * The resulting shift (dx,dy) has the same sense as that of FrameOffset: an object at (x,y) in the
+ * reference image is found at (x+dx,y+dy) in the measured image.
+ *
+ * The reference spectrum is only read, so measureStack() can measure the slices of a stack with
+ * several threads, each with its own transform and work arrays.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class PhaseCorrelator
+	{
+	public static int MAX_SIZE = 1024;		// LARGEST REGION CORRELATED
+	public static double TAPER = 0.125;		// FRACTION OF THE REGION TAPERED AT EACH EDGE
+	public static double SIGMA = 1.0;		// [pixels] WIDTH OF THE CORRELATION PEAK
+	public static double MIN_CONTRAST = 5.0;	// MINIMUM PEAK/R.M.S. OF THE CORRELATION IMAGE
+
+	protected int width,height;	// IMAGE SIZE
+	protected int x0,y0,rw,rh;	// CORRELATED REGION
+	protected int nx,ny,nh;		// PADDED SIZE AND HALF-SPECTRUM WIDTH
+
+	protected double[] wx,wy;	// SEPARABLE TAPER
+	protected double[] gx,gy;	// SEPARABLE GAUSSIAN WEIGHTS OF THE CROSS-POWER SPECTRUM
+	protected double[] refRe,refIm;
+
+	protected int nThreads = 1;
+
+	/**
+	 * The transform and arrays needed by one thread.
+	 */
+	protected class Workspace
+		{
+		FFT2D fft = new FFT2D (nx,ny);
+		double[] data = new double[nx*ny];
+		double[] re = new double[nh*ny];
+		double[] im = new double[nh*ny];
+		double contrast = 0.0;
+		}
+
+	/**
+	 * Creates a correlator using the given image as the reference.
+	 */
+	public PhaseCorrelator (ImageProcessor ref)
+		{
+		width = ref.getWidth();
+		height = ref.getHeight();
+		rw = Math.min(width,MAX_SIZE);
+		rh = Math.min(height,MAX_SIZE);
+		x0 = (width-rw)/2;
+		y0 = (height-rh)/2;
+		nx = FFT2D.nextPowerOf2 (Math.max(2,rw));
+		ny = FFT2D.nextPowerOf2 (Math.max(2,rh));
+		nh = nx/2+1;
+
+		wx = taper (rw);
+		wy = taper (rh);
+		gx = new double[nh];
+		gy = new double[ny];
+		double f = -2.0*Math.PI*Math.PI*SIGMA*SIGMA;
+		for (int u=0; u < nh; u++)
+			gx[u] = Math.exp(f*u*u/((double)nx*nx));
+		for (int v=0; v < ny; v++)
+			{
+			int vv = (v <= ny/2) ? v : v-ny;
+			gy[v] = Math.exp(f*vv*vv/((double)ny*ny));
+			}
+
+		Workspace ws = new Workspace ();
+		load (ref,ws.data);
+		refRe = new double[nh*ny];
+		refIm = new double[nh*ny];
+		ws.fft.forwardReal (ws.data,refRe,refIm);
+		}
+
+	public void setThreads (int n)		{ nThreads = Math.max(1,n); }
+
+	/**
+	 * Measures the shift {dx,dy} in pixels of the image relative to the reference image.  Returns null
+	 * if the image has a different size or if the correlation peak is not significant.
+	 */
+	public double[] measure (ImageProcessor ip)
+		{
+		return measure (ip,new Workspace());
+		}
+
+	/**
+	 * Measures the shifts of the slices first,...,last of the stack using the threads set.  Element
+	 * k of the result belongs to slice first+k and is null if the shift could not be measured.
+	 */
+	public double[][] measureStack (final ImageStack stack, final int first, int last)
+		{
+		final int n = last-first+1;
+		final double[][] shifts = new double[n][];
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		int nt = Math.min(nThreads,n);
+
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					Workspace ws = new Workspace ();
+					int k;
+					while ((k = next.getAndIncrement()) < n)
+						{
+						ImageProcessor ip;
+						synchronized (stack)
+							{
+							ip = stack.getProcessor (first+k);
+							}
+						shifts[k] = measure (ip,ws);
+						IJ.showProgress (done.incrementAndGet(),n);
+						}
+					}
+				};
+			}
+		if (nt == 1)
+			threads[0].run();
+		else	{
+			for (int t=0; t < nt; t++)
+				threads[t].start();
+			try	{
+				for (int t=0; t < nt; t++)
+					threads[t].join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		return shifts;
+		}
+
+	/**
+	 * Phase correlation of one image using the given workspace.
+	 */
+	protected double[] measure (ImageProcessor ip, Workspace ws)
+		{
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			return null;
+		load (ip,ws.data);
+		ws.fft.forwardReal (ws.data,ws.re,ws.im);
+
+		// NORMALIZED AND WEIGHTED CROSS-POWER SPECTRUM conj(R)*F/|conj(R)*F|
+
+		double[] re = ws.re;
+		double[] im = ws.im;
+		for (int v=0, k=0; v < ny; v++)
+			{
+			for (int u=0; u < nh; u++, k++)
+				{
+				double r = refRe[k]*re[k]+refIm[k]*im[k];
+				double i = refRe[k]*im[k]-refIm[k]*re[k];
+				double a = Math.sqrt(r*r+i*i);
+				if (a > 0.0)
+					{
+					a = gx[u]*gy[v]/a;
+					re[k] = r*a;
+					im[k] = i*a;
+					}
+				else	{
+					re[k] = 0.0;
+					im[k] = 0.0;
+					}
+				}
+			}
+		double[] c = ws.data;
+		ws.fft.inverseReal (re,im,c);
+
+		// FIND CORRELATION PEAK AND ITS SIGNIFICANCE
+
+		int kmax = 0;
+		double sum = 0.0;
+		double sum2 = 0.0;
+		for (int k=0; k < c.length; k++)
+			{
+			sum += c[k];
+			sum2 += c[k]*c[k];
+			if (c[k] > c[kmax]) kmax = k;
+			}
+		int n = c.length;
+		double mean = sum/n;
+		double rms = Math.sqrt(Math.max(0.0,sum2/n-mean*mean));
+		ws.contrast = (rms > 0.0) ? (c[kmax]-mean)/rms : 0.0;
+		if (ws.contrast < MIN_CONTRAST) return null;
+
+		// SUB-PIXEL POSITION (DATA ARE PERIODIC)
+
+		int ix = kmax%nx;
+		int iy = kmax/nx;
+		double px = ix+peak (c[iy*nx+(ix+nx-1)%nx], c[kmax], c[iy*nx+(ix+1)%nx]);
+		double py = iy+peak (c[((iy+ny-1)%ny)*nx+ix], c[kmax], c[((iy+1)%ny)*nx+ix]);
+		if (px > nx/2) px -= nx;
+		if (py > ny/2) py -= ny;
+		return new double[] { px,py };
+		}
+
+	/**
+	 * Offset of the peak from the middle of three equidistant values: a parabola through their
+	 * logarithms (a Gaussian) if all are positive, otherwise through the values themselves.
+	 */
+	protected static double peak (double cm, double c0, double cp)
+		{
+		if (cm > 0.0 && c0 > 0.0 && cp > 0.0)
+			{
+			cm = Math.log(cm);
+			cp = Math.log(cp);
+			c0 = Math.log(c0);
+			}
+		double denom = cm-2.0*c0+cp;
+		if (denom >= 0.0) return 0.0;
+		double d = 0.5*(cm-cp)/denom;
+		return Math.max(-0.5,Math.min(0.5,d));
+		}
+
+	/**
+	 * Copies the central region of the image into the zero-padded array, subtracts its mean,
+	 * and applies the taper.
+	 */
+	protected void load (ImageProcessor ip, double[] data)
+		{
+		float[] pix = (float[])ip.convertToFloat().getPixels();
+		double sum = 0.0;
+		int n = 0;
+		for (int j=0; j < rh; j++)
+			{
+			int off = (y0+j)*width+x0;
+			for (int i=0; i < rw; i++)
+				{
+				float z = pix[off+i];
+				if (z == z)
+					{
+					sum += z;
+					n++;
+					}
+				}
+			}
+		double mean = (n > 0) ? sum/n : 0.0;
+		Arrays.fill (data,0.0);
+		for (int j=0; j < rh; j++)
+			{
+			int off = (y0+j)*width+x0;
+			int k = j*nx;
+			for (int i=0; i < rw; i++)
+				{
+				float z = pix[off+i];
+				data[k+i] = (z == z) ? (z-mean)*wx[i]*wy[j] : 0.0;
+				}
+			}
+		}
+
+	/**
+	 * Cosine taper over the TAPER fraction at both ends of n points.
+	 */
+	protected static double[] taper (int n)
+		{
+		double[] w = new double[n];
+		int m = Math.max(1,(int)(TAPER*n));
+		for (int i=0; i < n; i++)
+			{
+			int d = Math.min(i,n-1-i);
+			w[i] = (d >= m) ? 1.0 : 0.5-0.5*Math.cos(Math.PI*(d+0.5)/m);
+			}
+		return w;
+		}
+	}
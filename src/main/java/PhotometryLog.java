@@ -0,0 +1,527 @@
+// PhotometryLog.java
+
+import ij.measure.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, append-only binary log of photometry results, so that hours of measurements of a
+ * long stack are not lost when ImageJ crashes or runs out of memory.  Each row of a MeasurementTable
+ * becomes one fixed-width record; the column names are stored once in the header (the schema).
+ *
+ * File layout (big-endian):
+ *	header:  "APHOTLOG", version, number of columns, record size, header size,
+ *		 number of committed records, last completed slice, number of runs, image title and column names
+ *	records: slice (int), run (int), CRC32 of the rest (int), 0 (int), label (LABEL_SIZE bytes of UTF-8),
+ *		 values (doubles)
+ *
+ * The records are written into memory-mapped regions of the file, so they survive a crash of the
+ * Java VM (the operating system still holds the pages).  checkpoint() marks a slice as completed and,
+ * at most every CHECKPOINT_MILLIS, forces everything to disk.  When a log is re-opened, only the
+ * committed records with a correct checksum are used, so a resumed run continues from the last
+ * completed slice.
+ *
+ * Each opening of the log which appends records is a new run, whose number is stored in its records
+ * (see run()), so that e.g. the single measurements of separate Aperture_ runs can be told apart.  If a
+ * table with columns which are not in the schema is appended, the log continues in a new segment, i.e.
+ * a new file with the same name plus "-2", "-3", ...; opening the log opens its latest segment.
+ *
+ * Java cannot unmap a file, so a file is never truncated while this log has mapped it: the header is
+ * only mapped when the first record is appended, and the unused end of the last mapped region is left
+ * in place (only the committed records are read).
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Run numbers in the records, new segment if the schema changes, no truncation of mapped files.
+ */
+public class PhotometryLog
+	{
+	public static String SUFFIX = ".aplog";
+	public static int LABEL_SIZE = 64;
+	public static int REGION_RECORDS = 4096;		// RECORDS PER MAPPED REGION OF THE FILE
+	public static long CHECKPOINT_MILLIS = 5000;
+
+	protected static long MAGIC = 0x4150484f544c4f47L;	// "APHOTLOG"
+	protected static int VERSION = 2;
+	protected static int FIXED_HEADER = 64;
+	protected static int OFF_RECORDS = 24;
+	protected static int OFF_SLICE = 32;
+	protected static int OFF_RUNS = 36;
+	protected static int PREFIX = 16;		// SLICE, RUN, CRC32, 0
+
+	protected File base;			// FIRST SEGMENT
+	protected File file;			// CURRENT SEGMENT
+	protected int segment = 1;
+	protected RandomAccessFile raf;
+	protected FileChannel channel;
+	protected String title;
+	protected String[] columns = null;
+	protected int recordSize = 0;
+	protected int headerSize = 0;
+	protected long records = 0;		// RECORDS WRITTEN
+	protected long committed = 0;		// RECORDS OF COMPLETED SLICES
+	protected int lastSlice = 0;
+	protected int runs = 0;			// RUNS IN THE HEADER
+	protected int run = 0;			// RUN OF THE RECORDS APPENDED, 0 UNTIL THE FIRST ONE
+
+	protected MappedByteBuffer header = null;
+	protected MappedByteBuffer region = null;
+	protected long regionStart = -1;	// FIRST RECORD IN region
+	protected long lastForce = 0;
+	protected boolean mapped = false;	// ANY PART OF THE FILE MAPPED BY THIS LOG
+
+	protected byte[] scratch = null;
+	protected CRC32 crc = new CRC32();
+	protected ResultsTable lastTable = null;
+	protected int lastTableColumn = -1;
+	protected int[] tableColumns = null;	// TABLE INDICES OF THE SCHEMA COLUMNS
+
+	protected long readIndex = -1;
+	protected ByteBuffer readBuffer = null;
+
+	/**
+	 * Opens the (latest segment of the) log of the image with the given title.  An existing log is kept
+	 * if it belongs to the same image and is readable, otherwise the file is started afresh.
+	 */
+	public PhotometryLog (File file, String title) throws IOException
+		{
+		base = file;
+		this.title = title;
+		while (segmentFile(segment+1).exists())
+			segment++;
+		open (segmentFile(segment));
+		}
+
+	/**
+	 * Returns segment k of the log ("name.aplog", "name-2.aplog", ...).
+	 */
+	public File segmentFile (int k)
+		{
+		if (k <= 1) return base;
+		String name = base.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) dot = name.length();
+		return new File (base.getParentFile(), name.substring(0,dot)+"-"+k+name.substring(dot));
+		}
+
+	protected void open (File f) throws IOException
+		{
+		file = f;
+		raf = new RandomAccessFile (file,"rw");
+		channel = raf.getChannel();
+		run = 0;
+		mapped = false;
+		if (!readHeader())
+			reset ();
+		}
+
+	public File getFile ()		{ return file; }
+	public String title ()		{ return title; }
+	public String[] columns ()	{ return columns; }
+	public long records ()		{ return committed; }
+	public int lastSlice ()		{ return lastSlice; }
+	public int segment ()		{ return segment; }
+
+	/**
+	 * Empties the current segment: the schema is taken from the next table appended.
+	 */
+	public void reset () throws IOException
+		{
+		if (header != null)
+			{
+			// STILL MAPPED: INVALIDATE THE RECORDS INSTEAD OF TRUNCATING
+			header.putLong (OFF_RECORDS,0L);
+			header.putInt (OFF_SLICE,0);
+			header.force();
+			}
+		truncate (0);
+		region = null;
+		header = null;
+		regionStart = -1;
+		readIndex = -1;
+		columns = null;
+		tableColumns = null;
+		lastTable = null;
+		records = committed = 0;
+		lastSlice = 0;
+		runs = 0;
+		run = 0;
+		}
+
+	/**
+	 * Appends row number "row" of the table as a record of the given slice.  The first row appended
+	 * defines the schema; if the table has columns which are not in the schema, the log continues in a
+	 * new segment with the columns of the table.
+	 */
+	public void append (ResultsTable table, int row, int slice) throws IOException
+		{
+		if (columns == null)
+			createSchema (table);
+		else if (!matchSchema (table))
+			{
+			nextSegment ();
+			createSchema (table);
+			}
+		matchSchema (table);
+		if (run == 0)
+			{
+			mapHeader ();
+			run = ++runs;
+			header.putInt (OFF_RUNS,runs);
+			}
+
+		ByteBuffer buf = ByteBuffer.wrap (scratch);
+		buf.putInt (slice);
+		buf.putInt (run);
+		buf.putInt (0);
+		buf.putInt (0);
+		byte[] lab = new byte[0];
+		String label = table.getLabel(row);
+		if (label != null)
+			lab = label.getBytes ("UTF-8");
+		int nlab = Math.min(lab.length,LABEL_SIZE);
+		buf.put (lab,0,nlab);
+		for (int i=nlab; i < LABEL_SIZE; i++)
+			buf.put ((byte)0);
+		for (int c=0; c < columns.length; c++)
+			{
+			int col = tableColumns[c];
+			buf.putDouble (col < 0 ? Double.NaN : table.getValueAsDouble (col,row));
+			}
+		buf.putInt (8,checksum(scratch));
+
+		mapRegion (records);
+		region.position ((int)((records-regionStart)*recordSize));
+		region.put (scratch);
+		records++;
+		}
+
+	/**
+	 * Marks all records written so far as belonging to completed slices up to "slice" and
+	 * periodically forces the log to disk.
+	 */
+	public void checkpoint (int slice) throws IOException
+		{
+		if (columns == null) return;
+		mapHeader ();
+		committed = records;
+		lastSlice = slice;
+		header.putLong (OFF_RECORDS,committed);
+		header.putInt (OFF_SLICE,lastSlice);
+		if (System.currentTimeMillis()-lastForce >= CHECKPOINT_MILLIS)
+			force ();
+		}
+
+	/**
+	 * Writes all mapped pages to disk.
+	 */
+	public void force ()
+		{
+		if (region != null) region.force();
+		if (header != null) header.force();
+		lastForce = System.currentTimeMillis();
+		}
+
+	/**
+	 * Commits everything written and closes the file.  The file is not truncated since the regions
+	 * mapped cannot be unmapped; the unused end of the last region is removed when the log is opened again.
+	 */
+	public void close ()
+		{
+		if (header != null)
+			{
+			committed = records;
+			header.putLong (OFF_RECORDS,committed);
+			force ();
+			}
+		region = null;
+		header = null;
+		try	{
+			raf.close();
+			}
+		catch (IOException e)
+			{
+			}
+		}
+
+	/**
+	 * Returns the slice number of record k.
+	 */
+	public int slice (long k) throws IOException
+		{
+		readRecord (k);
+		return readBuffer.getInt(0);
+		}
+
+	/**
+	 * Returns the number of the run (1,2,...) in which record k was appended.
+	 */
+	public int run (long k) throws IOException
+		{
+		readRecord (k);
+		return readBuffer.getInt(4);
+		}
+
+	/**
+	 * Returns the label (e.g. the file name) of record k.
+	 */
+	public String label (long k) throws IOException
+		{
+		readRecord (k);
+		byte[] b = readBuffer.array();
+		int n = 0;
+		while (n < LABEL_SIZE && b[PREFIX+n] != 0) n++;
+		return new String (b,PREFIX,n,"UTF-8");
+		}
+
+	/**
+	 * Returns the values of record k in the order of columns().
+	 */
+	public double[] values (long k) throws IOException
+		{
+		readRecord (k);
+		double[] v = new double[columns.length];
+		for (int c=0; c < v.length; c++)
+			v[c] = readBuffer.getDouble (PREFIX+LABEL_SIZE+8*c);
+		return v;
+		}
+
+	/**
+	 * Returns the index of the named column in the schema or -1.
+	 */
+	public int columnIndex (String name)
+		{
+		if (columns == null) return -1;
+		for (int c=0; c < columns.length; c++)
+			{
+			if (columns[c].equals(name)) return c;
+			}
+		return -1;
+		}
+
+	protected int checksum (byte[] b)
+		{
+		crc.reset();
+		crc.update (b,0,8);
+		crc.update (b,12,recordSize-12);
+		return (int)crc.getValue();
+		}
+
+	protected void readRecord (long k) throws IOException
+		{
+		if (k < 0 || k >= records)
+			throw new IOException ("No record #"+k+" in "+file.getName());
+		if (k == readIndex) return;
+		if (readBuffer == null || readBuffer.capacity() != recordSize)
+			readBuffer = ByteBuffer.allocate (recordSize);
+		readBuffer.clear();
+		long pos = headerSize+k*recordSize;
+		while (readBuffer.hasRemaining())
+			{
+			if (channel.read (readBuffer,pos+readBuffer.position()) < 0)
+				throw new EOFException ("Truncated record #"+k+" in "+file.getName());
+			}
+		readIndex = k;
+		}
+
+	/**
+	 * Closes the current segment and continues in the next one.
+	 */
+	protected void nextSegment () throws IOException
+		{
+		close ();
+		do	{
+			segment++;
+			}
+			while (segmentFile(segment).exists());
+		open (segmentFile(segment));
+		}
+
+	/**
+	 * Truncates the file unless this log has mapped it.  The file may also still be mapped by a log
+	 * closed earlier (until its buffers are garbage-collected), which some systems do not allow: the
+	 * bytes beyond the committed records are never read, so then they are simply left in place.
+	 */
+	protected void truncate (long size)
+		{
+		if (mapped) return;
+		try	{
+			channel.truncate (size);
+			}
+		catch (IOException e)
+			{
+			}
+		}
+
+	/**
+	 * Maps the header, e.g. when the first record is appended.
+	 */
+	protected void mapHeader () throws IOException
+		{
+		if (header == null)
+			header = channel.map (FileChannel.MapMode.READ_WRITE,0,headerSize);
+		mapped = true;
+		}
+
+	/**
+	 * Maps the region of the file containing record k (the file grows as necessary).
+	 */
+	protected void mapRegion (long k) throws IOException
+		{
+		if (region != null && k >= regionStart && k < regionStart+REGION_RECORDS) return;
+		if (region != null) region.force();
+		regionStart = (k/REGION_RECORDS)*REGION_RECORDS;
+		region = channel.map (FileChannel.MapMode.READ_WRITE,
+				headerSize+regionStart*recordSize, (long)REGION_RECORDS*recordSize);
+		mapped = true;
+		}
+
+	/**
+	 * Takes the schema from the columns of the table and writes the header.
+	 */
+	protected void createSchema (ResultsTable table) throws IOException
+		{
+		int n = 0;
+		int last = table.getLastColumn();
+		for (int i=0; i <= last; i++)
+			{
+			if (table.columnExists(i)) n++;
+			}
+		columns = new String[n];
+		n = 0;
+		for (int i=0; i <= last; i++)
+			{
+			if (table.columnExists(i)) columns[n++] = table.getColumnHeading(i);
+			}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream (bytes);
+		out.writeLong (MAGIC);
+		out.writeInt (VERSION);
+		out.writeInt (columns.length);
+		out.writeInt (PREFIX+LABEL_SIZE+8*columns.length);
+		out.writeInt (0);				// HEADER SIZE, SEE BELOW
+		out.writeLong (0L);				// COMMITTED RECORDS
+		out.writeInt (0);				// LAST COMPLETED SLICE
+		out.writeInt (0);				// RUNS
+		while (out.size() < FIXED_HEADER)
+			out.writeByte (0);
+		out.writeUTF (title);
+		for (int c=0; c < columns.length; c++)
+			out.writeUTF (columns[c]);
+		while (out.size()%8 != 0)
+			out.writeByte (0);
+		out.flush();
+		byte[] b = bytes.toByteArray();
+		recordSize = PREFIX+LABEL_SIZE+8*columns.length;
+		headerSize = b.length;
+		ByteBuffer.wrap(b).putInt (20,headerSize);
+
+		truncate (0);
+		channel.write (ByteBuffer.wrap(b),0);
+		header = null;
+		scratch = new byte[recordSize];
+		records = committed = 0;
+		runs = run = 0;
+		regionStart = -1;
+		}
+
+	/**
+	 * Finds the table columns of the schema columns.  Returns false if the table has any others.
+	 */
+	protected boolean matchSchema (ResultsTable table)
+		{
+		int last = table.getLastColumn();
+		if (table == lastTable && last == lastTableColumn) return true;
+		for (int i=0; i <= last; i++)
+			{
+			if (table.columnExists(i) && columnIndex(table.getColumnHeading(i)) < 0)
+				return false;
+			}
+		tableColumns = new int[columns.length];
+		for (int c=0; c < columns.length; c++)
+			{
+			int col = table.getColumnIndex (columns[c]);
+			tableColumns[c] = (col >= 0 && table.columnExists(col)) ? col : -1;
+			}
+		lastTable = table;
+		lastTableColumn = last;
+		return true;
+		}
+
+	/**
+	 * Reads the header of an existing log and checks the committed records.  Returns false if
+	 * the file is empty, not a log, or the log of a different image.
+	 */
+	protected boolean readHeader () throws IOException
+		{
+		long size = channel.size();
+		if (size < FIXED_HEADER) return false;
+		ByteBuffer fixed = ByteBuffer.allocate (FIXED_HEADER);
+		channel.read (fixed,0);
+		if (fixed.getLong(0) != MAGIC || fixed.getInt(8) != VERSION) return false;
+		int n = fixed.getInt(12);
+		recordSize = fixed.getInt(16);
+		headerSize = fixed.getInt(20);
+		committed = fixed.getLong(OFF_RECORDS);
+		lastSlice = fixed.getInt(OFF_SLICE);
+		runs = fixed.getInt(OFF_RUNS);
+		if (n < 0 || recordSize != PREFIX+LABEL_SIZE+8*n || headerSize < FIXED_HEADER || headerSize > size)
+			return false;
+
+		ByteBuffer schema = ByteBuffer.allocate (headerSize-FIXED_HEADER);
+		channel.read (schema,FIXED_HEADER);
+		DataInputStream in = new DataInputStream (new ByteArrayInputStream (schema.array()));
+		try	{
+			if (!title.equals(in.readUTF())) return false;
+			columns = new String[n];
+			for (int c=0; c < n; c++)
+				columns[c] = in.readUTF();
+			}
+		catch (IOException e)
+			{
+			return false;
+			}
+
+		// ONLY COMPLETE RECORDS WITH THE CORRECT CHECKSUM (E.G. AFTER A POWER FAILURE)
+
+		records = Math.max(0L,Math.min(committed,(size-headerSize)/recordSize));
+		for (long k=0; k < records; k++)
+			{
+			readRecord (k);
+			if (readBuffer.getInt(8) != checksum(readBuffer.array()))
+				{
+				// THE SLICE OF THE PREVIOUS RECORD MAY BE INCOMPLETE
+				long keep = k;
+				lastSlice = 0;
+				if (k > 0)
+					{
+					int s = slice (k-1);
+					while (keep > 0 && slice(keep-1) == s)
+						keep--;
+					if (keep > 0)
+						lastSlice = slice (keep-1);
+					}
+				records = keep;
+				break;
+				}
+			}
+		readIndex = -1;
+		committed = records;
+		ByteBuffer counts = ByteBuffer.allocate (12);
+		counts.putLong (0,committed);
+		counts.putInt (8,lastSlice);
+		channel.write (counts,OFF_RECORDS);
+
+		// REMOVE THE UNUSED END OF THE LAST REGION
+		truncate (headerSize+committed*recordSize);
+		scratch = new byte[recordSize];
+		return true;
+		}
+	}
@@ -0,0 +1,1093 @@
+// PlateSolver.java
+
+import ij.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import astroj.*;
+
+/**
+ * Blind astrometry: finds the WCS of an image without any prior knowledge of its position, orientation
+ * or exact scale by matching quadrilaterals ("quads") of stars against an index built from a local
+ * StarCatalogue (in the manner of astrometry.net, Lang et al. 2010).
+ *
+ * Quads: the two stars A,B of a quad with the largest separation define a coordinate frame in which A is
+ * (0,0) and B is (1,0); the other two stars C,D must lie within the circle with the diameter AB, and their
+ * coordinates (uC,vC,uD,vD) are the "code" of the quad, which is invariant to shifts, rotations and changes
+ * of scale.  The code is made unique by ordering C,D by u and, if uC+uD > 1, exchanging A and B.  Since an
+ * image may be mirrored relative to the sky, the codes of the image quads are looked up for both parities.
+ *
+ * Index: the sky is divided into cells of about dmax/2 x dmax/2 [deg]; the STARS_PER_CELL brightest stars of
+ * each cell are the index stars (stored as a StarCatalogue "<index>_stars.cat"), and for each cell up to
+ * QUADS_PER_CELL quads are formed from pairs A,B of the brightest index stars with a separation between dmin
+ * and dmax whose centre lies within the cell, completed by the two brightest stars within their circle.
+ *
+ * Index file format (big-endian, as written by DataOutputStream):
+ *	header		MAGIC (8 bytes), version (int), number of quads (int), dmin and dmax [deg] (double),
+ *			padded to HEADER_SIZE bytes
+ *	quads		QUAD_SIZE bytes each: R.A. and Decl. [deg] of A,B,C,D (double) and the code (4 floats)
+ * The quads are stored as an implicit kd-tree of their codes: the quad in the middle of a range of quads
+ * is the median of the range in the coordinate depth%4, the quads before it are not larger and those after
+ * it not smaller; ranges of no more than LEAF_SIZE quads are not split.  The quads are memory-mapped, so
+ * a lookup only reads the few pages of the tree which it visits.
+ *
+ * Solving: quads of the FIELD_STARS brightest stars of the image are looked up (within CODE_TOLERANCE); each
+ * index quad found gives a hypothesis, i.e. an affine transformation from pixels to the gnomonic projection
+ * about the centre of the quad, which is verified by projecting all index stars of the field into the image
+ * and counting those within MATCH_RADIUS of a star of the image.  A hypothesis is accepted if the probability
+ * of so many matches by chance (binomial with the fraction of the image covered by the match circles) is
+ * smaller than exp(LOG_ACCEPT).
+ *
+ * A PlateSolver is only read after it has been opened, so one instance can solve many frames in parallel.
+ * The instance returned by open() is shared: each caller has to release() it when done, and an instance
+ * replaced by a different or modified index is only closed when it has no more users.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes The instance shared by open() is reference-counted (release()).
+ *
+ * @version 1.2
+ * @date 2026-Oct-19
+ * @changes build() takes the numbers of stars and quads per cell as parameters and replaces the index
+ *	files only when they are complete.
+ */
+public class PlateSolver
+	{
+	public static String MAGIC = "QUADINDX";
+	public static int VERSION = 1;
+	public static int HEADER_SIZE = 64;
+	public static int QUAD_SIZE = 80;
+	public static int LEAF_SIZE = 8;
+
+	public static int STARS_PER_CELL = 12;
+	public static int QUADS_PER_CELL = 16;
+
+	public static int FIELD_STARS = 40;		// IMAGE STARS USED TO FORM QUADS
+	public static int INNER_STARS = 4;		// CANDIDATES FOR C,D IN THE CIRCLE OF AN IMAGE QUAD
+	public static int VERIFY_STARS = 300;		// IMAGE STARS USED FOR THE VERIFICATION
+	public static double CODE_TOLERANCE = 0.01;
+	public static double SKEW_LIMIT = 0.1;		// ALLOWED DIFFERENCE OF THE SCALES AND SKEW OF A HYPOTHESIS
+	public static double MATCH_RADIUS = 3.0;	// [pixels]
+	public static int MIN_MATCHES = 8;
+	public static double LOG_ACCEPT = -25.0;
+	public static int MAX_REFINE = 10;
+
+	protected static double D2R = Math.PI/180.0;
+
+	protected File file;
+	protected RandomAccessFile raf;
+	protected MappedByteBuffer quads;
+	protected int nQuads;
+	protected double dmin,dmax;
+	protected StarCatalogue stars;
+	protected long modified;
+
+	protected static PlateSolver opened = null;	// LAST INDEX OPENED BY open()
+	protected int users = 0;			// CALLERS OF open() WHICH HAVE NOT YET CALLED release()
+
+	/**
+	 * A solution: an affine transformation from (ImageJ) pixels to the gnomonic projection [deg] about the
+	 * tangent point (ra0,dec0), and the stars which were matched with it.
+	 */
+	public static class Solution
+		{
+		public double ra0,dec0;
+		public double[] c = new double[3];	// xi  = c[0]+c[1]*x+c[2]*y
+		public double[] d = new double[3];	// eta = d[0]+d[1]*x+d[2]*y
+		public int nIndex = 0;			// INDEX STARS WITHIN THE IMAGE
+		public int nMatched = 0;
+		public double logProbability = 0.0;	// OF THE MATCHES BY CHANCE
+		public double[] x,y,ra,dec;		// MATCHED STARS
+
+		/**
+		 * Returns the mean scale in arcsec/pixel.
+		 */
+		public double scale ()
+			{
+			return 3600.0*Math.sqrt(Math.abs(c[1]*d[2]-c[2]*d[1]));
+			}
+
+		/**
+		 * Returns the R.A. and Decl. [deg] of the ImageJ pixel position (x,y).
+		 */
+		public double[] radec (double x, double y)
+			{
+			return deproject (ra0,dec0,c[0]+c[1]*x+c[2]*y,d[0]+d[1]*x+d[2]*y);
+			}
+
+		/**
+		 * Returns the ImageJ pixel position of (xi,eta) or null if the transformation is singular.
+		 */
+		public double[] pixels (double xi, double eta)
+			{
+			double det = c[1]*d[2]-c[2]*d[1];
+			if (det == 0.0) return null;
+			double u = xi-c[0];
+			double v = eta-d[0];
+			return new double[] {(d[2]*u-c[2]*v)/det,(-d[1]*u+c[1]*v)/det};
+			}
+		}
+
+	/**
+	 * The stars of an image being solved.
+	 */
+	protected static class Field
+		{
+		double[] x,y;
+		int n;
+		int width,height;
+		StarGrid grid;
+		int[] mark;
+		int stamp = 0;
+		}
+
+	/**
+	 * Numbers of the quads found by a lookup.
+	 */
+	protected static class Hits
+		{
+		int n = 0;
+		int[] k = new int[16];
+
+		void add (int q)
+			{
+			if (n == k.length)
+				k = Arrays.copyOf (k,2*n);
+			k[n++] = q;
+			}
+		}
+
+	/**
+	 * Opens an index file and its index stars.
+	 */
+	public PlateSolver (File file) throws IOException
+		{
+		this.file = file;
+		modified = file.lastModified();
+		raf = new RandomAccessFile (file,"r");
+		FileChannel channel = raf.getChannel();
+		ByteBuffer hdr = channel.map (FileChannel.MapMode.READ_ONLY,0,HEADER_SIZE);
+		byte[] magic = new byte[MAGIC.length()];
+		hdr.get (magic);
+		if (!MAGIC.equals(new String(magic,"US-ASCII")) || hdr.getInt() != VERSION)
+			{
+			close ();
+			throw new IOException ("Not an astrometric index: "+file.getName());
+			}
+		nQuads = hdr.getInt();
+		dmin = hdr.getDouble();
+		dmax = hdr.getDouble();
+		quads = channel.map (FileChannel.MapMode.READ_ONLY,HEADER_SIZE,(long)nQuads*QUAD_SIZE);
+		try	{
+			stars = new StarCatalogue (starsFile(file));
+			}
+		catch (IOException e)
+			{
+			close ();
+			throw e;
+			}
+		}
+
+	/**
+	 * Returns the opened index, which stays mapped for further solutions as long as the file is unchanged.
+	 * The caller has to release() it when done.  A previous index still in use by other threads is only
+	 * closed by its last release().
+	 */
+	public static synchronized PlateSolver open (File file) throws IOException
+		{
+		if (opened != null && opened.file.equals(file) && opened.modified == file.lastModified())
+			{
+			opened.users++;
+			return opened;
+			}
+		PlateSolver previous = opened;
+		opened = null;
+		if (previous != null && previous.users == 0)
+			previous.close();
+		opened = new PlateSolver (file);
+		opened.users = 1;
+		return opened;
+		}
+
+	/**
+	 * Releases an index returned by open(): it is closed if it has been replaced and has no more users,
+	 * otherwise it stays open for the next open().
+	 */
+	public void release ()
+		{
+		synchronized (PlateSolver.class)
+			{
+			if (users > 0) users--;
+			if (users == 0 && this != opened)
+				close();
+			}
+		}
+
+	public int getNumberOfQuads ()		{ return nQuads; }
+	public double getMinimumSize ()		{ return dmin; }
+	public double getMaximumSize ()		{ return dmax; }
+	public File getFile ()			{ return file; }
+
+	public void close ()
+		{
+		if (stars != null)
+			stars.close();
+		try	{
+			raf.close();
+			}
+		catch (IOException e) {}
+		}
+
+	/**
+	 * Returns the file of the index stars belonging to an index file.
+	 */
+	public static File starsFile (File index)
+		{
+		String name = index.getName();
+		if (name.indexOf('.') > 0)
+			name = name.substring(0,name.lastIndexOf('.'));
+		return new File (index.getParentFile(),name+"_stars.cat");
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// SOLVING
+
+	/**
+	 * Solves the image with the n stars at the ImageJ positions x,y (sorted by decreasing brightness, as
+	 * found by StarFinder) for a scale between scaleMin and scaleMax [arcsec/pixel].  Returns null if no
+	 * solution could be found.
+	 */
+	public Solution solve (double[] x, double[] y, int n, int width, int height, double scaleMin, double scaleMax)
+					throws IOException
+		{
+		Field f = new Field ();
+		f.x = x;
+		f.y = y;
+		f.n = Math.min(n,VERIFY_STARS);
+		f.width = width;
+		f.height = height;
+		f.grid = new StarGrid (x,y,f.n,2.0*MATCH_RADIUS);
+		f.mark = new int[f.n];
+
+		int nf = Math.min(n,FIELD_STARS);
+		double pmin = dmin*3600.0/scaleMax;
+		double pmax = dmax*3600.0/scaleMin;
+		double[] qx = new double[4];
+		double[] qy = new double[4];
+		int[] star = new int[4];
+		int[] perm = new int[4];
+		double[] code = new double[4];
+		int[] inner = new int[INNER_STARS];
+		Hits hits = new Hits ();
+
+		for (int j=1; j < nf; j++)
+			{
+			for (int i=0; i < j; i++)
+				{
+				double dx = x[j]-x[i];
+				double dy = y[j]-y[i];
+				double sep = Math.sqrt(dx*dx+dy*dy);
+				if (sep < pmin || sep > pmax) continue;
+
+				// THE BRIGHTEST STARS WITHIN THE CIRCLE WITH THE DIAMETER AB
+
+				double mx = 0.5*(x[i]+x[j]);
+				double my = 0.5*(y[i]+y[j]);
+				double r2 = 0.25*sep*sep;
+				int ni = 0;
+				for (int k=0; k < nf && ni < INNER_STARS; k++)
+					{
+					if (k == i || k == j) continue;
+					double ex = x[k]-mx;
+					double ey = y[k]-my;
+					if (ex*ex+ey*ey < r2)
+						inner[ni++] = k;
+					}
+
+				for (int a=0; a < ni; a++)
+					{
+					for (int b=a+1; b < ni; b++)
+						{
+						star[0] = i;
+						star[1] = j;
+						star[2] = inner[a];
+						star[3] = inner[b];
+						for (int parity=0; parity < 2; parity++)
+							{
+							for (int m=0; m < 4; m++)
+								{
+								qx[m] = x[star[m]];
+								qy[m] = (parity == 0) ? y[star[m]] : -y[star[m]];
+								perm[m] = m;
+								}
+							if (!code (qx,qy,perm,code)) continue;
+							hits.n = 0;
+							search (code,CODE_TOLERANCE,0,nQuads,0,hits);
+							for (int h=0; h < hits.n; h++)
+								{
+								Solution s = hypothesis (hits.k[h],star,perm,f,scaleMin,scaleMax);
+								if (s != null && verify(s,f,MATCH_RADIUS) && accept(s,f))
+									{
+									refine (s,f);
+									return s;
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		return null;
+		}
+
+	/**
+	 * Finds the quads whose codes lie within tol of the code in the subtree of the quads lo,...,hi-1.
+	 */
+	protected void search (double[] code, double tol, int lo, int hi, int depth, Hits hits)
+		{
+		if (hi-lo <= LEAF_SIZE)
+			{
+			for (int k=lo; k < hi; k++)
+				test (k,code,tol,hits);
+			return;
+			}
+		int mid = (lo+hi) >>> 1;
+		int dim = depth%4;
+		test (mid,code,tol,hits);
+		double c = quads.getFloat(mid*QUAD_SIZE+64+4*dim);
+		if (code[dim]-tol <= c)
+			search (code,tol,lo,mid,depth+1,hits);
+		if (code[dim]+tol >= c)
+			search (code,tol,mid+1,hi,depth+1,hits);
+		}
+
+	protected void test (int k, double[] code, double tol, Hits hits)
+		{
+		int off = k*QUAD_SIZE+64;
+		double sum = 0.0;
+		for (int i=0; i < 4; i++)
+			{
+			double e = quads.getFloat(off+4*i)-code[i];
+			sum += e*e;
+			}
+		if (sum <= tol*tol)
+			hits.add (k);
+		}
+
+	/**
+	 * Derives the affine transformation which maps the image stars star[perm[m]] onto the stars m of the
+	 * index quad q.  Returns null if its scale is not within the limits or it is not nearly a similarity.
+	 */
+	protected Solution hypothesis (int q, int[] star, int[] perm, Field f, double scaleMin, double scaleMax)
+		{
+		int off = q*QUAD_SIZE;
+		double[] ra = new double[4];
+		double[] dec = new double[4];
+		for (int m=0; m < 4; m++)
+			{
+			ra[m] = quads.getDouble(off+16*m);
+			dec[m] = quads.getDouble(off+16*m+8);
+			}
+		Solution s = new Solution ();
+		double[] t = centre (ra,dec,4);
+		s.ra0 = t[0];
+		s.dec0 = t[1];
+
+		double[] xs = new double[4];
+		double[] ys = new double[4];
+		double[] xi = new double[4];
+		double[] eta = new double[4];
+		double[] p = new double[2];
+		for (int m=0; m < 4; m++)
+			{
+			xs[m] = f.x[star[perm[m]]];
+			ys[m] = f.y[star[perm[m]]];
+			if (!project (s.ra0,s.dec0,ra[m],dec[m],p)) return null;
+			xi[m] = p[0];
+			eta[m] = p[1];
+			}
+		if (!fitAffine (xs,ys,xi,4,s.c) || !fitAffine (xs,ys,eta,4,s.d))
+			return null;
+
+		double sx = 3600.0*Math.hypot(s.c[1],s.d[1]);
+		double sy = 3600.0*Math.hypot(s.c[2],s.d[2]);
+		if (sx < scaleMin || sx > scaleMax || sy < scaleMin || sy > scaleMax)
+			return null;
+		if (Math.abs(sx/sy-1.0) > SKEW_LIMIT)
+			return null;
+		if (Math.abs(s.c[1]*s.c[2]+s.d[1]*s.d[2])*3600.0*3600.0 > SKEW_LIMIT*sx*sy)
+			return null;
+		return s;
+		}
+
+	/**
+	 * Projects the index stars of the field into the image and matches them with the stars of the image
+	 * within radius [pixels].  Returns false if the field cannot be projected.
+	 */
+	protected boolean verify (Solution s, Field f, double radius) throws IOException
+		{
+		double[] centre = s.radec (0.5*f.width,0.5*f.height);
+		double size = 0.5*Math.hypot(f.width,f.height)*s.scale()/3600.0*1.05;
+		if (size >= 90.0) return false;
+		StarCatalogue.Stars idx = stars.cone (centre[0],centre[1],size,-99.0,99.0);
+
+		f.stamp++;
+		int m = 0;
+		int nIn = 0;
+		double[] xm = new double[idx.n];
+		double[] ym = new double[idx.n];
+		double[] rm = new double[idx.n];
+		double[] dm = new double[idx.n];
+		double[] p = new double[2];
+		for (int k=0; k < idx.n; k++)
+			{
+			if (!project (s.ra0,s.dec0,idx.ra[k],idx.dec[k],p)) continue;
+			double[] xy = s.pixels (p[0],p[1]);
+			if (xy == null) return false;
+			if (xy[0] < 0.0 || xy[1] < 0.0 || xy[0] >= f.width || xy[1] >= f.height) continue;
+			nIn++;
+
+			// NEAREST IMAGE STAR NOT YET MATCHED
+
+			int best = -1;
+			double dbest = radius*radius;
+			for (int i : f.grid.near (xy[0],xy[1],radius))
+				{
+				if (f.mark[i] == f.stamp) continue;
+				double dx = f.x[i]-xy[0];
+				double dy = f.y[i]-xy[1];
+				if (dx*dx+dy*dy <= dbest)
+					{
+					best = i;
+					dbest = dx*dx+dy*dy;
+					}
+				}
+			if (best < 0) continue;
+			f.mark[best] = f.stamp;
+			xm[m] = f.x[best];
+			ym[m] = f.y[best];
+			rm[m] = idx.ra[k];
+			dm[m] = idx.dec[k];
+			m++;
+			}
+		s.nIndex = nIn;
+		s.nMatched = m;
+		s.x = xm;
+		s.y = ym;
+		s.ra = rm;
+		s.dec = dm;
+
+		// THE 4 STARS OF THE QUAD MATCH BY CONSTRUCTION
+
+		double p0 = Math.min(1.0,f.n*Math.PI*radius*radius/((double)f.width*f.height));
+		s.logProbability = logTail (nIn-4,m-4,p0);
+		return true;
+		}
+
+	protected boolean accept (Solution s, Field f)
+		{
+		return s.nMatched >= MIN_MATCHES && s.logProbability < LOG_ACCEPT;
+		}
+
+	/**
+	 * Fits the transformation to all matched stars and matches the stars again, as long as more stars are
+	 * matched (at most MAX_REFINE times): first within twice the match radius, since the transformation
+	 * of the quad alone may be poor far from the quad, then within the match radius.
+	 */
+	protected void refine (Solution s, Field f) throws IOException
+		{
+		for (int pass=0; pass < 2; pass++)
+			{
+			double radius = (pass == 0) ? 2.0*MATCH_RADIUS : MATCH_RADIUS;
+			for (int iter=0; iter < MAX_REFINE; iter++)
+				{
+				int n = s.nMatched;
+				if (!refineOnce (s,f,radius) || (s.nMatched <= n && iter > 0)) break;
+				}
+			}
+		}
+
+	protected boolean refineOnce (Solution s, Field f, double radius) throws IOException
+		{
+		int n = s.nMatched;
+		double[] xi = new double[n];
+		double[] eta = new double[n];
+		double[] p = new double[2];
+		for (int k=0; k < n; k++)
+			{
+			project (s.ra0,s.dec0,s.ra[k],s.dec[k],p);
+			xi[k] = p[0];
+			eta[k] = p[1];
+			}
+		double[] c = new double[3];
+		double[] d = new double[3];
+		if (!fitAffine (s.x,s.y,xi,n,c) || !fitAffine (s.x,s.y,eta,n,d))
+			return false;
+		Solution r = new Solution ();
+		r.ra0 = s.ra0;
+		r.dec0 = s.dec0;
+		r.c = c;
+		r.d = d;
+		if (!verify (r,f,radius) || r.nMatched < MIN_MATCHES)
+			return false;
+		s.c = c;
+		s.d = d;
+		s.nIndex = r.nIndex;
+		s.nMatched = r.nMatched;
+		s.logProbability = r.logProbability;
+		s.x = r.x;
+		s.y = r.y;
+		s.ra = r.ra;
+		s.dec = r.dec;
+		return true;
+		}
+
+	/**
+	 * Writes the solution as a TAN WCS with a CD matrix into the FITS header of the image (creating a minimal
+	 * header if there is none), refines it with all matched stars (WCSFitter) and saves it via
+	 * WCS.saveFITS().  Returns the new WCS or null if it could not be created.
+	 */
+	public static WCS saveWCS (ImagePlus img, Solution s)
+		{
+		String[] hdr = FitsJ.getHeader (img);
+		if (hdr == null)
+			{
+			hdr = new String[] {"SIMPLE  =                    T","END"};
+			hdr = FitsJ.setCard ("BITPIX",-32,"number of bits per pixel",hdr);
+			hdr = FitsJ.setCard ("NAXIS",2,"number of axes",hdr);
+			hdr = FitsJ.setCard ("NAXIS1",img.getWidth(),"length of axis 1",hdr);
+			hdr = FitsJ.setCard ("NAXIS2",img.getHeight(),"length of axis 2",hdr);
+			}
+
+		// REMOVE ANY OLD (BROKEN) WCS
+
+		List<String> keys = Arrays.asList ("CD1_1","CD1_2","CD2_1","CD2_2","PC1_1","PC1_2","PC2_1","PC2_2",
+						"CDELT1","CDELT2","CROTA1","CROTA2","LONPOLE","LATPOLE");
+		List<String> cards = new ArrayList<String>();
+		for (String card : hdr)
+			{
+			String key = FitsJ.getCardKey (card);
+			if (key == null || !keys.contains(key.trim()))
+				cards.add (card);
+			}
+		hdr = cards.toArray (new String[cards.size()]);
+
+		// CRPIX = POSITION OF THE TANGENT POINT, xi=eta=0
+
+		double[] xy = s.pixels (0.0,0.0);
+		if (xy == null) return null;
+		hdr = FitsJ.setCard ("CTYPE1","RA---TAN","coordinate type (blind solution)",hdr);
+		hdr = FitsJ.setCard ("CTYPE2","DEC--TAN","coordinate type (blind solution)",hdr);
+		hdr = FitsJ.setCard ("EQUINOX",2000.0,"equinox of coordinates",hdr);
+		hdr = FitsJ.setCard ("CRVAL1",s.ra0,"R.A. of reference pixel [deg]",hdr);
+		hdr = FitsJ.setCard ("CRVAL2",s.dec0,"Decl. of reference pixel [deg]",hdr);
+		hdr = FitsJ.setCard ("CRPIX1",xy[0]-Centroid.PIXELCENTER+1.0,"reference pixel",hdr);
+		hdr = FitsJ.setCard ("CRPIX2",img.getHeight()-(xy[1]-Centroid.PIXELCENTER),"reference pixel",hdr);
+		hdr = FitsJ.setCard ("CD1_1", s.c[1],"transformation matrix [deg/pixel]",hdr);
+		hdr = FitsJ.setCard ("CD1_2",-s.c[2],"transformation matrix [deg/pixel]",hdr);
+		hdr = FitsJ.setCard ("CD2_1", s.d[1],"transformation matrix [deg/pixel]",hdr);
+		hdr = FitsJ.setCard ("CD2_2",-s.d[2],"transformation matrix [deg/pixel]",hdr);
+		FitsJ.putHeader (img,hdr);
+
+		WCS wcs = new WCS (img);
+		if (!wcs.hasWCS()) return null;
+		WCSFitter fitter = new WCSFitter (wcs);
+		if (fitter.isValid())
+			{
+			fitter.setData (s.x,s.y,s.ra,s.dec,null,s.nMatched);
+			fitter.setFitCRPIX (false);
+			if (fitter.fit())
+				fitter.apply (wcs,false);
+			}
+		wcs.saveFITS (img);
+		return wcs;
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// BUILDING THE INDEX
+
+	/**
+	 * Builds the index file out (and its index stars) for quads with sizes between dmin and dmax [deg] from
+	 * the catalogue, with STARS_PER_CELL and QUADS_PER_CELL.  Returns the number of quads.
+	 */
+	public static int build (StarCatalogue cat, File out, double dmin, double dmax) throws IOException
+		{
+		return build (cat,out,dmin,dmax,STARS_PER_CELL,QUADS_PER_CELL);
+		}
+
+	/**
+	 * Builds the index file out (and its index stars) for quads with sizes between dmin and dmax [deg] from
+	 * the catalogue, using the starsPerCell brightest stars and up to quadsPerCell quads of each cell.  Both
+	 * files are written to temporary files which then replace them, so that an index which is still open
+	 * (and mapped) is not overwritten in place.  Returns the number of quads.
+	 */
+	public static int build (StarCatalogue cat, File out, double dmin, double dmax, int starsPerCell, int quadsPerCell)
+			throws IOException
+		{
+		File starsFile = starsFile (out);
+		File starsTmp = StarCatalogue.tempFile (starsFile);
+		File tmp = StarCatalogue.tempFile (out);
+		try	{
+			int nq = build (cat,tmp,starsTmp,dmin,dmax,starsPerCell,quadsPerCell);
+			StarCatalogue.replace (starsTmp,starsFile);
+			StarCatalogue.replace (tmp,out);
+			return nq;
+			}
+		finally	{
+			starsTmp.delete();
+			tmp.delete();
+			}
+		}
+
+	/**
+	 * Writes the quads to the index file out and the index stars to starsFile.
+	 */
+	protected static int build (StarCatalogue cat, File out, File starsFile, double dmin, double dmax,
+						int starsPerCell, int quadsPerCell) throws IOException
+		{
+		double h = 0.5*dmax;
+		int nb = (int)Math.ceil(180.0/h);
+
+		// THE BRIGHTEST STARS OF EACH CELL
+
+		StarCatalogue.Stars sel = new StarCatalogue.Stars ();
+		for (int b=0; b < nb; b++)
+			{
+			IJ.showProgress (b,2*nb);
+			double d0 = -90.0+b*h;
+			double d1 = Math.min(90.0,d0+h);
+			int nra = raCells (d0,d1,h);
+			for (int i=0; i < nra; i++)
+				{
+				double a0 = i*360.0/nra;
+				double a1 = (i+1)*360.0/nra;
+				StarCatalogue.Stars s = cat.cone (0.5*(a0+a1),0.5*(d0+d1),cellRadius(a0,a1,d0,d1),-99.0,99.0);
+				int m = 0;
+				int[] in = new int[s.n];
+				for (int k=0; k < s.n; k++)
+					{
+					if (inCell (s.ra[k],s.dec[k],a0,a1,d0,d1))
+						in[m++] = k;
+					}
+				int[] order = byBrightness (s,in,m);
+				for (int k=0; k < Math.min(m,starsPerCell); k++)
+					{
+					int j = order[k];
+					sel.add (s.ra[j],s.dec[j],s.mag1[j],s.mag2[j],s.id[j]);
+					}
+				}
+			}
+		StarCatalogue.write (starsFile,sel,Math.max(h,StarCatalogue.ZONE_HEIGHT));
+
+		// QUADS WITH THE CENTRE OF AB IN EACH CELL
+
+		int nq = 0;
+		double[] pos = new double[8*1024];
+		float[] codes = new float[4*1024];
+		StarCatalogue idx = new StarCatalogue (starsFile);
+		try	{
+			double[] qx = new double[4];
+			double[] qy = new double[4];
+			int[] perm = new int[4];
+			double[] code = new double[4];
+			int[] quad = new int[4];
+			double[] p = new double[2];
+			for (int b=0; b < nb; b++)
+				{
+				IJ.showProgress (nb+b,2*nb);
+				double d0 = -90.0+b*h;
+				double d1 = Math.min(90.0,d0+h);
+				int nra = raCells (d0,d1,h);
+				for (int i=0; i < nra; i++)
+					{
+					double a0 = i*360.0/nra;
+					double a1 = (i+1)*360.0/nra;
+					double ac = 0.5*(a0+a1);
+					double dc = 0.5*(d0+d1);
+					double rc = cellRadius (a0,a1,d0,d1);
+					StarCatalogue.Stars s = idx.cone (ac,dc,Math.min(90.0,rc+0.5*dmax),-99.0,99.0);
+					int m = 0;
+					int[] all = new int[s.n];
+					double[] xs = new double[s.n];
+					double[] ys = new double[s.n];
+					for (int k=0; k < s.n; k++)
+						{
+						if (!project (ac,dc,s.ra[k],s.dec[k],p)) continue;
+						all[m++] = k;
+						xs[k] = p[0];
+						ys[k] = p[1];
+						}
+					int[] order = byBrightness (s,all,m);
+					int quadsInCell = 0;
+					for (int jj=1; jj < m && quadsInCell < quadsPerCell; jj++)
+						{
+						for (int ii=0; ii < jj && quadsInCell < quadsPerCell; ii++)
+							{
+							int ka = order[ii];
+							int kb = order[jj];
+							double dx = xs[kb]-xs[ka];
+							double dy = ys[kb]-ys[ka];
+							double sep = Math.sqrt(dx*dx+dy*dy);
+							if (sep < dmin || sep > dmax) continue;
+							double[] mid = centre (new double[] {s.ra[ka],s.ra[kb]},new double[] {s.dec[ka],s.dec[kb]},2);
+							if (!inCell (mid[0],mid[1],a0,a1,d0,d1)) continue;
+
+							// THE TWO BRIGHTEST STARS WITHIN THE CIRCLE
+
+							double mx = 0.5*(xs[ka]+xs[kb]);
+							double my = 0.5*(ys[ka]+ys[kb]);
+							double r2 = 0.25*sep*sep;
+							int nc = 0;
+							quad[0] = ka;
+							quad[1] = kb;
+							for (int kk=0; kk < m && nc < 2; kk++)
+								{
+								int kc = order[kk];
+								if (kc == ka || kc == kb) continue;
+								double ex = xs[kc]-mx;
+								double ey = ys[kc]-my;
+								if (ex*ex+ey*ey < r2)
+									quad[2+nc++] = kc;
+								}
+							if (nc < 2) continue;
+							for (int q=0; q < 4; q++)
+								{
+								qx[q] = xs[quad[q]];
+								qy[q] = ys[quad[q]];
+								perm[q] = q;
+								}
+							if (!code (qx,qy,perm,code)) continue;
+
+							if (4*nq == codes.length)
+								{
+								pos = Arrays.copyOf (pos,2*pos.length);
+								codes = Arrays.copyOf (codes,2*codes.length);
+								}
+							for (int q=0; q < 4; q++)
+								{
+								pos[8*nq+2*q] = s.ra[quad[perm[q]]];
+								pos[8*nq+2*q+1] = s.dec[quad[perm[q]]];
+								codes[4*nq+q] = (float)code[q];
+								}
+							nq++;
+							quadsInCell++;
+							}
+						}
+					}
+				}
+			}
+		finally	{
+			idx.close();
+			}
+		IJ.showProgress (1.0);
+		if ((long)nq*QUAD_SIZE > Integer.MAX_VALUE)
+			throw new IOException ("Too many quads ("+nq+") - use a smaller catalogue or larger quads!");
+
+		// SORT INTO AN IMPLICIT KD-TREE AND WRITE
+
+		int[] order = new int[nq];
+		for (int k=0; k < nq; k++)
+			order[k] = k;
+		kdSort (order,codes,0,nq,0);
+
+		DataOutputStream output = new DataOutputStream (new BufferedOutputStream (new FileOutputStream(out),1<<16));
+		try	{
+			output.writeBytes (MAGIC);
+			output.writeInt (VERSION);
+			output.writeInt (nq);
+			output.writeDouble (dmin);
+			output.writeDouble (dmax);
+			for (int k=MAGIC.length()+4+4+8+8; k < HEADER_SIZE; k++)
+				output.writeByte (0);
+			for (int k=0; k < nq; k++)
+				{
+				int q = order[k];
+				for (int i=0; i < 8; i++)
+					output.writeDouble (pos[8*q+i]);
+				for (int i=0; i < 4; i++)
+					output.writeFloat (codes[4*q+i]);
+				}
+			}
+		finally	{
+			output.close();
+			}
+		return nq;
+		}
+
+	/**
+	 * Orders the quads lo,...,hi-1 into an implicit kd-tree.
+	 */
+	protected static void kdSort (int[] order, float[] codes, int lo, int hi, int depth)
+		{
+		if (hi-lo <= LEAF_SIZE) return;
+		int mid = (lo+hi) >>> 1;
+		select (order,codes,lo,hi,mid,depth%4);
+		kdSort (order,codes,lo,mid,depth+1);
+		kdSort (order,codes,mid+1,hi,depth+1);
+		}
+
+	/**
+	 * Partially sorts the quads lo,...,hi-1 so that quad k has the k-th smallest code coordinate dim, the
+	 * quads before it not larger ones and those after it not smaller ones.
+	 */
+	protected static void select (int[] order, float[] codes, int lo, int hi, int k, int dim)
+		{
+		int l = lo;
+		int r = hi-1;
+		while (r > l)
+			{
+			float pivot = codes[4*order[(l+r) >>> 1]+dim];
+			int i = l;
+			int j = r;
+			while (i <= j)
+				{
+				while (codes[4*order[i]+dim] < pivot) i++;
+				while (codes[4*order[j]+dim] > pivot) j--;
+				if (i <= j)
+					{
+					int t = order[i];
+					order[i++] = order[j];
+					order[j--] = t;
+					}
+				}
+			if (k <= j)
+				r = j;
+			else if (k >= i)
+				l = i;
+			else
+				break;
+			}
+		}
+
+	/**
+	 * Number of R.A. cells in the declination band d0,...,d1 so that the cells are about h wide.
+	 */
+	protected static int raCells (double d0, double d1, double h)
+		{
+		double cosd = (d0 <= 0.0 && d1 >= 0.0) ? 1.0 : Math.cos(Math.min(Math.abs(d0),Math.abs(d1))*D2R);
+		return Math.max(1,(int)Math.ceil(360.0*cosd/h));
+		}
+
+	/**
+	 * Radius [deg] of the circle about the centre of a cell which contains the cell.
+	 */
+	protected static double cellRadius (double a0, double a1, double d0, double d1)
+		{
+		double ac = 0.5*(a0+a1);
+		double dc = 0.5*(d0+d1);
+		double r = 0.0;
+		r = Math.max(r,CatalogueCache.distance (ac,dc,a0,d0));
+		r = Math.max(r,CatalogueCache.distance (ac,dc,a0,d1));
+		r = Math.max(r,CatalogueCache.distance (ac,dc,a1,d0));
+		r = Math.max(r,CatalogueCache.distance (ac,dc,a1,d1));
+		return r*1.001;
+		}
+
+	protected static boolean inCell (double ra, double dec, double a0, double a1, double d0, double d1)
+		{
+		ra = ((ra%360.0)+360.0)%360.0;
+		if (dec < d0 || (dec >= d1 && d1 < 90.0)) return false;
+		return ra >= a0 && ra < a1;
+		}
+
+	/**
+	 * Returns the stars in[0],...,in[m-1] sorted by their first magnitude (stars without one last).
+	 */
+	protected static int[] byBrightness (final StarCatalogue.Stars s, int[] in, int m)
+		{
+		Integer[] order = new Integer[m];
+		for (int k=0; k < m; k++)
+			order[k] = in[k];
+		Arrays.sort (order,new Comparator<Integer>()
+			{
+			public int compare (Integer a, Integer b)
+				{
+				float ma = Float.isNaN(s.mag1[a]) ? Float.MAX_VALUE : s.mag1[a];
+				float mb = Float.isNaN(s.mag1[b]) ? Float.MAX_VALUE : s.mag1[b];
+				return Float.compare (ma,mb);
+				}
+			});
+		int[] o = new int[m];
+		for (int k=0; k < m; k++)
+			o[k] = order[k];
+		return o;
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// GEOMETRY
+
+	/**
+	 * Computes the code of the quad qx[perm[m]],qy[perm[m]] (m=0,..,3), where perm[0],perm[1] are the stars
+	 * with the largest separation, and permutes perm into the canonical order A,B,C,D.  Returns false if
+	 * C or D do not lie within the circle with the diameter AB.
+	 */
+	protected static boolean code (double[] qx, double[] qy, int[] perm, double[] code)
+		{
+		double ax = qx[perm[0]];
+		double ay = qy[perm[0]];
+		double dx = qx[perm[1]]-ax;
+		double dy = qy[perm[1]]-ay;
+		double s = dx*dx+dy*dy;
+		if (s == 0.0) return false;
+
+		double rx = qx[perm[2]]-ax;
+		double ry = qy[perm[2]]-ay;
+		double uc = (rx*dx+ry*dy)/s;
+		double vc = (-rx*dy+ry*dx)/s;
+		rx = qx[perm[3]]-ax;
+		ry = qy[perm[3]]-ay;
+		double ud = (rx*dx+ry*dy)/s;
+		double vd = (-rx*dy+ry*dx)/s;
+		if ((uc-0.5)*(uc-0.5)+vc*vc >= 0.25 || (ud-0.5)*(ud-0.5)+vd*vd >= 0.25)
+			return false;
+
+		if (uc+ud > 1.0)		// EXCHANGE A AND B
+			{
+			int t = perm[0];
+			perm[0] = perm[1];
+			perm[1] = t;
+			uc = 1.0-uc;
+			vc = -vc;
+			ud = 1.0-ud;
+			vd = -vd;
+			}
+		if (uc > ud)			// EXCHANGE C AND D
+			{
+			int t = perm[2];
+			perm[2] = perm[3];
+			perm[3] = t;
+			double u = uc;
+			uc = ud;
+			ud = u;
+			double v = vc;
+			vc = vd;
+			vd = v;
+			}
+		code[0] = uc;
+		code[1] = vc;
+		code[2] = ud;
+		code[3] = vd;
+		return true;
+		}
+
+	/**
+	 * Gnomonic projection (xi,eta) [deg] of (ra,dec) about (ra0,dec0).  Returns false if the position is
+	 * not on the same hemisphere.
+	 */
+	protected static boolean project (double ra0, double dec0, double ra, double dec, double[] p)
+		{
+		double sd0 = Math.sin(dec0*D2R);
+		double cd0 = Math.cos(dec0*D2R);
+		double sd = Math.sin(dec*D2R);
+		double cd = Math.cos(dec*D2R);
+		double ca = Math.cos((ra-ra0)*D2R);
+		double den = sd*sd0+cd*cd0*ca;
+		if (den <= 0.0) return false;
+		p[0] = cd*Math.sin((ra-ra0)*D2R)/den/D2R;
+		p[1] = (sd*cd0-cd*sd0*ca)/den/D2R;
+		return true;
+		}
+
+	/**
+	 * Inverse of the gnomonic projection: returns the (ra,dec) [deg] of (xi,eta) [deg].
+	 */
+	protected static double[] deproject (double ra0, double dec0, double xi, double eta)
+		{
+		double x = xi*D2R;
+		double y = eta*D2R;
+		double sd0 = Math.sin(dec0*D2R);
+		double cd0 = Math.cos(dec0*D2R);
+		double den = cd0-y*sd0;
+		double ra = ra0+Math.atan2(x,den)/D2R;
+		double dec = Math.atan2(sd0+y*cd0,Math.sqrt(x*x+den*den))/D2R;
+		return new double[] {((ra%360.0)+360.0)%360.0,dec};
+		}
+
+	/**
+	 * Returns the direction [deg] of the mean of the unit vectors of the n positions.
+	 */
+	protected static double[] centre (double[] ra, double[] dec, int n)
+		{
+		double x = 0.0;
+		double y = 0.0;
+		double z = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			double cd = Math.cos(dec[k]*D2R);
+			x += cd*Math.cos(ra[k]*D2R);
+			y += cd*Math.sin(ra[k]*D2R);
+			z += Math.sin(dec[k]*D2R);
+			}
+		double a = Math.atan2(y,x)/D2R;
+		return new double[] {((a%360.0)+360.0)%360.0,Math.atan2(z,Math.sqrt(x*x+y*y))/D2R};
+		}
+
+	/**
+	 * Fits u = c[0]+c[1]*x+c[2]*y to n points by least squares.  Returns false if the points are collinear.
+	 */
+	protected static boolean fitAffine (double[] x, double[] y, double[] u, int n, double[] c)
+		{
+		double xm = 0.0;
+		double ym = 0.0;
+		double um = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			xm += x[k];
+			ym += y[k];
+			um += u[k];
+			}
+		xm /= n;
+		ym /= n;
+		um /= n;
+		double sxx = 0.0;
+		double sxy = 0.0;
+		double syy = 0.0;
+		double sxu = 0.0;
+		double syu = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			double dx = x[k]-xm;
+			double dy = y[k]-ym;
+			double du = u[k]-um;
+			sxx += dx*dx;
+			sxy += dx*dy;
+			syy += dy*dy;
+			sxu += dx*du;
+			syu += dy*du;
+			}
+		double det = sxx*syy-sxy*sxy;
+		if (det <= 1.e-12*sxx*syy) return false;
+		c[1] = (syy*sxu-sxy*syu)/det;
+		c[2] = (sxx*syu-sxy*sxu)/det;
+		c[0] = um-c[1]*xm-c[2]*ym;
+		return true;
+		}
+
+	/**
+	 * Natural logarithm of the probability of at least k successes in n trials with the probability p.
+	 */
+	protected static double logTail (int n, int k, double p)
+		{
+		if (k <= 0 || k <= n*p || p >= 1.0) return 0.0;
+		if (k > n || p <= 0.0) return Double.NEGATIVE_INFINITY;
+		double lp = Math.log(p);
+		double lq = Math.log1p(-p);
+		double t = k*lp+(n-k)*lq;
+		for (int i=0; i < k; i++)
+			t += Math.log((double)(n-i)/(i+1));
+		double sum = 1.0;
+		double ti = t;
+		for (int i=k; i < n; i++)
+			{
+			ti += Math.log((double)(n-i)/(i+1))+lp-lq;
+			sum += Math.exp(ti-t);
+			}
+		return t+Math.log(sum);
+		}
+	}
@@ -0,0 +1,255 @@
+// PolynomialTransform.java
+
+import Jama.*;
+import astroj.*;
+
+/**
+ * A polynomial transformation from the (Centroid.PIXELCENTER-based) positions (x,y) in a reference image
+ * to those in another image, e.g. for wide-field optics with distortion:
+ *	xw = sum ax[p,q]*u^p*v^q,  yw = sum ay[p,q]*u^p*v^q,  p+q <= order
+ * where u,v are the reference positions relative to the center of the fitted points in units of their
+ * extent (for a well-conditioned fit).  As in the SIP convention, this is the affine transformation of
+ * Align_Image plus the terms of order 2,...,order.  The coefficients are fitted by least squares (QR
+ * decomposition of Jama).
+ *
+ * Evaluating the polynomial for every pixel is expensive, so for resampling it is evaluated on a Grid of
+ * nodes every "step" pixels and interpolated bilinearly in between; the step is the largest power of 2
+ * (at most GRID_STEP) for which the interpolation error within the image stays below a given bound.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class PolynomialTransform
+	{
+	public static int GRID_STEP = 64;		// LARGEST GRID SPACING [pixels]
+	public static double MAX_GRID_ERROR = 0.01;	// DEFAULT BOUND OF THE INTERPOLATION ERROR [pixels]
+
+	protected int order,nTerms;
+	protected double x0,y0,s;			// NORMALIZATION OF THE REFERENCE POSITIONS
+	protected double[] ax,ay;			// COEFFICIENTS OF THE TERMS u^p*v^q
+	protected double rms = 0.0;
+
+	/**
+	 * Number of coefficients per coordinate (and minimum number of points) for a polynomial of the given order.
+	 */
+	public static int numberOfTerms (int order)
+		{
+		return (order+1)*(order+2)/2;
+		}
+
+	/**
+	 * Fits the transformation from the n reference positions (xr,yr) to the positions (xw,yw).  Returns
+	 * null if there are too few points or they do not determine the coefficients.
+	 */
+	public static PolynomialTransform fit (float[] xr, float[] yr, float[] xw, float[] yw, int n, int order)
+		{
+		PolynomialTransform pt = new PolynomialTransform ();
+		pt.order = order;
+		pt.nTerms = numberOfTerms (order);
+		if (n < pt.nTerms) return null;
+
+		double xmin = Double.MAX_VALUE;
+		double xmax = -Double.MAX_VALUE;
+		double ymin = Double.MAX_VALUE;
+		double ymax = -Double.MAX_VALUE;
+		for (int k=0; k < n; k++)
+			{
+			xmin = Math.min(xmin,xr[k]);
+			xmax = Math.max(xmax,xr[k]);
+			ymin = Math.min(ymin,yr[k]);
+			ymax = Math.max(ymax,yr[k]);
+			}
+		pt.x0 = 0.5*(xmin+xmax);
+		pt.y0 = 0.5*(ymin+ymax);
+		pt.s = 0.5*Math.max(xmax-xmin,ymax-ymin);
+		if (pt.s <= 0.0) return null;
+
+		Matrix a = new Matrix (n,pt.nTerms);
+		Matrix bx = new Matrix (n,1);
+		Matrix by = new Matrix (n,1);
+		double[] t = new double[pt.nTerms];
+		for (int k=0; k < n; k++)
+			{
+			pt.terms (xr[k],yr[k],t);
+			for (int m=0; m < pt.nTerms; m++)
+				a.set (k,m,t[m]);
+			bx.set (k,0,xw[k]);
+			by.set (k,0,yw[k]);
+			}
+		QRDecomposition qr = new QRDecomposition (a);
+		if (!qr.isFullRank()) return null;
+		pt.ax = qr.solve(bx).getColumnPackedCopy();
+		pt.ay = qr.solve(by).getColumnPackedCopy();
+
+		double sum = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			double dx = xw[k]-pt.x(xr[k],yr[k]);
+			double dy = yw[k]-pt.y(xr[k],yr[k]);
+			sum += dx*dx+dy*dy;
+			}
+		pt.rms = Math.sqrt(sum/n);
+		return pt;
+		}
+
+	public int getOrder ()		{ return order; }
+	public double getRMS ()		{ return rms; }
+
+	/**
+	 * Values of the terms u^p*v^q (p+q = 0,1,...,order) at the reference position (x,y).
+	 */
+	protected void terms (double x, double y, double[] t)
+		{
+		double u = (x-x0)/s;
+		double v = (y-y0)/s;
+		double[] up = new double[order+1];
+		double[] vp = new double[order+1];
+		up[0] = 1.0;
+		vp[0] = 1.0;
+		for (int p=1; p <= order; p++)
+			{
+			up[p] = up[p-1]*u;
+			vp[p] = vp[p-1]*v;
+			}
+		int m = 0;
+		for (int d=0; d <= order; d++)
+			{
+			for (int q=0; q <= d; q++)
+				t[m++] = up[d-q]*vp[q];
+			}
+		}
+
+	/**
+	 * Returns the transformed x-position of the reference position (x,y).
+	 */
+	public double x (double x, double y)
+		{
+		double[] t = new double[nTerms];
+		terms (x,y,t);
+		return dot (ax,t);
+		}
+
+	/**
+	 * Returns the transformed y-position of the reference position (x,y).
+	 */
+	public double y (double x, double y)
+		{
+		double[] t = new double[nTerms];
+		terms (x,y,t);
+		return dot (ay,t);
+		}
+
+	protected static double dot (double[] a, double[] b)
+		{
+		double sum = 0.0;
+		for (int k=0; k < a.length; k++)
+			sum += a[k]*b[k];
+		return sum;
+		}
+
+	/**
+	 * Returns the grid for a wd x hd reference image whose bilinear interpolation differs from the
+	 * polynomial by less than maxError pixels.
+	 */
+	public Grid grid (int wd, int hd, double maxError)
+		{
+		int step = GRID_STEP;
+		Grid g = new Grid (this,wd,hd,step);
+		while (step > 1 && g.maxError(this,wd,hd) > maxError)
+			{
+			step /= 2;
+			g = new Grid (this,wd,hd,step);
+			}
+		return g;
+		}
+
+	/**
+	 * The transformed positions at the nodes (i,j) = (a*step,b*step) of a reference image.
+	 */
+	public static class Grid
+		{
+		int step,nx,ny;
+		double[] gx,gy;
+
+		Grid (PolynomialTransform pt, int wd, int hd, int step)
+			{
+			double pc = Centroid.PIXELCENTER;
+			this.step = step;
+			nx = (wd-1)/step+2;
+			ny = (hd-1)/step+2;
+			gx = new double[nx*ny];
+			gy = new double[nx*ny];
+			double[] t = new double[pt.nTerms];
+			for (int b=0, k=0; b < ny; b++)
+				{
+				for (int a=0; a < nx; a++, k++)
+					{
+					pt.terms (a*step+pc,b*step+pc,t);
+					gx[k] = dot (pt.ax,t);
+					gy[k] = dot (pt.ay,t);
+					}
+				}
+			}
+
+		public int getStep ()	{ return step; }
+
+		/**
+		 * Fills the transformed positions of the pixels i=0,...,wd-1 of row j.
+		 */
+		public void row (int j, int wd, double[] xs, double[] ys)
+			{
+			int b = j/step;
+			double t = (double)(j-b*step)/step;
+			int k0 = b*nx;
+			int k1 = k0+nx;
+			double xa = (1.0-t)*gx[k0]+t*gx[k1];
+			double ya = (1.0-t)*gy[k0]+t*gy[k1];
+			for (int a=0, i=0; a < nx-1 && i < wd; a++)
+				{
+				double xb = (1.0-t)*gx[k0+a+1]+t*gx[k1+a+1];
+				double yb = (1.0-t)*gy[k0+a+1]+t*gy[k1+a+1];
+				double dx = (xb-xa)/step;
+				double dy = (yb-ya)/step;
+				double x = xa;
+				double y = ya;
+				int i1 = Math.min(wd,(a+1)*step);
+				for (; i < i1; i++, x += dx, y += dy)
+					{
+					xs[i] = x;
+					ys[i] = y;
+					}
+				xa = xb;
+				ya = yb;
+				}
+			}
+
+		/**
+		 * Largest difference between the interpolation and the polynomial at the quarter points of the
+		 * grid cells within the image.
+		 */
+		double maxError (PolynomialTransform pt, int wd, int hd)
+			{
+			if (step == 1) return 0.0;
+			double pc = Centroid.PIXELCENTER;
+			double[] xs = new double[wd];
+			double[] ys = new double[wd];
+			double[] t = new double[pt.nTerms];
+			double err = 0.0;
+			int q = Math.max(1,step/4);
+			for (int j=q; j < hd; j += q)
+				{
+				if (j%step == 0) continue;
+				row (j,wd,xs,ys);
+				for (int i=q; i < wd; i += q)
+					{
+					if (i%step == 0) continue;
+					pt.terms (i+pc,j+pc,t);
+					double dx = xs[i]-dot(pt.ax,t);
+					double dy = ys[i]-dot(pt.ay,t);
+					err = Math.max(err,Math.sqrt(dx*dx+dy*dy));
+					}
+				}
+			return err;
+			}
+		}
+	}
@@ -0,0 +1,681 @@
+// PsfPhotometer.java
+
+import ij.*;
+import ij.process.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import astroj.*;
+
+import Jama.*;
+
+/**
+ * PSF-fitting photometry for crowded fields using an empirical PSF image, e.g. the one made by
+ * Create_Mean_PSF.
+ *
+ * The PSF image is corrected for its mean border value and normalized to unit sum; its center is
+ * the center of the image, and it is interpolated with cubic convolution, which also gives the
+ * derivatives needed for the positions.  Stars whose PSFs reach into each other's fitting
+ * pixels are put into the same group, and all stars of a group (flux, x, y) plus a common sky
+ * level are fitted simultaneously with the Levenberg-Marquardt method.  Each pixel only depends
+ * on the few stars which overlap it, so the Jacobian is stored as sparse rows and the normal
+ * equations are accumulated from the non-zero elements only.  The groups are independent and are
+ * fitted by several threads.
+ *
+ * Positions use the same pixel convention as Centroid and Photometer.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class PsfPhotometer
+	{
+	/** Larger groups are split (in x) into groups of at most this many stars. */
+	public static int MAX_GROUP = 100;
+
+	public static int MAX_ITERATIONS = 50;
+
+	protected float[] psf;
+	protected int pw,ph;
+	protected double pcx,pcy;	// CENTER OF THE PSF IN PSF PIXELS
+	protected double psfRadius;
+	protected double psfPeak;
+
+	protected double fitRadius = 3.0;
+	protected double ccdGain = 1.0;
+	protected double ccdNoise = 0.0;
+	protected int nThreads = 1;
+
+	// IMAGE BEING MEASURED
+
+	protected float[] data;
+	protected int width,height;
+
+	// RESULTS
+
+	protected int nStars = 0;
+	protected double[] xStar,yStar;
+	protected double[] flux,fluxError,sky,peak,chi2;
+	protected int[] group,iterations;
+	protected int nGroups = 0;
+
+	/**
+	 * Creates a PSF photometer using the given PSF image.
+	 */
+	public PsfPhotometer (ImageProcessor psfImage)
+		{
+		setPSF (psfImage);
+		nThreads = Prefs.getThreads();
+		}
+
+	public void setFitRadius (double r)		{ fitRadius = r; }
+	public void setThreads (int n)			{ nThreads = Math.max(1,n); }
+
+	/**
+	 * Sets the CCD gain [e-/ADU] and read-out noise [e-] used for the pixel weights (gain <= 0: equal weights).
+	 */
+	public void setCCD (double gain, double noise)
+		{
+		ccdGain = gain;
+		ccdNoise = noise;
+		}
+
+	public double getPSFRadius ()	{ return psfRadius; }
+
+	public int numberOfStars ()	{ return nStars; }
+	public int numberOfGroups ()	{ return nGroups; }
+	public double[] x ()		{ return xStar; }
+	public double[] y ()		{ return yStar; }
+	public double[] flux ()		{ return flux; }
+	public double[] fluxError ()	{ return fluxError; }
+	public double[] sky ()		{ return sky; }
+	public double[] peak ()		{ return peak; }
+	public double[] chi2 ()		{ return chi2; }
+	public int[] group ()		{ return group; }
+	public int[] iterations ()	{ return iterations; }
+
+	/**
+	 * Prepares the PSF model: subtracts the mean border value and normalizes to unit sum.
+	 */
+	public void setPSF (ImageProcessor ip)
+		{
+		pw = ip.getWidth();
+		ph = ip.getHeight();
+		if (pw < 5 || ph < 5)
+			throw new IllegalArgumentException ("PsfPhotometer: PSF image "+pw+"x"+ph+" is too small!");
+		psf = new float[pw*ph];
+		double border = 0.0;
+		for (int i=0; i < pw; i++)
+			border += ip.getPixelValue(i,0)+ip.getPixelValue(i,ph-1);
+		for (int j=1; j < ph-1; j++)
+			border += ip.getPixelValue(0,j)+ip.getPixelValue(pw-1,j);
+		border /= (double)(2*pw+2*(ph-2));
+
+		double sum = 0.0;
+		for (int j=0; j < ph; j++)
+			{
+			for (int i=0; i < pw; i++)
+				{
+				double v = ip.getPixelValue(i,j)-border;
+				psf[i+j*pw] = (float)v;
+				sum += v;
+				}
+			}
+		if (!(sum > 0.0))
+			throw new IllegalArgumentException ("PsfPhotometer: PSF image has no positive signal!");
+		psfPeak = 0.0;
+		for (int k=0; k < psf.length; k++)
+			{
+			psf[k] /= sum;
+			psfPeak = Math.max(psfPeak,psf[k]);
+			}
+		pcx = 0.5*(pw-1);
+		pcy = 0.5*(ph-1);
+		psfRadius = Math.min(pcx,pcy)-1.0;
+		}
+
+	/**
+	 * Cubic convolution kernel (a=-0.5) and its derivative.
+	 */
+	protected static double cubic (double t)
+		{
+		t = Math.abs(t);
+		if (t < 1.0) return (1.5*t-2.5)*t*t+1.0;
+		if (t < 2.0) return ((-0.5*t+2.5)*t-4.0)*t+2.0;
+		return 0.0;
+		}
+
+	protected static double dcubic (double t)
+		{
+		double s = (t < 0.0) ? -1.0 : 1.0;
+		t = Math.abs(t);
+		if (t < 1.0) return s*(4.5*t-5.0)*t;
+		if (t < 2.0) return s*((-1.5*t+5.0)*t-4.0);
+		return 0.0;
+		}
+
+	/**
+	 * Returns the PSF value and its derivatives {P,dP/du,dP/dv} at the offset (u,v) from the center.
+	 */
+	protected void evaluate (double u, double v, double[] result)
+		{
+		double su = pcx+u;
+		double sv = pcy+v;
+		result[0] = result[1] = result[2] = 0.0;
+		int i0 = (int)Math.floor(su);
+		int j0 = (int)Math.floor(sv);
+		if (i0 < 1 || j0 < 1 || i0 > pw-3 || j0 > ph-3) return;
+		double fu = su-i0;
+		double fv = sv-j0;
+		for (int b=-1; b <= 2; b++)
+			{
+			double wv = cubic (fv-b);
+			double dwv = dcubic (fv-b);
+			int off = (j0+b)*pw+i0;
+			double s = 0.0;
+			double ds = 0.0;
+			for (int a=-1; a <= 2; a++)
+				{
+				double p = psf[off+a];
+				s  += p*cubic (fu-a);
+				ds += p*dcubic (fu-a);
+				}
+			result[0] += wv*s;
+			result[1] += wv*ds;
+			result[2] += dwv*s;
+			}
+		}
+
+	/**
+	 * Fits all stars with the starting positions (x0[k],y0[k]) and returns the number of groups fitted.
+	 */
+	public int measure (ImageProcessor ip, double[] x0, double[] y0)
+		{
+		width = ip.getWidth();
+		height = ip.getHeight();
+		data = (float[])ip.convertToFloat().getPixels();
+
+		nStars = x0.length;
+		xStar = x0.clone();
+		yStar = y0.clone();
+		flux = new double[nStars];
+		fluxError = new double[nStars];
+		sky = new double[nStars];
+		peak = new double[nStars];
+		chi2 = new double[nStars];
+		iterations = new int[nStars];
+
+		final Vector<int[]> groups = makeGroups ();
+		nGroups = groups.size();
+
+		final AtomicInteger next = new AtomicInteger(0);
+		int n = Math.min(nThreads,nGroups);
+		Thread[] threads = new Thread[n];
+		for (int t=0; t < n; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					int g;
+					while ((g = next.getAndIncrement()) < groups.size())
+						fitGroup (groups.get(g));
+					}
+				};
+			threads[t].start();
+			}
+		for (int t=0; t < n; t++)
+			{
+			try	{
+				threads[t].join();
+				}
+			catch (InterruptedException e) {}
+			}
+		data = null;
+		return nGroups;
+		}
+
+	/**
+	 * Groups stars closer than fitRadius+psfRadius (union-find on the stars sorted in x).
+	 */
+	protected Vector<int[]> makeGroups ()
+		{
+		double crit = fitRadius+psfRadius;
+		Integer[] order = new Integer[nStars];
+		for (int k=0; k < nStars; k++) order[k] = k;
+		Arrays.sort (order, new Comparator<Integer>()
+			{
+			public int compare (Integer a, Integer b)
+				{
+				return Double.compare (xStar[a],xStar[b]);
+				}
+			});
+
+		int[] parent = new int[nStars];
+		for (int k=0; k < nStars; k++) parent[k] = k;
+		for (int a=0; a < nStars; a++)
+			{
+			int ka = order[a];
+			for (int b=a+1; b < nStars && xStar[order[b]]-xStar[ka] < crit; b++)
+				{
+				int kb = order[b];
+				if (Math.abs(yStar[kb]-yStar[ka]) < crit &&
+						(xStar[kb]-xStar[ka])*(xStar[kb]-xStar[ka])+(yStar[kb]-yStar[ka])*(yStar[kb]-yStar[ka]) < crit*crit)
+					{
+					int ra = root (parent,ka);
+					int rb = root (parent,kb);
+					if (ra != rb) parent[rb] = ra;
+					}
+				}
+			}
+
+		// COLLECT MEMBERS IN x ORDER, SPLIT GROUPS WHICH ARE TOO LARGE
+
+		Hashtable<Integer,Vector<Integer>> members = new Hashtable<Integer,Vector<Integer>>();
+		Vector<Integer> roots = new Vector<Integer>();
+		for (int a=0; a < nStars; a++)
+			{
+			int k = order[a];
+			int r = root (parent,k);
+			Vector<Integer> v = members.get(r);
+			if (v == null)
+				{
+				v = new Vector<Integer>();
+				members.put (r,v);
+				roots.addElement (r);
+				}
+			v.addElement (k);
+			}
+		group = new int[nStars];
+		Vector<int[]> groups = new Vector<int[]>();
+		for (int r=0; r < roots.size(); r++)
+			{
+			Vector<Integer> v = members.get(roots.get(r));
+			for (int start=0; start < v.size(); start += MAX_GROUP)
+				{
+				int m = Math.min(MAX_GROUP,v.size()-start);
+				int[] g = new int[m];
+				for (int i=0; i < m; i++)
+					{
+					g[i] = v.get(start+i);
+					group[g[i]] = groups.size()+1;
+					}
+				groups.addElement (g);
+				}
+			}
+		return groups;
+		}
+
+	protected static int root (int[] parent, int k)
+		{
+		while (parent[k] != k)
+			{
+			parent[k] = parent[parent[k]];
+			k = parent[k];
+			}
+		return k;
+		}
+
+	/**
+	 * Fits one group of stars: parameters are {sky, flux_0,x_0,y_0, flux_1,x_1,y_1, ...}.
+	 */
+	protected void fitGroup (int[] stars)
+		{
+		int m = stars.length;
+		int np = 1+3*m;
+
+		// BOUNDING BOX OF THE FITTING PIXELS AND THEIR MASK
+
+		double xmin = Double.MAX_VALUE, xmax = -Double.MAX_VALUE;
+		double ymin = Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		for (int s=0; s < m; s++)
+			{
+			xmin = Math.min(xmin,xStar[stars[s]]);
+			xmax = Math.max(xmax,xStar[stars[s]]);
+			ymin = Math.min(ymin,yStar[stars[s]]);
+			ymax = Math.max(ymax,yStar[stars[s]]);
+			}
+		int margin = (int)Math.ceil(Math.max(fitRadius,psfRadius))+2;
+		int bx = Math.max(0,(int)xmin-margin);
+		int by = Math.max(0,(int)ymin-margin);
+		int bw = Math.min(width,(int)xmax+margin+1)-bx;
+		int bh = Math.min(height,(int)ymax+margin+1)-by;
+		if (bw <= 0 || bh <= 0)
+			{
+			flagGroup (stars,0);
+			return;
+			}
+		int[] local = new int[bw*bh];
+		Arrays.fill (local,-1);
+		int npix = 0;
+		double r2 = fitRadius*fitRadius;
+		for (int s=0; s < m; s++)
+			{
+			double xs = xStar[stars[s]];
+			double ys = yStar[stars[s]];
+			int i0 = Math.max(bx,(int)(xs-fitRadius)-1);
+			int i1 = Math.min(bx+bw-1,(int)(xs+fitRadius)+1);
+			int j0 = Math.max(by,(int)(ys-fitRadius)-1);
+			int j1 = Math.min(by+bh-1,(int)(ys+fitRadius)+1);
+			for (int j=j0; j <= j1; j++)
+				{
+				double dy = j+Centroid.PIXELCENTER-ys;
+				for (int i=i0; i <= i1; i++)
+					{
+					double dx = i+Centroid.PIXELCENTER-xs;
+					int l = (i-bx)+(j-by)*bw;
+					if (local[l] < 0 && dx*dx+dy*dy <= r2 && !Float.isNaN(data[i+j*width]))
+						local[l] = npix++;
+					}
+				}
+			}
+		if (npix <= np)
+			{
+			flagGroup (stars,0);
+			return;
+			}
+
+		// PIXEL VALUES AND WEIGHTS
+
+		int[] pix = new int[npix];
+		double[] d = new double[npix];
+		double[] w = new double[npix];
+		double rn2 = (ccdGain > 0.0) ? (ccdNoise/ccdGain)*(ccdNoise/ccdGain) : 0.0;
+		for (int l=0; l < local.length; l++)
+			{
+			int p = local[l];
+			if (p < 0) continue;
+			int k = (bx+l%bw)+(by+l/bw)*width;
+			pix[p] = l;
+			d[p] = data[k];
+			if (ccdGain > 0.0)
+				w[p] = 1.0/Math.max(1.0e-10,rn2+Math.max(d[p],0.0)/ccdGain);
+			else
+				w[p] = 1.0;
+			}
+
+		// STARTING VALUES: LOW PERCENTILE AS SKY, FLUXES FROM THE PIXELS NEAR EACH STAR
+
+		double[] par = new double[np];
+		double[] sorted = d.clone();
+		Arrays.sort (sorted);
+		par[0] = sorted[npix/5];
+		double[] pd = new double[3];
+		for (int s=0; s < m; s++)
+			{
+			double xs = xStar[stars[s]];
+			double ys = yStar[stars[s]];
+			double sd = 0.0;
+			double sp = 0.0;
+			for (int p=0; p < npix; p++)
+				{
+				double u = bx+pix[p]%bw+Centroid.PIXELCENTER-xs;
+				double v = by+pix[p]/bw+Centroid.PIXELCENTER-ys;
+				if (u*u+v*v > r2) continue;
+				evaluate (u,v,pd);
+				sd += (d[p]-par[0])*pd[0];
+				sp += pd[0]*pd[0];
+				}
+			par[1+3*s] = (sp > 0.0) ? Math.max(sd/sp,0.0) : 0.0;
+			par[2+3*s] = xs;
+			par[3+3*s] = ys;
+			}
+
+		// LEVENBERG-MARQUARDT ITERATIONS
+
+		Jacobian jac = new Jacobian (npix);
+		double[] model = new double[npix];
+		jac.build (this,par,stars,pix,bx,by,bw,model);
+		double chi = weightedChi2 (d,model,w);
+		double lambda = 1.0e-3;
+		int iter = 0;
+		double[][] alpha = new double[np][np];
+		double[] beta = new double[np];
+		double[] trial = new double[np];
+		double[] tmodel = new double[npix];
+		Jacobian tjac = new Jacobian (npix);
+		boolean converged = false;
+
+		while (iter < MAX_ITERATIONS && !converged)
+			{
+			iter++;
+			jac.normalEquations (d,model,w,alpha,beta);
+			boolean improved = false;
+			while (!improved && lambda < 1.0e10)
+				{
+				double[] step = solve (alpha,beta,lambda);
+				if (step == null)
+					{
+					lambda *= 10.0;
+					continue;
+					}
+				double maxShift = 0.0;
+				trial[0] = par[0]+step[0];
+				for (int s=0; s < m; s++)
+					{
+					double sx = Math.max(-1.0,Math.min(1.0,step[2+3*s]));
+					double sy = Math.max(-1.0,Math.min(1.0,step[3+3*s]));
+					trial[1+3*s] = par[1+3*s]+step[1+3*s];
+					trial[2+3*s] = par[2+3*s]+sx;
+					trial[3+3*s] = par[3+3*s]+sy;
+					maxShift = Math.max(maxShift,Math.max(Math.abs(sx),Math.abs(sy)));
+					}
+				tjac.build (this,trial,stars,pix,bx,by,bw,tmodel);
+				double tchi = weightedChi2 (d,tmodel,w);
+				if (tchi <= chi)
+					{
+					improved = true;
+					converged = maxShift < 1.0e-3 && (chi-tchi) <= 1.0e-6*chi;
+					chi = tchi;
+					System.arraycopy (trial,0,par,0,np);
+					System.arraycopy (tmodel,0,model,0,npix);
+					Jacobian tmp = jac;
+					jac = tjac;
+					tjac = tmp;
+					lambda = Math.max(1.0e-7,lambda*0.1);
+					}
+				else
+					lambda *= 10.0;
+				}
+			if (!improved) break;
+			}
+
+		// ERRORS FROM THE COVARIANCE MATRIX, SCALED BY THE REDUCED CHI-SQUARE IF > 1
+
+		jac.normalEquations (d,model,w,alpha,beta);
+		double redchi = chi/(npix-np);
+		double[][] cov = null;
+		try	{
+			cov = new Matrix(alpha).inverse().getArray();
+			}
+		catch (RuntimeException e) {}
+
+		for (int s=0; s < m; s++)
+			{
+			int k = stars[s];
+			flux[k] = par[1+3*s];
+			xStar[k] = par[2+3*s];
+			yStar[k] = par[3+3*s];
+			sky[k] = par[0];
+			peak[k] = par[0]+flux[k]*psfPeak;
+			chi2[k] = redchi;
+			iterations[k] = iter;
+			double var = (cov != null) ? cov[1+3*s][1+3*s] : Double.NaN;
+			fluxError[k] = Math.sqrt(Math.max(0.0,var)*Math.max(1.0,redchi));
+			}
+		}
+
+	/**
+	 * Marks the stars of a group which could not be fitted.
+	 */
+	protected void flagGroup (int[] stars, int iter)
+		{
+		for (int s=0; s < stars.length; s++)
+			{
+			int k = stars[s];
+			flux[k] = fluxError[k] = sky[k] = peak[k] = chi2[k] = Double.NaN;
+			iterations[k] = iter;
+			}
+		}
+
+	protected static double weightedChi2 (double[] d, double[] model, double[] w)
+		{
+		double chi = 0.0;
+		for (int p=0; p < d.length; p++)
+			{
+			double r = d[p]-model[p];
+			chi += w[p]*r*r;
+			}
+		return chi;
+		}
+
+	/**
+	 * Solves (alpha + lambda*diag(alpha)) x = beta; returns null if the matrix is singular.
+	 */
+	protected static double[] solve (double[][] alpha, double[] beta, double lambda)
+		{
+		int n = beta.length;
+		double[][] a = new double[n][n];
+		for (int i=0; i < n; i++)
+			{
+			System.arraycopy (alpha[i],0,a[i],0,n);
+			a[i][i] = alpha[i][i]*(1.0+lambda);
+			if (a[i][i] == 0.0) a[i][i] = lambda;
+			}
+		try	{
+			Matrix am = new Matrix(a);
+			Matrix bm = new Matrix(beta,n);
+			CholeskyDecomposition chol = new CholeskyDecomposition(am);
+			Matrix x = chol.isSPD() ? chol.solve(bm) : am.solve(bm);
+			return x.getColumnPackedCopy();
+			}
+		catch (RuntimeException e)
+			{
+			return null;
+			}
+		}
+
+	/**
+	 * Sparse Jacobian of a group: each fitting pixel has a row with the sky derivative (always 1)
+	 * and the derivatives for the stars whose PSFs reach the pixel.
+	 */
+	static class Jacobian
+		{
+		int npix;
+		int[] start;		// START OF EACH PIXEL'S ROW IN THE ARRAYS BELOW
+		int[] star;		// GROUP INDEX OF THE STAR
+		double[] dflux,dx,dy;
+		int nnz;
+
+		Jacobian (int npix)
+			{
+			this.npix = npix;
+			start = new int[npix+1];
+			int cap = Math.max(16,4*npix);
+			star = new int[cap];
+			dflux = new double[cap];
+			dx = new double[cap];
+			dy = new double[cap];
+			}
+
+		void ensure (int n)
+			{
+			if (n <= star.length) return;
+			int cap = Math.max(n,2*star.length);
+			star = Arrays.copyOf (star,cap);
+			dflux = Arrays.copyOf (dflux,cap);
+			dx = Arrays.copyOf (dx,cap);
+			dy = Arrays.copyOf (dy,cap);
+			}
+
+		/**
+		 * Computes the model and the sparse derivatives for the parameters.
+		 */
+		void build (PsfPhotometer ph, double[] par, int[] stars, int[] pix,
+				int bx, int by, int bw, double[] model)
+			{
+			int m = stars.length;
+			double rad = ph.psfRadius+1.0;
+			double[] pd = new double[3];
+			nnz = 0;
+			for (int p=0; p < npix; p++)
+				{
+				start[p] = nnz;
+				double xp = bx+pix[p]%bw+Centroid.PIXELCENTER;
+				double yp = by+pix[p]/bw+Centroid.PIXELCENTER;
+				double mod = par[0];
+				for (int s=0; s < m; s++)
+					{
+					double u = xp-par[2+3*s];
+					double v = yp-par[3+3*s];
+					if (Math.abs(u) >= rad || Math.abs(v) >= rad) continue;
+					ph.evaluate (u,v,pd);
+					if (pd[0] == 0.0 && pd[1] == 0.0 && pd[2] == 0.0) continue;
+					ensure (nnz+1);
+					double f = par[1+3*s];
+					star[nnz] = s;
+					dflux[nnz] = pd[0];
+					dx[nnz] = -f*pd[1];		// u = xp-x
+					dy[nnz] = -f*pd[2];
+					nnz++;
+					mod += f*pd[0];
+					}
+				model[p] = mod;
+				}
+			start[npix] = nnz;
+			}
+
+		/**
+		 * Accumulates alpha = J^T W J and beta = J^T W (d-model) from the sparse rows.
+		 */
+		void normalEquations (double[] d, double[] model, double[] w, double[][] alpha, double[] beta)
+			{
+			int np = beta.length;
+			for (int i=0; i < np; i++)
+				{
+				Arrays.fill (alpha[i],0.0);
+				beta[i] = 0.0;
+				}
+			int[] col = new int[3*(np/3)+4];
+			double[] val = new double[col.length];
+			for (int p=0; p < npix; p++)
+				{
+				double wp = w[p];
+				double r = d[p]-model[p];
+
+				// EXPAND THE SPARSE ROW: SKY PLUS THREE DERIVATIVES PER STAR
+
+				int n = 0;
+				col[n] = 0;
+				val[n++] = 1.0;
+				for (int e=start[p]; e < start[p+1]; e++)
+					{
+					int c = 1+3*star[e];
+					col[n] = c;	val[n++] = dflux[e];
+					col[n] = c+1;	val[n++] = dx[e];
+					col[n] = c+2;	val[n++] = dy[e];
+					}
+				for (int a=0; a < n; a++)
+					{
+					double wa = wp*val[a];
+					beta[col[a]] += wa*r;
+					double[] row = alpha[col[a]];
+					for (int b=0; b <= a; b++)
+						row[col[b]] += wa*val[b];
+					}
+				}
+
+			// THE COLUMNS OF A ROW ARE ASCENDING, SO ONLY THE LOWER TRIANGLE HAS BEEN FILLED
+
+			for (int i=0; i < np; i++)
+				{
+				for (int j=0; j < i; j++)
+					{
+					double s = alpha[i][j]+alpha[j][i];
+					alpha[i][j] = s;
+					alpha[j][i] = s;
+					}
+				}
+			}
+		}
+	}
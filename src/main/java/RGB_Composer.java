@@ -25,6 +25,17 @@ import astroj.*;
  * @version 1.a
  * @changes Added pixel shifting
  *
+ * @version 1.b
+ * @date 2026-Oct-19
+ * @changes The channels are composed by a ChannelComposer, which keeps the scaled plane of each channel,
+ *	recomputes only the channel which changed using a look-up table, and writes the packed RGB pixels
+ *	directly using several threads.  Optional asinh stretch.
+ *
+ * @version 1.c
+ * @date 2026-Oct-19
+ * @changes Brightness, contrast, and shift changes are previewed on the level of an ImagePyramid of each
+ *	input image matching the zoom of the RGB image; the full resolution is recomputed after COMMIT_DELAY
+ *	milliseconds without changes or with "Update".  "Auto" estimates the mean on the coarsest level.
  */
 public class RGB_Composer implements ActionListener, PlugIn
 	{
@@ -72,6 +83,12 @@ public class RGB_Composer implements ActionListener, PlugIn
 	int gXShift=0, gYShift=0;
 	int bXShift=0, bYShift=0;
 	int dShift=1;
+
+	ChannelComposer composer = null;
+	JCheckBox asinhBox = null;
+
+	static int COMMIT_DELAY = 500;	// [ms] BEFORE A PREVIEW IS RECOMPUTED AT FULL RESOLUTION
+	javax.swing.Timer commitTimer = null;
 	
 	/**
 	 * Standard ImageJ PlugIn method which creates and runs the Swing interface.
@@ -568,6 +585,12 @@ public class RGB_Composer implements ActionListener, PlugIn
 
 		frame.add(rgbPanel);
 
+		p = simpleJPanel (HORIZONTAL);
+			asinhBox = new JCheckBox ("asinh stretch",false);
+			asinhBox.addActionListener(this);
+			p.add(asinhBox);
+		frame.add(p,BorderLayout.SOUTH);
+
 		frame.pack();
 		frame.setResizable (false);
 		frame.setVisible (true);
@@ -588,15 +611,46 @@ public class RGB_Composer implements ActionListener, PlugIn
 		{
 		String cmd = e.getActionCommand();
 		Object obj = e.getSource();
+		if (obj == commitTimer)
+			{
+			// RECOMPUTE PREVIEWED CHANNELS AT FULL RESOLUTION
+
+			if (!checkImages()) return;
+			compose(RED);
+			compose(GREEN);
+			compose(BLUE);
+			rgb.updateAndDraw();
+			return;
+			}
 		if (cmd.equals("Update"))
 			{
 			if (!checkImages()) return;
 			if (obj == rUpdate)
+				{
+				if (composer != null) composer.invalidate(RED-1);
+				ImagePyramid.detach (red);
 				compose(RED);
+				}
 			else if (obj == gUpdate)
+				{
+				if (composer != null) composer.invalidate(GREEN-1);
+				ImagePyramid.detach (green);
 				compose(GREEN);
+				}
 			else if (obj == bUpdate)
+				{
+				if (composer != null) composer.invalidate(BLUE-1);
+				ImagePyramid.detach (blue);
 				compose(BLUE);
+				}
+			rgb.updateAndDraw();
+			}
+		else if (obj == asinhBox)
+			{
+			if (!checkImages()) return;
+			compose(RED);
+			compose(GREEN);
+			compose(BLUE);
 			rgb.updateAndDraw();
 			}
 		else if (cmd.equals(" Auto "))
@@ -625,17 +679,17 @@ public class RGB_Composer implements ActionListener, PlugIn
 			if (obj == rRight)
 				{
 				rXShift -= 1;
-				compose(RED);
+				compose(RED,true);
 				}
 			else if (obj == gRight)
 				{
 				gXShift -= 1;
-				compose(GREEN);
+				compose(GREEN,true);
 				}
 			else if (obj == bRight)
 				{
 				bXShift -= 1;
-				compose(BLUE);
+				compose(BLUE,true);
 				}
 			rgb.updateAndDraw();
 			return;
@@ -646,17 +700,17 @@ public class RGB_Composer implements ActionListener, PlugIn
 			if (obj == rLeft)
 				{
 				rXShift += 1;
-				compose(RED);
+				compose(RED,true);
 				}
 			else if (obj == gLeft)
 				{
 				gXShift += 1;
-				compose(GREEN);
+				compose(GREEN,true);
 				}
 			else if (obj == bLeft)
 				{
 				bXShift += 1;
-				compose(BLUE);
+				compose(BLUE,true);
 				}
 			rgb.updateAndDraw();
 			return;
@@ -667,17 +721,17 @@ public class RGB_Composer implements ActionListener, PlugIn
 			if (obj == rUp)
 				{
 				rYShift += 1;
-				compose(RED);
+				compose(RED,true);
 				}
 			else if (obj == gUp)
 				{
 				gYShift += 1;
-				compose(GREEN);
+				compose(GREEN,true);
 				}
 			else if (obj == bUp)
 				{
 				bYShift += 1;
-				compose(BLUE);
+				compose(BLUE,true);
 				}
 			rgb.updateAndDraw();
 			return;
@@ -688,17 +742,17 @@ public class RGB_Composer implements ActionListener, PlugIn
 			if (obj == rDown)
 				{
 				rYShift -= 1;
-				compose(RED);
+				compose(RED,true);
 				}
 			else if (obj == gDown)
 				{
 				gYShift -= 1;
-				compose(GREEN);
+				compose(GREEN,true);
 				}
 			else if (obj == bDown)
 				{
 				bYShift -= 1;
-				compose(BLUE);
+				compose(BLUE,true);
 				}
 			rgb.updateAndDraw();
 			return;
@@ -866,11 +920,7 @@ public class RGB_Composer implements ActionListener, PlugIn
 		mx = ip.getMax();
 		if (bits == 32)
 			{
-			med = 0.0;
-			for (int j=0; j < h; j++)
-				for (int i=0; i < w; i++)
-					med += ip.getPixelValue(i,j);
-			med /= (double)(h*w);
+			med = meanValue (color == RED ? red : (color == GREEN ? green : blue));
 			mn = 0.5*(mn+med);
 			mx = 0.5*(mx+med);
 			}
@@ -883,26 +933,50 @@ public class RGB_Composer implements ActionListener, PlugIn
 		txt2.setText(gf.format(mx));
 		}
 
+	/**
+	 * Returns the mean of the non-NaN pixels of the coarsest pyramid level of an image.
+	 */
+	double meanValue (ImagePlus im)
+		{
+		ImagePyramid pyr = ImagePyramid.attach (im);
+		ImageProcessor ip = (pyr == null) ? im.getProcessor() : pyr.getLevel(pyr.getNumberOfLevels()-1);
+		int nw = ip.getWidth();
+		int nh = ip.getHeight();
+		double sum = 0.0;
+		int n = 0;
+		for (int j=0; j < nh; j++)
+			{
+			for (int i=0; i < nw; i++)
+				{
+				double z = ip.getPixelValue(i,j);
+				if (!Double.isNaN(z))
+					{
+					sum += z;
+					n++;
+					}
+				}
+			}
+		return (n > 0) ? sum/n : 0.0;
+		}
+
 	/**
 	 * Re-composes a color image using a new R,G, or B image as input, scaled to the requested limits.
+	 * Only the changed channel is recomputed.
 	 */
 	void compose(int color)
 		{
-		int n=w*h,spix,tpix;
+		compose (color,false);
+		}
+
+	/**
+	 * Re-composes a color image; a preview uses the pyramid level of the input image matching the zoom of
+	 * the RGB image and is recomputed at full resolution after COMMIT_DELAY milliseconds without changes.
+	 */
+	void compose(int color, boolean preview)
+		{
 		double[] d;
-		double m=1.0,b=0.0;	// byte = m*doubleval+b;
-		int bit;
 		ImageProcessor ip = null;
-
-		// GET THE COLOR DATA
-
-		ColorProcessor cp = (ColorProcessor)rgb.getProcessor();
-		byte[] R = new byte[n];
-		byte[] G = new byte[n];
-		byte[] B = new byte[n];
-		cp.getRGB(R,G,B);
-
-		// FOR ONE OF THE INPUT IMAGES, TRANSFER TO THE CORRESPONDING COLOR PLANE
+		int dx,dy;
 
 		if (color == RED)
 			{
@@ -912,27 +986,9 @@ public class RGB_Composer implements ActionListener, PlugIn
 				IJ.error("Cannot read R fields!");
 				return;
 				}
-			if (d[0] != d[1]) m = 255.0/(d[1]-d[0]);
-			b =  -m*d[0];
 			ip = red.getProcessor();
-			for (int j=0; j < h; j++)	// FOR ALL SOURCE ROWS
-				{
-				int jj=j+rYShift;
-				IJ.showProgress(j,h);
-				for (int i=0; i < w; i++)	// FOR ALL SOURCE COLUMNS
-					{
-					int ii=i+rXShift;
-					if (ii >= 0 && ii < w && jj >= 0 && jj < h)	// FOR ALL VISIBLE TARGET PIXELS
-						{
-						spix = w*jj+ii;		// SOURCE POSITION
-						tpix = w*j+i;		// TARGET POSITION
-						bit = (int)(m*ip.getPixelValue(ii,jj)+b);
-						if (bit < 0) bit=0;
-						if (bit > 255) bit=255;
-						R[tpix] = (byte)bit;
-						}
-					}
-				}
+			dx = rXShift;
+			dy = rYShift;
 			}
 		else if (color == GREEN)
 			{
@@ -942,64 +998,55 @@ public class RGB_Composer implements ActionListener, PlugIn
 				IJ.error("Cannot read G fields!");
 				return;
 				}
-			if (d[0] != d[1]) m = 255.0/(d[1]-d[0]);
-			b =  -m*d[0];
 			ip = green.getProcessor();
-			for (int j=0; j < h; j++)	// FOR ALL SOURCE ROWS
-				{
-				int jj=j+gYShift;
-				IJ.showProgress(j,h);
-				for (int i=0; i < w; i++)	// FOR ALL SOURCE COLUMNS
-					{
-					int ii=i+gXShift;
-					if (ii >= 0 && ii < w && jj >= 0 && jj < h)	// FOR ALL VISIBLE TARGET PIXELS
-						{
-						spix = w*jj+ii;		// SOURCE POSITION
-						tpix = w*j+i;		// TARGET POSITION
-						bit = (int)(m*ip.getPixelValue(ii,jj)+b);
-						if (bit < 0) bit=0;
-						if (bit > 255) bit=255;
-						G[tpix] = (byte)bit;
-						}
-					}
-				}
+			dx = gXShift;
+			dy = gYShift;
 			}
-		else if (color == BLUE)
-			{
+		else	{
 			d = getMinMax(bMinText,bMaxText);
 			if (d == null)
 				{
 				IJ.error("Cannot read B fields!");
 				return;
 				}
-			if (d[0] != d[1]) m = 255.0/(d[1]-d[0]);
-			b =  -m*d[0];
 			ip = blue.getProcessor();
-			for (int j=0; j < h; j++)	// FOR ALL SOURCE ROWS
+			dx = bXShift;
+			dy = bYShift;
+			}
+
+		// TRANSFER TO THE CORRESPONDING COLOR PLANE AND RETURN TO THE ORIGINAL COLOR IMAGE
+
+		if (composer == null || composer.getWidth() != w || composer.getHeight() != h)
+			{
+			composer = new ChannelComposer (w,h);
+			composer.setThreads (Prefs.getThreads());
+			}
+		int stretch = (asinhBox != null && asinhBox.isSelected()) ? ChannelComposer.ASINH : ChannelComposer.LINEAR;
+		ColorProcessor cp = (ColorProcessor)rgb.getProcessor();
+
+		int factor = 1;
+		if (preview)
+			{
+			int level = ImagePyramid.levelForZoom (rgb);
+			ImagePyramid pyr = (level > 0) ? ImagePyramid.attach (color == RED ? red : (color == GREEN ? green : blue)) : null;
+			if (pyr != null)
 				{
-				int jj=j+bYShift;
-				IJ.showProgress(j,h);
-				for (int i=0; i < w; i++)	// FOR ALL SOURCE COLUMNS
+				level = pyr.availableLevel (level);
+				ip = pyr.getLevel (level);
+				factor = 1 << level;
+				}
+			if (factor > 1)
+				{
+				if (commitTimer == null)
 					{
-					int ii=i+bXShift;
-					if (ii >= 0 && ii < w && jj >= 0 && jj < h)	// FOR ALL VISIBLE TARGET PIXELS
-						{
-						spix = w*jj+ii;		// SOURCE POSITION
-						tpix = w*j+i;		// TARGET POSITION
-						bit = (int)(m*ip.getPixelValue(ii,jj)+b);
-						if (bit < 0) bit=0;
-						if (bit > 255) bit=255;
-						B[tpix] = (byte)bit;
-						}
+					commitTimer = new javax.swing.Timer (COMMIT_DELAY,this);
+					commitTimer.setActionCommand ("COMMIT");
+					commitTimer.setRepeats (false);
 					}
+				commitTimer.restart();
 				}
 			}
-
-		// RETURN TO THE ORIGINAL COLOR IMAGE
-
-		// ip.setMin(d[0]);
-		// ip.setMax(d[1]);
-		cp.setRGB(R,G,B);
+		composer.update (color-1,ip,factor,d[0],d[1],dx,dy,stretch,(int[])cp.getPixels());
 		}
 
 	/**
@@ -1084,7 +1131,7 @@ public class RGB_Composer implements ActionListener, PlugIn
 		mn.setText(gf.format(mnmx[0]));
 		mx.setText(gf.format(mnmx[1]));
 		frame.setVisible(true);
-		compose(color);
+		compose(color,true);
 		rgb.updateAndDraw();
 		return;
 		}
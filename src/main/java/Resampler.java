@@ -0,0 +1,350 @@
+// Resampler.java
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import astroj.*;
+
+/**
+ * Resamples an image onto a new pixel grid using an affine transformation
+ *	xw = cx[0] + cx[1]*x + cx[2]*y
+ *	yw = cy[0] + cy[1]*x + cy[2]*y
+ * from the (Centroid.PIXELCENTER-based) positions in the new grid to those in the original image,
+ * i.e. the transformation derived by Align_Image, or the Grid of a PolynomialTransform (distortion),
+ * which is interpolated bilinearly between its nodes.
+ *
+ * The work is done on float arrays: the positions of a row are computed first (for the affine
+ * transformation by adding the constant increments cx[1],cy[1], for a grid by stepping linearly within
+ * each grid cell), the kernel weights are taken from a table sampled at 1/TABLE_STEPS pixel,
+ * and the rows are divided into bands measured by separate threads.  Taps outside the image or with
+ * NaN values are left out and the remaining weights renormalized; their sum is the "coverage" of the
+ * output pixel (1 inside the image, less at the edges).  Pixels with a coverage below MIN_COVERAGE
+ * get the fill value.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Resampling with the grid of a PolynomialTransform.
+ */
+public class Resampler
+	{
+	public static int NEAREST  = 0;
+	public static int BILINEAR = 1;
+	public static int BICUBIC  = 2;
+	public static int LANCZOS3 = 3;
+	public static String[] KERNELS = new String[] { "Nearest neighbour", "Bilinear", "Bicubic", "Lanczos-3" };
+
+	public static int TABLE_STEPS = 1024;		// SAMPLING OF THE KERNEL WEIGHTS PER PIXEL
+	public static int BAND_ROWS = 32;		// ROWS PER THREAD WORK UNIT
+	public static double MIN_COVERAGE = 0.5;
+
+	protected int kernel;
+	protected int taps;		// KERNEL WIDTH IN PIXELS
+	protected int offset;		// FIRST TAP RELATIVE TO THE PIXEL BELOW THE POSITION
+	protected float[] weights;	// (TABLE_STEPS+1) x taps NORMALIZED WEIGHTS
+	protected double fillValue = Double.NaN;
+	protected int nThreads = 1;
+
+	/**
+	 * Prepares a resampler with one of the kernels NEAREST, BILINEAR, BICUBIC, or LANCZOS3.
+	 */
+	public Resampler (int kernel)
+		{
+		if (kernel < NEAREST || kernel > LANCZOS3)
+			throw new IllegalArgumentException ("Unknown resampling kernel "+kernel);
+		this.kernel = kernel;
+		taps = (kernel == NEAREST) ? 1 : 2*kernel;
+		offset = taps/2-1;
+		if (kernel != NEAREST)
+			makeTable ();
+		}
+
+	public void setFillValue (double value)		{ fillValue = value; }
+	public void setThreads (int n)			{ nThreads = Math.max(1,n); }
+	public int getKernel ()				{ return kernel; }
+	public int getTaps ()				{ return taps; }
+
+	/**
+	 * Returns the first of the getTaps() pixels contributing to the (array) position x, e.g. of a
+	 * separable shift (see FrameShifter).
+	 */
+	public int firstTap (double x)
+		{
+		if (kernel == NEAREST)
+			return (int)Math.floor(x+0.5);
+		return (int)Math.floor(x)-offset;
+		}
+
+	/**
+	 * Returns the normalized weights of the pixels firstTap(x),... for the position x.
+	 */
+	public double[] weights (double x)
+		{
+		double[] w = new double[taps];
+		if (kernel == NEAREST)
+			{
+			w[0] = 1.0;
+			return w;
+			}
+		double f = x-Math.floor(x);
+		double sum = 0.0;
+		for (int t=0; t < taps; t++)
+			{
+			w[t] = kernelValue (f-(t-offset));
+			sum += w[t];
+			}
+		for (int t=0; t < taps; t++)
+			w[t] /= sum;
+		return w;
+		}
+
+	/**
+	 * Returns the kernel chosen by name (see KERNELS), e.g. from a dialog.
+	 */
+	public static int kernelIndex (String name)
+		{
+		for (int k=0; k < KERNELS.length; k++)
+			{
+			if (KERNELS[k].equals(name)) return k;
+			}
+		return BILINEAR;
+		}
+
+	/**
+	 * Resamples the ws x hs image src onto a wd x hd grid.  If coverage is not null (length wd*hd),
+	 * it receives the coverage of each output pixel.
+	 */
+	public float[] resample (float[] src, int ws, int hs, int wd, int hd, double[] cx, double[] cy, float[] coverage)
+		{
+		return resample (src,ws,hs,wd,hd,cx,cy,null,coverage);
+		}
+
+	/**
+	 * Resamples the ws x hs image src onto a wd x hd grid using the (polynomial) positions of the grid.
+	 */
+	public float[] resample (float[] src, int ws, int hs, int wd, int hd, PolynomialTransform.Grid grid, float[] coverage)
+		{
+		return resample (src,ws,hs,wd,hd,null,null,grid,coverage);
+		}
+
+	protected float[] resample (final float[] src, final int ws, final int hs, final int wd, final int hd,
+					final double[] cx, final double[] cy, final PolynomialTransform.Grid grid,
+					final float[] coverage)
+		{
+		final float[] dst = new float[wd*hd];
+		final int nBands = (hd+BAND_ROWS-1)/BAND_ROWS;
+		final AtomicInteger next = new AtomicInteger(0);
+		int nt = Math.min(nThreads,nBands);
+
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					double[] xs = new double[wd];
+					double[] ys = new double[wd];
+					int band;
+					while ((band = next.getAndIncrement()) < nBands)
+						{
+						int j2 = Math.min(hd,(band+1)*BAND_ROWS);
+						for (int j=band*BAND_ROWS; j < j2; j++)
+							{
+							if (grid != null)
+								grid.row (j,wd,xs,ys);
+							else
+								affineRow (j,wd,cx,cy,xs,ys);
+							if (kernel == NEAREST)
+								nearestRow (src,ws,hs,dst,coverage,wd,j,xs,ys);
+							else
+								kernelRow (src,ws,hs,dst,coverage,wd,j,xs,ys);
+							}
+						}
+					}
+				};
+			}
+		if (nt == 1)
+			threads[0].run();
+		else	{
+			for (int t=0; t < nt; t++)
+				threads[t].start();
+			try	{
+				for (int t=0; t < nt; t++)
+					threads[t].join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		return dst;
+		}
+
+	/**
+	 * Fills the (Centroid.PIXELCENTER-based) positions of the output row j given by the affine transformation.
+	 */
+	protected void affineRow (int j, int wd, double[] cx, double[] cy, double[] xs, double[] ys)
+		{
+		double pc = Centroid.PIXELCENTER;
+		double yo = (double)j+pc;
+		double x = cx[0]+cx[1]*pc+cx[2]*yo;
+		double y = cy[0]+cy[1]*pc+cy[2]*yo;
+		double dx = cx[1];
+		double dy = cy[1];
+		for (int i=0; i < wd; i++, x += dx, y += dy)
+			{
+			xs[i] = x;
+			ys[i] = y;
+			}
+		}
+
+	/**
+	 * Nearest-neighbour resampling of one output row with the positions xp,yp.
+	 */
+	protected void nearestRow (float[] src, int ws, int hs, float[] dst, float[] coverage, int wd, int j,
+					double[] xp, double[] yp)
+		{
+		double off = 0.5-Centroid.PIXELCENTER;		// ARRAY POSITION +0.5, SO THAT floor() ROUNDS
+		float fill = (float)fillValue;
+		int k = j*wd;
+		for (int i=0; i < wd; i++, k++)
+			{
+			int ix = (int)Math.floor(xp[i]+off);
+			int iy = (int)Math.floor(yp[i]+off);
+			float v = fill;
+			float c = 0.0f;
+			if (ix >= 0 && ix < ws && iy >= 0 && iy < hs)
+				{
+				float z = src[ix+iy*ws];
+				if (z == z)
+					{
+					v = z;
+					c = 1.0f;
+					}
+				}
+			dst[k] = v;
+			if (coverage != null) coverage[k] = c;
+			}
+		}
+
+	/**
+	 * Resampling of one output row with the positions xp,yp and a tabulated kernel of "taps" x "taps" pixels.
+	 */
+	protected void kernelRow (float[] src, int ws, int hs, float[] dst, float[] coverage, int wd, int j,
+					double[] xp, double[] yp)
+		{
+		double pc = Centroid.PIXELCENTER;
+		int n = taps;
+		int ilast = ws-n;
+		int jlast = hs-n;
+		float fill = (float)fillValue;
+		float[] w = weights;
+		int k = j*wd;
+		for (int i=0; i < wd; i++, k++)
+			{
+			double xs = xp[i]-pc;			// ARRAY POSITION: PIXEL CENTERS AT WHOLE NUMBERS
+			double ys = yp[i]-pc;
+			double fx = Math.floor(xs);
+			double fy = Math.floor(ys);
+			int i0 = (int)fx-offset;		// FIRST TAP
+			int j0 = (int)fy-offset;
+			int wx = n*(int)((xs-fx)*TABLE_STEPS+0.5);
+			int wy = n*(int)((ys-fy)*TABLE_STEPS+0.5);
+
+			// ALL TAPS INSIDE: PLAIN WEIGHTED SUM
+
+			if (i0 >= 0 && i0 <= ilast && j0 >= 0 && j0 <= jlast)
+				{
+				double sum = 0.0;
+				int row = i0+j0*ws;
+				for (int b=0; b < n; b++, row += ws)
+					{
+					double s = 0.0;
+					for (int a=0; a < n; a++)
+						s += w[wx+a]*src[row+a];
+					sum += w[wy+b]*s;
+					}
+				if (sum == sum)
+					{
+					dst[k] = (float)sum;
+					if (coverage != null) coverage[k] = 1.0f;
+					continue;
+					}
+				}
+
+			// EDGE OR NaN PIXELS: ONLY USE THE VALID TAPS
+
+			double sum = 0.0;
+			double wsum = 0.0;
+			for (int b=0; b < n; b++)
+				{
+				int jj = j0+b;
+				if (jj < 0 || jj >= hs) continue;
+				int row = jj*ws;
+				for (int a=0; a < n; a++)
+					{
+					int ii = i0+a;
+					if (ii < 0 || ii >= ws) continue;
+					float z = src[row+ii];
+					if (z != z) continue;
+					double ww = w[wx+a]*w[wy+b];
+					sum += ww*z;
+					wsum += ww;
+					}
+				}
+			if (wsum >= MIN_COVERAGE)
+				dst[k] = (float)(sum/wsum);
+			else
+				dst[k] = fill;
+			if (coverage != null) coverage[k] = (float)Math.max(0.0,wsum);
+			}
+		}
+
+	/**
+	 * Tabulates the normalized kernel weights for fractional positions 0,1/TABLE_STEPS,...,1.
+	 */
+	protected void makeTable ()
+		{
+		weights = new float[(TABLE_STEPS+1)*taps];
+		for (int q=0; q <= TABLE_STEPS; q++)
+			{
+			double f = (double)q/TABLE_STEPS;
+			double sum = 0.0;
+			double[] wq = new double[taps];
+			for (int t=0; t < taps; t++)
+				{
+				wq[t] = kernelValue (f-(t-offset));
+				sum += wq[t];
+				}
+			for (int t=0; t < taps; t++)
+				weights[q*taps+t] = (float)(wq[t]/sum);
+			}
+		}
+
+	/**
+	 * The kernel as a function of the distance d from the position.
+	 */
+	protected double kernelValue (double d)
+		{
+		double x = Math.abs(d);
+		if (kernel == BILINEAR)
+			return (x < 1.0) ? 1.0-x : 0.0;
+		else if (kernel == BICUBIC)
+			{
+			double a = -0.5;	// KEYS' CUBIC CONVOLUTION
+			if (x <= 1.0)
+				return ((a+2.0)*x-(a+3.0))*x*x+1.0;
+			else if (x < 2.0)
+				return ((a*x-5.0*a)*x+8.0*a)*x-4.0*a;
+			return 0.0;
+			}
+		else	{
+			if (x < 1.0e-8) return 1.0;
+			if (x >= 3.0) return 0.0;
+			double px = Math.PI*x;
+			return 3.0*Math.sin(px)*Math.sin(px/3.0)/(px*px);
+			}
+		}
+	}
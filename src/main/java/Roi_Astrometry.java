@@ -18,6 +18,23 @@ import astroj.*;
  * @version 1.1
  * @date 2012-Nov-20
  * @author F. Hessman (Goettingen)
+ *
+ * @version 1.2
+ * @date 2026-Oct-19
+ * @changes WCS refined by Levenberg-Marquardt with outlier rejection (WCSFitter) instead of Amoeba, which
+ *	is kept for a WCS with SIP distortion terms.
+ *
+ * @version 1.3
+ * @date 2026-Oct-19
+ * @changes Images without a WCS are solved blindly first if an astrometric index has been set (Solve_Astrometry).
+ *
+ * @version 1.4
+ * @date 2026-Oct-19
+ * @changes The final positions are computed in bulk (WCSTransform).
+ *
+ * @version 1.5
+ * @date 2026-Oct-19
+ * @changes The overlay is repainted once after all apertures have been added.
  */
 public class Roi_Astrometry implements PlugInFilter, AmoebaFunction
 	{
@@ -54,6 +71,11 @@ public class Roi_Astrometry implements PlugInFilter, AmoebaFunction
 	public void run(ImageProcessor ip)
 		{
 		wcs = new WCS(img);
+		if (!wcs.hasWCS())
+			{
+			WCS solved = Solve_Astrometry.solveWithPrefs (img);
+			if (solved != null) wcs = solved;
+			}
 		centre = new Centroid(true);
 		centre.setPositioning (true);
                 centre.forgiving = true;
@@ -116,50 +138,6 @@ public class Roi_Astrometry implements PlugInFilter, AmoebaFunction
 		return true;
 		}
 
-	/**
-	 * chi**2 function used by Amoeba.
-	 */
-	public double userFunction (double[] p, double nix)
-		{
-		double chisqr = 0.0;
-		double[] xy;
-		for (int i=0; i < npts; i++)
-			{
-			double x = xPix[i];		// ImageJ PIXELS
-			double y = yPix[i];
-			double alpha = xWCS[i];
-			double delta = yWCS[i];
-			xy = wcs2xy(alpha,delta,p);
-			chisqr += ( (xy[0]-x)*(xy[0]-x)+(xy[1]-y)*(xy[1]-y) );	// * wgts[i] !!!
-			}
-		return chisqr/(2*npts);
-		}
-
-	/**
-	 * Converts RA,DEC into ImageJ x,y-pixel positions.
-	 */
-	double[] wcs2xy (double alpha, double delta, double[] p)
-		{
-		double[] crval = new double[] {p[0],p[1]};			// FIT CRVAL
-		wcs.setCRVAL(crval);
-		double[][] pc  = new double[][] {{p[2],p[3]},{p[4],p[5]}};	// FIT PC MATRIX
-		wcs.setPC(pc);
-		int nc = 6;
-		if (fitCDELT)
-			{
-			double[] cdelt = new double[] {p[nc],p[nc+1]};			// FIT CDELT
-			wcs.setCDELT(cdelt);
-			nc += 2;
-			}
-		if (fitCRPIX)
-			{
-			double[] crpix = new double[] {p[nc],p[nc+1]};			// FIT CDELT
-			wcs.setCRPIX(crpix);
-			nc += 2;
-			}
-		return wcs.wcs2pixels(alpha,delta);
-		}
-
 	/**
 	 * Gets all ApertureRoi measurements from the current OverlayCanvas.
 	 */
@@ -237,10 +215,116 @@ public class Roi_Astrometry implements PlugInFilter, AmoebaFunction
 			}
 		}
 
+	/**
+	 * chi**2 function used by Amoeba.
+	 */
+	public double userFunction (double[] p, double nix)
+		{
+		double chisqr = 0.0;
+		double[] xy;
+		for (int i=0; i < npts; i++)
+			{
+			double x = xPix[i];		// ImageJ PIXELS
+			double y = yPix[i];
+			double alpha = xWCS[i];
+			double delta = yWCS[i];
+			xy = wcs2xy(alpha,delta,p);
+			chisqr += ( (xy[0]-x)*(xy[0]-x)+(xy[1]-y)*(xy[1]-y) );	// * wgts[i] !!!
+			}
+		return chisqr/(2*npts);
+		}
+
+	/**
+	 * Converts RA,DEC into ImageJ x,y-pixel positions.
+	 */
+	double[] wcs2xy (double alpha, double delta, double[] p)
+		{
+		double[] crval = new double[] {p[0],p[1]};			// FIT CRVAL
+		wcs.setCRVAL(crval);
+		double[][] pc  = new double[][] {{p[2],p[3]},{p[4],p[5]}};	// FIT PC MATRIX
+		wcs.setPC(pc);
+		int nc = 6;
+		if (fitCDELT)
+			{
+			double[] cdelt = new double[] {p[nc],p[nc+1]};			// FIT CDELT
+			wcs.setCDELT(cdelt);
+			nc += 2;
+			}
+		if (fitCRPIX)
+			{
+			double[] crpix = new double[] {p[nc],p[nc+1]};			// FIT CDELT
+			wcs.setCRPIX(crpix);
+			nc += 2;
+			}
+		return wcs.wcs2pixels(alpha,delta);
+		}
+
 	/**
 	 * Takes RA,DEC from USNO stars and refined pixel positions to get a better astrometric soluion.
 	 */
 	protected void refineWCS (ImagePlus img)
+		{
+		WCSFitter fitter = new WCSFitter (wcs);
+		if (!fitter.isValid())		// E.G. SIP DISTORTION, WHICH THE FITTER DOES NOT MODEL
+			{
+			refineWCSAmoeba (img);
+			return;
+			}
+		fitter.setData (xPix,yPix,xWCS,yWCS,null,npts);
+		fitter.setFitCRPIX (fitCRPIX);
+		IJ.log("\nStarting solution: rms="+fitter.getRMS()+" pixels");
+		if (!fitter.fit())
+			{
+			IJ.error("Cannot fit WCS to "+npts+" stars!");
+			return;
+			}
+		IJ.log("\nFinal solution: rms="+fitter.getRMS()+" pixels after "+fitter.getIterations()+" iterations ("
+				+(npts-fitter.getNumberUsed())+" of "+npts+" stars rejected)");
+
+		GFormat gf = new GFormat("7.2");
+		IJ.log("\nDetailed fits to data:\n\tNo.\tX\tY\tXfit\tYfit\tRA\tDEC\tdX\tdY");
+		for (int i=0; i < npts; i++)
+			{
+			double x = xPix[i];		// ImageJ PIXELS
+			double y = yPix[i];
+			double alpha = xWCS[i];
+			double delta = yWCS[i];
+			double[] xy = fitter.predict(alpha,delta);
+			IJ.log("\t"+i+"\t"+gf.format(x)+"\t"+gf.format(y)+"\t"+gf.format(xy[0])+"\t"+gf.format(xy[1])+"\t"+alpha+"\t"+delta+"\t"+gf.format(xy[0]-x)+"\t"+gf.format(xy[1]-y)+(fitter.isUsed(i) ? "" : "\trejected"));
+			}
+
+		// SAVE PARAMETERS
+
+		fitter.apply (wcs,fitCDELT);
+		double[] crval = wcs.getCRVAL();
+		double[] crpix = wcs.getCRPIX();
+		double[][] pc  = wcs.getPC();
+		IJ.log("\tCRVAL="+crval[0]+","+crval[1]);
+		IJ.log("\tCRPIX="+crpix[0]+","+crpix[1]);
+		IJ.log("\tPC="+pc[0][0]+","+pc[0][1]+","+pc[1][0]+","+pc[1][1]);
+		wcs.saveFITS(img);
+
+		// SHOW NEW POSITIONS
+
+		IJ.log("\tFinal positions shown in red.");
+		double[] xFinal = new double[npts];
+		double[] yFinal = new double[npts];
+		new WCSTransform(wcs).wcs2pixels (xWCS,yWCS,xFinal,yFinal,npts);
+		for (int i=0; i < npts; i++)
+			{
+			OvalRoi roi = new OvalRoi ((int)(xFinal[i]-aper),(int)(yFinal[i]-aper),2*(int)aper,2*(int)aper);
+			roi.setColor(Color.red);
+			roi.setImage (img);
+			ocanvas.add (roi);
+			}
+		ocanvas.repaint();
+		}
+	
+	/**
+	 * Refines the WCS by a simplex search through WCS.wcs2pixels(), e.g. for a WCS with SIP distortion
+	 * terms which WCSFitter does not model.
+	 */
+	protected void refineWCSAmoeba (ImagePlus img)
 		{
 		Random rand = new Random();
 		Amoeba simplex = new Amoeba();
@@ -357,7 +441,7 @@ public class Roi_Astrometry implements PlugInFilter, AmoebaFunction
 			roi.setColor(Color.red);
 			roi.setImage (img);
 			ocanvas.add (roi);
-			ocanvas.repaint();
 			}
+		ocanvas.repaint();
 		}
 	}
@@ -94,6 +94,10 @@ import astroj.*;
  * @date 2010-Nov-24
  * @author Karen Collins (Univ. Louisvill/KY)
  * @changes Added support for removal of stars from background region (>3 sigma from mean)
+ *
+ * @version 1.12
+ * @date 2026-Oct-19
+ * @changes Added option for the crash-safe photometry log (see PhotometryLog).
  */
 public class Set_Aperture implements PlugIn
 	{
@@ -118,6 +122,7 @@ public class Set_Aperture implements PlugIn
 	boolean reposition = true;
 	boolean forgiving  = true;			// STOP IF ERROR
 	boolean retry      = false;
+	boolean photLog    = false;			// ALSO WRITE RESULTS TO A CRASH-SAFE BINARY LOG
 	boolean removeBackStars = true;			// REMOVE STARS > 3 SIGMA FROM MEAN FROM BACKGROUND CALCULATION
 
 	boolean showFileName = true;        //LIST THE FILENAME AS THE ROW LABEL
@@ -187,6 +192,7 @@ public class Set_Aperture implements PlugIn
 		reposition = Prefs.get (Aperture_.AP_PREFS_REPOSITION, reposition);
 		forgiving  = Prefs.get (Aperture_.AP_PREFS_FORGIVING, forgiving);
 		retry      = Prefs.get (Aperture_.AP_PREFS_RETRY, retry);
+		photLog    = Prefs.get (Aperture_.AP_PREFS_PHOTLOG, photLog);
 		removeBackStars = Prefs.get (Aperture_.AP_PREFS_REMOVEBACKSTARS, removeBackStars);
 
 		showFileName   = Prefs.get (Aperture_.AP_PREFS_SHOWFILENAME, showFileName);
@@ -249,6 +255,7 @@ public class Set_Aperture implements PlugIn
 		Prefs.set (Aperture_.AP_PREFS_REPOSITION, reposition);
 		Prefs.set (Aperture_.AP_PREFS_FORGIVING, forgiving);
 		Prefs.set (Aperture_.AP_PREFS_RETRY, retry);
+		Prefs.set (Aperture_.AP_PREFS_PHOTLOG, photLog);
 		Prefs.set (Aperture_.AP_PREFS_REMOVEBACKSTARS, removeBackStars);
 
 		Prefs.set (Aperture_.AP_PREFS_SHOWFILENAME, showFileName);
@@ -385,6 +392,7 @@ public class Set_Aperture implements PlugIn
 		gd.addCheckbox ("Measurement results in image-specific tables",!oneTable);
 		gd.addCheckbox ("Halt measurement sequence if error.", !forgiving);
 		gd.addCheckbox ("Retry bad measurement by using larger search aperture.", retry);
+		gd.addCheckbox ("Write results also to a crash-safe log (resumable, next to the image).", photLog);
 
 		if (Centroid.PIXELCENTER < 0.49)
 			gd.addMessage ("Warning: following standard astronomical convention,\n"
@@ -417,5 +425,6 @@ public class Set_Aperture implements PlugIn
 		oneTable = ! gd.getNextBoolean();
 		forgiving = ! gd.getNextBoolean();
 		retry = gd.getNextBoolean();
+		photLog = gd.getNextBoolean();
 		}
 	}
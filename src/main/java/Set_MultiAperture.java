@@ -31,12 +31,17 @@ public class Set_MultiAperture implements PlugIn
 	// SPECIAL MultiAperture_ PREFERENCES
 	int nAperturesMax = 100;
 	boolean showRatioSNR = false;
+	boolean showEnsemble = false;
 	boolean showCompTot = false;
 	boolean forgiving = false;
 	boolean useMacroImage = false;
 	String macroImageName = null;
 	boolean useVarSizeAp = false;
 	double apFWHMFactor = 4.0;
+	boolean useStarFWHMAp = false;
+	boolean useOffsetSeed = false;
+	boolean maskNeighbours = false;
+	boolean findNeighbours = false;
 	boolean enableDoubleClicks = false;
 
 	// NON-INTERACTIVE PREFERENCES
@@ -59,12 +64,17 @@ public class Set_MultiAperture implements PlugIn
 		// GET SPECIAL MultiAperture_ PREFERENCES
 		showRatioError = Prefs.get (MultiAperture_.PREFS_SHOWRATIO_ERROR, showRatioError);
 		showRatioSNR   = Prefs.get (MultiAperture_.PREFS_SHOWRATIO_SNR, showRatioSNR);
+		showEnsemble   = Prefs.get (MultiAperture_.PREFS_SHOWENSEMBLE, showEnsemble);
 		showCompTot    = Prefs.get (MultiAperture_.PREFS_SHOWCOMPTOT, showCompTot);
 		forgiving      = Prefs.get (Aperture_.AP_PREFS_FORGIVING, forgiving);
 		useMacroImage  = Prefs.get (MultiAperture_.PREFS_USEMACROIMAGE, useMacroImage);
 		macroImageName = Prefs.get (MultiAperture_.PREFS_MACROIMAGENAME, macroImageName);
 		useVarSizeAp   = Prefs.get (MultiAperture_.PREFS_USEVARSIZEAP, useVarSizeAp);
 		apFWHMFactor   = Prefs.get (MultiAperture_.PREFS_APFWHMFACTOR, apFWHMFactor);
+		useStarFWHMAp  = Prefs.get (MultiAperture_.PREFS_USESTARFWHMAP, useStarFWHMAp);
+		useOffsetSeed  = Prefs.get (MultiAperture_.PREFS_OFFSETSEED, useOffsetSeed);
+		maskNeighbours = Prefs.get (MultiAperture_.PREFS_MASKNEIGHBOURS, maskNeighbours);
+		findNeighbours = Prefs.get (MultiAperture_.PREFS_FINDNEIGHBOURS, findNeighbours);
 		nAperturesMax  = (int) Prefs.get (MultiAperture_.PREFS_NAPERTURESMAX, nAperturesMax);
 	        enableDoubleClicks   = Prefs.get (MultiAperture_.PREFS_ENABLEDOUBLECLICKS, enableDoubleClicks);
 
@@ -92,9 +102,14 @@ public class Set_MultiAperture implements PlugIn
 		Prefs.set (MultiAperture_.PREFS_USEMACROIMAGE, useMacroImage);
 		Prefs.set (MultiAperture_.PREFS_MACROIMAGENAME, macroImageName);
 		Prefs.set (MultiAperture_.PREFS_SHOWCOMPTOT, showCompTot);
+		Prefs.set (MultiAperture_.PREFS_SHOWENSEMBLE, showEnsemble);
 		Prefs.set (MultiAperture_.PREFS_SHOWRATIO_SNR, showRatioSNR);
 		Prefs.set (MultiAperture_.PREFS_USEVARSIZEAP, useVarSizeAp);
 		Prefs.set (MultiAperture_.PREFS_APFWHMFACTOR, apFWHMFactor);
+		Prefs.set (MultiAperture_.PREFS_USESTARFWHMAP, useStarFWHMAp);
+		Prefs.set (MultiAperture_.PREFS_OFFSETSEED, useOffsetSeed);
+		Prefs.set (MultiAperture_.PREFS_MASKNEIGHBOURS, maskNeighbours);
+		Prefs.set (MultiAperture_.PREFS_FINDNEIGHBOURS, findNeighbours);
 		Prefs.set (MultiAperture_.PREFS_NAPERTURESMAX, nAperturesMax);
 	        Prefs.set (MultiAperture_.PREFS_ENABLEDOUBLECLICKS, enableDoubleClicks);
 
@@ -139,11 +154,16 @@ public class Set_MultiAperture implements PlugIn
 					showRatioError);
 		gd.addCheckbox ("Show signal-to-noise of multi-aperture ratio (*)", showRatioSNR);
 		gd.addCheckbox ("Show total comparison star counts (from apertures 2 to n).",showCompTot);
+		gd.addCheckbox ("Compute ensemble differential magnitudes of all stars.",showEnsemble);
 		gd.addCheckbox ("Halt measurement sequence if error.", !forgiving);
 		gd.addCheckbox ("Use macro image", useMacroImage);
 		gd.addStringField (".... called",macroImageName);
 		gd.addCheckbox ("Vary photometer aperture radii based on FWHM.",useVarSizeAp);
 		gd.addNumericField ("FWHM multiplication factor :", apFWHMFactor,2);
+		gd.addCheckbox ("Scale each aperture with the star's own FWHM (otherwise the mean FWHM).",useStarFWHMAp);
+		gd.addCheckbox ("Seed aperture positions with global image offset (for large tracking jumps).",useOffsetSeed);
+		gd.addCheckbox ("Leave other apertures out of the sky annuli (crowded fields).",maskNeighbours);
+		gd.addCheckbox ("Also leave out all stars found with the \"Find Stars\" settings.",findNeighbours);
 		gd.addNumericField ("Maximum number of apertures :",nAperturesMax,0);
 		gd.addMessage (" ");
 		gd.addCheckbox ("Allow left/right double click fast zoom-in/out (adds slight delay to aperture placement).",
@@ -159,11 +179,16 @@ public class Set_MultiAperture implements PlugIn
 		showRatioError = gd.getNextBoolean();
 		showRatioSNR = gd.getNextBoolean();
 		showCompTot = gd.getNextBoolean();
+		showEnsemble = gd.getNextBoolean();
 		forgiving = ! gd.getNextBoolean();
 		useMacroImage = gd.getNextBoolean();
 		macroImageName = gd.getNextString();
 		useVarSizeAp = gd.getNextBoolean();
 		apFWHMFactor = gd.getNextNumber();
+		useStarFWHMAp = gd.getNextBoolean();
+		useOffsetSeed = gd.getNextBoolean();
+		maskNeighbours = gd.getNextBoolean();
+		findNeighbours = gd.getNextBoolean();
 		nAperturesMax = (int)gd.getNextNumber();
 		enableDoubleClicks = gd.getNextBoolean();
 		}
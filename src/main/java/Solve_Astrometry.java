@@ -0,0 +1,222 @@
+// Solve_Astrometry.java
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+import ij.process.*;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import astroj.*;
+
+/**
+ * Blind astrometric solution of the current image or of all open images: the stars are found by a
+ * StarFinder with the settings of Find_Stars and matched against an index created by Build_Astrometry_Index
+ * (see PlateSolver); the resulting WCS is written into the FITS header.  All images are solved in
+ * parallel, each thread solving one image at a time.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes The shared index is released after solving (PlateSolver.release()).
+ */
+public class Solve_Astrometry implements PlugIn
+	{
+	String indexFile = "";
+	double scaleMin = 0.1;		// ARCSEC/PIXEL
+	double scaleMax = 10.0;
+	boolean allImages = false;
+
+	public static String PREFS_INDEX    = new String ("astrometry.index");
+	public static String PREFS_SCALEMIN = new String ("astrometry.scalemin");
+	public static String PREFS_SCALEMAX = new String ("astrometry.scalemax");
+	public static String PREFS_ALL      = new String ("astrometry.all");
+
+	public static int MAX_STARS = 300;
+
+	public void run (String arg)
+		{
+		int[] ids = WindowManager.getIDList();
+		if (ids == null)
+			{
+			IJ.noImage();
+			return;
+			}
+		if (!dialog()) return;
+
+		final PlateSolver solver;
+		try	{
+			solver = PlateSolver.open (new File(indexFile));
+			}
+		catch (IOException e)
+			{
+			IJ.error ("Unable to open the astrometric index "+indexFile+" : "+e.getMessage());
+			return;
+			}
+
+		final ImagePlus[] images;
+		if (allImages)
+			{
+			images = new ImagePlus[ids.length];
+			for (int k=0; k < ids.length; k++)
+				images[k] = WindowManager.getImage (ids[k]);
+			}
+		else
+			images = new ImagePlus[] {WindowManager.getCurrentImage()};
+
+		// SOLVE IN PARALLEL, ONE IMAGE PER THREAD AT A TIME
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger solved = new AtomicInteger(0);
+		final int nThreads = Math.min(Prefs.getThreads(),images.length);
+		long start = System.currentTimeMillis();
+		Thread[] threads = new Thread[nThreads];
+		for (int t=0; t < nThreads; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					int k;
+					while ((k = next.getAndIncrement()) < images.length)
+						{
+						if (images[k] == null) continue;
+						int finderThreads = Math.max(1,Prefs.getThreads()/nThreads);
+						if (solve (images[k],solver,scaleMin,scaleMax,finderThreads) != null)
+							solved.incrementAndGet();
+						IJ.showProgress (next.get(),images.length);
+						}
+					}
+				};
+			}
+		try	{
+			if (nThreads == 1)
+				threads[0].run();
+			else	{
+				for (int t=0; t < nThreads; t++)
+					threads[t].start();
+				try	{
+					for (int t=0; t < nThreads; t++)
+						threads[t].join();
+					}
+				catch (InterruptedException e)
+					{
+					Thread.currentThread().interrupt();
+					}
+				}
+			}
+		finally	{
+			solver.release();
+			}
+		IJ.showProgress (1.0);
+		IJ.showStatus ("Solved "+solved.get()+" of "+images.length+" images in "+(System.currentTimeMillis()-start)+" ms");
+		}
+
+	protected boolean dialog ()
+		{
+		indexFile = Prefs.get (PREFS_INDEX,indexFile);
+		scaleMin  = Prefs.get (PREFS_SCALEMIN,scaleMin);
+		scaleMax  = Prefs.get (PREFS_SCALEMAX,scaleMax);
+		allImages = Prefs.get (PREFS_ALL,allImages);
+
+		GenericDialog gd = new GenericDialog ("Solve Astrometry");
+		gd.addStringField ("Astrometric index file",indexFile,40);
+		gd.addNumericField ("Minimum pixel scale [arcsec/pixel]",scaleMin,3);
+		gd.addNumericField ("Maximum pixel scale [arcsec/pixel]",scaleMax,3);
+		gd.addCheckbox ("Solve all open images",allImages);
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+		indexFile = gd.getNextString().trim();
+		scaleMin  = gd.getNextNumber();
+		scaleMax  = gd.getNextNumber();
+		allImages = gd.getNextBoolean();
+		if (indexFile.length() == 0)
+			{
+			OpenDialog od = new OpenDialog ("Select astrometric index",null);
+			if (od.getFileName() == null) return false;
+			indexFile = new File(od.getDirectory(),od.getFileName()).getPath();
+			}
+		if (scaleMin <= 0.0 || scaleMax < scaleMin)
+			{
+			IJ.error ("Invalid range of pixel scales!");
+			return false;
+			}
+
+		Prefs.set (PREFS_INDEX,indexFile);
+		Prefs.set (PREFS_SCALEMIN,scaleMin);
+		Prefs.set (PREFS_SCALEMAX,scaleMax);
+		Prefs.set (PREFS_ALL,allImages);
+		return true;
+		}
+
+	/**
+	 * Solves the current slice of the image and saves the WCS in its FITS header.  Returns the WCS or null
+	 * if no solution was found.
+	 */
+	public static WCS solve (ImagePlus img, PlateSolver solver, double scaleMin, double scaleMax, int finderThreads)
+		{
+		StarFinder finder = Find_Stars.createFinder ();
+		finder.setMaxStars (MAX_STARS);
+		finder.setThreads (finderThreads);
+		ImageProcessor ip = img.getProcessor();
+		int n = finder.find (ip);
+		PlateSolver.Solution s = null;
+		try	{
+			s = solver.solve (finder.x(),finder.y(),n,ip.getWidth(),ip.getHeight(),scaleMin,scaleMax);
+			}
+		catch (IOException e)
+			{
+			IJ.log ("Solve Astrometry: "+img.getTitle()+" : "+e.getMessage());
+			return null;
+			}
+		if (s == null)
+			{
+			IJ.log ("Solve Astrometry: no solution for "+img.getTitle()+" ("+n+" stars found)");
+			return null;
+			}
+		WCS wcs;
+		synchronized (img)
+			{
+			wcs = PlateSolver.saveWCS (img,s);
+			}
+		if (wcs == null)
+			{
+			IJ.log ("Solve Astrometry: unable to save the WCS of "+img.getTitle());
+			return null;
+			}
+		double[] radec = s.radec (0.5*ip.getWidth(),0.5*ip.getHeight());
+		IJ.log ("Solve Astrometry: "+img.getTitle()+" centred at R.A.="+radec[0]+", Decl.="+radec[1]+" [deg], "
+				+(float)s.scale()+" arcsec/pixel, "+s.nMatched+" of "+s.nIndex+" index stars matched (log P="
+				+(float)s.logProbability+")");
+		return wcs;
+		}
+
+	/**
+	 * Solves the image with the index and scale range of the preferences, e.g. if it has no WCS.  Returns
+	 * null if no index has been set or no solution was found.
+	 */
+	public static WCS solveWithPrefs (ImagePlus img)
+		{
+		String index = Prefs.get (PREFS_INDEX,"");
+		if (index.length() == 0 || !new File(index).exists())
+			return null;
+		PlateSolver solver = null;
+		try	{
+			solver = PlateSolver.open (new File(index));
+			IJ.showStatus ("Solving "+img.getTitle()+" ...");
+			return solve (img,solver,Prefs.get(PREFS_SCALEMIN,0.1),Prefs.get(PREFS_SCALEMAX,10.0),Prefs.getThreads());
+			}
+		catch (IOException e)
+			{
+			IJ.log ("Unable to open the astrometric index "+index+" : "+e.getMessage());
+			return null;
+			}
+		finally	{
+			if (solver != null) solver.release();
+			}
+		}
+	}
@@ -26,17 +26,33 @@ import astroj.*;
  * @version 1.2
  * @date 2009-FEB-09
  * @changes Added whole pixel shift.
+ *
+ * @version 1.3
+ * @date 2026-Oct-19
+ * @changes Optional measurement of all shifts by phase correlation (PhaseCorrelator), so that no
+ *	apertures have to be selected.
+ *
+ * @version 1.4
+ * @date 2026-Oct-19
+ * @changes The shifts, backgrounds, and scale factors are collected while measuring and then applied
+ *	in place to all slices in parallel by a FrameShifter (separable kernel, one pass per direction)
+ *	instead of duplicating each slice and interpolating pixel by pixel.
  */
 public class Stack_Aligner extends MultiAperture_
 	{
 	boolean normalize = false;
 	boolean whole = true;
+	boolean phaseCorrelation = false;
 	boolean firstImage = true;
 	String label = "Aligned_";
 	double[] xRef = null;
 	double[] yRef = null;
 	double flux = 0.0;
 
+	double[][] shifts = null;	// SHIFT, BACKGROUND, AND SCALE FACTOR OF EACH SLICE (INDEX slice-1)
+	double[] backs = null;
+	double[] scales = null;
+
 	/**
 	 * Standard ImageJ PluginFilter setup routine which also determines the default aperture radius.
 	 */
@@ -54,6 +70,11 @@ public class Stack_Aligner extends MultiAperture_
 		{
 		if (stackSize < 2) return false;
 		doStack = true;
+		if (phaseCorrelation)
+			{
+			alignByPhaseCorrelation ();
+			return false;		// FINISHED: NO APERTURES TO SELECT
+			}
 		return super.prepare();
 		}
 
@@ -92,8 +113,10 @@ public class Stack_Aligner extends MultiAperture_
 
         normalize = Prefs.get ("stackAligner.normalize", normalize);
         whole = Prefs.get ("stackAligner.whole", whole);
+		phaseCorrelation = Prefs.get ("stackAligner.phase", phaseCorrelation);
 		gd.addCheckbox ("Remove background and scale to common level", normalize);
 		gd.addCheckbox ("Align only to whole pixels (no interpolation)!",whole);
+		gd.addCheckbox ("Measure shifts by phase correlation (no apertures, no scaling)",phaseCorrelation);
 		gd.addMessage ("After pressing the \"OK\" button, select the image alignment object(s).");
 		gd.addMessage ("To finalize object selection, right click. To abort the process, press <ESC>.");
 		return gd;
@@ -106,9 +129,11 @@ public class Stack_Aligner extends MultiAperture_
 		{
 		normalize = gd.getNextBoolean();
 		whole     = gd.getNextBoolean();
+		phaseCorrelation = gd.getNextBoolean();
 
 		Prefs.set ("stackAligner.normalize", normalize);
 		Prefs.set ("stackAligner.whole", whole);   
+		Prefs.set ("stackAligner.phase", phaseCorrelation);
 
 		xPos = new double[nApertures];
 		yPos = new double[nApertures];
@@ -140,8 +165,15 @@ public class Stack_Aligner extends MultiAperture_
 
 		// PROCESS STACK
 
+		shifts = new double[stackSize][];
+		backs = new double[stackSize];
+		scales = new double[stackSize];
 		super.processStack ();
 
+		// SHIFT THE MEASURED SLICES
+
+		shiftSlices ();
+
 		// RENAME RESULTING ALIGNED STACK
 
 		img.setTitle(label);
@@ -159,17 +191,18 @@ public class Stack_Aligner extends MultiAperture_
 		if (firstImage)
 			flux = (target+others)/nApertures;
 
-		// PERFORM BACKGROUND SUBTRACTION AND NORMALIZATION
+		// BACKGROUND SUBTRACTION AND NORMALIZATION (APPLIED WHEN SHIFTING)
 
+		backs[slice-1] = 0.0;
+		scales[slice-1] = 1.0;
 		if (normalize)
 			{
-			imp.resetRoi();		// SO CAN PERFORM ON WHOLE IMAGE
-			imp.add (-back);	// REMOVE MEAN BACKGROUND
+			backs[slice-1] = back;		// REMOVE MEAN BACKGROUND
 			if (!firstImage)		// NORMALIZE TO STANDARD FLUX
-				imp.multiply (flux/((target+others)/nApertures));
+				scales[slice-1] = flux/((target+others)/nApertures);
 			}
 
-		// SHIFT IMAGE
+		// SHIFT OF IMAGE
 
 		double dx = 0.0;
 		double dy = 0.0;
@@ -180,44 +213,63 @@ public class Stack_Aligner extends MultiAperture_
 			}
 		dx /= nApertures;
 		dy /= nApertures;
-		img.setProcessor ("Aligned_"+img.getStack().getShortSliceLabel(slice), shiftedImage(dx,dy));
+		shifts[slice-1] = new double[] {dx,dy};
 		firstImage = false;
 		}
 
 	/**
-	 * Shifts image linearly by an amount (dx,dy).
+	 * Shifts (and normalizes) all slices with a measured shift in parallel.
 	 */
-	protected ImageProcessor shiftedImage (double dx, double dy)
+	protected void shiftSlices ()
 		{
-		int h = imp.getHeight();
-		int w = imp.getWidth();
+		if (shifts == null) return;
+		IJ.showStatus ("Shifting slices ...");
+		FrameShifter shifter = new FrameShifter (whole ? Resampler.NEAREST : Resampler.BILINEAR);
+		shifter.setThreads (Prefs.getThreads());
+		shifter.shiftStack (img.getStack(),1,shifts,backs,scales);
+		shifts = null;
+		img.updateAndDraw();
+		IJ.showStatus ("");
+		}
 
-		ImageProcessor ip = imp.duplicate ();
+	/**
+	 * Measures the shifts of all selected slices relative to the first one by phase correlation
+	 * in one multi-threaded call and shifts the slices accordingly.
+	 */
+	protected void alignByPhaseCorrelation ()
+		{
+		ImageStack stack = img.getStack();
+		String titl = img.getShortTitle();
+		if (titl == null)
+			titl = img.getTitle();
+
+		IJ.showStatus ("Measuring shifts by phase correlation ...");
+		PhaseCorrelator correlator = new PhaseCorrelator (stack.getProcessor(firstSlice));
+		correlator.setThreads (Prefs.getThreads());
+		double[][] measured = correlator.measureStack (stack,firstSlice,lastSlice);
 
-		for (int j=0; j < h; j++)
+		MeasurementTable table = new MeasurementTable ("Shifts_"+titl);
+		shifts = new double[stackSize][];
+		for (int i=firstSlice; i <= lastSlice; i++)
 			{
-			double y = (double)j+dy;
-			int iy = (int)(y+Centroid.PIXELCENTER);
-			if (whole)
+			double[] d = measured[i-firstSlice];
+			if (d == null)
 				{
-				for (int i=0; i < w; i++)
-					{
-					double x = (double)i+dx;
-					int ix = (int)(x+Centroid.PIXELCENTER);
-					double d = (double)imp.getPixelValue(ix, iy);
-					ip.putPixelValue (i,j,d);
-					}
-				}
-			else	{
-				for (int i=0; i < w; i++)
-					{
-					double x = (double)i+dx;
-					double d = imp.getInterpolatedPixel(x, y);
-					ip.putPixelValue (i,j,d);
-					}
+				IJ.log ("Stack Aligner: no significant correlation for slice "+i+", not shifted.");
+				continue;
 				}
+			shifts[i-1] = d;
+			table.incrementCounter();
+			table.addValue ("Slice", i, 0);
+			table.addValue ("dX", d[0], 3);
+			table.addValue ("dY", d[1], 3);
 			}
-		return ip;
+		backs = null;
+		scales = null;
+		shiftSlices ();
+		img.setSlice (firstSlice);
+		img.setTitle (label+titl);
+		table.show();
 		}
 
 	}
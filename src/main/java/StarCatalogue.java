@@ -0,0 +1,559 @@
+// StarCatalogue.java
+
+import ij.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import astroj.*;
+
+/**
+ * A local star catalogue in a binary file which is partitioned into declination zones, so that cone
+ * searches can be answered from the memory-mapped file without any network access.
+ *
+ * File format (big-endian, as written by DataOutputStream):
+ *	header		MAGIC (8 bytes), version (int), number of zones (int), zone height [deg] (double),
+ *			number of stars (long), padded to HEADER_SIZE bytes
+ *	zone index	for each zone the number of the first star (long) and the number of stars (int)
+ *	stars		RECORD_SIZE bytes each: R.A. [deg] (double), Decl. [deg] (double), two magnitudes (float)
+ *			and an identifier (long)
+ * Zone z contains the declinations -90+z*height <= dec < -90+(z+1)*height, sorted by R.A.
+ *
+ * A cone search maps the zones overlapping the cone (once, lazily), finds the R.A. range of the cone in
+ * each zone by binary search, and tests only the stars within it.
+ *
+ * The catalogue is created from a text dump (CSV, tab- or space-separated) by importText(), which needs
+ * memory only for BATCH_STARS stars at a time, reading the dump once per batch of zones.  A selection of
+ * stars held in memory (e.g. the index stars of PlateSolver) is written by write().
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes write() for stars held in memory.
+ *
+ * @version 1.2
+ * @date 2026-Oct-19
+ * @changes open() counts its users (release()), so a replaced catalogue is only closed when no longer used;
+ *	importText() writes to a temporary file which then replaces the catalogue.
+ */
+public class StarCatalogue
+	{
+	public static String MAGIC = "ASTROCAT";
+	public static int VERSION = 1;
+	public static int HEADER_SIZE = 64;
+	public static int INDEX_SIZE = 12;
+	public static int RECORD_SIZE = 32;
+	public static double ZONE_HEIGHT = 0.5;		// [deg] DEFAULT
+	public static int BATCH_STARS = 2000000;
+
+	protected File file;
+	protected RandomAccessFile raf;
+	protected FileChannel channel;
+	protected int nZones;
+	protected double zoneHeight;
+	protected long nStars;
+	protected long[] first;
+	protected int[] count;
+	protected MappedByteBuffer[] zones;
+	protected long dataStart;
+	protected long modified;
+	protected int users = 0;			// CALLERS OF open() WHICH HAVE NOT YET CALLED release()
+
+	protected static StarCatalogue opened = null;	// LAST CATALOGUE OPENED BY open()
+
+	/**
+	 * The stars found by a cone search as primitive arrays of length n (or more).
+	 */
+	public static class Stars
+		{
+		public int n = 0;
+		public double[] ra = new double[64];
+		public double[] dec = new double[64];
+		public float[] mag1 = new float[64];
+		public float[] mag2 = new float[64];
+		public long[] id = new long[64];
+
+		void add (double a, double d, float m1, float m2, long i)
+			{
+			if (n == ra.length)
+				{
+				int len = 2*n;
+				ra = Arrays.copyOf (ra,len);
+				dec = Arrays.copyOf (dec,len);
+				mag1 = Arrays.copyOf (mag1,len);
+				mag2 = Arrays.copyOf (mag2,len);
+				id = Arrays.copyOf (id,len);
+				}
+			ra[n] = a;
+			dec[n] = d;
+			mag1[n] = m1;
+			mag2[n] = m2;
+			id[n] = i;
+			n++;
+			}
+		}
+
+	/**
+	 * Opens a catalogue file.
+	 */
+	public StarCatalogue (File file) throws IOException
+		{
+		this.file = file;
+		modified = file.lastModified();
+		raf = new RandomAccessFile (file,"r");
+		channel = raf.getChannel();
+		ByteBuffer hdr = channel.map (FileChannel.MapMode.READ_ONLY,0,HEADER_SIZE);
+		byte[] magic = new byte[MAGIC.length()];
+		hdr.get (magic);
+		if (!MAGIC.equals(new String(magic,"US-ASCII")) || hdr.getInt() != VERSION)
+			{
+			close ();
+			throw new IOException ("Not a star catalogue: "+file.getName());
+			}
+		nZones = hdr.getInt();
+		zoneHeight = hdr.getDouble();
+		nStars = hdr.getLong();
+
+		ByteBuffer index = channel.map (FileChannel.MapMode.READ_ONLY,HEADER_SIZE,(long)nZones*INDEX_SIZE);
+		first = new long[nZones];
+		count = new int[nZones];
+		for (int z=0; z < nZones; z++)
+			{
+			first[z] = index.getLong();
+			count[z] = index.getInt();
+			}
+		dataStart = HEADER_SIZE+(long)nZones*INDEX_SIZE;
+		zones = new MappedByteBuffer[nZones];
+		}
+
+	/**
+	 * Returns the opened catalogue, which stays mapped for further queries as long as the file is unchanged.
+	 * Each call must be paired with a call of release() when the caller no longer needs the catalogue.
+	 */
+	public static synchronized StarCatalogue open (File file) throws IOException
+		{
+		if (opened != null && opened.file.equals(file) && opened.modified == file.lastModified())
+			{
+			opened.users++;
+			return opened;
+			}
+		StarCatalogue previous = opened;
+		opened = null;
+		if (previous != null && previous.users == 0)
+			previous.close();
+		opened = new StarCatalogue (file);
+		opened.users = 1;
+		return opened;
+		}
+
+	/**
+	 * Releases a catalogue returned by open().  A catalogue which has been replaced by another one in the
+	 * meantime is closed when its last user releases it.
+	 */
+	public void release ()
+		{
+		synchronized (StarCatalogue.class)
+			{
+			if (users > 0) users--;
+			if (users == 0 && this != opened)
+				close();
+			}
+		}
+
+	public long getNumberOfStars ()		{ return nStars; }
+	public File getFile ()			{ return file; }
+
+	public void close ()
+		{
+		try	{
+			raf.close();
+			}
+		catch (IOException e) {}
+		}
+
+	/**
+	 * Returns the mapped records of zone z.
+	 */
+	protected synchronized ByteBuffer zone (int z) throws IOException
+		{
+		if (zones[z] == null)
+			zones[z] = channel.map (FileChannel.MapMode.READ_ONLY,dataStart+first[z]*RECORD_SIZE,(long)count[z]*RECORD_SIZE);
+		return zones[z];
+		}
+
+	/**
+	 * Returns the stars within radius [deg] of (ra,dec) [deg] whose first magnitude lies between bright and
+	 * faint (stars without a first magnitude are always returned).
+	 */
+	public Stars cone (double ra, double dec, double radius, double bright, double faint) throws IOException
+		{
+		Stars stars = new Stars ();
+		double d2r = Math.PI/180.0;
+		double cosr = Math.cos(radius*d2r);
+		double sind0 = Math.sin(dec*d2r);
+		double cosd0 = Math.cos(dec*d2r);
+
+		// R.A. HALF-WIDTH OF THE CONE
+
+		double dra = 180.0;
+		if (Math.abs(dec)+radius < 90.0)
+			dra = Math.asin(Math.min(1.0,Math.sin(radius*d2r)/cosd0))/d2r;
+		ra = ((ra%360.0)+360.0)%360.0;
+
+		int z0 = zoneOf (dec-radius);
+		int z1 = zoneOf (dec+radius);
+		for (int z=z0; z <= z1; z++)
+			{
+			if (count[z] == 0) continue;
+			ByteBuffer buf = zone (z);
+			if (dra >= 180.0)
+				scan (buf,0,count[z],ra,sind0,cosd0,cosr,bright,faint,stars);
+			else	{
+				double lo = ra-dra;
+				double hi = ra+dra;
+				if (lo < 0.0)
+					{
+					scan (buf,lowerBound(buf,count[z],lo+360.0),count[z],ra,sind0,cosd0,cosr,bright,faint,stars);
+					lo = 0.0;
+					}
+				if (hi >= 360.0)
+					{
+					scan (buf,0,lowerBound(buf,count[z],hi-360.0),ra,sind0,cosd0,cosr,bright,faint,stars);
+					hi = 360.0;
+					}
+				scan (buf,lowerBound(buf,count[z],lo),lowerBound(buf,count[z],hi),ra,sind0,cosd0,cosr,bright,faint,stars);
+				}
+			}
+		return stars;
+		}
+
+	protected int zoneOf (double dec)
+		{
+		int z = (int)Math.floor((dec+90.0)/zoneHeight);
+		return Math.max(0,Math.min(nZones-1,z));
+		}
+
+	/**
+	 * Returns the first of the n stars in the zone with an R.A. not less than ra.
+	 */
+	protected static int lowerBound (ByteBuffer buf, int n, double ra)
+		{
+		int lo = 0;
+		int hi = n;
+		while (lo < hi)
+			{
+			int mid = (lo+hi) >>> 1;
+			if (buf.getDouble(mid*RECORD_SIZE) < ra)
+				lo = mid+1;
+			else
+				hi = mid;
+			}
+		return lo;
+		}
+
+	/**
+	 * Adds the stars k0,...,k1-1 of the zone which lie within the cone and the magnitude limits.
+	 */
+	protected static void scan (ByteBuffer buf, int k0, int k1, double ra0, double sind0, double cosd0, double cosr,
+					double bright, double faint, Stars stars)
+		{
+		double d2r = Math.PI/180.0;
+		for (int k=k0; k < k1; k++)
+			{
+			int off = k*RECORD_SIZE;
+			float m1 = buf.getFloat(off+16);
+			if (m1 < bright || m1 > faint) continue;
+			double a = buf.getDouble(off);
+			double d = buf.getDouble(off+8);
+			double dd = d*d2r;
+			double c = Math.sin(dd)*sind0+Math.cos(dd)*cosd0*Math.cos((a-ra0)*d2r);
+			if (c < cosr) continue;
+			stars.add (a,d,m1,buf.getFloat(off+20),buf.getLong(off+24));
+			}
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// IMPORT
+
+	/**
+	 * Creates the catalogue file out from the text dump in.  The columns (counted from 1; 0 = not present)
+	 * contain the R.A. (degrees or sexagesimal hours), Decl. (degrees or sexagesimal), two magnitudes, and
+	 * an identifier (its digits; otherwise the line number is used).  Lines which cannot be parsed (e.g.
+	 * headers and comments) are skipped.  Returns the number of stars.
+	 */
+	public static long importText (File in, File out, int raCol, int decCol, int mag1Col, int mag2Col, int idCol,
+						double zoneHeight) throws IOException
+		{
+		int nz = (int)Math.ceil(180.0/zoneHeight);
+		int[] counts = new int[nz];
+		double[] star = new double[4];
+		long[] id = new long[1];
+
+		// FIRST PASS: COUNT THE STARS PER ZONE
+
+		IJ.showStatus ("Counting stars in "+in.getName()+" ...");
+		BufferedReader reader = new BufferedReader (new FileReader(in));
+		String line;
+		long nLine = 0;
+		long total = 0;
+		try	{
+			while ((line = reader.readLine()) != null)
+				{
+				nLine++;
+				if (!parseLine(line,nLine,raCol,decCol,mag1Col,mag2Col,idCol,star,id)) continue;
+				counts[zoneOf(star[1],zoneHeight,nz)]++;
+				total++;
+				}
+			}
+		finally	{
+			reader.close();
+			}
+
+		// HEADER AND ZONE INDEX, WRITTEN TO A TEMPORARY FILE WHICH REPLACES out WHEN COMPLETE
+
+		File tmp = tempFile (out);
+		DataOutputStream output = new DataOutputStream (new BufferedOutputStream (new FileOutputStream(tmp),1<<16));
+		try	{
+			writeHeader (output,nz,zoneHeight,total,counts);
+
+			// FURTHER PASSES: COLLECT, SORT, AND WRITE THE STARS OF AS MANY ZONES AS FIT INTO A BATCH
+
+			int z0 = 0;
+			while (z0 < nz)
+				{
+				int z1 = z0;
+				long n = counts[z0];
+				while (z1+1 < nz && n+counts[z1+1] <= BATCH_STARS)
+					n += counts[++z1];
+				if (n > 0)
+					writeZones (in,output,z0,z1,counts,(int)n,raCol,decCol,mag1Col,mag2Col,idCol,zoneHeight,nz);
+				IJ.showProgress (z1+1,nz);
+				z0 = z1+1;
+				}
+			output.close();
+			replace (tmp,out);
+			}
+		finally	{
+			output.close();
+			tmp.delete();
+			}
+		IJ.showStatus ("");
+		return total;
+		}
+
+	/**
+	 * Creates the catalogue file out from the stars, e.g. a selection from another catalogue.
+	 */
+	public static void write (File out, Stars stars, double zoneHeight) throws IOException
+		{
+		int nz = (int)Math.ceil(180.0/zoneHeight);
+		int n = stars.n;
+		int[] counts = new int[nz];
+		final int[] zone = new int[n];
+		Integer[] order = new Integer[n];
+		for (int k=0; k < n; k++)
+			{
+			zone[k] = zoneOf (stars.dec[k],zoneHeight,nz);
+			counts[zone[k]]++;
+			order[k] = k;
+			}
+		final double[] r = stars.ra;
+		Arrays.sort (order,new Comparator<Integer>()
+			{
+			public int compare (Integer a, Integer b)
+				{
+				if (zone[a] != zone[b])
+					return zone[a]-zone[b];
+				return Double.compare (r[a],r[b]);
+				}
+			});
+
+		DataOutputStream output = new DataOutputStream (new BufferedOutputStream (new FileOutputStream(out),1<<16));
+		try	{
+			writeHeader (output,nz,zoneHeight,n,counts);
+			for (int k=0; k < n; k++)
+				{
+				int i = order[k];
+				output.writeDouble (((stars.ra[i]%360.0)+360.0)%360.0);
+				output.writeDouble (stars.dec[i]);
+				output.writeFloat (stars.mag1[i]);
+				output.writeFloat (stars.mag2[i]);
+				output.writeLong (stars.id[i]);
+				}
+			}
+		finally	{
+			output.close();
+			}
+		}
+
+	/**
+	 * Returns a new temporary file in the directory of out.
+	 */
+	protected static File tempFile (File out) throws IOException
+		{
+		return File.createTempFile ("catalogue",".tmp",out.getAbsoluteFile().getParentFile());
+		}
+
+	/**
+	 * Moves the complete file tmp onto out.  Catalogues still mapped from out keep reading the old file,
+	 * which would be corrupted (or, on some systems, crash the JVM) if it were overwritten in place.
+	 */
+	protected static void replace (File tmp, File out) throws IOException
+		{
+		Files.move (tmp.toPath(),out.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+		}
+
+	/**
+	 * Writes the header and the zone index for the given numbers of stars per zone.
+	 */
+	protected static void writeHeader (DataOutputStream output, int nz, double zoneHeight, long total, int[] counts)
+					throws IOException
+		{
+		output.writeBytes (MAGIC);
+		output.writeInt (VERSION);
+		output.writeInt (nz);
+		output.writeDouble (zoneHeight);
+		output.writeLong (total);
+		for (int k=MAGIC.length()+4+4+8+8; k < HEADER_SIZE; k++)
+			output.writeByte (0);
+		long f = 0;
+		for (int z=0; z < nz; z++)
+			{
+			output.writeLong (f);
+			output.writeInt (counts[z]);
+			f += counts[z];
+			}
+		}
+
+	/**
+	 * Reads the n stars of the zones z0,...,z1 from the dump and writes them sorted by zone and R.A.
+	 */
+	protected static void writeZones (File in, DataOutputStream output, int z0, int z1, int[] counts, int n,
+						int raCol, int decCol, int mag1Col, int mag2Col, int idCol,
+						double zoneHeight, int nz) throws IOException
+		{
+		double[] ra = new double[n];
+		double[] dec = new double[n];
+		float[] m1 = new float[n];
+		float[] m2 = new float[n];
+		long[] ids = new long[n];
+		int[] next = new int[z1-z0+2];
+		for (int z=z0; z <= z1; z++)
+			next[z-z0+1] = next[z-z0]+counts[z];
+		int[] start = next.clone();
+
+		double[] star = new double[4];
+		long[] id = new long[1];
+		BufferedReader reader = new BufferedReader (new FileReader(in));
+		String line;
+		long nLine = 0;
+		try	{
+			while ((line = reader.readLine()) != null)
+				{
+				nLine++;
+				if (!parseLine(line,nLine,raCol,decCol,mag1Col,mag2Col,idCol,star,id)) continue;
+				int z = zoneOf (star[1],zoneHeight,nz);
+				if (z < z0 || z > z1) continue;
+				int k = next[z-z0]++;
+				ra[k] = star[0];
+				dec[k] = star[1];
+				m1[k] = (float)star[2];
+				m2[k] = (float)star[3];
+				ids[k] = id[0];
+				}
+			}
+		finally	{
+			reader.close();
+			}
+
+		for (int z=z0; z <= z1; z++)
+			{
+			int k0 = start[z-z0];
+			int k1 = start[z-z0+1];
+			Integer[] order = new Integer[k1-k0];
+			for (int k=k0; k < k1; k++)
+				order[k-k0] = k;
+			final double[] r = ra;
+			Arrays.sort (order,new Comparator<Integer>()
+				{
+				public int compare (Integer a, Integer b)
+					{
+					return Double.compare (r[a],r[b]);
+					}
+				});
+			for (int k=0; k < order.length; k++)
+				{
+				int i = order[k];
+				output.writeDouble (ra[i]);
+				output.writeDouble (dec[i]);
+				output.writeFloat (m1[i]);
+				output.writeFloat (m2[i]);
+				output.writeLong (ids[i]);
+				}
+			}
+		}
+
+	protected static int zoneOf (double dec, double zoneHeight, int nz)
+		{
+		return Math.max(0,Math.min(nz-1,(int)Math.floor((dec+90.0)/zoneHeight)));
+		}
+
+	/**
+	 * Parses a line of the dump into {ra,dec,mag1,mag2} and the identifier.  Returns false if it is not a star.
+	 */
+	protected static boolean parseLine (String line, long nLine, int raCol, int decCol, int mag1Col, int mag2Col,
+						int idCol, double[] star, long[] id)
+		{
+		String s = line.trim();
+		if (s.length() == 0 || s.startsWith("#")) return false;
+		String[] parts = s.split("[,;|\\s]+");
+		int n = parts.length;
+		if (raCol > n || decCol > n || mag1Col > n || mag2Col > n || idCol > n) return false;
+
+		double ra = angle (parts[raCol-1],true);
+		double dec = angle (parts[decCol-1],false);
+		if (Double.isNaN(ra) || Double.isNaN(dec) || dec < -90.0 || dec > 90.0) return false;
+		star[0] = ((ra%360.0)+360.0)%360.0;
+		star[1] = dec;
+		star[2] = (mag1Col > 0) ? number(parts[mag1Col-1]) : Double.NaN;
+		star[3] = (mag2Col > 0) ? number(parts[mag2Col-1]) : Double.NaN;
+
+		id[0] = nLine;
+		if (idCol > 0)
+			{
+			String digits = parts[idCol-1].replaceAll("[^0-9]","");
+			if (digits.length() > 0 && digits.length() < 19)
+				id[0] = Long.parseLong (digits);
+			}
+		return true;
+		}
+
+	/**
+	 * Degrees from a decimal number or a sexagesimal string (hours for the R.A.).
+	 */
+	protected static double angle (String s, boolean hours)
+		{
+		if (s.indexOf(':') > 0)
+			{
+			double d = DmsFormat.unformat (s);
+			return hours ? 15.0*d : d;
+			}
+		return number (s);
+		}
+
+	protected static double number (String s)
+		{
+		try	{
+			return Double.parseDouble (s);
+			}
+		catch (NumberFormatException e)
+			{
+			return Double.NaN;
+			}
+		}
+	}
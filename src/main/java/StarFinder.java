@@ -0,0 +1,501 @@
+// StarFinder.java
+
+import ij.*;
+import ij.process.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import astroj.*;
+
+/**
+ * Automatic detection of stars in the manner of DAOFIND (Stetson 1987):
+ *
+ *	1. the sky level and noise are estimated in a mesh of MESH_SIZE x MESH_SIZE boxes
+ *	   (3-sigma clipped mean and r.m.s.) and interpolated bilinearly between the box centers;
+ *	2. the image is convolved with a zero-sum Gaussian of the given FWHM, which gives the
+ *	   least-squares amplitude of a star at every pixel independently of the local sky;
+ *	3. local maxima of the amplitude image above threshold*sigma are candidates;
+ *	4. candidates are kept if their sharpness (central pixel relative to its neighbours)
+ *	   and roundness (amplitudes of Gaussians fitted to the x- and y-marginals) are within limits.
+ *
+ * The kernel is defined on a square box so that the convolution is separable.  The background
+ * meshes and the bands of rows ("tiles") of the convolution and detection are handed out to
+ * several threads.  The stars found are sorted by decreasing amplitude.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class StarFinder
+	{
+	/** Size of the background boxes in pixels. */
+	public static int MESH_SIZE = 64;
+
+	/** Number of rows in each tile handed to a thread. */
+	public static int TILE_ROWS = 128;
+
+	protected double fwhm = 3.5;
+	protected double threshold = 5.0;	// IN UNITS OF THE NOISE OF THE AMPLITUDE IMAGE
+	protected double sharpLow = 0.2;
+	protected double sharpHigh = 1.0;
+	protected double roundLow = -1.0;
+	protected double roundHigh = 1.0;
+	protected int maxStars = 0;		// 0 = ALL
+	protected int nThreads = 1;
+
+	// RESULTS
+
+	protected int nStars = 0;
+	protected double[] xStar,yStar;
+	protected double[] peak,sharpness,roundness,mag,sky;
+
+	// WORK ARRAYS
+
+	protected int width,height;
+	protected float[] data;
+	protected float[] amp;
+	protected int nmx,nmy;
+	protected double[] meshBack,meshSigma;
+	protected double minSigma;
+
+	protected int nhalf;
+	protected double radius2;
+	protected double[] g1;
+	protected double gmean,norm,g1mean;
+
+	protected Vector<double[]> found;
+
+	public StarFinder ()
+		{
+		nThreads = Prefs.getThreads();
+		}
+
+	public void setFWHM (double fwhm)			{ this.fwhm = fwhm; }
+	public void setThreshold (double nsigma)		{ threshold = nsigma; }
+	public void setSharpnessLimits (double lo, double hi)	{ sharpLow = lo; sharpHigh = hi; }
+	public void setRoundnessLimits (double lo, double hi)	{ roundLow = lo; roundHigh = hi; }
+	public void setMaxStars (int n)				{ maxStars = n; }
+	public void setThreads (int n)				{ nThreads = Math.max(1,n); }
+
+	public int numberOfStars ()	{ return nStars; }
+	public double[] x ()		{ return xStar; }
+	public double[] y ()		{ return yStar; }
+	public double[] peak ()		{ return peak; }
+	public double[] sharpness ()	{ return sharpness; }
+	public double[] roundness ()	{ return roundness; }
+	public double[] mag ()		{ return mag; }
+	public double[] sky ()		{ return sky; }
+
+	/**
+	 * Finds the stars in the image and returns their number.  The positions use the same pixel
+	 * convention as Centroid and Aperture_.
+	 */
+	public int find (ImageProcessor ip)
+		{
+		width = ip.getWidth();
+		height = ip.getHeight();
+		data = (float[])ip.convertToFloat().getPixels();
+		nStars = 0;
+
+		makeKernel ();
+		if (width <= 2*nhalf || height <= 2*nhalf)
+			{
+			setResults (new Vector<double[]>());
+			return 0;
+			}
+
+		// SKY MESH, AMPLITUDE IMAGE, DETECTIONS - EACH STEP NEEDS THE RESULT OF THE PREVIOUS ONE
+
+		nmx = (width+MESH_SIZE-1)/MESH_SIZE;
+		nmy = (height+MESH_SIZE-1)/MESH_SIZE;
+		meshBack = new double[nmx*nmy];
+		meshSigma = new double[nmx*nmy];
+		runTiles (nmy,0);
+		fillMesh ();
+
+		amp = new float[width*height];
+		int nTiles = (height+TILE_ROWS-1)/TILE_ROWS;
+		runTiles (nTiles,1);
+
+		found = new Vector<double[]>();
+		runTiles (nTiles,2);
+
+		setResults (found);
+		found = null;
+		amp = null;
+		data = null;
+		return nStars;
+		}
+
+	/**
+	 * Processes nTiles tiles with several threads: step 0 = sky mesh rows, 1 = convolution, 2 = detection.
+	 */
+	protected void runTiles (final int nTiles, final int step)
+		{
+		final AtomicInteger next = new AtomicInteger(0);
+		int n = Math.min(nThreads,nTiles);
+		Thread[] threads = new Thread[n];
+		for (int t=0; t < n; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					float[] tg = null;
+					float[] tb = null;
+					if (step == 1)
+						{
+						tg = new float[(TILE_ROWS+2*nhalf)*width];
+						tb = new float[(TILE_ROWS+2*nhalf)*width];
+						}
+					Vector<double[]> stars = new Vector<double[]>();
+					int tile;
+					while ((tile = next.getAndIncrement()) < nTiles)
+						{
+						if (step == 0)
+							meshRow (tile);
+						else if (step == 1)
+							convolveTile (tile*TILE_ROWS, Math.min(height,(tile+1)*TILE_ROWS), tg,tb);
+						else
+							detectTile (tile*TILE_ROWS, Math.min(height,(tile+1)*TILE_ROWS), stars);
+						}
+					if (step == 2)
+						found.addAll (stars);
+					}
+				};
+			threads[t].start();
+			}
+		for (int t=0; t < n; t++)
+			{
+			try	{
+				threads[t].join();
+				}
+			catch (InterruptedException e) {}
+			}
+		}
+
+	/**
+	 * Zero-sum Gaussian kernel on a square box: h = (sum(G*D)-gmean*sum(D))/norm is the amplitude
+	 * of a Gaussian star fitted together with a constant sky.
+	 */
+	protected void makeKernel ()
+		{
+		double sig = fwhm/2.35482;
+		double radius = Math.max(2.001,0.637*fwhm);
+		nhalf = (int)radius;
+		radius2 = radius*radius;
+
+		int n = 2*nhalf+1;
+		g1 = new double[n];
+		double s1 = 0.0;
+		double s2 = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			double d = k-nhalf;
+			g1[k] = Math.exp(-0.5*d*d/(sig*sig));
+			s1 += g1[k];
+			s2 += g1[k]*g1[k];
+			}
+		double npix = n*n;
+		double gsum = s1*s1;
+		gmean = gsum/npix;
+		norm = s2*s2-gsum*gsum/npix;
+
+		g1mean = s1/n;
+		}
+
+	/**
+	 * Clipped sky mean and r.m.s. of one row of mesh boxes.
+	 */
+	protected void meshRow (int my)
+		{
+		int j0 = my*MESH_SIZE;
+		int j1 = Math.min(height,j0+MESH_SIZE);
+		for (int mx=0; mx < nmx; mx++)
+			{
+			int i0 = mx*MESH_SIZE;
+			int i1 = Math.min(width,i0+MESH_SIZE);
+			double lo = Double.NEGATIVE_INFINITY;
+			double hi = Double.POSITIVE_INFINITY;
+			double mean = Double.NaN;
+			double sigma = Double.NaN;
+			for (int iter=0; iter < 4; iter++)
+				{
+				double s = 0.0;
+				double s2 = 0.0;
+				int m = 0;
+				for (int j=j0; j < j1; j++)
+					{
+					int off = j*width;
+					for (int i=i0; i < i1; i++)
+						{
+						double v = data[off+i];
+						if (v >= lo && v <= hi)		// ALSO EXCLUDES NaN
+							{
+							s += v;
+							s2 += v*v;
+							m++;
+							}
+						}
+					}
+				if (m < 3) break;
+				mean = s/m;
+				sigma = Math.sqrt(Math.max(0.0,s2/m-mean*mean));
+				lo = mean-3.0*sigma;
+				hi = mean+3.0*sigma;
+				}
+			meshBack[my*nmx+mx] = mean;
+			meshSigma[my*nmx+mx] = sigma;
+			}
+		}
+
+	/**
+	 * Replaces empty mesh boxes (e.g. all NaN) by the median values.
+	 */
+	protected void fillMesh ()
+		{
+		double[] b = new double[meshBack.length];
+		double[] s = new double[meshSigma.length];
+		int m = 0;
+		for (int k=0; k < meshBack.length; k++)
+			{
+			if (!Double.isNaN(meshBack[k]) && meshSigma[k] > 0.0)
+				{
+				b[m] = meshBack[k];
+				s[m] = meshSigma[k];
+				m++;
+				}
+			}
+		double bmed = 0.0;
+		double smed = 1.0;
+		if (m > 0)
+			{
+			Arrays.sort (b,0,m);
+			Arrays.sort (s,0,m);
+			bmed = b[m/2];
+			smed = s[m/2];
+			}
+		minSigma = Double.POSITIVE_INFINITY;
+		for (int k=0; k < meshBack.length; k++)
+			{
+			if (Double.isNaN(meshBack[k]) || !(meshSigma[k] > 0.0))
+				{
+				meshBack[k] = bmed;
+				meshSigma[k] = smed;
+				}
+			minSigma = Math.min(minSigma,meshSigma[k]);
+			}
+		}
+
+	/**
+	 * Bilinear interpolation of a mesh array between the box centers.
+	 */
+	protected double meshValue (double[] mesh, int i, int j)
+		{
+		double fx = (i+0.5)/MESH_SIZE-0.5;
+		double fy = (j+0.5)/MESH_SIZE-0.5;
+		fx = Math.max(0.0,Math.min(nmx-1,fx));
+		fy = Math.max(0.0,Math.min(nmy-1,fy));
+		int ix = (int)fx;
+		int iy = (int)fy;
+		int ix1 = Math.min(ix+1,nmx-1);
+		int iy1 = Math.min(iy+1,nmy-1);
+		double tx = fx-ix;
+		double ty = fy-iy;
+		return (1.0-ty)*((1.0-tx)*mesh[iy*nmx+ix] +tx*mesh[iy*nmx+ix1])
+			   +ty *((1.0-tx)*mesh[iy1*nmx+ix]+tx*mesh[iy1*nmx+ix1]);
+		}
+
+	/**
+	 * Computes the amplitude image for rows j0 <= j < j1 with the separable kernel: tg and tb
+	 * hold the row-convolved (Gaussian and box) data including the neighbouring rows.
+	 */
+	protected void convolveTile (int j0, int j1, float[] tg, float[] tb)
+		{
+		int n = 2*nhalf+1;
+		int r0 = Math.max(0,j0-nhalf);
+		int r1 = Math.min(height,j1+nhalf);
+
+		// ROW PASS
+
+		for (int r=r0; r < r1; r++)
+			{
+			int off = r*width;
+			int toff = (r-r0)*width;
+			for (int i=nhalf; i < width-nhalf; i++)
+				{
+				double sg = 0.0;
+				double sb = 0.0;
+				int k0 = off+i-nhalf;
+				for (int k=0; k < n; k++)
+					{
+					double v = data[k0+k];
+					sg += g1[k]*v;
+					sb += v;
+					}
+				tg[toff+i] = (float)sg;
+				tb[toff+i] = (float)sb;
+				}
+			}
+
+		// COLUMN PASS; NO AMPLITUDES WITHIN nhalf OF THE EDGES
+
+		for (int j=j0; j < j1; j++)
+			{
+			int off = j*width;
+			if (j < nhalf || j >= height-nhalf)
+				{
+				Arrays.fill (amp,off,off+width,0.0f);
+				continue;
+				}
+			int t0 = (j-nhalf-r0)*width;
+			for (int i=0; i < nhalf; i++)
+				{
+				amp[off+i] = 0.0f;
+				amp[off+width-1-i] = 0.0f;
+				}
+			for (int i=nhalf; i < width-nhalf; i++)
+				{
+				double sg = 0.0;
+				double sb = 0.0;
+				int t = t0+i;
+				for (int k=0; k < n; k++, t += width)
+					{
+					sg += g1[k]*tg[t];
+					sb += tb[t];
+					}
+				amp[off+i] = (float)((sg-gmean*sb)/norm);
+				}
+			}
+		}
+
+	/**
+	 * Finds the local maxima above threshold in rows j0 <= j < j1 and applies the shape cuts.
+	 */
+	protected void detectTile (int j0, int j1, Vector<double[]> stars)
+		{
+		double noise = 1.0/Math.sqrt(norm);		// NOISE OF THE AMPLITUDE FOR UNIT PIXEL NOISE
+		double minLevel = threshold*minSigma*noise;
+		int n = 2*nhalf+1;
+		double[] mx = new double[n];
+		double[] my = new double[n];
+
+		for (int j=Math.max(j0,nhalf); j < Math.min(j1,height-nhalf); j++)
+			{
+			for (int i=nhalf; i < width-nhalf; i++)
+				{
+				int k = i+j*width;
+				float h = amp[k];
+				if (!(h > minLevel)) continue;
+
+				// LOCAL MAXIMUM WITHIN THE CIRCULAR FOOTPRINT (TIES GO TO THE FIRST PIXEL)
+
+				boolean isMax = true;
+				for (int dj=-nhalf; dj <= nhalf && isMax; dj++)
+					{
+					for (int di=-nhalf; di <= nhalf; di++)
+						{
+						if ((di == 0 && dj == 0) || di*di+dj*dj > radius2) continue;
+						float v = amp[k+di+dj*width];
+						if (v > h || (v == h && (dj < 0 || (dj == 0 && di < 0))))
+							{
+							isMax = false;
+							break;
+							}
+						}
+					}
+				if (!isMax) continue;
+
+				double sigma = meshValue (meshSigma,i,j);
+				double level = threshold*sigma*noise;
+				if (h <= level) continue;
+				double back = meshValue (meshBack,i,j);
+
+				// SHARPNESS: CENTRAL PIXEL MINUS MEAN OF THE OTHER PIXELS, RELATIVE TO THE AMPLITUDE
+
+				double s = 0.0;
+				int m = 0;
+				for (int dj=-nhalf; dj <= nhalf; dj++)
+					{
+					for (int di=-nhalf; di <= nhalf; di++)
+						{
+						if ((di == 0 && dj == 0) || di*di+dj*dj > radius2) continue;
+						s += data[k+di+dj*width];
+						m++;
+						}
+					}
+				double sharp = (data[k]-s/m)/h;
+				if (Double.isNaN(sharp) || sharp < sharpLow || sharp > sharpHigh) continue;
+
+				// ROUNDNESS: AMPLITUDES OF GAUSSIANS FITTED TO THE WEIGHTED MARGINALS
+
+				Arrays.fill (mx,0.0);
+				Arrays.fill (my,0.0);
+				for (int b=0; b < n; b++)
+					{
+					int off = k+(b-nhalf)*width-nhalf;
+					for (int a=0; a < n; a++)
+						{
+						double d = data[off+a]-back;
+						mx[a] += g1[b]*d;
+						my[b] += g1[a]*d;
+						}
+					}
+				double hx = 0.0;
+				double hy = 0.0;
+				for (int a=0; a < n; a++)
+					{
+					hx += (g1[a]-g1mean)*mx[a];
+					hy += (g1[a]-g1mean)*my[a];
+					}
+				if (hx <= 0.0 || hy <= 0.0) continue;
+				double round = 2.0*(hx-hy)/(hx+hy);
+				if (round < roundLow || round > roundHigh) continue;
+
+				// SUB-PIXEL POSITION FROM PARABOLAE THROUGH THE AMPLITUDE MAXIMUM
+
+				double dx = FrameOffset.parabolicPeak (amp[k-1],h,amp[k+1]);
+				double dy = FrameOffset.parabolicPeak (amp[k-width],h,amp[k+width]);
+
+				stars.addElement (new double[] {
+					i+Centroid.PIXELCENTER+dx, j+Centroid.PIXELCENTER+dy,
+					h, sharp, round, -2.5*Math.log10(h/level), back });
+				}
+			}
+		}
+
+	/**
+	 * Sorts the detections by decreasing amplitude and copies them into the result arrays.
+	 */
+	protected void setResults (Vector<double[]> stars)
+		{
+		Collections.sort (stars, new Comparator<double[]>()
+			{
+			public int compare (double[] a, double[] b)
+				{
+				return Double.compare (b[2],a[2]);
+				}
+			});
+		nStars = stars.size();
+		if (maxStars > 0 && nStars > maxStars) nStars = maxStars;
+
+		xStar = new double[nStars];
+		yStar = new double[nStars];
+		peak = new double[nStars];
+		sharpness = new double[nStars];
+		roundness = new double[nStars];
+		mag = new double[nStars];
+		sky = new double[nStars];
+		for (int s=0; s < nStars; s++)
+			{
+			double[] d = stars.get(s);
+			xStar[s] = d[0];
+			yStar[s] = d[1];
+			peak[s] = d[2];
+			sharpness[s] = d[3];
+			roundness[s] = d[4];
+			mag[s] = d[5];
+			sky[s] = d[6];
+			}
+		}
+	}
@@ -0,0 +1,138 @@
+// StarGrid.java
+
+import java.util.*;
+
+/**
+ * Uniform-grid spatial index of star positions (e.g. all apertures of MultiAperture_ or the
+ * stars found by StarFinder in one image).  The stars are sorted into square cells by a counting
+ * sort, so building the index costs O(n) and finding the stars within a radius r of a position
+ * only looks at the cells overlapping the circle, i.e. O(1) per query when r is comparable to
+ * the cell size.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class StarGrid
+	{
+	/** Maximum number of cells: the cells are made larger if necessary. */
+	public static int MAX_CELLS = 1 << 22;
+
+	protected int n;
+	protected double[] x,y;
+	protected double cell;
+	protected double xmin,ymin;
+	protected int nx,ny;
+	protected int[] start;		// FIRST ENTRY OF EACH CELL IN index (LENGTH nx*ny+1)
+	protected int[] index;		// STAR NUMBERS SORTED BY CELL
+
+	/**
+	 * Indexes the first n positions using square cells of the given size.
+	 */
+	public StarGrid (double[] xs, double[] ys, int n, double cellSize)
+		{
+		this.n = n;
+		x = new double[n];
+		y = new double[n];
+		System.arraycopy (xs,0,x,0,n);
+		System.arraycopy (ys,0,y,0,n);
+		cell = Math.max(1.0,cellSize);
+
+		double xmax = 0.0;
+		double ymax = 0.0;
+		xmin = ymin = 0.0;
+		if (n > 0)
+			{
+			xmin = xmax = x[0];
+			ymin = ymax = y[0];
+			}
+		for (int k=1; k < n; k++)
+			{
+			xmin = Math.min(xmin,x[k]);
+			xmax = Math.max(xmax,x[k]);
+			ymin = Math.min(ymin,y[k]);
+			ymax = Math.max(ymax,y[k]);
+			}
+		while ((1.0+(xmax-xmin)/cell)*(1.0+(ymax-ymin)/cell) > MAX_CELLS)
+			cell *= 2.0;
+		nx = 1+(int)((xmax-xmin)/cell);
+		ny = 1+(int)((ymax-ymin)/cell);
+
+		// COUNTING SORT INTO THE CELLS
+
+		int[] cellOf = new int[n];
+		start = new int[nx*ny+1];
+		for (int k=0; k < n; k++)
+			{
+			cellOf[k] = cellX(x[k])+nx*cellY(y[k]);
+			start[cellOf[k]+1]++;
+			}
+		for (int c=0; c < nx*ny; c++)
+			start[c+1] += start[c];
+		int[] fill = new int[nx*ny];
+		index = new int[n];
+		for (int k=0; k < n; k++)
+			{
+			int c = cellOf[k];
+			index[start[c]+fill[c]] = k;
+			fill[c]++;
+			}
+		}
+
+	protected int cellX (double xx)
+		{
+		return Math.max(0,Math.min(nx-1,(int)Math.floor((xx-xmin)/cell)));
+		}
+
+	protected int cellY (double yy)
+		{
+		return Math.max(0,Math.min(ny-1,(int)Math.floor((yy-ymin)/cell)));
+		}
+
+	public int size ()		{ return n; }
+	public double x (int k)		{ return x[k]; }
+	public double y (int k)		{ return y[k]; }
+
+	/**
+	 * Returns the numbers of the stars within r of (xc,yc).
+	 */
+	public int[] near (double xc, double yc, double r)
+		{
+		if (n == 0 || xc+r < xmin || yc+r < ymin || xc-r > xmin+nx*cell || yc-r > ymin+ny*cell)
+			return new int[0];
+		int[] found = new int[8];
+		int m = 0;
+		int i0 = cellX(xc-r);
+		int i1 = cellX(xc+r);
+		int j0 = cellY(yc-r);
+		int j1 = cellY(yc+r);
+		double r2 = r*r;
+		for (int j=j0; j <= j1; j++)
+			{
+			for (int i=i0; i <= i1; i++)
+				{
+				int c = i+nx*j;
+				for (int e=start[c]; e < start[c+1]; e++)
+					{
+					int k = index[e];
+					double dx = x[k]-xc;
+					double dy = y[k]-yc;
+					if (dx*dx+dy*dy <= r2)
+						{
+						if (m == found.length)
+							found = Arrays.copyOf (found,2*m);
+						found[m++] = k;
+						}
+					}
+				}
+			}
+		return Arrays.copyOf (found,m);
+		}
+
+	/**
+	 * Returns the number of stars within r of (xc,yc).
+	 */
+	public int count (double xc, double yc, double r)
+		{
+		return near(xc,yc,r).length;
+		}
+	}
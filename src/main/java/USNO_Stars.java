@@ -8,6 +8,7 @@ import ij.process.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
 import java.util.Random;
 
 import astroj.*;
@@ -18,6 +19,32 @@ import astroj.*;
  * @version 1.1
  * @date 2012-Oct-06
  * @author F. Hessman (Göttingen)
+ *
+ * @version 1.2
+ * @date 2026-Oct-19
+ * @changes Optional local catalogue (StarCatalogue, e.g. created with Import_Catalogue) instead of the
+ *	ESO server.
+ *
+ * @version 1.3
+ * @date 2026-Oct-19
+ * @changes ESO queries are cached on disk (CatalogueCache); only complete, non-empty responses are stored.
+ *
+ * @version 1.4
+ * @date 2026-Oct-19
+ * @changes The catalogue is parsed while reading into the columns of CatalogueRows and projected in bulk.
+ *
+ * @version 1.5
+ * @date 2026-Oct-19
+ * @changes WCS refined by Levenberg-Marquardt with outlier rejection (WCSFitter) instead of Amoeba, which
+ *	is kept for a WCS with SIP distortion terms.
+ *
+ * @version 1.6
+ * @date 2026-Oct-19
+ * @changes The final positions are computed in bulk (WCSTransform).
+ *
+ * @version 1.7
+ * @date 2026-Oct-19
+ * @changes The overlay is repainted once after all apertures have been added.
  */
 public class USNO_Stars implements PlugInFilter, AmoebaFunction
 	{
@@ -33,8 +60,13 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 	protected double bright = 8.0;		// BRIGHT LIMIT IN MAGN
 	protected double faint  = 16.0;		// FAINT  LIMIT IN MAGN
 
-	protected String[] catalog = null;
+	protected CatalogueRows catalog = null;
 	protected Boolean fillTable = false;
+	protected boolean useLocal = false;
+	protected String catalogueFile = "";
+	protected boolean useCache = true;
+	protected double cacheSize = 64.0;	// MB
+	protected boolean esoComplete = false;	// WHOLE <pre> BLOCK OF THE LAST ESO RESPONSE READ
 
 	protected String[] labels = null;
  
@@ -175,12 +207,20 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 	protected boolean dialog()
 		{
 		Boolean diddle = refine | fitCDELT | fitCRPIX;
+		useLocal = Prefs.get (new String("usno.local"),useLocal);
+		catalogueFile = Prefs.get (new String("usno.catalogue"),catalogueFile);
+		useCache = Prefs.get (new String("usno.cache"),useCache);
+		cacheSize = Prefs.get (new String("usno.cachesize"),cacheSize);
 		GenericDialog gd = new GenericDialog("USNO Query");
 		gd.addStringField(RA,ra,12);
 		gd.addStringField(DEC,dec,12);
 		gd.addNumericField("Search radius [arcmin]",radius,2);
 		gd.addNumericField("Bright limit [mag]",bright,2);
 		gd.addNumericField("Faint  limit [mag]",faint,2);
+		gd.addCheckbox("Use local catalogue (instead of ESO)",useLocal);
+		gd.addStringField("Local catalogue file",catalogueFile,30);
+		gd.addCheckbox("Cache ESO queries",useCache);
+		gd.addNumericField("Query cache size [MB]",cacheSize,0);
 		gd.addCheckbox("Save catalogue in table",fillTable);
 		gd.addCheckbox("Measure all stars",measure);
 		gd.addNumericField(".. with aperture [pixels]",aper,0);
@@ -195,6 +235,10 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 		radius = (int)gd.getNextNumber();
 		bright = gd.getNextNumber();
 		faint  = gd.getNextNumber();
+		useLocal = gd.getNextBoolean();
+		catalogueFile = gd.getNextString().trim();
+		useCache = gd.getNextBoolean();
+		cacheSize = gd.getNextNumber();
 		fillTable = gd.getNextBoolean();
 		measure = gd.getNextBoolean();
 		aper = (int)gd.getNextNumber();
@@ -208,17 +252,55 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 			fitCDELT = false;
 			fitCRPIX = false;
 			}
+		Prefs.set (new String("usno.local"),useLocal);
+		Prefs.set (new String("usno.catalogue"),catalogueFile);
+		Prefs.set (new String("usno.cache"),useCache);
+		Prefs.set (new String("usno.cachesize"),cacheSize);
 		return true;
 		}
 
 	/**
-	 * Gets the USNO stars matching the image from ESO.
+	 * Gets the USNO stars matching the image from the local catalogue, the query cache, or ESO.
 	 */
 	protected boolean getCatalog()
+		{
+		if (useLocal)
+			return getLocalCatalog();
+
+		CatalogueCache cache = null;
+		CatalogueCache.Entry q = null;
+		double alpha = StarCatalogue.angle (ra,true);
+		double delta = StarCatalogue.angle (dec,false);
+		if (useCache && !Double.isNaN(alpha) && !Double.isNaN(delta))
+			{
+			cache = new CatalogueCache ((long)(cacheSize*1024.*1024.));
+			q = new CatalogueCache.Entry (url1,alpha,delta,radius/60.,bright,faint);
+			CatalogueCache.Entry e = cache.lookup (q);
+			if (e != null)
+				{
+				IJ.log("Cached query: "+e.n+" stars");
+				catalog = new CatalogueRows();
+				for (int k=0; k < e.n; k++)
+					catalog.add (e.ras[k],e.decs[k],e.mag1[k],e.mag2[k],e.names[k]);
+				return true;
+				}
+			}
+		if (!getESOCatalog())
+			return false;
+		if (cache != null && esoComplete && catalog.n > 0)	// NEVER CACHE AN ERROR PAGE OR A TRUNCATED RESPONSE
+			cacheCatalog (cache,q);
+		return true;
+		}
+
+	/**
+	 * Gets the USNO stars matching the image from ESO.  esoComplete is set only if the whole <pre>
+	 * block of the response was read.
+	 */
+	protected boolean getESOCatalog()
 		{
 		String query = url1+url2+ra.replace(":","+")+url3+dec.replace(":","+")+url4+bright+url5+faint+url6+radius;
 		IJ.log("ESO Query: "+query);
-		String ht = new String(new char[] {9});
+		esoComplete = false;
 		try	{
 			URL eso = new URL(query);
 			InputStream stream = null;
@@ -231,27 +313,31 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 				return false;
 				}
 			BufferedReader out = new BufferedReader(new InputStreamReader(stream));
-			String answer = "";
+			catalog = new CatalogueRows();
 			String chunk = "";
 			Boolean reached = false;
 			while ((chunk = out.readLine()) != null)
 				{
-				if (chunk.contains("</pre>")) reached = false;
+				if (chunk.contains("</pre>"))
+					{
+					if (reached) esoComplete = true;
+					reached = false;
+					}
 				if (reached && !chunk.equals("") && !chunk.contains("<b>"))
 					{
 					if (chunk.contains("</b>"))
-						answer += chunk.substring(chunk.lastIndexOf(">")+1).trim()+"\n".replace(ht," ");
+						catalog.parseRow (chunk,chunk.lastIndexOf(">")+1);
 					else if (chunk.contains("RA2000"))
-						labels = chunk.trim().replace(ht," ").replace("   "," ").replace("  "," ").split(" ");
-					else
-						answer += chunk.replace(ht," ").trim()+"\n";
+						labels = chunk.trim().split("\\s+");
+					else if (!catalog.parseRow (chunk,0) && chunk.trim().split("\\s+").length > 5)
+						IJ.log("Cannot parse USNO catalog entry: "+chunk);
 					// IJ.log("["+chunk+"]");
 					}
 				if (chunk.contains("<pre>")) reached = true;
 				}
 			out.close();
-			catalog = answer.split("\n");
-			// IJ.log("Catalogue:\n"+answer+"\n(length="+catalog.length+")");
+			if (!esoComplete)
+				IJ.log("Incomplete ESO response: "+catalog.n+" stars");
 			return true;
 			}
 		catch (Exception e)
@@ -262,6 +348,62 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 			}
 		}
 
+	/**
+	 * Gets the stars matching the image from the local catalogue, in the same form as the ESO response.
+	 */
+	protected boolean getLocalCatalog()
+		{
+		double alpha = StarCatalogue.angle (ra,true);
+		double delta = StarCatalogue.angle (dec,false);
+		if (Double.isNaN(alpha) || Double.isNaN(delta))
+			{
+			IJ.error("Cannot parse the coordinates "+ra+" "+dec);
+			return false;
+			}
+		StarCatalogue cat = null;
+		try	{
+			cat = StarCatalogue.open (new File(catalogueFile));
+			StarCatalogue.Stars stars = cat.cone (alpha,delta,radius/60.,bright,faint);
+			IJ.log("Local query: "+stars.n+" stars from "+cat.getFile().getName());
+			catalog = new CatalogueRows();
+			for (int k=0; k < stars.n; k++)
+				catalog.add (stars.ra[k],stars.dec[k],stars.mag1[k],stars.mag2[k],Long.toString(stars.id[k]));
+			return true;
+			}
+		catch (IOException e)
+			{
+			IJ.beep();
+			IJ.error("Can't read local catalogue "+catalogueFile+"\n:"+e.getMessage());
+			return false;
+			}
+		finally	{
+			if (cat != null) cat.release();
+			}
+		}
+
+	/**
+	 * Stores the ESO response in the query cache.
+	 */
+	protected void cacheCatalog (CatalogueCache cache, CatalogueCache.Entry q)
+		{
+		int n = catalog.n;
+		float[] mag1 = new float[n];
+		float[] mag2 = new float[n];
+		for (int k=0; k < n; k++)
+			{
+			mag1[k] = (float)catalog.rmag[k];
+			mag2[k] = (float)catalog.bmag[k];
+			}
+		q.setStars (n,Arrays.copyOf(catalog.ra,n),Arrays.copyOf(catalog.dec,n),mag1,mag2,catalog.ids());
+		try	{
+			cache.store (q);
+			}
+		catch (IOException e)
+			{
+			IJ.log("Cannot cache ESO query: "+e.getMessage());
+			}
+		}
+
 	/**
 	 * Parses the ESO output and displays the stars.
 	 */
@@ -271,16 +413,21 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 		int nx = img.getWidth();
 		int ny = img.getHeight();
 
-		xPix  = new double[catalog.length];
-		yPix  = new double[catalog.length];
-		xWCS  = new double[catalog.length];
-		yWCS  = new double[catalog.length];
-		wgts  = new double[catalog.length];
-		rmags = new double[catalog.length];
-		bmags = new double[catalog.length];
-		names = new String[catalog.length];
+		int n = catalog.n;
+		xPix  = new double[n];
+		yPix  = new double[n];
+		xWCS  = new double[n];
+		yWCS  = new double[n];
+		wgts  = new double[n];
+		rmags = new double[n];
+		bmags = new double[n];
+		names = new String[n];
 		npts = 0;
 
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		catalog.project (wcs,xs,ys);
+
 		if (canvas == null)
 			{
                 	canvas = img.getCanvas();
@@ -289,84 +436,59 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 			}
 
 		double avg = 0.0;
-		double ra = 0.0;
-		double dec = 0.0;
-		double rmag = 0.0;
-		double bmag = 0.0;
 		double w = 0.0;
-		String name = "";
-		for (int k=0; k < catalog.length; k++)
+		for (int k=0; k < n; k++)
 			{
-			String entry = catalog[k].trim().replace("   "," ").replace("  "," ");
-			String[] parts = entry.split(" ");
-			// IJ.log(entry.replace(" ","_")+" ("+parts.length+") "+(int)entry.charAt(2));
-
-			if (parts.length > 5)
+			w = 0.0;
+			double ra = catalog.ra[k];	// IN DEG
+			double dec = catalog.dec[k];	// IN DEG
+			double rmag = catalog.rmag[k];
+			double bmag = catalog.bmag[k];
+			double x = xs[k];
+			double y = ys[k];
+
+			// POSITION
+			if (x > 5 && x < nx-5 &&
+			    y > 5 && y < ny-5)
 				{
-				w = 0.0;
-				try	{
-					name = parts[1];
-					ra  = Double.parseDouble(parts[2]);	// IN DEG
-					dec = Double.parseDouble(parts[3]);	// IN DEG
-					rmag = Double.parseDouble(parts[4]);
-					bmag = Double.parseDouble(parts[5]);
-					}
-				catch (NumberFormatException e)
+				rmags[npts] = rmag;
+				bmags[npts] = bmag;
+				names[npts] = catalog.id(k);
+				xWCS[npts] = ra;
+				yWCS[npts] = dec;
+				if (measure)
 					{
-					IJ.beep();
-					IJ.log(e.getMessage());
-					IJ.log("Cannot parse USNO catalog entry: "+catalog[k]);
-					// return false;
-					}
-				double[] rd = new double[] {ra,dec};
-				double[] xy = wcs.wcs2pixels(rd);
-				double x = xy[0];
-				double y = xy[1];
-				// IJ.log("Parsed USNO catalog entry: "+catalog[k]);
-
-				// POSITION
-				if (x > 5 && x < nx-5 &&
-				    y > 5 && y < ny-5)
-					{
-					rmags[npts] = rmag;
-					bmags[npts] = bmag;
-					names[npts] = new String(name);
-					xWCS[npts] = ra;
-					yWCS[npts] = dec;
-					if (measure)
-						{
        	         				centre.setPosition (x,y);
        	                	 		if (!centre.measureXYR (ip, x,y,aper))
-							IJ.beep();
-						else	{
-							x = centre.x();
-							y = centre.y();
-							w = 2.+Math.abs(centre.signal());
-							}
-						xPix[npts] = x;
-						yPix[npts] = y;
-						wgts[npts] = w;
-						}
+						IJ.beep();
 					else	{
-						xPix[npts] = x;
-						yPix[npts] = y;
-						wgts[npts] = 0.0;
+						x = centre.x();
+						y = centre.y();
+						w = 2.+Math.abs(centre.signal());
 						}
-					npts++;
-					ApertureRoi roi = new ApertureRoi (x,y,aper,aper,aper,rmag,Color.green);
-					roi.setImage (img);
-					roi.setWCS(rd, new String[] {"deg     ","deg     "});
-					ocanvas.add (roi);
-					ocanvas.repaint();
+					xPix[npts] = x;
+					yPix[npts] = y;
+					wgts[npts] = w;
+					}
+				else	{
+					xPix[npts] = x;
+					yPix[npts] = y;
+					wgts[npts] = 0.0;
 					}
+				npts++;
+				ApertureRoi roi = new ApertureRoi (x,y,aper,aper,aper,rmag,Color.green);
+				roi.setImage (img);
+				roi.setWCS(new double[] {ra,dec}, new String[] {"deg     ","deg     "});
+				ocanvas.add (roi);
 				}
 			}
+		ocanvas.repaint();
 
 		if (npts == 0)	// && refine)
 			{
 			IJ.log ("Catalogue:");
-			for (int k=0; k < catalog.length; k++)
-				IJ.log (catalog[k].trim().replace("   "," ").replace("  "," "));
+			for (int k=0; k < n; k++)
+				IJ.log (catalog.row(k));
 			IJ.error("No measureable points!");
 			return false;
 			}
@@ -450,6 +572,68 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 	 * Takes RA,DEC from USNO stars and refined pixel positions to get a better astrometric soluion.
 	 */
 	protected void refineWCS (ImagePlus img)
+		{
+		WCSFitter fitter = new WCSFitter (wcs);
+		if (!fitter.isValid())		// E.G. SIP DISTORTION, WHICH THE FITTER DOES NOT MODEL
+			{
+			refineWCSAmoeba (img);
+			return;
+			}
+		fitter.setData (xPix,yPix,xWCS,yWCS,null,npts);
+		fitter.setFitCRPIX (fitCRPIX);
+		IJ.log("\nStarting solution: rms="+fitter.getRMS()+" pixels");
+		if (!fitter.fit())
+			{
+			IJ.error("Cannot fit WCS to "+npts+" stars!");
+			return;
+			}
+		IJ.log("\nFinal solution: rms="+fitter.getRMS()+" pixels after "+fitter.getIterations()+" iterations ("
+				+(npts-fitter.getNumberUsed())+" of "+npts+" stars rejected)");
+
+		GFormat gf = new GFormat("7.2");
+		IJ.log("\nDetailed fits to data:\n\tNo.\tX\tY\tXfit\tYfit\tRA\tDEC\tdX\tdY");
+		for (int i=0; i < npts; i++)
+			{
+			double x = xPix[i];		// ImageJ PIXELS
+			double y = yPix[i];
+			double alpha = xWCS[i];
+			double delta = yWCS[i];
+			double[] xy = fitter.predict(alpha,delta);
+			IJ.log("\t"+i+"\t"+gf.format(x)+"\t"+gf.format(y)+"\t"+gf.format(xy[0])+"\t"+gf.format(xy[1])+"\t"+alpha+"\t"+delta+"\t"+gf.format(xy[0]-x)+"\t"+gf.format(xy[1]-y)+(fitter.isUsed(i) ? "" : "\trejected"));
+			}
+
+		// SAVE PARAMETERS
+
+		fitter.apply (wcs,fitCDELT);
+		double[] crval = wcs.getCRVAL();
+		double[] crpix = wcs.getCRPIX();
+		double[][] pc  = wcs.getPC();
+		IJ.log("\tCRVAL="+crval[0]+","+crval[1]);
+		IJ.log("\tCRPIX="+crpix[0]+","+crpix[1]);
+		IJ.log("\tPC="+pc[0][0]+","+pc[0][1]+","+pc[1][0]+","+pc[1][1]);
+		wcs.saveFITS(img);
+
+		// SHOW NEW POSITIONS
+
+		IJ.log("\tFinal positions shown in red.");
+		double[] xFinal = new double[npts];
+		double[] yFinal = new double[npts];
+		new WCSTransform(wcs).wcs2pixels (xWCS,yWCS,xFinal,yFinal,npts);
+		for (int i=0; i < npts; i++)
+			{
+			OvalRoi roi = new OvalRoi ((int)(xFinal[i]-aper),(int)(yFinal[i]-aper),2*(int)aper,2*(int)aper);
+			roi.setColor(Color.red);
+			roi.setImage (img);
+			ocanvas.add (roi);
+			}
+		ocanvas.repaint();
+		}
+	
+	/**
+	 * Refines the WCS by a simplex search through WCS.wcs2pixels(), e.g. for a WCS with SIP distortion
+	 * terms which WCSFitter does not model.
+	 */
+	protected void refineWCSAmoeba (ImagePlus img)
 		{
 		Random rand = new Random();
 		Amoeba simplex = new Amoeba();
@@ -566,7 +750,7 @@ public class USNO_Stars implements PlugInFilter, AmoebaFunction
 			roi.setColor(Color.red);
 			roi.setImage (img);
 			ocanvas.add (roi);
-			ocanvas.repaint();
 			}
+		ocanvas.repaint();
 		}
 	}
@@ -0,0 +1,433 @@
+// WCSFitter.java
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Jama.*;
+import astroj.*;
+
+/**
+ * Refines the WCS of an image (gnomonic "TAN" projection) from the measured (ImageJ) pixel positions of
+ * stars with known R.A. and Decl. by Levenberg-Marquardt least squares.
+ *
+ * The model is the one of WCS.wcs2pixels():
+ *	X = a0 + m00*xi + m01*eta,  Y = b0 + m10*xi + m11*eta
+ * where (xi,eta) [deg] are the gnomonic projection about (CRVAL1,CRVAL2), (m00,..,m11) the inverse of the
+ * CD (or CDELT x PC) matrix incl. the flip of the y-axis, and (a0,b0) the ImageJ position of CRPIX.  The
+ * initial values are taken from the WCS itself (by projecting CRVAL and two nearby positions), so that
+ * the model need not know whether the WCS uses a CD or a PC matrix.  The Jacobian is analytic: the model
+ * is linear in all parameters but CRVAL, whose derivatives follow from those of the projection.  Since
+ * shifting CRVAL and CRPIX together changes the projection only to second order, only one of them is
+ * fitted: CRPIX if setFitCRPIX(true), otherwise CRVAL.
+ *
+ * After convergence, stars deviating by more than CLIP_SIGMA times the rms are rejected and the fit is
+ * repeated (at most MAX_CLIPS times, or until the set of stars does not change).  There are no random
+ * starting values, so the result is always the same.  A WCSFitter does not touch its WCS until apply()
+ * is called and shares no data with other instances, so many frames can be refined in parallel (see
+ * fitAll()).
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class WCSFitter
+	{
+	public static int MAX_ITERATIONS = 50;
+	public static double TOLERANCE = 1.e-10;	// RELATIVE CHANGE OF CHI^2 FOR CONVERGENCE
+	public static double CLIP_SIGMA = 3.0;
+	public static int MAX_CLIPS = 5;
+	public static double PROBE = 0.01;		// [deg] OFFSET OF THE POSITIONS USED TO DERIVE THE INITIAL MATRIX
+
+	protected static double D2R = Math.PI/180.0;
+
+	protected boolean valid = false;
+	protected double lonpole;
+	protected double[] p = new double[8];		// CRVAL1,CRVAL2,m00,m01,m10,m11,a0,b0
+	protected double a0init,b0init;
+	protected double[] crpix,cdelt;
+	protected boolean fitCRPIX = true;
+
+	protected double[] x,y,ra,dec,w;
+	protected int n = 0;
+	protected boolean[] used;
+	protected int nUsed = 0;
+	protected double rms = Double.NaN;
+	protected int iterations = 0;
+
+	/**
+	 * Takes the initial solution from the WCS, which must have a pure TAN projection: the model has no
+	 * SIP distortion terms, so a "-TAN-SIP" WCS is not valid and has to be refined otherwise.
+	 */
+	public WCSFitter (WCS wcs)
+		{
+		String[] ctype = wcs.getCTYPE();
+		if (!wcs.hasWCS() || ctype == null || ctype.length < 2 || ctype[0] == null || ctype[1] == null)
+			return;
+		if (ctype[0].indexOf("TAN") < 0 || ctype[0].indexOf("-SIP") >= 0 || ctype[1].indexOf("-SIP") >= 0)
+			return;
+		double[] crval = wcs.getCRVAL();
+		lonpole = wcs.getLONPOLE();
+		crpix = wcs.getCRPIX();
+		cdelt = wcs.getCDELT();
+		p[0] = crval[0];
+		p[1] = crval[1];
+
+		// PROJECT CRVAL AND POSITIONS TO THE NORTH AND EAST
+
+		double cosd = Math.max(1.e-3,Math.cos(crval[1]*D2R));
+		double[] c = wcs.wcs2pixels (crval[0],crval[1]);
+		double[] cn = wcs.wcs2pixels (crval[0],crval[1]+PROBE);
+		double[] ce = wcs.wcs2pixels (crval[0]+PROBE/cosd,crval[1]);
+		if (c == null || cn == null || ce == null) return;
+		double[] xe = new double[2];
+		double[] xn = new double[2];
+		project (crval[0],crval[1]+PROBE,xn,null,null);
+		project (crval[0]+PROBE/cosd,crval[1],xe,null,null);
+
+		// SOLVE  [xn eta_n ; xi_e eta_e] * (m00,m01) = (dXn,dXe), SAME FOR Y
+
+		double det = xn[0]*xe[1]-xn[1]*xe[0];
+		if (det == 0.0) return;
+		p[2] = ( xe[1]*(cn[0]-c[0])-xn[1]*(ce[0]-c[0]))/det;
+		p[3] = (-xe[0]*(cn[0]-c[0])+xn[0]*(ce[0]-c[0]))/det;
+		p[4] = ( xe[1]*(cn[1]-c[1])-xn[1]*(ce[1]-c[1]))/det;
+		p[5] = (-xe[0]*(cn[1]-c[1])+xn[0]*(ce[1]-c[1]))/det;
+		p[6] = a0init = c[0];
+		p[7] = b0init = c[1];
+		valid = true;
+		}
+
+	public boolean isValid ()		{ return valid; }
+	public double getRMS ()			{ return rms; }
+	public int getIterations ()		{ return iterations; }
+	public int getNumberUsed ()		{ return nUsed; }
+	public boolean isUsed (int k)		{ return used[k]; }
+	public void setFitCRPIX (boolean fit)	{ fitCRPIX = fit; }
+
+	/**
+	 * Sets the n measured ImageJ positions x,y of the stars with the coordinates ra,dec [deg] and the
+	 * weights w (null for equal weights).
+	 */
+	public void setData (double[] x, double[] y, double[] ra, double[] dec, double[] w, int n)
+		{
+		this.x = x;
+		this.y = y;
+		this.ra = ra;
+		this.dec = dec;
+		this.w = w;
+		this.n = n;
+		used = new boolean[n];
+		for (int k=0; k < n; k++)
+			used[k] = true;
+		nUsed = n;
+		rms = rms (p);
+		}
+
+	/**
+	 * Returns the ImageJ position of (ra,dec) [deg] for the current solution.
+	 */
+	public double[] predict (double ra, double dec)
+		{
+		double[] xe = new double[2];
+		double[] xy = new double[2];
+		projectModel (p,ra,dec,xe,xy);
+		return xy;
+		}
+
+	/**
+	 * Fits the data, rejecting outliers.  Returns false if there are too few stars or the fit fails.
+	 */
+	public boolean fit ()
+		{
+		int npar = 6;
+		int[] free = fitCRPIX ? new int[] {2,3,4,5,6,7} : new int[] {0,1,2,3,4,5};
+		if (!valid || nUsed < npar/2) return false;
+		iterations = 0;
+		for (int clip=0; clip <= MAX_CLIPS; clip++)
+			{
+			if (!levenbergMarquardt(free)) return false;
+			rms = rms (p);
+
+			// REJECT (OR RE-ADMIT) STARS BY THEIR DISTANCE FROM THE SOLUTION
+
+			double limit = CLIP_SIGMA*rms;
+			boolean[] keep = new boolean[n];
+			int nk = 0;
+			double[] xe = new double[2];
+			double[] xy = new double[2];
+			for (int k=0; k < n; k++)
+				{
+				projectModel (p,ra[k],dec[k],xe,xy);
+				double d = Math.hypot(xy[0]-x[k],xy[1]-y[k]);
+				keep[k] = d <= limit;
+				if (keep[k]) nk++;
+				}
+			if (clip == MAX_CLIPS || nk < npar/2 || java.util.Arrays.equals(keep,used))
+				break;
+			used = keep;
+			nUsed = nk;
+			}
+		rms = rms (p);
+		return true;
+		}
+
+	/**
+	 * Fits several frames in parallel using nThreads threads.  Returns the number of successful fits.
+	 */
+	public static int fitAll (final WCSFitter[] fitters, int nThreads)
+		{
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger ok = new AtomicInteger(0);
+		int nt = Math.max(1,Math.min(nThreads,fitters.length));
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					int k;
+					while ((k = next.getAndIncrement()) < fitters.length)
+						{
+						if (fitters[k].fit()) ok.incrementAndGet();
+						}
+					}
+				};
+			}
+		if (nt == 1)
+			threads[0].run();
+		else	{
+			for (int t=0; t < nt; t++)
+				threads[t].start();
+			try	{
+				for (int t=0; t < nt; t++)
+					threads[t].join();
+				}
+			catch (InterruptedException e)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		return ok.get();
+		}
+
+	/**
+	 * Stores the solution in the WCS: CRVAL, PC and CD, CRPIX (if fitted), and CDELT (if fitCDELT,
+	 * otherwise the scale goes into PC).
+	 */
+	public void apply (WCS wcs, boolean fitCDELT)
+		{
+		// CD = INVERSE OF [m00 m01 ; -m10 -m11]
+
+		double det = -p[2]*p[5]+p[3]*p[4];
+		double[][] cd = new double[][] {{-p[5]/det,-p[3]/det},{p[4]/det,p[2]/det}};
+		double[] cdel = cdelt.clone();
+		if (fitCDELT)
+			{
+			for (int i=0; i < 2; i++)
+				cdel[i] = Math.copySign (Math.hypot(cd[i][0],cd[i][1]),cdelt[i]);
+			wcs.setCDELT (cdel);
+			}
+		double[][] pc = new double[2][2];
+		for (int i=0; i < 2; i++)
+			{
+			pc[i][0] = cd[i][0]/cdel[i];
+			pc[i][1] = cd[i][1]/cdel[i];
+			}
+		wcs.setPC (pc);
+		wcs.setCD (cd);
+		wcs.setCRVAL (new double[] {((p[0]%360.0)+360.0)%360.0,p[1]});
+		if (fitCRPIX)
+			wcs.setCRPIX (new double[] {crpix[0]+p[6]-a0init,crpix[1]-(p[7]-b0init)});
+		}
+
+	/**
+	 * Minimizes chi^2 of the used stars with respect to the parameters p[free[0]],p[free[1]],...
+	 */
+	protected boolean levenbergMarquardt (int[] free)
+		{
+		int npar = free.length;
+		double lambda = 1.e-3;
+		double chi2 = chi2 (p);
+		double[] xe = new double[2];
+		double[] dxe = new double[2];	// D(xi)/D(CRVAL1), D(eta)/D(CRVAL1)
+		double[] dxd = new double[2];	// D(xi)/D(CRVAL2), D(eta)/D(CRVAL2)
+		double[] jx = new double[8];
+		double[] jy = new double[8];
+		for (int it=0; it < MAX_ITERATIONS; it++)
+			{
+			iterations++;
+
+			// NORMAL EQUATIONS
+
+			double[][] a = new double[npar][npar];
+			double[] b = new double[npar];
+			for (int k=0; k < n; k++)
+				{
+				if (!used[k]) continue;
+				double wk = (w == null) ? 1.0 : w[k];
+				project (p[0],p[1],ra[k],dec[k],xe,dxe,dxd);
+				double xm = p[6]+p[2]*xe[0]+p[3]*xe[1];
+				double ym = p[7]+p[4]*xe[0]+p[5]*xe[1];
+				jx[0] = p[2]*dxe[0]+p[3]*dxe[1];
+				jx[1] = p[2]*dxd[0]+p[3]*dxd[1];
+				jx[2] = xe[0];
+				jx[3] = xe[1];
+				jx[4] = 0.0;
+				jx[5] = 0.0;
+				jy[0] = p[4]*dxe[0]+p[5]*dxe[1];
+				jy[1] = p[4]*dxd[0]+p[5]*dxd[1];
+				jy[2] = 0.0;
+				jy[3] = 0.0;
+				jy[4] = xe[0];
+				jy[5] = xe[1];
+				jx[6] = 1.0;
+				jx[7] = 0.0;
+				jy[6] = 0.0;
+				jy[7] = 1.0;
+				double rx = x[k]-xm;
+				double ry = y[k]-ym;
+				for (int i=0; i < npar; i++)
+					{
+					int fi = free[i];
+					b[i] += wk*(jx[fi]*rx+jy[fi]*ry);
+					for (int j=0; j <= i; j++)
+						a[i][j] += wk*(jx[fi]*jx[free[j]]+jy[fi]*jy[free[j]]);
+					}
+				}
+			for (int i=0; i < npar; i++)
+				for (int j=0; j < i; j++)
+					a[j][i] = a[i][j];
+
+			// TRY STEPS WITH INCREASING DAMPING UNTIL CHI^2 DECREASES
+
+			boolean improved = false;
+			double change = 0.0;
+			while (!improved && lambda < 1.e10)
+				{
+				Matrix m = new Matrix (a);
+				for (int i=0; i < npar; i++)
+					m.set (i,i,a[i][i]*(1.0+lambda));
+				double[] step;
+				try	{
+					step = m.solve(new Matrix(b,npar)).getColumnPackedCopy();
+					}
+				catch (RuntimeException e)	// SINGULAR
+					{
+					lambda *= 10.0;
+					continue;
+					}
+				double[] q = p.clone();
+				for (int i=0; i < npar; i++)
+					q[free[i]] += step[i];
+				double c2 = chi2 (q);
+				if (c2 <= chi2)
+					{
+					change = chi2-c2;
+					p = q;
+					chi2 = c2;
+					lambda = Math.max(1.e-12,0.1*lambda);
+					improved = true;
+					}
+				else
+					lambda *= 10.0;
+				}
+			if (!improved || change <= TOLERANCE*chi2)
+				return !Double.isNaN(chi2);
+			}
+		return !Double.isNaN(chi2);
+		}
+
+	/**
+	 * Weighted sum of squared residuals of the used stars for the parameters q.
+	 */
+	protected double chi2 (double[] q)
+		{
+		double[] xe = new double[2];
+		double[] xy = new double[2];
+		double sum = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			if (!used[k]) continue;
+			projectModel (q,ra[k],dec[k],xe,xy);
+			double dx = xy[0]-x[k];
+			double dy = xy[1]-y[k];
+			sum += ((w == null) ? 1.0 : w[k])*(dx*dx+dy*dy);
+			}
+		return sum;
+		}
+
+	/**
+	 * Unweighted rms distance [pixels] of the used stars.
+	 */
+	protected double rms (double[] q)
+		{
+		if (nUsed == 0) return Double.NaN;
+		double[] xe = new double[2];
+		double[] xy = new double[2];
+		double sum = 0.0;
+		for (int k=0; k < n; k++)
+			{
+			if (!used[k]) continue;
+			projectModel (q,ra[k],dec[k],xe,xy);
+			double dx = xy[0]-x[k];
+			double dy = xy[1]-y[k];
+			sum += dx*dx+dy*dy;
+			}
+		return Math.sqrt(sum/nUsed);
+		}
+
+	protected void projectModel (double[] q, double a, double d, double[] xe, double[] xy)
+		{
+		project (q[0],q[1],a,d,xe,null,null);
+		xy[0] = q[6]+q[2]*xe[0]+q[3]*xe[1];
+		xy[1] = q[7]+q[4]*xe[0]+q[5]*xe[1];
+		}
+
+	protected void project (double a, double d, double[] xe, double[] dxe, double[] dxd)
+		{
+		project (p[0],p[1],a,d,xe,dxe,dxd);
+		}
+
+	/**
+	 * Gnomonic projection xe = (xi,eta) [deg] of (a,d) about (a0,d0) [deg] and, if dxe and dxd are not null,
+	 * its derivatives with respect to a0 and d0.
+	 */
+	protected void project (double a0, double d0, double a, double d, double[] xe, double[] dxe, double[] dxd)
+		{
+		double da = (a-a0)*D2R;
+		double sind = Math.sin(d*D2R);
+		double cosd = Math.cos(d*D2R);
+		double sind0 = Math.sin(d0*D2R);
+		double cosd0 = Math.cos(d0*D2R);
+		double sinda = Math.sin(da);
+		double cosda = Math.cos(da);
+		double A = cosd*sinda;
+		double B = sind*cosd0-cosd*sind0*cosda;
+		double D = sind*sind0+cosd*cosd0*cosda;
+		double u = A/D/D2R;
+		double v = B/D/D2R;
+
+		// ROTATION BY LONPOLE (180 DEG: xi=u, eta=v)
+
+		double sp = Math.sin(lonpole*D2R);
+		double cp = Math.cos(lonpole*D2R);
+		xe[0] =  sp*v-cp*u;
+		xe[1] = -cp*v-sp*u;
+		if (dxe == null) return;
+
+		// D/D(a0): dA = -cosd*cosda, dB = -cosd*sind0*sinda, dD = cosd*cosd0*sinda	(PER RADIAN)
+		// D/D(d0): dA = 0, dB = -D, dD = B
+
+		double D2 = D*D;
+		double dA = -cosd*cosda;
+		double dB = -cosd*sind0*sinda;
+		double dD = cosd*cosd0*sinda;
+		double du = (dA*D-A*dD)/D2;		// PER DEGREE: (1/D2R)*D2R
+		double dv = (dB*D-B*dD)/D2;
+		dxe[0] =  sp*dv-cp*du;
+		dxe[1] = -cp*dv-sp*du;
+		du = -A*B/D2;
+		dv = (-D*D-B*B)/D2;
+		dxd[0] =  sp*dv-cp*du;
+		dxd[1] = -cp*dv-sp*du;
+		}
+	}
@@ -0,0 +1,291 @@
+// WCSTransform.java
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import astroj.*;
+
+/**
+ * Converts many positions between (ImageJ) pixels and R.A./Decl. [deg] with the same results as
+ * WCS.wcs2pixels() and WCS.pixels2wcs(), but for whole arrays of coordinates -- in place or into arrays
+ * supplied by the caller -- without creating any objects per position.
+ *
+ * The constants of the conversions are derived once: the sines and cosines of the pole of the TAN
+ * projection, and the linear maps between ImageJ pixels and the projection plane (CRPIX, the CD or
+ * CDELT x PC matrix and the flip of the y-axis), which are obtained by probing the WCS itself, so that
+ * it need not be known whether it uses a CD or a PC matrix.  Per position, the projection needs only
+ * four trigonometric functions and the deprojection an atan2() and an asin().  If the WCS is not linear
+ * apart from the projection (e.g. it has SIP distortion terms), which is checked at the corners of the
+ * image, the positions are converted one by one by the WCS.
+ *
+ * Arrays with more than MIN_PARALLEL positions are converted in blocks of BLOCK_SIZE by the number of
+ * threads set with setThreads().  A WCSTransform does not change after it has been created, so it can be
+ * shared by several threads; it has to be created anew if the WCS changes.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ */
+public class WCSTransform
+	{
+	public static int MIN_PARALLEL = 100000;
+	public static int BLOCK_SIZE = 16384;
+	public static double TOLERANCE = 1.e-4;	// [pixels] FOR THE LINEARITY CHECK
+
+	protected static double DEGRAD = 180.0/Math.PI;
+
+	protected WCS wcs;
+	protected boolean valid = false;
+	protected boolean linear = false;	// OTHERWISE CONVERTED BY THE WCS
+	protected boolean tan = false;
+	protected double crval0,crval1;
+	protected double sinDp,cosDp;		// DECL. OF THE POLE (CRVAL2)
+	protected double sinPp,cosPp;		// LONPOLE
+	protected double[] toPixels = new double[6];	// X = [0]+[1]*x0+[2]*x1,  Y = [3]+[4]*x0+[5]*x1
+	protected double[] toPlane = new double[6];	// x0 = [0]+[1]*X+[2]*Y, x1 = [3]+[4]*X+[5]*Y
+	protected int nThreads = 1;
+
+	/**
+	 * Derives the constants of the conversions from the WCS.
+	 */
+	public WCSTransform (WCS wcs)
+		{
+		this.wcs = wcs;
+		if (!wcs.hasWCS() || wcs.getNAXES() != 2) return;
+		valid = true;
+		String[] ctype = wcs.getCTYPE();
+		tan = ctype != null && ctype[0] != null && ctype[0].length() >= 8 && ctype[0].substring(5,8).equals("TAN");
+		double[] crval = wcs.getCRVAL();
+		crval0 = crval[0];
+		crval1 = crval[1];
+		sinDp = Math.sin(crval1/DEGRAD);
+		cosDp = Math.cos(crval1/DEGRAD);
+		sinPp = Math.sin(wcs.getLONPOLE()/DEGRAD);
+		cosPp = Math.cos(wcs.getLONPOLE()/DEGRAD);
+		linear = probe ();
+		}
+
+	public boolean isValid ()		{ return valid; }
+	public boolean isLinear ()		{ return linear; }
+	public WCS getWCS ()			{ return wcs; }
+	public void setThreads (int n)		{ nThreads = Math.max(1,n); }
+
+	/**
+	 * Derives the linear maps from the WCS at three corners of the image and checks both directions at
+	 * the fourth corner and the centre.  Returns false if the maps do not reproduce the WCS.  The corners
+	 * are used since the WCS computes the projection via asin(), which is inaccurate close to the tangent
+	 * point; the TOLERANCE allows for this inaccuracy but not for distortions.
+	 */
+	protected boolean probe ()
+		{
+		int[] naxis = wcs.getNAXIS();
+		double[] crpix = wcs.getCRPIX();
+		double w = (naxis != null && naxis[0] > 0) ? naxis[0] : 2.0*crpix[0];
+		double h = (naxis != null && naxis[1] > 0) ? naxis[1] : 2.0*crpix[1];
+		if (w <= 0.0 || h <= 0.0) return false;
+
+		double[][] pixels = new double[][] {{0.0,0.0},{w,0.0},{0.0,h}};
+		double[][] plane = new double[3][2];
+		double[][] pix = new double[3][];
+		for (int k=0; k < 3; k++)
+			{
+			double[] c = wcs.pixels2wcs (pixels[k][0],pixels[k][1]);
+			if (c == null) return false;
+			plane (c[0],c[1],plane[k]);
+			pix[k] = wcs.wcs2pixels (c[0],c[1]);
+			if (pix[k] == null) return false;
+			}
+		if (!affine (pixels,plane,toPlane) || !affine (plane,pix,toPixels))
+			return false;
+
+		// CHECK BOTH DIRECTIONS (EACH AGAINST THE SAME DIRECTION OF THE WCS)
+
+		double scale = Math.sqrt(Math.abs(toPlane[1]*toPlane[5]-toPlane[2]*toPlane[4]));
+		double[][] checks = new double[][] {{w,h},{0.5*w,0.5*h}};
+		double[] xy = new double[2];
+		double[] ad = new double[2];
+		linear = true;
+		for (int k=0; k < checks.length; k++)
+			{
+			double[] c = wcs.pixels2wcs (checks[k][0],checks[k][1]);
+			if (c == null) return false;
+			toSky (checks[k][0],checks[k][1],ad);
+			double da = Math.abs(((ad[0]-c[0])%360.0+540.0)%360.0-180.0)*Math.cos(c[1]/DEGRAD);
+			double dd = Math.abs(ad[1]-c[1]);
+			if (da > TOLERANCE*scale || dd > TOLERANCE*scale)
+				return false;
+			double[] p = wcs.wcs2pixels (c[0],c[1]);
+			if (p == null) return false;
+			toPixels (c[0],c[1],xy);
+			if (Math.abs(xy[0]-p[0]) > TOLERANCE || Math.abs(xy[1]-p[1]) > TOLERANCE)
+				return false;
+			}
+		return true;
+		}
+
+	/**
+	 * Fits out = a + B*in to three points.
+	 */
+	protected static boolean affine (double[][] in, double[][] out, double[] coef)
+		{
+		double u1 = in[1][0]-in[0][0];
+		double v1 = in[1][1]-in[0][1];
+		double u2 = in[2][0]-in[0][0];
+		double v2 = in[2][1]-in[0][1];
+		double det = u1*v2-u2*v1;
+		if (det == 0.0) return false;
+		for (int j=0; j < 2; j++)
+			{
+			double d1 = out[1][j]-out[0][j];
+			double d2 = out[2][j]-out[0][j];
+			double b1 = (d1*v2-d2*v1)/det;
+			double b2 = (u1*d2-u2*d1)/det;
+			coef[3*j] = out[0][j]-b1*in[0][0]-b2*in[0][1];
+			coef[3*j+1] = b1;
+			coef[3*j+2] = b2;
+			}
+		return true;
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// SINGLE POSITIONS
+
+	/**
+	 * Computes the coordinates x[0],x[1] [deg] of (ra,dec) in the projection plane (for a TAN projection,
+	 * otherwise the coordinates themselves).
+	 */
+	protected void plane (double ra, double dec, double[] x)
+		{
+		if (!tan)
+			{
+			x[0] = ra;
+			x[1] = dec;
+			return;
+			}
+		double da = (ra-crval0)/DEGRAD;
+		double sd = Math.sin(dec/DEGRAD);
+		double cd = Math.cos(dec/DEGRAD);
+		double cda = Math.cos(da);
+		double u = -cd*Math.sin(da);			// cos(theta)*sin(phi-LONPOLE)
+		double v = sd*cosDp-cd*sinDp*cda;		// cos(theta)*cos(phi-LONPOLE)
+		double w = sd*sinDp+cd*cosDp*cda;		// sin(theta)
+		x[0] =  DEGRAD*(sinPp*v+cosPp*u)/w;
+		x[1] = -DEGRAD*(cosPp*v-sinPp*u)/w;
+		}
+
+	/**
+	 * Converts (ra,dec) [deg] into the ImageJ pixel position xy.
+	 */
+	public void toPixels (double ra, double dec, double[] xy)
+		{
+		if (!linear)
+			{
+			double[] p = wcs.wcs2pixels (ra,dec);
+			xy[0] = (p == null) ? Double.NaN : p[0];
+			xy[1] = (p == null) ? Double.NaN : p[1];
+			return;
+			}
+		plane (ra,dec,xy);
+		double x0 = xy[0];
+		double x1 = xy[1];
+		xy[0] = toPixels[0]+toPixels[1]*x0+toPixels[2]*x1;
+		xy[1] = toPixels[3]+toPixels[4]*x0+toPixels[5]*x1;
+		}
+
+	/**
+	 * Converts the ImageJ pixel position (x,y) into ad = {R.A.,Decl.} [deg].
+	 */
+	public void toSky (double x, double y, double[] ad)
+		{
+		if (!linear)
+			{
+			double[] c = wcs.pixels2wcs (x,y);
+			ad[0] = (c == null) ? Double.NaN : c[0];
+			ad[1] = (c == null) ? Double.NaN : c[1];
+			return;
+			}
+		double x0 = toPlane[0]+toPlane[1]*x+toPlane[2]*y;
+		double x1 = toPlane[3]+toPlane[4]*x+toPlane[5]*y;
+		if (!tan)
+			{
+			ad[0] = x0;
+			ad[1] = x1;
+			return;
+			}
+		double u = x0*cosPp+x1*sinPp;			// R*cos(theta)*sin(phi-LONPOLE)
+		double v = x0*sinPp-x1*cosPp;			// R*cos(theta)*cos(phi-LONPOLE)
+		double r = Math.sqrt(x0*x0+x1*x1+DEGRAD*DEGRAD);
+		ad[0] = crval0+DEGRAD*Math.atan2(-u,DEGRAD*cosDp-v*sinDp);
+		ad[1] = DEGRAD*Math.asin((DEGRAD*sinDp+v*cosDp)/r);
+		}
+
+	// ------------------------------------------------------------------------------------------
+	// ARRAYS
+
+	/**
+	 * Converts the n positions ra[k],dec[k] [deg] into ImageJ pixels x[k],y[k] (which may be ra and dec
+	 * themselves).
+	 */
+	public void wcs2pixels (double[] ra, double[] dec, double[] x, double[] y, int n)
+		{
+		execute (true,ra,dec,x,y,n);
+		}
+
+	/**
+	 * Converts the n ImageJ pixel positions x[k],y[k] into ra[k],dec[k] [deg] (which may be x and y
+	 * themselves).
+	 */
+	public void pixels2wcs (double[] x, double[] y, double[] ra, double[] dec, int n)
+		{
+		execute (false,x,y,ra,dec,n);
+		}
+
+	protected void convert (boolean pixels, double[] in1, double[] in2, double[] out1, double[] out2, int from, int to)
+		{
+		double[] p = new double[2];
+		for (int k=from; k < to; k++)
+			{
+			if (pixels)
+				toPixels (in1[k],in2[k],p);
+			else
+				toSky (in1[k],in2[k],p);
+			out1[k] = p[0];
+			out2[k] = p[1];
+			}
+		}
+
+	/**
+	 * Converts the n positions, in blocks distributed over the threads if there are enough of them.
+	 */
+	protected void execute (final boolean pixels, final double[] in1, final double[] in2,
+					final double[] out1, final double[] out2, final int n)
+		{
+		int nt = Math.min(nThreads,(n+MIN_PARALLEL-1)/MIN_PARALLEL);
+		if (nt <= 1)
+			{
+			convert (pixels,in1,in2,out1,out2,0,n);
+			return;
+			}
+		final AtomicInteger next = new AtomicInteger(0);
+		Thread[] threads = new Thread[nt];
+		for (int t=0; t < nt; t++)
+			{
+			threads[t] = new Thread ()
+				{
+				public void run ()
+					{
+					int from;
+					while ((from = next.getAndAdd(BLOCK_SIZE)) < n)
+						convert (pixels,in1,in2,out1,out2,from,Math.min(n,from+BLOCK_SIZE));
+					}
+				};
+			threads[t].start();
+			}
+		try	{
+			for (int t=0; t < nt; t++)
+				threads[t].join();
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			}
+		}
+	}
@@ -0,0 +1,372 @@
+// Watch_Photometry.java
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+import ij.process.*;
+
+import java.io.*;
+import java.util.*;
+
+import astroj.*;
+
+/**
+ * Real-time photometry: watches a directory for new FITS images (e.g. while observing) and measures
+ * each new image with the apertures last used by MultiAperture_ (multiaperture.xapertures/yapertures)
+ * and the radii set with Set_Aperture.  The results are appended to the measurement table and to a
+ * tab-separated log file, which is flushed after every image so that nothing is lost.
+ *
+ * The aperture positions follow the drift from image to image; optionally they are seeded with the
+ * global offset of each image relative to the first one (see FrameOffset).  New files are noticed by a
+ * FolderWatcher, so that bursts of images are queued rather than blocking the directory watch; optionally,
+ * if more than maxBacklog images are waiting, the oldest ones are skipped so that the latency stays bounded.
+ *
+ * @version 1.0
+ * @date 2026-Oct-19
+ *
+ * @version 1.1
+ * @date 2026-Oct-19
+ * @changes Optional maximum number of waiting images (older ones are skipped).
+ */
+public class Watch_Photometry implements PlugIn, FolderWatcher.Listener
+	{
+	String directory = "";
+	String logName = "photometry.log";
+	String extensions = ".fits,.fit,.fts";
+	boolean processExisting = false;
+	boolean useOffsetSeed = false;
+	int settleTime = 250;
+	int maxBacklog = 0;		// 0 = UNLIMITED
+
+	double radius, rBack1, rBack2;
+	double ccdGain, ccdNoise, ccdDark;
+	boolean backIsPlane, reposition, removeBackStars;
+
+	int nApertures = 0;
+	double[] xPos,yPos;
+	double[] xRefPos,yRefPos;
+	FrameOffset frameOffset = null;
+
+	MeasurementTable table = null;
+	PrintWriter log = null;
+	FolderWatcher watcher = null;
+	GFormat g = new GFormat("4.3");
+
+	int count = 0;
+	long maxLatency = 0;
+
+	public static String PREFS_DIRECTORY   = new String ("watchphotometry.directory");
+	public static String PREFS_LOGNAME     = new String ("watchphotometry.logname");
+	public static String PREFS_EXTENSIONS  = new String ("watchphotometry.extensions");
+	public static String PREFS_EXISTING    = new String ("watchphotometry.existing");
+	public static String PREFS_OFFSETSEED  = new String ("watchphotometry.offsetseed");
+	public static String PREFS_SETTLETIME  = new String ("watchphotometry.settletime");
+	public static String PREFS_MAXBACKLOG  = new String ("watchphotometry.maxbacklog");
+
+	public static String LATENCY = new String ("Latency[ms]");
+
+	/**
+	 * Sets up the watcher and waits until the user stops it.
+	 */
+	public void run (String arg)
+		{
+		if (!getApertures() || !dialog()) return;
+		getMeasurementPrefs();
+
+		File dir = new File(directory);
+		if (!dir.isDirectory())
+			{
+			IJ.error ("Not a directory: "+directory);
+			return;
+			}
+
+		// OPEN LOG FILE (APPEND) AND TABLE
+
+		File logFile = new File(logName);
+		if (!logFile.isAbsolute()) logFile = new File(dir,logName);
+		boolean newLog = !logFile.exists() || logFile.length() == 0;
+		try	{
+			log = new PrintWriter (new BufferedWriter (new FileWriter (logFile,true)));
+			}
+		catch (IOException e)
+			{
+			IJ.error ("Unable to open log file "+logFile+" : "+e.getMessage());
+			return;
+			}
+		if (newLog) writeLogHeader ();
+
+		table = MeasurementTable.getTable (null);
+		if (table == null)
+			{
+			IJ.error ("Unable to open measurement table.");
+			log.close();
+			return;
+			}
+
+		// START WATCHING
+
+		watcher = new FolderWatcher (dir, extensions.split(","), this);
+		watcher.setSettleTime (settleTime);
+		watcher.setProcessExisting (processExisting);
+		watcher.setMaxBacklog (maxBacklog);
+		try	{
+			watcher.start();
+			}
+		catch (IOException e)
+			{
+			IJ.error ("Unable to watch "+directory+" : "+e.getMessage());
+			log.close();
+			return;
+			}
+		IJ.register (Watch_Photometry.class);
+		IJ.showStatus ("Watching "+directory+" ...");
+
+		new WaitForUserDialog ("Watch Folder Photometry",
+			"Measuring new images in\n"+directory+"\nwith "+nApertures+" apertures.\n \nPress OK to stop.").show();
+
+		watcher.stop();
+		synchronized (this)
+			{
+			log.close();
+			log = null;
+			}
+		IJ.showStatus ("Stopped watching "+directory+": "+count+" images measured, "+watcher.dropped()+" skipped, maximum latency "
+						+maxLatency+" ms");
+		}
+
+	/**
+	 * Gets the apertures last used by MultiAperture_.
+	 */
+	protected boolean getApertures ()
+		{
+		String xs = Prefs.get (MultiAperture_.PREFS_XAPERTURES,"");
+		String ys = Prefs.get (MultiAperture_.PREFS_YAPERTURES,"");
+		if (xs.trim().equals("") || ys.trim().equals(""))
+			{
+			IJ.error ("No saved apertures: please run MultiAperture first!");
+			return false;
+			}
+		String[] sx = xs.split(",");
+		String[] sy = ys.split(",");
+		if (sx.length != sy.length)
+			{
+			IJ.error ("The stored apertures are not consistent: "+sx.length+"!="+sy.length);
+			return false;
+			}
+		nApertures = sx.length;
+		xPos = new double[nApertures];
+		yPos = new double[nApertures];
+		try	{
+			for (int i=0; i < nApertures; i++)
+				{
+				xPos[i] = Double.parseDouble(sx[i]);
+				yPos[i] = Double.parseDouble(sy[i]);
+				}
+			}
+		catch (NumberFormatException e)
+			{
+			IJ.error ("Unable to parse the stored apertures!");
+			return false;
+			}
+		return true;
+		}
+
+	protected boolean dialog ()
+		{
+		directory       = Prefs.get (PREFS_DIRECTORY, directory);
+		logName         = Prefs.get (PREFS_LOGNAME, logName);
+		extensions      = Prefs.get (PREFS_EXTENSIONS, extensions);
+		processExisting = Prefs.get (PREFS_EXISTING, processExisting);
+		useOffsetSeed   = Prefs.get (PREFS_OFFSETSEED, useOffsetSeed);
+		settleTime      = (int)Prefs.get (PREFS_SETTLETIME, settleTime);
+		maxBacklog      = (int)Prefs.get (PREFS_MAXBACKLOG, maxBacklog);
+
+		GenericDialog gd = new GenericDialog ("Watch Folder Photometry");
+		gd.addMessage ("Measures "+nApertures+" apertures from MultiAperture in each new image.");
+		gd.addStringField ("Directory to watch :",directory,40);
+		gd.addStringField ("Log file :",logName,40);
+		gd.addStringField ("File extensions :",extensions,20);
+		gd.addNumericField ("Wait until file unchanged for :",settleTime,0,6,"ms");
+		gd.addNumericField ("Maximum images waiting (0 = all) :",maxBacklog,0,6,"older ones are skipped");
+		gd.addCheckbox ("Also measure images already in the directory",processExisting);
+		gd.addCheckbox ("Seed aperture positions with global image offset",useOffsetSeed);
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		directory       = gd.getNextString().trim();
+		logName         = gd.getNextString().trim();
+		extensions      = gd.getNextString().trim();
+		settleTime      = (int)gd.getNextNumber();
+		maxBacklog      = (int)gd.getNextNumber();
+		processExisting = gd.getNextBoolean();
+		useOffsetSeed   = gd.getNextBoolean();
+		if (directory.equals(""))
+			{
+			DirectoryChooser dc = new DirectoryChooser ("Directory to watch");
+			directory = dc.getDirectory();
+			if (directory == null) return false;
+			}
+		if (logName.equals("")) logName = "photometry.log";
+
+		Prefs.set (PREFS_DIRECTORY, directory);
+		Prefs.set (PREFS_LOGNAME, logName);
+		Prefs.set (PREFS_EXTENSIONS, extensions);
+		Prefs.set (PREFS_EXISTING, processExisting);
+		Prefs.set (PREFS_OFFSETSEED, useOffsetSeed);
+		Prefs.set (PREFS_SETTLETIME, settleTime);
+		Prefs.set (PREFS_MAXBACKLOG, maxBacklog);
+		return true;
+		}
+
+	/**
+	 * Gets the aperture radii and CCD parameters from the Aperture_ preferences.
+	 */
+	protected void getMeasurementPrefs ()
+		{
+		radius = Prefs.get (Aperture_.AP_PREFS_RADIUS,11.0);
+		rBack1 = Prefs.get (Aperture_.AP_PREFS_RBACK1,radius+3.0);
+		rBack2 = Prefs.get (Aperture_.AP_PREFS_RBACK2,radius+8.0);
+		backIsPlane = Prefs.get (Aperture_.AP_PREFS_BACKPLANE, true);
+		reposition = Prefs.get (Aperture_.AP_PREFS_REPOSITION, true);
+		removeBackStars = Prefs.get (Aperture_.AP_PREFS_REMOVEBACKSTARS, true);
+		ccdGain = Prefs.get (Aperture_.AP_PREFS_CCDGAIN, 1.0);
+		ccdNoise = Prefs.get (Aperture_.AP_PREFS_CCDNOISE, 0.0);
+		ccdDark = Prefs.get (Aperture_.AP_PREFS_CCDDARK, 0.0);
+		}
+
+	/**
+	 * FolderWatcher.Listener method: measures a new image.
+	 */
+	public synchronized void newFile (File file, long detected)
+		{
+		if (log == null) return;		// ALREADY STOPPED
+		ImagePlus im = IJ.openImage (file.getPath());
+		if (im == null)
+			{
+			IJ.log ("Watch_Photometry: unable to open "+file);
+			return;
+			}
+		ImageProcessor ip = im.getProcessor();
+		String[] hdr = FitsJ.getHeader (im);
+		double mjd = Double.NaN;
+		if (hdr != null)
+			{
+			mjd = FitsJ.getMeanMJD (hdr);
+			if (Double.isNaN(mjd)) mjd = FitsJ.getMJD (hdr);
+			}
+
+		// MOVE APERTURES BY THE GLOBAL OFFSET RELATIVE TO THE FIRST IMAGE
+
+		if (useOffsetSeed && frameOffset != null)
+			{
+			double[] d = frameOffset.measure (ip);
+			if (d != null)
+				{
+				for (int ap=0; ap < nApertures; ap++)
+					{
+					xPos[ap] = xRefPos[ap]+d[0];
+					yPos[ap] = yRefPos[ap]+d[1];
+					}
+				}
+			}
+
+		// MEASURE ALL APERTURES
+
+		double[] src = new double[nApertures];
+		double[] err = new double[nApertures];
+		double[] bck = new double[nApertures];
+		Photometer photom = new Photometer (im.getCalibration());
+		photom.setCCD (ccdGain, ccdNoise, ccdDark);
+		photom.setRemoveBackStars (removeBackStars);
+		for (int ap=0; ap < nApertures; ap++)
+			{
+			if (reposition)
+				{
+				Centroid center = new Centroid (backIsPlane);
+				center.setPositioning (true);
+				center.forgiving = true;
+				if (center.measureXYR (ip, xPos[ap], yPos[ap], radius))
+					{
+					xPos[ap] = center.x();
+					yPos[ap] = center.y();
+					}
+				}
+			photom.measure (ip, xPos[ap], yPos[ap], radius, rBack1, rBack2);
+			src[ap] = photom.sourceBrightness();
+			err[ap] = photom.sourceError();
+			bck[ap] = photom.backgroundBrightness();
+			}
+		if (useOffsetSeed && frameOffset == null)
+			{
+			frameOffset = new FrameOffset (ip);
+			xRefPos = xPos.clone();
+			yRefPos = yPos.clone();
+			}
+		long latency = System.currentTimeMillis()-detected;
+		if (latency > maxLatency) maxLatency = latency;
+		count++;
+
+		storeResults (file.getName(), mjd, src, err, bck, latency);
+		IJ.showStatus (file.getName()+": "+g.format(src[0])+" (latency "+latency+" ms, "+watcher.backlog()+" waiting)");
+		}
+
+	/**
+	 * Appends the results to the table (same columns as MultiAperture_ in wide format) and to the log.
+	 */
+	protected void storeResults (String name, double mjd, double[] src, double[] err, double[] bck, long latency)
+		{
+		double others = 0.0;
+		double othersVariance = 0.0;
+		for (int ap=1; ap < nApertures; ap++)
+			{
+			others += src[ap];
+			othersVariance += err[ap]*err[ap];
+			}
+		double ratio = (others != 0.0) ? src[0]/others : Double.NaN;
+
+		table.incrementCounter();
+		table.setLabel (name, table.getCounter()-1);
+		if (!Double.isNaN(mjd))
+			table.addValue (Aperture_.AP_MJD, mjd, 6);
+		StringBuffer line = new StringBuffer (name+"\t"+mjd);
+		for (int ap=0; ap < nApertures; ap++)
+			{
+			String header = (ap == 0) ? "" : "_#"+(ap+1);
+			table.addValue (Aperture_.AP_XCENTER+header, xPos[ap], 6);
+			table.addValue (Aperture_.AP_YCENTER+header, yPos[ap], 6);
+			table.addValue (Aperture_.AP_SOURCE+header, src[ap], 6);
+			table.addValue (Aperture_.AP_SOURCE_ERROR+header, err[ap], 6);
+			table.addValue (Aperture_.AP_BACK+header, bck[ap], 6);
+			line.append ("\t"+xPos[ap]+"\t"+yPos[ap]+"\t"+src[ap]+"\t"+err[ap]+"\t"+bck[ap]);
+			}
+		if (nApertures > 1)
+			{
+			table.addValue (MultiAperture_.RATIO, ratio, 6);
+			table.addValue (MultiAperture_.RATIOERROR, ratio*Math.sqrt(err[0]*err[0]/(src[0]*src[0])
+						+othersVariance/(others*others)), 8);
+			line.append ("\t"+ratio);
+			}
+		table.addValue (LATENCY, latency, 0);
+		table.show ("Measurements");
+
+		log.println (line.toString());
+		log.flush ();
+		}
+
+	protected void writeLogHeader ()
+		{
+		StringBuffer line = new StringBuffer ("#"+Aperture_.AP_IMAGE+"\t"+Aperture_.AP_MJD);
+		for (int ap=0; ap < nApertures; ap++)
+			{
+			String header = (ap == 0) ? "" : "_#"+(ap+1);
+			line.append ("\t"+Aperture_.AP_XCENTER+header+"\t"+Aperture_.AP_YCENTER+header
+					+"\t"+Aperture_.AP_SOURCE+header+"\t"+Aperture_.AP_SOURCE_ERROR+header
+					+"\t"+Aperture_.AP_BACK+header);
+			}
+		if (nApertures > 1)
+			line.append ("\t"+MultiAperture_.RATIO);
+		log.println (line.toString());
+		log.flush ();
+		}
+	}
@@ -24,6 +24,10 @@ import astroj.*;
  * @version 1.2
  * @date 2012-Sep-25
  * @changes Removed Prefs (too complicated!)
+ *
+ * @version 1.3
+ * @date 2026-Oct-19
+ * @changes Images without a WCS are solved blindly if an astrometric index has been set (Solve_Astrometry).
  */
 public class World_Coordinates implements PlugInFilter
 	{
@@ -102,10 +106,15 @@ public class World_Coordinates implements PlugInFilter
 		wcs = new WCS(img);
 		if (! wcs.hasWCS())
 			{
-			IJ.beep();
-			IJ.error("Cannot get WCS coordinates - try to repair!");
-			img.unlock();
-			return;
+			WCS solved = Solve_Astrometry.solveWithPrefs (img);
+			if (solved == null)
+				{
+				IJ.beep();
+				IJ.error("Cannot get WCS coordinates - try to repair or to solve (Solve Astrometry)!");
+				img.unlock();
+				return;
+				}
+			wcs = solved;
 			}
 
                 slice = img.getCurrentSlice();